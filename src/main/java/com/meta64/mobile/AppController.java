@@ -10,6 +10,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.core.io.InputStreamResource;
+import org.springframework.core.io.Resource;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
@@ -27,9 +28,12 @@ import com.meta64.mobile.aspect.OakSession;
 import com.meta64.mobile.config.SessionContext;
 import com.meta64.mobile.config.SpringContextUtil;
 import com.meta64.mobile.image.CaptchaMaker;
+import com.meta64.mobile.job.AsyncJob;
+import com.meta64.mobile.job.JobManager;
 import com.meta64.mobile.request.AddPrivilegeRequest;
 import com.meta64.mobile.request.AnonPageLoadRequest;
 import com.meta64.mobile.request.BrowseFolderRequest;
+import com.meta64.mobile.request.CancelJobRequest;
 import com.meta64.mobile.request.ChangePasswordRequest;
 import com.meta64.mobile.request.CloseAccountRequest;
 import com.meta64.mobile.request.CompareSubGraphRequest;
@@ -42,8 +46,10 @@ import com.meta64.mobile.request.ExportRequest;
 import com.meta64.mobile.request.FileSearchRequest;
 import com.meta64.mobile.request.GenerateNodeHashRequest;
 import com.meta64.mobile.request.GenerateRSSRequest;
+import com.meta64.mobile.request.GetJobStatusRequest;
 import com.meta64.mobile.request.GetNodePrivilegesRequest;
 import com.meta64.mobile.request.GetPlayerInfoRequest;
+import com.meta64.mobile.request.GetRssStatusRequest;
 import com.meta64.mobile.request.GetServerInfoRequest;
 import com.meta64.mobile.request.GetSharedNodesRequest;
 import com.meta64.mobile.request.ImportRequest;
@@ -70,6 +76,7 @@ import com.meta64.mobile.request.UploadFromUrlRequest;
 import com.meta64.mobile.response.AddPrivilegeResponse;
 import com.meta64.mobile.response.AnonPageLoadResponse;
 import com.meta64.mobile.response.BrowseFolderResponse;
+import com.meta64.mobile.response.CancelJobResponse;
 import com.meta64.mobile.response.ChangePasswordResponse;
 import com.meta64.mobile.response.CloseAccountResponse;
 import com.meta64.mobile.response.CompareSubGraphResponse;
@@ -82,8 +89,10 @@ import com.meta64.mobile.response.ExportResponse;
 import com.meta64.mobile.response.FileSearchResponse;
 import com.meta64.mobile.response.GenerateNodeHashResponse;
 import com.meta64.mobile.response.GenerateRSSResponse;
+import com.meta64.mobile.response.GetJobStatusResponse;
 import com.meta64.mobile.response.GetNodePrivilegesResponse;
 import com.meta64.mobile.response.GetPlayerInfoResponse;
+import com.meta64.mobile.response.GetRssStatusResponse;
 import com.meta64.mobile.response.GetServerInfoResponse;
 import com.meta64.mobile.response.GetSharedNodesResponse;
 import com.meta64.mobile.response.ImportResponse;
@@ -219,6 +228,9 @@ public class AppController {
 	@Autowired
 	private RssService rssService;
 
+	@Autowired
+	private JobManager jobManager;
+
 	private static final boolean logRequests = false;
 
 	/*
@@ -600,6 +612,47 @@ public class AppController {
 		return res;
 	}
 
+	@RequestMapping(value = API_PATH + "/getJobStatus", method = RequestMethod.POST)
+	/*
+	 * No @OakSession here, because this is polled by the client while a job runs and it never
+	 * needs to touch the repository.
+	 */
+	public @ResponseBody GetJobStatusResponse getJobStatus(@RequestBody GetJobStatusRequest req) {
+		logRequest("getJobStatus", req);
+		GetJobStatusResponse res = new GetJobStatusResponse();
+		checkHttpSession();
+		AsyncJob job = jobManager.getJob(req.getJobId(), sessionContext.getUserName());
+		if (job != null) {
+			res.setJobInfo(job.getInfo());
+			res.setSuccess(true);
+		}
+		else {
+			res.setMessage("Job not found.");
+		}
+		return res;
+	}
+
+	@RequestMapping(value = API_PATH + "/cancelJob", method = RequestMethod.POST)
+	public @ResponseBody CancelJobResponse cancelJob(@RequestBody CancelJobRequest req) {
+		logRequest("cancelJob", req);
+		CancelJobResponse res = new CancelJobResponse();
+		checkHttpSession();
+		if (jobManager.cancel(req.getJobId(), sessionContext.getUserName())) {
+			res.setSuccess(true);
+		}
+		else {
+			res.setMessage("Job not found.");
+		}
+		return res;
+	}
+
+	@RequestMapping(value = API_PATH + "/downloadJobResult", method = RequestMethod.GET)
+	public @ResponseBody ResponseEntity<InputStreamResource> downloadJobResult(@RequestParam("jobId") String jobId) {
+		logRequest("downloadJobResult", null);
+		checkHttpSession();
+		return jobManager.downloadResult(jobId, sessionContext.getUserName());
+	}
+
 	@RequestMapping(value = API_PATH + "/anonPageLoad", method = RequestMethod.POST)
 	@OakSession
 	public @ResponseBody AnonPageLoadResponse anonPageLoad(@RequestBody AnonPageLoadRequest req) {
@@ -737,6 +790,31 @@ public class AppController {
 		return res;
 	}
 
+	/*
+	 * Plays an RSS enclosure from the server's cache if there is one (see EnclosureCache), or else
+	 * redirects to it. Range requests are supported for seeking.
+	 */
+	@RequestMapping(value = API_PATH + "/enclosure", method = RequestMethod.GET)
+	@OakSession
+	public @ResponseBody ResponseEntity<Resource> getEnclosure(@RequestParam("url") String url) {
+		logRequest("enclosure", null);
+		return rssService.getEnclosure(null, url);
+	}
+
+	@RequestMapping(value = API_PATH + "/getRssStatus", method = RequestMethod.POST)
+	// IMPORTANT: No OakSession annotation here, purposefully. This only reads what's in memory.
+	public @ResponseBody GetRssStatusResponse getRssStatus(@RequestBody GetRssStatusRequest req) {
+		logRequest("getRssStatus", req);
+		GetRssStatusResponse res = new GetRssStatusResponse();
+		if (!sessionContext.isAdmin()) {
+			throw ExUtil.newEx("admin only function.");
+		}
+		rssService.getStatus(req, res);
+		res.setSuccess(true);
+		checkHttpSession();
+		return res;
+	}
+
 	/* Currently only used to update TIME offset of the video player */
 	@RequestMapping(value = API_PATH + "/setPlayerInfo", method = RequestMethod.POST)
 	/*
@@ -151,6 +151,13 @@ public class AppProp /* implements EnvironmentAware */ {
 		return val.startsWith("t") || val.startsWith("y") || val.startsWith("1");
 	}
 
+	/* returns defaultVal if the property is not set */
+	public int getIntProp(String propName, int defaultVal) {
+		String val = env.getProperty(propName);
+		if (val == null || val.trim().length() == 0) return defaultVal;
+		return Integer.parseInt(val.trim());
+	}
+
 	public String getProp(String propName) {
 		return env.getProperty(propName);
 	}
@@ -26,6 +26,27 @@ public class JcrProp {
 	 */
 	public static final String RSS_FEED_SRC = "meta64:rssFeedSrc";
 
+	/* validators from the last fetch, sent back in If-None-Match and If-Modified-Since */
+	public static final String RSS_FEED_ETAG = "meta64:rssFeedEtag";
+	public static final String RSS_FEED_LAST_MODIFIED = "meta64:rssFeedLastModified";
+
+	/* when to fetch the feed next, and the polling interval, in millis (see RssReader) */
+	public static final String RSS_FEED_NEXT_CHECK = "meta64:rssFeedNextCheck";
+	public static final String RSS_FEED_INTERVAL = "meta64:rssFeedInterval";
+
+	/* failed fetches in a row, for backing off */
+	public static final String RSS_FEED_FAILURES = "meta64:rssFeedFailures";
+
+	/* optional per-feed retention, overriding rss.retention.* (see RssCompactor). Zero is no limit */
+	public static final String RSS_FEED_MAX_ITEMS = "meta64:rssFeedMaxItems";
+	public static final String RSS_FEED_MAX_AGE_DAYS = "meta64:rssFeedMaxAgeDays";
+
+	/*
+	 * hashes of the links of items RssCompactor deleted that the feed still lists, so they aren't
+	 * taken for new items and written again (see RssDbWriter.getPrunedLinks)
+	 */
+	public static final String RSS_FEED_PRUNED_LINKS = "meta64:rssFeedPrunedLinks";
+
 	public static final String TYPE_RSS_ITEM = "meta64:rssitem";
 	public static final String RSS_ITEM_TITLE = "meta64:rssItemTitle";
 	public static final String RSS_ITEM_DESC = "meta64:rssItemDesc";
@@ -43,6 +64,9 @@ public class JcrProp {
 
 	public static final String MERKLE_HASH = "meta64:merkle";
 
+	/* SHA-256 of the BIN_DATA content, maintained along with MERKLE_HASH */
+	public static final String BIN_HASH = "meta64:binHash";
+
 	/*
 	 * "true" means any user can add subnode under the node that has this property
 	 */
@@ -85,6 +109,15 @@ public class JcrProp {
 	public static final String JSON_FILE_SEARCH_RESULT = "jsonFileSearchResult";
 	public static final String DISABLE_INSERT = "disableInsert";
 
+	/*
+	 * set until an import completes: on the node a zip import goes into (holding the import's id,
+	 * see ImportZipService), or on the top node of an XML import (see SysViewImporter)
+	 */
+	public static final String IMPORT_PENDING = "meta64:importPending";
+
+	/* the id of the zip import that created the node, on the nodes whose parent was already there */
+	public static final String IMPORT_ID = "meta64:importId";
+
 	/*
 	 * mime type expressed as a file extension. Invented so we can set 'txt' v.s. 'md' to turn off
 	 * metadata rendering
@@ -121,4 +154,10 @@ public class JcrProp {
 
 	public static final String IMG_WIDTH = "imgWidth";
 	public static final String IMG_HEIGHT = "imgHeight";
+
+	/*
+	 * All of the above binary info packed into one string, so it can be read in one property
+	 * access (see BinaryMeta)
+	 */
+	public static final String BIN_META = "binMeta";
 }
@@ -0,0 +1,214 @@
+package com.meta64.mobile.job;
+
+import java.io.File;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.meta64.mobile.model.JobInfo;
+import com.meta64.mobile.util.DateUtil;
+import com.meta64.mobile.util.ExUtil;
+
+/**
+ * Base class for long running work that gets done on the JobManager thread pool rather than on the
+ * thread of the HTTP request that asked for it. The request just submits the job and returns the
+ * job id to the client, and the client then polls for status using that id.
+ * <p>
+ * Since the request thread (and the JCR session it had) is long gone by the time the job runs,
+ * subclasses must capture everything they need (user name, node ids, etc) before being submitted.
+ * <p>
+ * Jobs that walk a lot of content report their progress (nodes and bytes done, and the totals when
+ * they're known up front) so the client can show a rate and ETA. Cancelling is cooperative: it only
+ * sets a flag, and runJob is expected to call checkCancelled() regularly.
+ */
+public abstract class AsyncJob implements Runnable {
+	private static final Logger log = LoggerFactory.getLogger(AsyncJob.class);
+
+	public static enum State {
+		QUEUED, RUNNING, COMPLETED, FAILED, CANCELLED
+	}
+
+	private String id;
+	private String userName;
+	private volatile State state = State.QUEUED;
+	private volatile String message;
+	private final long createTime = System.currentTimeMillis();
+	private volatile long startTime;
+	private volatile long endTime;
+	private volatile boolean cancelRequested;
+
+	/*
+	 * Progress. Each of these is only ever set by one thread, so volatile is enough. The totals
+	 * stay 0 when they aren't known.
+	 */
+	private volatile long nodesDone;
+	private volatile long bytesDone;
+	private volatile long nodesTotal;
+	private volatile long bytesTotal;
+
+	/* File the client can download once the job has completed, if the job produces one */
+	private volatile File resultFile;
+
+	/* Does the actual work. Throwing any exception puts the job in the FAILED state */
+	protected abstract void runJob() throws Exception;
+
+	/* short name of the type of job, for display and logging */
+	public abstract String getType();
+
+	@Override
+	public final void run() {
+		if (cancelRequested) {
+			cancelledWhileQueued();
+			return;
+		}
+		state = State.RUNNING;
+		startTime = System.currentTimeMillis();
+		try {
+			log.debug("Job " + id + " (" + getType() + ") started.");
+			runJob();
+			state = State.COMPLETED;
+			log.debug("Job " + id + " completed.");
+		}
+		catch (Exception ex) {
+			/* whatever the job was in the middle of when it saw the cancel can throw just about anything */
+			if (cancelRequested) {
+				log.debug("Job " + id + " cancelled.");
+				message = "Cancelled.";
+				state = State.CANCELLED;
+			}
+			else {
+				log.error("Job " + id + " (" + getType() + ") failed.", ex);
+				message = ex.getMessage();
+				state = State.FAILED;
+			}
+		}
+		finally {
+			endTime = System.currentTimeMillis();
+		}
+	}
+
+	public boolean isDone() {
+		return state == State.COMPLETED || state == State.FAILED || state == State.CANCELLED;
+	}
+
+	/* Asks the job to stop. It will at the next checkCancelled() */
+	public void cancel() {
+		cancelRequested = true;
+	}
+
+	/* For JobManager, when the job got taken back out of the queue and so will never run */
+	void cancelledWhileQueued() {
+		message = "Cancelled.";
+		state = State.CANCELLED;
+		endTime = System.currentTimeMillis();
+	}
+
+	public boolean isCancelRequested() {
+		return cancelRequested;
+	}
+
+	/* Jobs call this between units of work, to stop as soon as they can after a cancel */
+	public void checkCancelled() {
+		if (cancelRequested) {
+			throw ExUtil.newEx("Job cancelled.");
+		}
+	}
+
+	public JobInfo getInfo() {
+		JobInfo info = new JobInfo();
+		info.setId(id);
+		info.setType(getType());
+		info.setState(state.name());
+		info.setDone(isDone());
+		info.setMessage(message);
+		info.setCreateTime(createTime);
+		info.setStartTime(startTime);
+		info.setEndTime(endTime);
+
+		info.setNodesDone(nodesDone);
+		info.setBytesDone(bytesDone);
+		info.setNodesTotal(nodesTotal);
+		info.setBytesTotal(bytesTotal);
+		info.setHasResult(state == State.COMPLETED && resultFile != null);
+
+		if (state == State.RUNNING) {
+			long elapsed = System.currentTimeMillis() - startTime;
+			if (elapsed > 0) {
+				info.setNodesPerSecond(nodesDone * DateUtil.SECOND_MILLIS / elapsed);
+				info.setBytesPerSecond(bytesDone * DateUtil.SECOND_MILLIS / elapsed);
+			}
+			info.setEtaMillis(estimateRemainingMillis(elapsed));
+		}
+		return info;
+	}
+
+	/*
+	 * Straight line estimate from how long the work done so far took. Bytes are the better measure
+	 * when we have a total for them (nodes vary a lot in size), otherwise nodes. Returns -1 if
+	 * there's nothing to go on yet.
+	 */
+	private long estimateRemainingMillis(long elapsed) {
+		long done = bytesTotal > 0 ? bytesDone : nodesDone;
+		long total = bytesTotal > 0 ? bytesTotal : nodesTotal;
+		if (total <= 0 || done <= 0) {
+			return -1;
+		}
+		return Math.max(0, total - done) * elapsed / done;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public void setId(String id) {
+		this.id = id;
+	}
+
+	public String getUserName() {
+		return userName;
+	}
+
+	public void setUserName(String userName) {
+		this.userName = userName;
+	}
+
+	public State getState() {
+		return state;
+	}
+
+	public String getMessage() {
+		return message;
+	}
+
+	public void setMessage(String message) {
+		this.message = message;
+	}
+
+	public long getEndTime() {
+		return endTime;
+	}
+
+	public void setNodesDone(long nodesDone) {
+		this.nodesDone = nodesDone;
+	}
+
+	public void setBytesDone(long bytesDone) {
+		this.bytesDone = bytesDone;
+	}
+
+	public void setNodesTotal(long nodesTotal) {
+		this.nodesTotal = nodesTotal;
+	}
+
+	public void setBytesTotal(long bytesTotal) {
+		this.bytesTotal = bytesTotal;
+	}
+
+	public File getResultFile() {
+		return resultFile;
+	}
+
+	public void setResultFile(File resultFile) {
+		this.resultFile = resultFile;
+	}
+}
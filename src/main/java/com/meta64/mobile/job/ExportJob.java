@@ -0,0 +1,83 @@
+package com.meta64.mobile.job;
+
+import java.io.File;
+
+import javax.jcr.Session;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Scope;
+import org.springframework.stereotype.Component;
+
+import com.meta64.mobile.config.SessionContext;
+import com.meta64.mobile.config.SpringContextUtil;
+import com.meta64.mobile.repo.OakRepository;
+import com.meta64.mobile.service.ExportXmlService;
+import com.meta64.mobile.service.ExportZipService;
+
+/**
+ * Background job that exports a node (and everything under it) to a file in the adminDataFolder,
+ * as either a zip or an XML system view. The file can be downloaded once the job completes. This is
+ * a prototype bean, holding the state for one export.
+ */
+@Component
+@Scope("prototype")
+public class ExportJob extends AsyncJob {
+	public static final String FORMAT_ZIP = "zip";
+	public static final String FORMAT_XML = "xml";
+
+	@Autowired
+	private OakRepository oak;
+
+	@Autowired
+	private ExportXmlService exportXmlService;
+
+	private String password;
+	private String nodeId;
+	private File targetFile;
+	private String format;
+
+	/*
+	 * Not the session bean (there's no HTTP session on the job thread), just a copy of the user's
+	 * timezone settings, so dates get formatted the same as they would be in the request.
+	 */
+	private SessionContext timeContext;
+
+	public void init(String userName, String password, String nodeId, File targetFile, String format, SessionContext sessionContext) {
+		setUserName(userName);
+		this.password = password;
+		this.nodeId = nodeId;
+		this.targetFile = targetFile;
+		this.format = format;
+
+		timeContext = new SessionContext();
+		timeContext.setTimezone(sessionContext.getTimezone());
+		timeContext.setTimeZoneAbbrev(sessionContext.getTimeZoneAbbrev());
+	}
+
+	@Override
+	public String getType() {
+		return "export";
+	}
+
+	@Override
+	protected void runJob() throws Exception {
+		Session session = null;
+		try {
+			session = oak.newUserSession(getUserName(), password);
+			if (FORMAT_ZIP.equals(format)) {
+				/* This is a prototype bean, with state for processing one export */
+				ExportZipService exportZipService = (ExportZipService) SpringContextUtil.getBean(ExportZipService.class);
+				exportZipService.exportToFile(session, nodeId, targetFile, timeContext, this);
+			}
+			else {
+				exportXmlService.exportToFile(session, nodeId, targetFile, this);
+			}
+			setResultFile(targetFile);
+		}
+		finally {
+			if (session != null) {
+				session.logout();
+			}
+		}
+	}
+}
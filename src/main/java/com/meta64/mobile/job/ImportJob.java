@@ -0,0 +1,80 @@
+package com.meta64.mobile.job;
+
+import java.io.File;
+
+import javax.jcr.ImportUUIDBehavior;
+import javax.jcr.Session;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Scope;
+import org.springframework.stereotype.Component;
+
+import com.meta64.mobile.config.SpringContextUtil;
+import com.meta64.mobile.repo.OakRepository;
+import com.meta64.mobile.service.ImportXmlService;
+import com.meta64.mobile.service.ImportZipService;
+
+/**
+ * Background job that imports a zip or XML file from the adminDataFolder under a node. Both
+ * imports save in batches as they go, and remove what they added if they fail or get cancelled,
+ * so the node is left as it was. This is a prototype bean, holding the state for one import.
+ */
+@Component
+@Scope("prototype")
+public class ImportJob extends AsyncJob {
+	public static final String FORMAT_ZIP = "zip";
+	public static final String FORMAT_XML = "xml";
+
+	@Autowired
+	private OakRepository oak;
+
+	@Autowired
+	private ImportXmlService importXmlService;
+
+	private String password;
+	private String nodeId;
+	private File sourceFile;
+	private String format;
+
+	/* only used for XML, a javax.jcr.ImportUUIDBehavior value */
+	private int uuidBehavior = ImportUUIDBehavior.IMPORT_UUID_CREATE_NEW;
+
+	public void init(String userName, String password, String nodeId, File sourceFile, String format) {
+		setUserName(userName);
+		this.password = password;
+		this.nodeId = nodeId;
+		this.sourceFile = sourceFile;
+		this.format = format;
+	}
+
+	public void setUuidBehavior(int uuidBehavior) {
+		this.uuidBehavior = uuidBehavior;
+	}
+
+	@Override
+	public String getType() {
+		return "import";
+	}
+
+	@Override
+	protected void runJob() throws Exception {
+		Session session = null;
+		try {
+			session = oak.newUserSession(getUserName(), password);
+			setBytesTotal(sourceFile.length());
+			if (FORMAT_ZIP.equals(format)) {
+				/* This is a prototype bean, with state for processing one import */
+				ImportZipService importZipService = (ImportZipService) SpringContextUtil.getBean(ImportZipService.class);
+				importZipService.importFromFile(session, nodeId, sourceFile, this);
+			}
+			else {
+				importXmlService.importFromFile(session, nodeId, sourceFile, uuidBehavior, this);
+			}
+		}
+		finally {
+			if (session != null) {
+				session.logout();
+			}
+		}
+	}
+}
@@ -0,0 +1,153 @@
+package com.meta64.mobile.job;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.commons.io.input.AutoCloseInputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.InputStreamResource;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import com.meta64.mobile.AppServer;
+import com.meta64.mobile.config.AppProp;
+import com.meta64.mobile.config.JcrPrincipal;
+import com.meta64.mobile.util.DateUtil;
+import com.meta64.mobile.util.ExUtil;
+import com.meta64.mobile.util.JcrUtil;
+
+/**
+ * Runs AsyncJobs on a bounded thread pool and keeps track of them by id so clients can poll for
+ * their status. Both the number of threads and the number of queued jobs are bounded, so that a
+ * burst of requests gets rejected rather than piling up an unlimited backlog on the server.
+ * <p>
+ * Finished jobs are kept around for a while (so the client can still pick up the final status,
+ * and download the result if there is one) and then purged. Jobs don't depend on the request that
+ * submitted them in any way, so they carry on if the client goes away.
+ */
+@Component
+public class JobManager {
+	private static final Logger log = LoggerFactory.getLogger(JobManager.class);
+
+	/* How long we remember finished jobs */
+	private static final long FINISHED_JOB_RETAIN_MILLIS = DateUtil.HOUR_MILLIS;
+
+	@Autowired
+	private AppProp appProp;
+
+	private ThreadPoolExecutor executor;
+	private final Map<String, AsyncJob> jobs = new ConcurrentHashMap<String, AsyncJob>();
+
+	@PostConstruct
+	public void init() {
+		int threads = appProp.getIntProp("jobs.maxThreads", 4);
+		int maxQueued = appProp.getIntProp("jobs.maxQueued", 50);
+		executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(maxQueued));
+	}
+
+	@PreDestroy
+	public void preDestroy() {
+		log.debug("Shutting down JobManager");
+		executor.shutdownNow();
+	}
+
+	/*
+	 * Queues the job to be run and returns its id
+	 */
+	public String submit(AsyncJob job) {
+		job.setId(JcrUtil.getGUID());
+		jobs.put(job.getId(), job);
+		try {
+			executor.execute(job);
+		}
+		catch (RejectedExecutionException ex) {
+			jobs.remove(job.getId());
+			throw ExUtil.newEx("Server is too busy to accept this job right now. Try again later.");
+		}
+		log.debug("Submitted job " + job.getId() + " (" + job.getType() + ") for user " + job.getUserName());
+		return job.getId();
+	}
+
+	/*
+	 * Gets the job, but only if it belongs to userName (or the user is admin). Returns null
+	 * otherwise, so that users cannot even discover the existence of other users' jobs.
+	 */
+	public AsyncJob getJob(String jobId, String userName) {
+		if (jobId == null || userName == null) return null;
+		AsyncJob job = jobs.get(jobId);
+		if (job == null) return null;
+		if (!userName.equals(job.getUserName()) && !JcrPrincipal.ADMIN.equalsIgnoreCase(userName)) {
+			return null;
+		}
+		return job;
+	}
+
+	/*
+	 * Asks the job to stop. A job still waiting in the queue is taken out and never runs, and a
+	 * running one stops at its next check. Returns false if there's no such job for this user.
+	 */
+	public boolean cancel(String jobId, String userName) {
+		AsyncJob job = getJob(jobId, userName);
+		if (job == null) return false;
+
+		job.cancel();
+		if (executor.remove(job)) {
+			job.cancelledWhileQueued();
+		}
+		log.debug("Cancel requested for job " + jobId);
+		return true;
+	}
+
+	/*
+	 * Streams the file a completed job produced (like an export) back to the client as a download.
+	 * The job only knows the file by the path it wrote, so there's no way to ask for anything
+	 * outside the jobs.
+	 */
+	public ResponseEntity<InputStreamResource> downloadResult(String jobId, String userName) {
+		AsyncJob job = getJob(jobId, userName);
+		if (job == null || job.getState() != AsyncJob.State.COMPLETED || job.getResultFile() == null || !job.getResultFile().isFile()) {
+			return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+		}
+
+		File file = job.getResultFile();
+		try {
+			return ResponseEntity.ok().contentLength(file.length())//
+					.header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + file.getName() + "\"")//
+					.contentType(MediaType.APPLICATION_OCTET_STREAM)//
+					.body(new InputStreamResource(new AutoCloseInputStream(new FileInputStream(file))));
+		}
+		catch (Exception ex) {
+			throw ExUtil.newEx(ex);
+		}
+	}
+
+	@Scheduled(fixedDelay = 10 * DateUtil.MINUTE_MILLIS)
+	public void purgeFinishedJobs() {
+		if (AppServer.isShuttingDown() || !AppServer.isEnableScheduling()) return;
+
+		long now = System.currentTimeMillis();
+		Iterator<AsyncJob> iter = jobs.values().iterator();
+		while (iter.hasNext()) {
+			AsyncJob job = iter.next();
+			if (job.isDone() && now - job.getEndTime() > FINISHED_JOB_RETAIN_MILLIS) {
+				iter.remove();
+			}
+		}
+	}
+}
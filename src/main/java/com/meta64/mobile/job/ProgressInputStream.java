@@ -0,0 +1,32 @@
+package com.meta64.mobile.job;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.commons.io.input.CountingInputStream;
+
+/**
+ * Stream for a job to read its input through. It reports the bytes read so far as the job's
+ * progress, and stops the read with an exception once the job has been cancelled, which is the
+ * only way to stop work that's being driven by something else reading the stream (like the JCR
+ * importXML).
+ */
+public class ProgressInputStream extends CountingInputStream {
+	private final AsyncJob job;
+
+	public ProgressInputStream(InputStream in, AsyncJob job) {
+		super(in);
+		this.job = job;
+	}
+
+	@Override
+	protected synchronized void afterRead(int n) {
+		super.afterRead(n);
+		job.setBytesDone(getByteCount());
+	}
+
+	@Override
+	protected void beforeRead(int n) throws IOException {
+		job.checkCancelled();
+	}
+}
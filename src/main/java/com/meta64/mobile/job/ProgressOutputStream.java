@@ -0,0 +1,26 @@
+package com.meta64.mobile.job;
+
+import java.io.OutputStream;
+
+import org.apache.commons.io.output.CountingOutputStream;
+
+/**
+ * Stream for a job to write its output through. It reports the bytes written so far as the job's
+ * progress, and stops the write with an exception once the job has been cancelled (see
+ * ProgressInputStream).
+ */
+public class ProgressOutputStream extends CountingOutputStream {
+	private final AsyncJob job;
+
+	public ProgressOutputStream(OutputStream out, AsyncJob job) {
+		super(out);
+		this.job = job;
+	}
+
+	@Override
+	protected synchronized void beforeWrite(int n) {
+		job.checkCancelled();
+		super.beforeWrite(n);
+		job.setBytesDone(getByteCount());
+	}
+}
@@ -0,0 +1,55 @@
+package com.meta64.mobile.job;
+
+import javax.jcr.Session;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Scope;
+import org.springframework.stereotype.Component;
+
+import com.meta64.mobile.repo.OakRepository;
+import com.meta64.mobile.service.AttachmentService;
+
+/**
+ * Background job that downloads the content at some URL and attaches it to a node. This is a
+ * prototype bean, holding the state for one upload.
+ */
+@Component
+@Scope("prototype")
+public class UploadFromUrlJob extends AsyncJob {
+
+	@Autowired
+	private OakRepository oak;
+
+	@Autowired
+	private AttachmentService attachmentService;
+
+	private String password;
+	private String nodeId;
+	private String sourceUrl;
+
+	public void init(String userName, String password, String nodeId, String sourceUrl) {
+		setUserName(userName);
+		this.password = password;
+		this.nodeId = nodeId;
+		this.sourceUrl = sourceUrl;
+	}
+
+	@Override
+	public String getType() {
+		return "uploadFromUrl";
+	}
+
+	@Override
+	protected void runJob() throws Exception {
+		Session session = null;
+		try {
+			session = oak.newUserSession(getUserName(), password);
+			attachmentService.attachFromUrl(session, nodeId, sourceUrl);
+		}
+		finally {
+			if (session != null) {
+				session.logout();
+			}
+		}
+	}
+}
@@ -2,7 +2,6 @@ package com.meta64.mobile.mail;
 
 import java.util.LinkedList;
 import java.util.List;
-import java.util.NoSuchElementException;
 
 import javax.jcr.Node;
 import javax.jcr.NodeIterator;
@@ -108,20 +107,15 @@ public class JcrOutboxMgr {
 		try {
 			NodeIterator nodeIter = JcrUtil.getNodes(outboxNode);
 
-			try {
-				int nodeCount = 0;
-				int mailBatchSizeInt = Integer.parseInt(mailBatchSize);
-				while (nodeCount++ < mailBatchSizeInt) {
-					Node n = nodeIter.nextNode();
+			int nodeCount = 0;
+			int mailBatchSizeInt = Integer.parseInt(mailBatchSize);
+			while (nodeCount++ < mailBatchSizeInt && nodeIter.hasNext()) {
+				Node n = nodeIter.nextNode();
 
-					if (mailNodes == null) {
-						mailNodes = new LinkedList<Node>();
-					}
-					mailNodes.add(n);
+				if (mailNodes == null) {
+					mailNodes = new LinkedList<Node>();
 				}
-			}
-			catch (NoSuchElementException ex) {
-				// not an error. Normal iterator end condition.
+				mailNodes.add(n);
 			}
 		}
 		catch (Exception e) {
@@ -0,0 +1,88 @@
+package com.meta64.mobile.model;
+
+/**
+ * One difference found by CompareSubGraphService, as sent back to the client. Paths are relative to
+ * the two nodes being compared, and 'added' and 'removed' are as seen going from A to B. There's a
+ * path for each side because the names of matching nodes can differ (imports get new names).
+ */
+public class CompareDiffInfo {
+	public static final String NODE_ADDED = "nodeAdded";
+	public static final String NODE_REMOVED = "nodeRemoved";
+	public static final String TYPE_CHANGED = "typeChanged";
+	public static final String PROP_ADDED = "propAdded";
+	public static final String PROP_REMOVED = "propRemoved";
+	public static final String PROP_CHANGED = "propChanged";
+
+	private String diffType;
+
+	/* null for the side the node doesn't exist on */
+	private String pathA;
+	private String pathB;
+
+	/* null for the node level diffs */
+	private String propName;
+
+	/* shortened for display, and null where there's nothing on that side */
+	private String valueA;
+	private String valueB;
+
+	public CompareDiffInfo() {
+	}
+
+	public CompareDiffInfo(String diffType, String pathA, String pathB, String propName, String valueA, String valueB) {
+		this.diffType = diffType;
+		this.pathA = pathA;
+		this.pathB = pathB;
+		this.propName = propName;
+		this.valueA = valueA;
+		this.valueB = valueB;
+	}
+
+	public String getDiffType() {
+		return diffType;
+	}
+
+	public void setDiffType(String diffType) {
+		this.diffType = diffType;
+	}
+
+	public String getPathA() {
+		return pathA;
+	}
+
+	public void setPathA(String pathA) {
+		this.pathA = pathA;
+	}
+
+	public String getPathB() {
+		return pathB;
+	}
+
+	public void setPathB(String pathB) {
+		this.pathB = pathB;
+	}
+
+	public String getPropName() {
+		return propName;
+	}
+
+	public void setPropName(String propName) {
+		this.propName = propName;
+	}
+
+	public String getValueA() {
+		return valueA;
+	}
+
+	public void setValueA(String valueA) {
+		this.valueA = valueA;
+	}
+
+	public String getValueB() {
+		return valueB;
+	}
+
+	public void setValueB(String valueB) {
+		this.valueB = valueB;
+	}
+}
@@ -0,0 +1,63 @@
+package com.meta64.mobile.model;
+
+/**
+ * A latency histogram as sent back to the client. counts[i] is the number of samples of at most
+ * bucketLimits[i] millis (and more than the limit before it). The last count is for everything
+ * over the last limit, so there is one more count than there are limits.
+ */
+public class HistogramInfo {
+	private String name;
+	private long[] bucketLimits;
+	private long[] counts;
+	private long count;
+	private long totalMillis;
+	private long maxMillis;
+
+	public String getName() {
+		return name;
+	}
+
+	public void setName(String name) {
+		this.name = name;
+	}
+
+	public long[] getBucketLimits() {
+		return bucketLimits;
+	}
+
+	public void setBucketLimits(long[] bucketLimits) {
+		this.bucketLimits = bucketLimits;
+	}
+
+	public long[] getCounts() {
+		return counts;
+	}
+
+	public void setCounts(long[] counts) {
+		this.counts = counts;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public void setCount(long count) {
+		this.count = count;
+	}
+
+	public long getTotalMillis() {
+		return totalMillis;
+	}
+
+	public void setTotalMillis(long totalMillis) {
+		this.totalMillis = totalMillis;
+	}
+
+	public long getMaxMillis() {
+		return maxMillis;
+	}
+
+	public void setMaxMillis(long maxMillis) {
+		this.maxMillis = maxMillis;
+	}
+}
@@ -0,0 +1,159 @@
+package com.meta64.mobile.model;
+
+/**
+ * Status of a background job (see AsyncJob) as sent back to the client.
+ */
+public class JobInfo {
+	private String id;
+	private String type;
+	private String state;
+	private boolean done;
+	private String message;
+	private long createTime;
+	private long startTime;
+	private long endTime;
+
+	private long nodesDone;
+	private long bytesDone;
+
+	/* 0 if not known */
+	private long nodesTotal;
+	private long bytesTotal;
+
+	private long nodesPerSecond;
+	private long bytesPerSecond;
+
+	/* estimated time left, or -1 if there's no estimate */
+	private long etaMillis = -1;
+
+	/* true if there's a file to download (see AppController.downloadJobResult) */
+	private boolean hasResult;
+
+	public String getId() {
+		return id;
+	}
+
+	public void setId(String id) {
+		this.id = id;
+	}
+
+	public String getType() {
+		return type;
+	}
+
+	public void setType(String type) {
+		this.type = type;
+	}
+
+	public String getState() {
+		return state;
+	}
+
+	public void setState(String state) {
+		this.state = state;
+	}
+
+	public boolean isDone() {
+		return done;
+	}
+
+	public void setDone(boolean done) {
+		this.done = done;
+	}
+
+	public String getMessage() {
+		return message;
+	}
+
+	public void setMessage(String message) {
+		this.message = message;
+	}
+
+	public long getCreateTime() {
+		return createTime;
+	}
+
+	public void setCreateTime(long createTime) {
+		this.createTime = createTime;
+	}
+
+	public long getStartTime() {
+		return startTime;
+	}
+
+	public void setStartTime(long startTime) {
+		this.startTime = startTime;
+	}
+
+	public long getEndTime() {
+		return endTime;
+	}
+
+	public void setEndTime(long endTime) {
+		this.endTime = endTime;
+	}
+
+	public long getNodesDone() {
+		return nodesDone;
+	}
+
+	public void setNodesDone(long nodesDone) {
+		this.nodesDone = nodesDone;
+	}
+
+	public long getBytesDone() {
+		return bytesDone;
+	}
+
+	public void setBytesDone(long bytesDone) {
+		this.bytesDone = bytesDone;
+	}
+
+	public long getNodesTotal() {
+		return nodesTotal;
+	}
+
+	public void setNodesTotal(long nodesTotal) {
+		this.nodesTotal = nodesTotal;
+	}
+
+	public long getBytesTotal() {
+		return bytesTotal;
+	}
+
+	public void setBytesTotal(long bytesTotal) {
+		this.bytesTotal = bytesTotal;
+	}
+
+	public long getNodesPerSecond() {
+		return nodesPerSecond;
+	}
+
+	public void setNodesPerSecond(long nodesPerSecond) {
+		this.nodesPerSecond = nodesPerSecond;
+	}
+
+	public long getBytesPerSecond() {
+		return bytesPerSecond;
+	}
+
+	public void setBytesPerSecond(long bytesPerSecond) {
+		this.bytesPerSecond = bytesPerSecond;
+	}
+
+	public long getEtaMillis() {
+		return etaMillis;
+	}
+
+	public void setEtaMillis(long etaMillis) {
+		this.etaMillis = etaMillis;
+	}
+
+	public boolean isHasResult() {
+		return hasResult;
+	}
+
+	public void setHasResult(boolean hasResult) {
+		this.hasResult = hasResult;
+	}
+}
@@ -0,0 +1,68 @@
+package com.meta64.mobile.model;
+
+/**
+ * What the last RSS compaction run did, as sent back to the client (see RssCompactor). Times are
+ * in millis.
+ */
+public class RssCompactionInfo {
+	private long startTime;
+	private long durationMillis;
+	private int feedCount;
+
+	/* item nodes deleted for being over a feed's max items or max age */
+	private long deletedItems;
+
+	/* Oak's own summary of the revision GC that ran afterwards, or null if it didn't run */
+	private String revisionGcStats;
+
+	/* null if the run succeeded */
+	private String lastError;
+
+	public long getStartTime() {
+		return startTime;
+	}
+
+	public void setStartTime(long startTime) {
+		this.startTime = startTime;
+	}
+
+	public long getDurationMillis() {
+		return durationMillis;
+	}
+
+	public void setDurationMillis(long durationMillis) {
+		this.durationMillis = durationMillis;
+	}
+
+	public int getFeedCount() {
+		return feedCount;
+	}
+
+	public void setFeedCount(int feedCount) {
+		this.feedCount = feedCount;
+	}
+
+	public long getDeletedItems() {
+		return deletedItems;
+	}
+
+	public void setDeletedItems(long deletedItems) {
+		this.deletedItems = deletedItems;
+	}
+
+	public String getRevisionGcStats() {
+		return revisionGcStats;
+	}
+
+	public void setRevisionGcStats(String revisionGcStats) {
+		this.revisionGcStats = revisionGcStats;
+	}
+
+	public String getLastError() {
+		return lastError;
+	}
+
+	public void setLastError(String lastError) {
+		this.lastError = lastError;
+	}
+}
@@ -0,0 +1,142 @@
+package com.meta64.mobile.model;
+
+/**
+ * What happened the last time the RSS daemon read a feed, as sent back to the client (see
+ * RssMetrics). Times are in millis.
+ */
+public class RssFeedStats {
+	private String url;
+	private String nodeId;
+	private long lastRunTime;
+
+	/* time to the response headers */
+	private long fetchMillis;
+
+	/* bytes read, and time to read and parse them */
+	private long bytes;
+	private long parseMillis;
+
+	private boolean notModified;
+	private int newItems;
+	private int duplicateItems;
+	private long writeMillis;
+
+	/* null if the last run succeeded */
+	private String lastError;
+
+	private int failureCount;
+	private long nextCheckTime;
+	private long interval;
+
+	public String getUrl() {
+		return url;
+	}
+
+	public void setUrl(String url) {
+		this.url = url;
+	}
+
+	public String getNodeId() {
+		return nodeId;
+	}
+
+	public void setNodeId(String nodeId) {
+		this.nodeId = nodeId;
+	}
+
+	public long getLastRunTime() {
+		return lastRunTime;
+	}
+
+	public void setLastRunTime(long lastRunTime) {
+		this.lastRunTime = lastRunTime;
+	}
+
+	public long getFetchMillis() {
+		return fetchMillis;
+	}
+
+	public void setFetchMillis(long fetchMillis) {
+		this.fetchMillis = fetchMillis;
+	}
+
+	public long getBytes() {
+		return bytes;
+	}
+
+	public void setBytes(long bytes) {
+		this.bytes = bytes;
+	}
+
+	public long getParseMillis() {
+		return parseMillis;
+	}
+
+	public void setParseMillis(long parseMillis) {
+		this.parseMillis = parseMillis;
+	}
+
+	public boolean isNotModified() {
+		return notModified;
+	}
+
+	public void setNotModified(boolean notModified) {
+		this.notModified = notModified;
+	}
+
+	public int getNewItems() {
+		return newItems;
+	}
+
+	public void setNewItems(int newItems) {
+		this.newItems = newItems;
+	}
+
+	public int getDuplicateItems() {
+		return duplicateItems;
+	}
+
+	public void setDuplicateItems(int duplicateItems) {
+		this.duplicateItems = duplicateItems;
+	}
+
+	public long getWriteMillis() {
+		return writeMillis;
+	}
+
+	public void setWriteMillis(long writeMillis) {
+		this.writeMillis = writeMillis;
+	}
+
+	public String getLastError() {
+		return lastError;
+	}
+
+	public void setLastError(String lastError) {
+		this.lastError = lastError;
+	}
+
+	public int getFailureCount() {
+		return failureCount;
+	}
+
+	public void setFailureCount(int failureCount) {
+		this.failureCount = failureCount;
+	}
+
+	public long getNextCheckTime() {
+		return nextCheckTime;
+	}
+
+	public void setNextCheckTime(long nextCheckTime) {
+		this.nextCheckTime = nextCheckTime;
+	}
+
+	public long getInterval() {
+		return interval;
+	}
+
+	public void setInterval(long interval) {
+		this.interval = interval;
+	}
+}
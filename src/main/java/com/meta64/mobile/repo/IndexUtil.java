@@ -3,6 +3,7 @@ package com.meta64.mobile.repo;
 import java.io.File;
 
 import javax.jcr.Node;
+import javax.jcr.PropertyType;
 import javax.jcr.Session;
 
 import org.apache.commons.io.FileUtils;
@@ -63,6 +64,32 @@ public class IndexUtil {
 			createIndex(session, "codeIndex", false, false, JcrProp.CODE, null, "nt:base");
 			createIndex(session, "pwdResetAuthIndex", false, false, JcrProp.USER_PREF_PASSWORD_RESET_AUTHCODE, null, "nt:base");
 
+			/*
+			 * Index for RSS de-duplication, so new items can be checked against old ones by link.
+			 * This one is synchronous, since with an async index every item the indexer hadn't got
+			 * to yet (like all of them, right after the index is created) would look new and be
+			 * written again. It replaces the Lucene 'rssItemLinkIndex'.
+			 */
+			removeIndex(session, "rssItemLinkIndex");
+			createSyncPropertyIndex(session, "rssItemLinkSyncIndex", JcrProp.RSS_ITEM_LINK, JcrProp.TYPE_RSS_ITEM);
+
+			/* Index for checking that a url the enclosure endpoint is asked for is a real enclosure */
+			createIndex(session, "rssItemEncUrlIndex", false, false, JcrProp.RSS_ITEM_ENC_URL, null, JcrProp.TYPE_RSS_ITEM);
+
+			/*
+			 * Index for listing the items of a feed newest first (see NodeRenderService). It checks
+			 * the ISCHILDNODE restriction itself so it only ever reads the one feed's items, and it's
+			 * near real time so that newly written items show up without waiting for the async
+			 * indexer.
+			 */
+			createIndex(session, "rssItemCreatedIndex", true, false, JcrProp.CREATED, "Date", JcrProp.TYPE_RSS_ITEM, true, true);
+
+			/*
+			 * Index for finding the nodes of a zip import to roll it back. This one is synchronous,
+			 * since the rollback has to see what was saved a moment ago.
+			 */
+			createSyncPropertyIndex(session, "importIdIndex", JcrProp.IMPORT_ID);
+
 			/* Index all properties of all nodes for fulltext search capability */
 			createIndex(session, "fullText", false, true, null, null, "nt:base");
 		});
@@ -89,6 +116,21 @@ public class IndexUtil {
 	 * file, and restart the server.
 	 */
 	public void createIndex(Session session, String indexName, boolean ordered, boolean fulltext, String sortPropName, String sortPropType, String targetType) {
+		createIndex(session, indexName, ordered, fulltext, sortPropName, sortPropType, targetType, fulltext, false);
+	}
+
+	/**
+	 * Same as above, plus:
+	 * 
+	 * evaluatePathRestriction=true makes the index itself apply path conditions like ISCHILDNODE,
+	 * rather than returning matches from the whole repository for the query engine to filter.
+	 * 
+	 * nrt=true makes it a hybrid index, which also indexes this cluster node's own commits as they
+	 * happen (see OakRepository), so queries see new nodes right away instead of after the next
+	 * async cycle.
+	 */
+	public void createIndex(Session session, String indexName, boolean ordered, boolean fulltext, String sortPropName, String sortPropType, String targetType,
+			boolean evaluatePathRestriction, boolean nrt) {
 		Node indexNode = JcrUtil.findNode(session, JcrConst.PATH_INDEX);
 		Node indexDefNode = JcrUtil.safeFindNode(session, JcrConst.PATH_INDEX + "/" + indexName);
 		if (indexDefNode != null) {
@@ -114,10 +156,15 @@ public class IndexUtil {
 			/* properties required for all indexes */
 			indexDefNode.setProperty("compatVersion", 2);
 			indexDefNode.setProperty("type", "lucene");
-			indexDefNode.setProperty("async", "async");
+			if (nrt) {
+				indexDefNode.setProperty("async", new String[] { "async", "nrt" });
+			}
+			else {
+				indexDefNode.setProperty("async", "async");
+			}
 			indexDefNode.setProperty("reindex", true);
 
-			if (fulltext) {
+			if (evaluatePathRestriction) {
 				indexDefNode.setProperty(LuceneIndexConstants.EVALUATE_PATH_RESTRICTION, true);
 			}
 
@@ -154,6 +201,62 @@ public class IndexUtil {
 		}
 	}
 
+	/*
+	 * Creates an Oak (non-Lucene) property index, which is updated as part of each commit rather
+	 * than asynchronously. Only good for exact matches, and costs every commit that touches the
+	 * property, so only use it for rarely written properties that queries must see right away.
+	 */
+	public void createSyncPropertyIndex(Session session, String indexName, String propName) {
+		createSyncPropertyIndex(session, indexName, propName, null);
+	}
+
+	/* Same as above, but only indexing nodes of 'nodeType' (and its subtypes) if it's not null */
+	public void createSyncPropertyIndex(Session session, String indexName, String propName, String nodeType) {
+		Node indexNode = JcrUtil.findNode(session, JcrConst.PATH_INDEX);
+		if (JcrUtil.safeFindNode(session, JcrConst.PATH_INDEX + "/" + indexName) != null) {
+			log.info("Index definition for " + indexName + " exists. Not creating.");
+			return;
+		}
+		log.info("Creating index definition: " + indexName);
+
+		try {
+			Node indexDefNode = indexNode.addNode(indexName, "oak:QueryIndexDefinition");
+			indexDefNode.setProperty("type", "property");
+			indexDefNode.setProperty("propertyNames", new String[] { propName }, PropertyType.NAME);
+			if (nodeType != null) {
+				indexDefNode.setProperty("declaringNodeTypes", new String[] { nodeType }, PropertyType.NAME);
+			}
+			indexDefNode.setProperty("reindex", true);
+			JcrUtil.save(session);
+		}
+		catch (Exception e) {
+			throw ExUtil.newEx(e);
+		}
+	}
+
+	/*
+	 * Deletes an index definition that has been replaced, along with its files if it was a Lucene
+	 * index on the file system. Does nothing if there's no such index.
+	 */
+	public void removeIndex(Session session, String indexName) {
+		Node indexDefNode = JcrUtil.safeFindNode(session, JcrConst.PATH_INDEX + "/" + indexName);
+		if (indexDefNode == null) return;
+		log.info("Removing index definition: " + indexName);
+
+		try {
+			String path = JcrUtil.safeGetStringProp(indexDefNode, "path");
+			indexDefNode.remove();
+			JcrUtil.save(session);
+
+			if (path != null) {
+				FileUtils.deleteQuietly(new File(path));
+			}
+		}
+		catch (Exception e) {
+			throw ExUtil.newEx(e);
+		}
+	}
+
 	private void enableFulltextIndex(Node propNode, String propertyName) {
 		try {
 			propNode.setProperty(LuceneIndexConstants.PROP_NODE_SCOPE_INDEX, true);
@@ -0,0 +1,202 @@
+package com.meta64.mobile.repo;
+
+import static org.apache.jackrabbit.JcrConstants.JCR_PRIMARYTYPE;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.jackrabbit.oak.api.CommitFailedException;
+import org.apache.jackrabbit.oak.api.PropertyState;
+import org.apache.jackrabbit.oak.api.Type;
+import org.apache.jackrabbit.oak.plugins.tree.impl.TreeConstants;
+import org.apache.jackrabbit.oak.spi.commit.CommitInfo;
+import org.apache.jackrabbit.oak.spi.commit.DefaultEditor;
+import org.apache.jackrabbit.oak.spi.commit.Editor;
+import org.apache.jackrabbit.oak.spi.commit.EditorProvider;
+import org.apache.jackrabbit.oak.spi.state.NodeBuilder;
+import org.apache.jackrabbit.oak.spi.state.NodeState;
+
+import com.meta64.mobile.config.JcrProp;
+import com.meta64.mobile.util.ExUtil;
+import com.meta64.mobile.util.MerkleUtil;
+
+/**
+ * Keeps the Merkle hash (JcrProp.MERKLE_HASH) of every content node current, as part of each
+ * commit. Oak only hands the editor the nodes that actually changed plus their ancestors, and each
+ * one is rehashed in leave() after its children, from its own properties and the hashes already
+ * stored on its children. So a commit costs about (depth * children per level) rather than the
+ * size of the tree, and reading the hash of any subtree is just reading one property.
+ * <p>
+ * The hash definition is shared with Sha256Service (see MerkleUtil), so 'verify' from there still
+ * works against what this writes.
+ * <p>
+ * A node whose children don't all have a hash yet (data from before this was enabled) gets its
+ * hash removed rather than a wrong one written, and so do its ancestors. Running Generate Hash
+ * once on a subtree fills them all in, after which this keeps them current.
+ * <p>
+ * Enabled with merkleHashing.enabled=true. Note every commit writes to all the ancestors of what
+ * changed, so concurrent writers on a clustered DocumentNodeStore will see more merge retries.
+ */
+public class MerkleHashEditorProvider implements EditorProvider {
+
+	@Override
+	public Editor getRootEditor(NodeState before, NodeState after, NodeBuilder builder, CommitInfo info) throws CommitFailedException {
+		return new MerkleHashEditor(builder);
+	}
+
+	private static class MerkleHashEditor extends DefaultEditor {
+		private final NodeBuilder builder;
+
+		/* true if BIN_DATA was added, changed or removed on this node in this commit */
+		private boolean binaryChanged;
+
+		MerkleHashEditor(NodeBuilder builder) {
+			this.builder = builder;
+		}
+
+		@Override
+		public void propertyAdded(PropertyState after) throws CommitFailedException {
+			checkBinary(after.getName());
+		}
+
+		@Override
+		public void propertyChanged(PropertyState before, PropertyState after) throws CommitFailedException {
+			checkBinary(after.getName());
+		}
+
+		@Override
+		public void propertyDeleted(PropertyState before) throws CommitFailedException {
+			checkBinary(before.getName());
+		}
+
+		private void checkBinary(String propName) {
+			if (JcrProp.BIN_DATA.equals(propName)) {
+				binaryChanged = true;
+			}
+		}
+
+		@Override
+		public Editor childNodeAdded(String name, NodeState after) throws CommitFailedException {
+			return childEditor(name, after);
+		}
+
+		@Override
+		public Editor childNodeChanged(String name, NodeState before, NodeState after) throws CommitFailedException {
+			return childEditor(name, after);
+		}
+
+		/* Excluded subtrees (indexes, system, ACLs) are not even walked */
+		private Editor childEditor(String name, NodeState after) {
+			if (MerkleUtil.isExcludedNode(name, after.getName(JCR_PRIMARYTYPE))) {
+				return null;
+			}
+			return new MerkleHashEditor(builder.getChildNode(name));
+		}
+
+		@Override
+		public void leave(NodeState before, NodeState after) throws CommitFailedException {
+			String primaryType = builder.getName(JCR_PRIMARYTYPE);
+
+			/* root node and other repository managed nodes don't get a hash */
+			if (primaryType == null || primaryType.startsWith("rep:")) {
+				return;
+			}
+
+			try {
+				updateBinaryHash();
+
+				MessageDigest digester = MerkleUtil.newDigester();
+
+				for (String childName : getChildNames()) {
+					NodeBuilder child = builder.getChildNode(childName);
+					if (MerkleUtil.isExcludedNode(childName, child.getName(JCR_PRIMARYTYPE))) {
+						continue;
+					}
+
+					String childHash = child.getString(JcrProp.MERKLE_HASH);
+					if (childHash == null) {
+						builder.removeProperty(JcrProp.MERKLE_HASH);
+						return;
+					}
+					digester.update(Hex.decodeHex(childHash.toCharArray()));
+				}
+
+				List<String> propNames = new ArrayList<String>();
+				for (PropertyState prop : builder.getProperties()) {
+					String propName = prop.getName();
+					if (!propName.startsWith(":") && !MerkleUtil.isIgnoredProperty(propName)) {
+						propNames.add(propName);
+					}
+				}
+				Collections.sort(propNames);
+
+				for (String propName : propNames) {
+					digestProperty(digester, builder.getProperty(propName));
+				}
+
+				updateDigest(digester, "type");
+				updateDigest(digester, primaryType);
+
+				builder.setProperty(JcrProp.MERKLE_HASH, Hex.encodeHexString(digester.digest()));
+			}
+			catch (Exception ex) {
+				throw ExUtil.newEx(ex);
+			}
+		}
+
+		/*
+		 * Same order JCR returns them in: ':childOrder' for orderable nodes, otherwise the order
+		 * they're stored in
+		 */
+		private Iterable<String> getChildNames() {
+			if (!builder.hasProperty(TreeConstants.OAK_CHILD_ORDER)) {
+				return builder.getChildNodeNames();
+			}
+
+			List<String> names = new ArrayList<String>();
+			for (String name : builder.getNames(TreeConstants.OAK_CHILD_ORDER)) {
+				if (builder.hasChildNode(name)) {
+					names.add(name);
+				}
+			}
+			return names;
+		}
+
+		private void updateBinaryHash() {
+			PropertyState binProp = builder.getProperty(JcrProp.BIN_DATA);
+			if (binProp == null) {
+				builder.removeProperty(JcrProp.BIN_HASH);
+				return;
+			}
+
+			if (binaryChanged || !builder.hasProperty(JcrProp.BIN_HASH)) {
+				byte[] binHash = MerkleUtil.digestStream(binProp.getValue(Type.BINARY).getNewStream());
+				builder.setProperty(JcrProp.BIN_HASH, Hex.encodeHexString(binHash));
+			}
+		}
+
+		private void digestProperty(MessageDigest digester, PropertyState prop) throws Exception {
+			updateDigest(digester, prop.getName());
+
+			if (prop.isArray()) {
+				for (int i = 0; i < prop.count(); i++) {
+					digester.update(prop.getValue(Type.STRING, i).getBytes(StandardCharsets.UTF_8));
+				}
+			}
+			else if (prop.getName().equals(JcrProp.BIN_DATA)) {
+				digester.update(Hex.decodeHex(builder.getString(JcrProp.BIN_HASH).toCharArray()));
+			}
+			else {
+				digester.update(prop.getValue(Type.STRING).getBytes(StandardCharsets.UTF_8));
+			}
+		}
+
+		private void updateDigest(MessageDigest digester, String val) {
+			digester.update(val.trim().getBytes(StandardCharsets.UTF_8));
+		}
+	}
+}
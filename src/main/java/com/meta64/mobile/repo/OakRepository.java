@@ -9,30 +9,47 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
 
 import javax.annotation.PreDestroy;
+import javax.jcr.Credentials;
+import javax.jcr.GuestCredentials;
 import javax.jcr.Repository;
 import javax.jcr.Session;
+import javax.jcr.SimpleCredentials;
 import javax.sql.DataSource;
 
 import org.apache.jackrabbit.oak.Oak;
+import org.apache.jackrabbit.oak.commons.PathUtils;
 import org.apache.jackrabbit.oak.jcr.Jcr;
 import org.apache.jackrabbit.oak.jcr.repository.RepositoryImpl;
 import org.apache.jackrabbit.oak.plugins.document.DocumentMK;
 import org.apache.jackrabbit.oak.plugins.document.DocumentNodeState;
 import org.apache.jackrabbit.oak.plugins.document.DocumentNodeStore;
+import org.apache.jackrabbit.oak.plugins.document.VersionGarbageCollector;
+import org.apache.jackrabbit.oak.plugins.document.VersionGarbageCollector.VersionGCStats;
 import org.apache.jackrabbit.oak.plugins.document.rdb.RDBDataSourceFactory;
 import org.apache.jackrabbit.oak.plugins.document.rdb.RDBOptions;
+import org.apache.jackrabbit.oak.plugins.index.lucene.IndexCopier;
+import org.apache.jackrabbit.oak.plugins.index.lucene.IndexTracker;
 import org.apache.jackrabbit.oak.plugins.index.lucene.LuceneIndexEditorProvider;
 import org.apache.jackrabbit.oak.plugins.index.lucene.LuceneIndexProvider;
+import org.apache.jackrabbit.oak.plugins.index.lucene.hybrid.DocumentQueue;
+import org.apache.jackrabbit.oak.plugins.index.lucene.hybrid.LocalIndexObserver;
+import org.apache.jackrabbit.oak.plugins.index.lucene.hybrid.NRTIndexFactory;
+import org.apache.jackrabbit.oak.plugins.index.lucene.reader.DefaultIndexReaderFactory;
 import org.apache.jackrabbit.oak.security.SecurityProviderImpl;
+import org.apache.jackrabbit.oak.spi.commit.CommitInfo;
+import org.apache.jackrabbit.oak.spi.commit.EmptyHook;
 import org.apache.jackrabbit.oak.spi.commit.Observer;
+import org.apache.jackrabbit.oak.spi.mount.Mounts;
 import org.apache.jackrabbit.oak.spi.query.QueryIndexProvider;
 import org.apache.jackrabbit.oak.spi.security.ConfigurationParameters;
 import org.apache.jackrabbit.oak.spi.security.SecurityProvider;
 import org.apache.jackrabbit.oak.spi.security.authorization.AuthorizationConfiguration;
 import org.apache.jackrabbit.oak.spi.security.user.UserConfiguration;
 import org.apache.jackrabbit.oak.spi.security.user.UserConstants;
+import org.apache.jackrabbit.oak.spi.state.NodeBuilder;
 import org.apache.jackrabbit.oak.spi.xml.ImportBehavior;
 import org.apache.jackrabbit.oak.spi.xml.ProtectedItemImporter;
+import org.apache.jackrabbit.oak.stats.StatisticsProvider;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -41,10 +58,13 @@ import org.springframework.stereotype.Component;
 import com.google.common.collect.ImmutableMap;
 import com.meta64.mobile.AppServer;
 import com.meta64.mobile.config.AppProp;
+import com.meta64.mobile.config.JcrPrincipal;
 import com.meta64.mobile.service.TypeService;
 import com.meta64.mobile.user.UserManagerUtil;
 import com.meta64.mobile.util.ExUtil;
+import com.meta64.mobile.util.FileTools;
 import com.meta64.mobile.util.JcrUtil;
+import com.meta64.mobile.util.StreamUtil;
 import com.mongodb.DB;
 import com.mongodb.MongoClient;
 import com.mongodb.MongoTimeoutException;
@@ -82,7 +102,16 @@ public class OakRepository {
 	private JcrUtil jcrUtil;
 
 	private LuceneIndexProvider indexProvider;
-	private DocumentNodeStore nodeStore;
+
+	/* for the near real time part of hybrid indexes (see IndexUtil.createIndex) */
+	private IndexCopier indexCopier;
+	private NRTIndexFactory nrtIndexFactory;
+	private DocumentQueue documentQueue;
+
+	private volatile DocumentNodeStore nodeStore;
+
+	/* the revision GC while one is running, so close() can cancel it */
+	private volatile VersionGarbageCollector revisionGC;
 	private DocumentNodeState root;
 	private ExecutorService executor;
 	private Oak oak;
@@ -153,6 +182,21 @@ public class OakRepository {
 		}
 	}
 
+	/*
+	 * Logs in as the given user, for work (like background jobs) that runs outside any HTTP
+	 * request, and therefore can't use the session that the OakSessionAspect provides.
+	 */
+	public Session newUserSession(String userName, String password) {
+		try {
+			Credentials cred = (userName == null || userName.equals(JcrPrincipal.ANONYMOUS)) ? new GuestCredentials()
+					: new SimpleCredentials(userName, password == null ? new char[0] : password.toCharArray());
+			return getRepository().login(cred);
+		}
+		catch (Exception e) {
+			throw ExUtil.newEx(e);
+		}
+	}
+
 	/*
 	 * Called from SpringContextUtil#setApplicationContext, because we want to call only after all
 	 * of Spring context is fully initialized
@@ -230,16 +274,36 @@ public class OakRepository {
 				jcr = jcr.with(getSecurityProvider());
 
 				if (appProp.isIndexingEnabled()) {
-					indexProvider = new LuceneIndexProvider();
+					/*
+					 * Hybrid indexes (async=["async","nrt"]) also get the documents of our own
+					 * commits queued up by the LocalIndexObserver, and written to a small local
+					 * index that queries read along with the async one, until the async indexer
+					 * catches up. The copier keeps those local indexes on disk next to the others.
+					 */
+					String nrtDir = appProp.getAdminDataFolder() + File.separator + "luceneIndexes" + File.separator + "nrt";
+					FileTools.createDirectory(nrtDir);
+					indexCopier = new IndexCopier(executor, new File(nrtDir));
+					nrtIndexFactory = new NRTIndexFactory(indexCopier, StatisticsProvider.NOOP);
+					IndexTracker tracker = new IndexTracker(new DefaultIndexReaderFactory(Mounts.defaultMountInfoProvider(), null), nrtIndexFactory);
+					documentQueue = new DocumentQueue(1000, tracker, executor);
+					indexProvider = new LuceneIndexProvider(tracker);
+
+					LuceneIndexEditorProvider editorProvider = new LuceneIndexEditorProvider();
+					editorProvider.setIndexingQueue(documentQueue);
 
 					/*
 					 * JCR code uses 'sync' name here but i'm not sure where they get that from, I
 					 * Just know it's their default (todo-1: research)
 					 */
 					jcr = jcr.withAsyncIndexing("async", 5);
-					jcr = jcr.with(new LuceneIndexEditorProvider());
+					jcr = jcr.with(editorProvider);
 					jcr = jcr.with((QueryIndexProvider) indexProvider);
 					jcr = jcr.with((Observer) indexProvider);
+					jcr = jcr.with((Observer) new LocalIndexObserver(documentQueue, StatisticsProvider.NOOP));
+				}
+
+				if (appProp.getBooleanProp("merkleHashing.enabled")) {
+					jcr = jcr.with(new MerkleHashEditorProvider());
 				}
 
 				/* can shutdown during startup. */
@@ -322,6 +386,12 @@ public class OakRepository {
 					executor = null;
 				}
 
+				VersionGarbageCollector gc = revisionGC;
+				if (gc != null) {
+					log.info("Cancelling revision GC.");
+					gc.cancel();
+				}
+
 				if (nodeStore != null) {
 					log.info("disposing nodeStore.");
 					nodeStore.dispose();
@@ -334,6 +404,14 @@ public class OakRepository {
 					indexProvider = null;
 				}
 
+				if (documentQueue != null) {
+					log.info("Closing NRT indexing.");
+					StreamUtil.close(documentQueue, nrtIndexFactory, indexCopier);
+					documentQueue = null;
+					nrtIndexFactory = null;
+					indexCopier = null;
+				}
+
 				if (repository != null) {
 					log.info("Shutting down repository.");
 					((RepositoryImpl) repository).shutdown();
@@ -372,4 +450,56 @@ public class OakRepository {
 	public DocumentNodeState getRoot() {
 		return root;
 	}
+
+	/*
+	 * Removes the hidden ':childOrder' property of the node at 'path', if it has one. Oak keeps
+	 * that list up to date on every add under a node that has it, whether or not the node's type
+	 * is still orderable, so nodes created back when their type was orderable need this to stop
+	 * paying for it. It's hidden from JCR, so this goes straight to the node store. Returns true if
+	 * there was one to remove.
+	 */
+	public boolean removeChildOrder(String path) {
+		if (nodeStore == null) return false;
+		try {
+			NodeBuilder rootBuilder = nodeStore.getRoot().builder();
+			NodeBuilder builder = rootBuilder;
+			for (String name : PathUtils.elements(path)) {
+				builder = builder.getChildNode(name);
+			}
+			if (!builder.exists() || !builder.hasProperty(":childOrder")) {
+				return false;
+			}
+			builder.removeProperty(":childOrder");
+			nodeStore.merge(rootBuilder, EmptyHook.INSTANCE, CommitInfo.EMPTY);
+			return true;
+		}
+		catch (Exception ex) {
+			throw ExUtil.newEx(ex);
+		}
+	}
+
+	/*
+	 * Runs the DocumentNodeStore revision GC, which is what actually frees the space of deleted
+	 * nodes (and old revisions of changed ones), for garbage older than maxRevisionAgeMillis.
+	 * Returns Oak's summary of what it collected, or null if it didn't run.
+	 * <p>
+	 * This can take a long time, so it doesn't hold 'lock', which would hold up a shutdown for as
+	 * long as it runs. Instead close() cancels it before disposing the node store.
+	 */
+	public String runRevisionGC(long maxRevisionAgeMillis) {
+		DocumentNodeStore store = nodeStore;
+		if (store == null || AppServer.isShuttingDown()) return null;
+		try {
+			revisionGC = store.getVersionGarbageCollector();
+			VersionGCStats stats = revisionGC.gc(maxRevisionAgeMillis, TimeUnit.MILLISECONDS);
+			log.info("Revision GC: " + stats);
+			return stats.toString();
+		}
+		catch (Exception ex) {
+			throw ExUtil.newEx(ex);
+		}
+		finally {
+			revisionGC = null;
+		}
+	}
 }
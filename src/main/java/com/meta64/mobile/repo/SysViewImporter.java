@@ -0,0 +1,205 @@
+package com.meta64.mobile.repo;
+
+import java.io.InputStream;
+
+import javax.jcr.ImportUUIDBehavior;
+import javax.jcr.Node;
+import javax.jcr.Session;
+
+import org.apache.jackrabbit.commons.xml.ParsingContentHandler;
+import org.apache.jackrabbit.commons.xml.ProxyContentHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+
+import com.meta64.mobile.config.JcrProp;
+import com.meta64.mobile.job.AsyncJob;
+import com.meta64.mobile.util.ExUtil;
+import com.meta64.mobile.util.JcrUtil;
+
+/**
+ * Imports a JCR system view XML file (like ExportXmlService writes) by streaming it through the
+ * session's import ContentHandler, rather than Workspace.importXML. The workspace import builds
+ * the entire import in memory and commits it once, which runs out of heap on big files. Here we
+ * sit between the SAX parser and the import handler, counting the sv:node elements as they end,
+ * and save the session every 'batchNodes' of them, so the unsaved part stays small.
+ * <p>
+ * Because of those saves a failed import can't just be discarded. The top node of the import is
+ * marked with IMPORT_PENDING until the end (much like ImportZipService does), and on failure it's
+ * removed again. With batchNodes of 0 there are no intermediate saves, and a failure leaves
+ * nothing behind at all.
+ * <p>
+ * References between imported nodes get fixed up by the import handler at the end of the
+ * document, so with intermediate saves they only become correct with the last save.
+ */
+public class SysViewImporter {
+	private static final Logger log = LoggerFactory.getLogger(SysViewImporter.class);
+
+	private static final String SV_URI = "http://www.jcp.org/jcr/sv/1.0";
+
+	private final Session session;
+	private final int batchNodes;
+	private final int uuidBehavior;
+
+	/* can be null, when not running as a job */
+	private final AsyncJob job;
+
+	private String parentPath;
+	private int depth;
+	private String topName;
+	private boolean topExisted;
+	/* path of the top node, once we've marked it */
+	private String topPath;
+
+	private long nodeCount;
+	private int unsavedCount;
+	private long startTime;
+	private long elapsedMillis;
+
+	public SysViewImporter(Session session, int batchNodes, int uuidBehavior, AsyncJob job) {
+		this.session = session;
+		this.batchNodes = batchNodes;
+		this.uuidBehavior = uuidBehavior;
+		this.job = job;
+	}
+
+	/* Maps the names we use in requests to ImportUUIDBehavior values. Null means the default */
+	public static int parseUuidBehavior(String name) {
+		if (name == null || name.isEmpty() || name.equalsIgnoreCase("createNew")) {
+			return ImportUUIDBehavior.IMPORT_UUID_CREATE_NEW;
+		}
+		if (name.equalsIgnoreCase("removeExisting")) {
+			return ImportUUIDBehavior.IMPORT_UUID_COLLISION_REMOVE_EXISTING;
+		}
+		if (name.equalsIgnoreCase("replaceExisting")) {
+			return ImportUUIDBehavior.IMPORT_UUID_COLLISION_REPLACE_EXISTING;
+		}
+		if (name.equalsIgnoreCase("throw")) {
+			return ImportUUIDBehavior.IMPORT_UUID_COLLISION_THROW;
+		}
+		throw ExUtil.newEx("Unknown uuid behavior: " + name);
+	}
+
+	/* Imports the XML in 'in' under the node at 'targetPath' */
+	public void importXml(String targetPath, InputStream in) {
+		startTime = System.currentTimeMillis();
+		boolean success = false;
+		try {
+			parentPath = session.getNode(targetPath).getPath();
+			new ParsingContentHandler(new BatchingHandler(session.getImportContentHandler(parentPath, uuidBehavior))).parse(in);
+
+			if (job != null) {
+				job.checkCancelled();
+			}
+
+			if (topPath != null) {
+				session.getNode(topPath).setProperty(JcrProp.IMPORT_PENDING, (String) null);
+			}
+			session.save();
+			success = true;
+		}
+		catch (Exception ex) {
+			throw ExUtil.newEx(ex);
+		}
+		finally {
+			elapsedMillis = System.currentTimeMillis() - startTime;
+			if (success) {
+				log.info("Imported " + nodeCount + " nodes into " + parentPath + " in " + elapsedMillis + "ms (" + getNodesPerSecond() + " nodes/s)");
+			}
+			else {
+				rollback();
+			}
+		}
+	}
+
+	private void rollback() {
+		try {
+			session.refresh(false);
+			if (topPath != null) {
+				Node node = JcrUtil.getNodeByPath(session, topPath);
+				if (node != null) {
+					node.remove();
+				}
+				session.save();
+				log.debug("Rolled back import into " + parentPath);
+			}
+		}
+		catch (Exception ex) {
+			/* don't hide the exception that got us here. The marker shows what's left behind */
+			ExUtil.error(log, "Failed to roll back import", ex);
+		}
+	}
+
+	/*
+	 * Saves once the batch is full. The top node of the import has to exist by then (all its
+	 * children so far have ended), so this is also where it gets marked, just before the first save.
+	 */
+	private void saveBatchIfFull() throws Exception {
+		if (batchNodes <= 0 || ++unsavedCount < batchNodes) return;
+
+		if (topPath == null && !topExisted) {
+			Node topNode = JcrUtil.getNodeByPath(session, JcrUtil.fixPath(parentPath + "/" + topName));
+			if (topNode != null) {
+				topNode.setProperty(JcrProp.IMPORT_PENDING, true);
+				topPath = topNode.getPath();
+			}
+		}
+		session.save();
+		unsavedCount = 0;
+	}
+
+	private class BatchingHandler extends ProxyContentHandler {
+
+		public BatchingHandler(org.xml.sax.ContentHandler handler) {
+			super(handler);
+		}
+
+		@Override
+		public void startElement(String uri, String localName, String qName, Attributes atts) throws SAXException {
+			if (SV_URI.equals(uri) && "node".equals(localName)) {
+				if (job != null) {
+					job.checkCancelled();
+				}
+
+				/* If there's already a node by this name it's not ours to mark or remove */
+				if (++depth == 1) {
+					topName = atts.getValue(SV_URI, "name");
+					topExisted = topName == null || JcrUtil.getNodeByPath(session, JcrUtil.fixPath(parentPath + "/" + topName)) != null;
+				}
+			}
+			super.startElement(uri, localName, qName, atts);
+		}
+
+		@Override
+		public void endElement(String uri, String localName, String qName) throws SAXException {
+			super.endElement(uri, localName, qName);
+			if (SV_URI.equals(uri) && "node".equals(localName)) {
+				depth--;
+				nodeCount++;
+				if (job != null) {
+					job.setNodesDone(nodeCount);
+				}
+
+				try {
+					saveBatchIfFull();
+				}
+				catch (Exception ex) {
+					throw new SAXException(ex);
+				}
+			}
+		}
+	}
+
+	public long getNodeCount() {
+		return nodeCount;
+	}
+
+	public long getElapsedMillis() {
+		return elapsedMillis;
+	}
+
+	public long getNodesPerSecond() {
+		return elapsedMillis > 0 ? nodeCount * 1000 / elapsedMillis : 0;
+	}
+}
@@ -6,6 +6,9 @@ public class CompareSubGraphRequest extends OakRequestBase {
 	private String nodeIdA;
 	private String nodeIdB;
 
+	/* index of the first difference to return, for paging through a long list of them */
+	private int offset;
+
 	public String getNodeIdA() {
 		return nodeIdA;
 	}
@@ -21,4 +24,12 @@ public class CompareSubGraphRequest extends OakRequestBase {
 	public void setNodeIdB(String nodeIdB) {
 		this.nodeIdB = nodeIdB;
 	}
+
+	public int getOffset() {
+		return offset;
+	}
+
+	public void setOffset(int offset) {
+		this.offset = offset;
+	}
 }
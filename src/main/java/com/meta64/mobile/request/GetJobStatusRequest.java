@@ -0,0 +1,15 @@
+package com.meta64.mobile.request;
+
+import com.meta64.mobile.request.base.OakRequestBase;
+
+public class GetJobStatusRequest extends OakRequestBase {
+	private String jobId;
+
+	public String getJobId() {
+		return jobId;
+	}
+
+	public void setJobId(String jobId) {
+		this.jobId = jobId;
+	}
+}
@@ -0,0 +1,6 @@
+package com.meta64.mobile.request;
+
+import com.meta64.mobile.request.base.OakRequestBase;
+
+public class GetRssStatusRequest extends OakRequestBase {
+}
@@ -11,6 +11,12 @@ public class ImportRequest extends OakRequestBase {
 	 */
 	private String sourceFileName;
 
+	/*
+	 * what to do with jcr:uuid values in the file: createNew (the default), removeExisting,
+	 * replaceExisting or throw. See SysViewImporter.parseUuidBehavior
+	 */
+	private String uuidBehavior;
+
 	public String getNodeId() {
 		return nodeId;
 	}
@@ -26,4 +32,12 @@ public class ImportRequest extends OakRequestBase {
 	public void setSourceFileName(String sourceFileName) {
 		this.sourceFileName = sourceFileName;
 	}
+
+	public String getUuidBehavior() {
+		return uuidBehavior;
+	}
+
+	public void setUuidBehavior(String uuidBehavior) {
+		this.uuidBehavior = uuidBehavior;
+	}
 }
@@ -0,0 +1,6 @@
+package com.meta64.mobile.response;
+
+import com.meta64.mobile.response.base.OakResponseBase;
+
+public class CancelJobResponse extends OakResponseBase {
+}
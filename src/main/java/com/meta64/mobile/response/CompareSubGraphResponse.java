@@ -1,10 +1,19 @@
 package com.meta64.mobile.response;
 
+import java.util.List;
+
+import com.meta64.mobile.model.CompareDiffInfo;
 import com.meta64.mobile.response.base.OakResponseBase;
 
 public class CompareSubGraphResponse extends OakResponseBase {
 	private String compareInfo;
 
+	/* one page of the differences, starting at the request offset */
+	private List<CompareDiffInfo> diffs;
+
+	/* false if there are more differences after this page */
+	private boolean endReached;
+
 	public String getCompareInfo() {
 		return compareInfo;
 	}
@@ -12,4 +21,20 @@ public class CompareSubGraphResponse extends OakResponseBase {
 	public void setCompareInfo(String compareInfo) {
 		this.compareInfo = compareInfo;
 	}
+
+	public List<CompareDiffInfo> getDiffs() {
+		return diffs;
+	}
+
+	public void setDiffs(List<CompareDiffInfo> diffs) {
+		this.diffs = diffs;
+	}
+
+	public boolean isEndReached() {
+		return endReached;
+	}
+
+	public void setEndReached(boolean endReached) {
+		this.endReached = endReached;
+	}
 }
@@ -3,4 +3,13 @@ package com.meta64.mobile.response;
 import com.meta64.mobile.response.base.OakResponseBase;
 
 public class ExportResponse extends OakResponseBase {
+	private String jobId;
+
+	public String getJobId() {
+		return jobId;
+	}
+
+	public void setJobId(String jobId) {
+		this.jobId = jobId;
+	}
 }
@@ -0,0 +1,16 @@
+package com.meta64.mobile.response;
+
+import com.meta64.mobile.model.JobInfo;
+import com.meta64.mobile.response.base.OakResponseBase;
+
+public class GetJobStatusResponse extends OakResponseBase {
+	private JobInfo jobInfo;
+
+	public JobInfo getJobInfo() {
+		return jobInfo;
+	}
+
+	public void setJobInfo(JobInfo jobInfo) {
+		this.jobInfo = jobInfo;
+	}
+}
@@ -0,0 +1,47 @@
+package com.meta64.mobile.response;
+
+import java.util.List;
+
+import com.meta64.mobile.model.HistogramInfo;
+import com.meta64.mobile.model.RssCompactionInfo;
+import com.meta64.mobile.model.RssFeedStats;
+import com.meta64.mobile.response.base.OakResponseBase;
+
+public class GetRssStatusResponse extends OakResponseBase {
+	private boolean processing;
+	private List<RssFeedStats> feeds;
+	private List<HistogramInfo> histograms;
+	private RssCompactionInfo lastCompaction;
+
+	public boolean isProcessing() {
+		return processing;
+	}
+
+	public void setProcessing(boolean processing) {
+		this.processing = processing;
+	}
+
+	public List<RssFeedStats> getFeeds() {
+		return feeds;
+	}
+
+	public void setFeeds(List<RssFeedStats> feeds) {
+		this.feeds = feeds;
+	}
+
+	public List<HistogramInfo> getHistograms() {
+		return histograms;
+	}
+
+	public void setHistograms(List<HistogramInfo> histograms) {
+		this.histograms = histograms;
+	}
+
+	public RssCompactionInfo getLastCompaction() {
+		return lastCompaction;
+	}
+
+	public void setLastCompaction(RssCompactionInfo lastCompaction) {
+		this.lastCompaction = lastCompaction;
+	}
+}
@@ -3,4 +3,14 @@ package com.meta64.mobile.response;
 import com.meta64.mobile.response.base.OakResponseBase;
 
 public class UploadFromUrlResponse extends OakResponseBase {
+	/* id of the background job doing the upload. Client polls 'getJobStatus' with this id */
+	private String jobId;
+
+	public String getJobId() {
+		return jobId;
+	}
+
+	public void setJobId(String jobId) {
+		this.jobId = jobId;
+	}
 }
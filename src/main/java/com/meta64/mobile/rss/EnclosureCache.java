@@ -0,0 +1,242 @@
+package com.meta64.mobile.rss;
+
+import java.io.File;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+
+import com.meta64.mobile.config.AppProp;
+import com.meta64.mobile.service.HttpClientService;
+import com.meta64.mobile.util.FileTools;
+import com.meta64.mobile.util.MerkleUtil;
+
+/**
+ * Optional local disk cache of RSS enclosures (podcast audio and the like), so that when lots of
+ * users play the same episode it comes off our disk rather than from some slow remote host every
+ * time. Turned on with rss.enclosureCache.enabled.
+ * <p>
+ * New enclosures are queued for download as RSS items are written, and an enclosure that is played
+ * before it's cached gets queued then. Downloads run one at a time on a background thread. Files
+ * over rss.enclosureCache.maxFileMegabytes are skipped, and once the cache is over
+ * rss.enclosureCache.quotaMegabytes the least recently played files are deleted.
+ * <p>
+ * Files are named by the hash of their url, with the mime type in a '.type' file next to each, so
+ * the cache survives restarts. The last modified time of a file is when it was last played, for
+ * the LRU eviction.
+ */
+@Component
+public class EnclosureCache {
+	private static final Logger log = LoggerFactory.getLogger(EnclosureCache.class);
+
+	private static final String DATA_EXT = ".bin";
+	private static final String TYPE_EXT = ".type";
+
+	@Autowired
+	private AppProp appProp;
+
+	@Autowired
+	private HttpClientService httpClientService;
+
+	private boolean enabled;
+	private File cacheDir;
+	private long maxFileSize;
+	private long quota;
+
+	private ThreadPoolExecutor downloader;
+
+	/* hashes of urls queued or being downloaded, so we don't queue the same one twice */
+	private final Set<String> pending = Collections.synchronizedSet(new HashSet<String>());
+
+	@PostConstruct
+	public void init() {
+		enabled = appProp.getBooleanProp("rss.enclosureCache.enabled");
+		if (!enabled) return;
+
+		cacheDir = new File(appProp.getAdminDataFolder() + File.separator + "enclosureCache");
+		FileTools.createDirectory(cacheDir.getAbsolutePath());
+		maxFileSize = appProp.getIntProp("rss.enclosureCache.maxFileMegabytes", 200) * 1024L * 1024L;
+		quota = appProp.getIntProp("rss.enclosureCache.quotaMegabytes", 5000) * 1024L * 1024L;
+
+		/* when a feed brings more new enclosures than this we just skip the rest */
+		int maxQueued = appProp.getIntProp("rss.enclosureCache.maxQueued", 500);
+		downloader = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(maxQueued));
+
+		/* anything left from a download that was interrupted by a shutdown */
+		for (File file : cacheDir.listFiles((dir, name) -> name.endsWith(".tmp"))) {
+			file.delete();
+		}
+		evict();
+	}
+
+	@PreDestroy
+	public void preDestroy() {
+		if (downloader != null) {
+			downloader.shutdownNow();
+		}
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/* Queues the url to be downloaded, unless it's already cached or queued */
+	public void enqueue(String url) {
+		if (!enabled || !isHttpUrl(url)) return;
+
+		String hash = getHash(url);
+		if (getDataFile(hash).isFile() || !pending.add(hash)) return;
+
+		try {
+			downloader.execute(() -> download(url, hash));
+		}
+		catch (RejectedExecutionException e) {
+			pending.remove(hash);
+			log.debug("Enclosure download queue is full. Skipping " + url);
+		}
+	}
+
+	/*
+	 * Serves the cached file, or returns null if it isn't cached (after queuing it to be). We hand
+	 * Spring a FileSystemResource so it takes care of Range requests, which audio players use to
+	 * seek.
+	 */
+	public ResponseEntity<Resource> getEnclosure(String url) {
+		if (!enabled) return null;
+
+		String hash = getHash(url);
+		File file = getDataFile(hash);
+		if (!file.isFile()) {
+			enqueue(url);
+			return null;
+		}
+
+		/* for the LRU eviction */
+		file.setLastModified(System.currentTimeMillis());
+
+		MediaType mediaType = MediaType.APPLICATION_OCTET_STREAM;
+		try {
+			String type = FileUtils.readFileToString(getTypeFile(hash), StandardCharsets.UTF_8).trim();
+			if (type.length() > 0) {
+				mediaType = safeMediaType(MediaType.parseMediaType(type));
+			}
+		}
+		catch (Exception e) {
+			// no type file or a bad type, so octet-stream it is
+		}
+
+		return ResponseEntity.status(HttpStatus.OK).contentType(mediaType).header("X-Content-Type-Options", "nosniff").body(new FileSystemResource(file));
+	}
+
+	/*
+	 * The file is served from our own origin, with whatever type the remote host claimed for it, so
+	 * anything the browser would run (html, svg and the like) would be stored XSS on the app. Only
+	 * audio, video and non-SVG image types are passed through, and everything else is sent as
+	 * octet-stream.
+	 */
+	private MediaType safeMediaType(MediaType type) {
+		if (type.isWildcardSubtype()) {
+			return MediaType.APPLICATION_OCTET_STREAM;
+		}
+		String major = type.getType().toLowerCase();
+		if (major.equals("audio") || major.equals("video")) {
+			return new MediaType(type.getType(), type.getSubtype());
+		}
+		if (major.equals("image") && !type.getSubtype().toLowerCase().startsWith("svg")) {
+			return new MediaType(type.getType(), type.getSubtype());
+		}
+		return MediaType.APPLICATION_OCTET_STREAM;
+	}
+
+	private void download(String url, String hash) {
+		File tmpFile = new File(cacheDir, hash + ".tmp");
+		try {
+			long startTime = System.currentTimeMillis();
+			String mimeType = httpClientService.downloadToFile(url, tmpFile, maxFileSize);
+
+			FileUtils.writeStringToFile(getTypeFile(hash), mimeType != null ? mimeType : "", StandardCharsets.UTF_8);
+			Files.move(tmpFile.toPath(), getDataFile(hash).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			log.debug("Cached enclosure " + url + " in " + (System.currentTimeMillis() - startTime) + "ms");
+
+			evict();
+		}
+		catch (Exception e) {
+			log.debug("Failed to cache enclosure " + url + ": " + e.getMessage());
+		}
+		finally {
+			tmpFile.delete();
+			pending.remove(hash);
+		}
+	}
+
+	/* Deletes the least recently played files until the cache is within the quota */
+	private synchronized void evict() {
+		File[] files = cacheDir.listFiles((dir, name) -> name.endsWith(DATA_EXT));
+		if (files == null) return;
+
+		long total = 0;
+		for (File file : files) {
+			total += file.length();
+		}
+		if (total <= quota) return;
+
+		Arrays.sort(files, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+		int deleted = 0;
+		for (File file : files) {
+			if (total <= quota) break;
+			long size = file.length();
+			String hash = file.getName().substring(0, file.getName().length() - DATA_EXT.length());
+			if (file.delete()) {
+				getTypeFile(hash).delete();
+				total -= size;
+				deleted++;
+			}
+		}
+		log.info("Evicted " + deleted + " enclosures from the cache. Cache size is now " + total + " bytes.");
+	}
+
+	private File getDataFile(String hash) {
+		return new File(cacheDir, hash + DATA_EXT);
+	}
+
+	private File getTypeFile(String hash) {
+		return new File(cacheDir, hash + TYPE_EXT);
+	}
+
+	private String getHash(String url) {
+		return Hex.encodeHexString(MerkleUtil.newDigester().digest(url.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	private boolean isHttpUrl(String url) {
+		try {
+			String scheme = new URI(url).getScheme();
+			return "http".equalsIgnoreCase(scheme) || "https".equalsIgnoreCase(scheme);
+		}
+		catch (Exception e) {
+			return false;
+		}
+	}
+}
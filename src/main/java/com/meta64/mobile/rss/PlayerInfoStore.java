@@ -0,0 +1,229 @@
+package com.meta64.mobile.rss;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.jcr.Node;
+import javax.jcr.Session;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.jackrabbit.JcrConstants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import com.meta64.mobile.AppServer;
+import com.meta64.mobile.config.AppProp;
+import com.meta64.mobile.config.JcrName;
+import com.meta64.mobile.config.JcrPrincipal;
+import com.meta64.mobile.rss.model.PlayerInfo;
+import com.meta64.mobile.service.UserManagerService;
+import com.meta64.mobile.user.RunAsJcrAdmin;
+import com.meta64.mobile.util.ExUtil;
+import com.meta64.mobile.util.JcrUtil;
+import com.meta64.mobile.util.MerkleUtil;
+
+/**
+ * Keeps the position each user is at in each podcast (or any other media), so they can resume where
+ * they left off, even after a server restart.
+ * <p>
+ * The client reports the position every few seconds while playing, so we never write to the db on
+ * those calls. They only go into memory, and this daemon writes whatever changed every so often,
+ * all in one save, much like UserSettingsDaemon does for user settings. Positions are stored on a
+ * 'playerInfo' node under each user's preferences node, as one property per media url (named by a
+ * hash of the url).
+ * <p>
+ * Reads come from an LRU cache of rss.playerInfoCacheSize entries, loaded from the db on a miss.
+ */
+@Component
+public class PlayerInfoStore {
+	private static final Logger log = LoggerFactory.getLogger(PlayerInfoStore.class);
+
+	@Autowired
+	private RunAsJcrAdmin adminRunner;
+
+	@Autowired
+	private AppProp appProp;
+
+	private final Object lock = new Object();
+
+	/* recently used positions, by user and url. Also remembers misses, as a null PlayerInfo */
+	private LinkedHashMap<String, PlayerInfo> cache;
+
+	/*
+	 * Positions set since the last save. Setting the same one again just replaces it here, so
+	 * however many times a position is set between saves, it's written once.
+	 */
+	private HashMap<String, Unsaved> unsaved = new HashMap<String, Unsaved>();
+
+	private static class Unsaved {
+		String userName;
+		String url;
+		PlayerInfo info;
+	}
+
+	@PostConstruct
+	public void init() {
+		int maxSize = appProp.getIntProp("rss.playerInfoCacheSize", 10000);
+		cache = new LinkedHashMap<String, PlayerInfo>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, PlayerInfo> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	/* Saves whatever is still unsaved, so a normal shutdown doesn't lose anything */
+	@PreDestroy
+	public void preDestroy() {
+		save();
+	}
+
+	@Scheduled(fixedDelay = 30 * 1000)
+	public void run() {
+		if (AppServer.isShuttingDown() || !AppServer.isEnableScheduling()) return;
+		save();
+	}
+
+	/*
+	 * Called by web request threads, so this only touches memory
+	 */
+	public void set(String userName, String url, Integer timeOffset) {
+		if (userName == null || url == null || JcrPrincipal.ANONYMOUS.equalsIgnoreCase(userName)) {
+			return;
+		}
+
+		PlayerInfo info = new PlayerInfo();
+		info.setTimeOffset(timeOffset);
+
+		Unsaved u = new Unsaved();
+		u.userName = userName;
+		u.url = url;
+		u.info = info;
+
+		String key = getKey(userName, url);
+		synchronized (lock) {
+			cache.put(key, info);
+			unsaved.put(key, u);
+		}
+	}
+
+	/* Returns null if the user has no position for this url */
+	public PlayerInfo get(String userName, String url) {
+		if (userName == null || url == null || JcrPrincipal.ANONYMOUS.equalsIgnoreCase(userName)) {
+			return null;
+		}
+
+		String key = getKey(userName, url);
+		synchronized (lock) {
+			if (cache.containsKey(key)) {
+				return cache.get(key);
+			}
+
+			/* may have been evicted from the cache before it got saved */
+			Unsaved u = unsaved.get(key);
+			if (u != null) {
+				cache.put(key, u.info);
+				return u.info;
+			}
+		}
+
+		/*
+		 * Not holding the lock while loading. If this races with a set() we must not overwrite
+		 * what it put in the cache, hence the putIfAbsent.
+		 */
+		PlayerInfo[] loaded = new PlayerInfo[1];
+		adminRunner.run(session -> {
+			loaded[0] = load(session, userName, url);
+		});
+
+		synchronized (lock) {
+			cache.putIfAbsent(key, loaded[0]);
+			return cache.get(key);
+		}
+	}
+
+	private PlayerInfo load(Session session, String userName, String url) {
+		try {
+			Node playerInfoNode = JcrUtil.safeFindNode(session, "/" + JcrName.USER_PREFERENCES + "/" + userName + "/" + JcrName.PLAYER_INFO);
+			if (playerInfoNode == null) {
+				return null;
+			}
+
+			String propName = getPropName(url);
+			if (!playerInfoNode.hasProperty(propName)) {
+				return null;
+			}
+
+			PlayerInfo info = new PlayerInfo();
+			info.setTimeOffset((int) playerInfoNode.getProperty(propName).getLong());
+			return info;
+		}
+		catch (Exception ex) {
+			throw ExUtil.newEx(ex);
+		}
+	}
+
+	private void save() {
+		/* swap in a new map so that set() calls aren't held up by the db writes */
+		final HashMap<String, Unsaved> toSave;
+		synchronized (lock) {
+			if (unsaved.isEmpty()) {
+				return;
+			}
+			toSave = unsaved;
+			unsaved = new HashMap<String, Unsaved>();
+		}
+
+		try {
+			adminRunner.run(session -> {
+				for (Unsaved u : toSave.values()) {
+					saveOne(session, u);
+				}
+				JcrUtil.save(session);
+			});
+			log.debug("Saved " + toSave.size() + " player positions.");
+		}
+		catch (Exception e) {
+			log.error("Failed saving player positions. Will retry.", e);
+
+			/* put them back, unless they've been set again since */
+			synchronized (lock) {
+				for (Map.Entry<String, Unsaved> entry : toSave.entrySet()) {
+					unsaved.putIfAbsent(entry.getKey(), entry.getValue());
+				}
+			}
+		}
+	}
+
+	private void saveOne(Session session, Unsaved u) {
+		try {
+			Node prefsNode = UserManagerService.getPrefsNodeForSessionUser(session, u.userName);
+			Node playerInfoNode = prefsNode.hasNode(JcrName.PLAYER_INFO) ? prefsNode.getNode(JcrName.PLAYER_INFO)
+					: prefsNode.addNode(JcrName.PLAYER_INFO, JcrConstants.NT_UNSTRUCTURED);
+
+			Integer timeOffset = u.info.getTimeOffset();
+			playerInfoNode.setProperty(getPropName(u.url), timeOffset == null ? 0 : timeOffset.longValue());
+		}
+		catch (Exception ex) {
+			throw ExUtil.newEx(ex);
+		}
+	}
+
+	private String getKey(String userName, String url) {
+		return userName + ":" + url;
+	}
+
+	/* urls can't be property names, so we use their hash */
+	private String getPropName(String url) {
+		return "m" + Hex.encodeHexString(MerkleUtil.newDigester().digest(url.getBytes(StandardCharsets.UTF_8)));
+	}
+}
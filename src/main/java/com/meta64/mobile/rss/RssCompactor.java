@@ -0,0 +1,233 @@
+package com.meta64.mobile.rss;
+
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Session;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryManager;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.meta64.mobile.AppServer;
+import com.meta64.mobile.config.AppProp;
+import com.meta64.mobile.config.JcrProp;
+import com.meta64.mobile.model.RssCompactionInfo;
+import com.meta64.mobile.repo.OakRepository;
+import com.meta64.mobile.user.RunAsJcrAdmin;
+import com.meta64.mobile.util.DateUtil;
+import com.meta64.mobile.util.ExUtil;
+import com.meta64.mobile.util.JcrUtil;
+
+/**
+ * Deletes the RSS items that are past their feed's retention, so feeds don't grow forever. Each
+ * feed keeps at most its newest maxItems items, and none older than maxAgeDays. Those come from the
+ * feed node's own properties if it has them, else from rss.retention.maxItems and
+ * rss.retention.maxAgeDays, and zero means no limit.
+ * <p>
+ * Deletes are saved rss.retention.batchSize at a time, so that trimming a feed that has years of
+ * items doesn't become one enormous commit. Afterwards Oak's revision GC is run to reclaim the
+ * space. It only collects what was deleted more than rss.retention.gcMaxRevisionAgeHours ago, so
+ * the nodes deleted by one run are mostly reclaimed by the next.
+ * <p>
+ * Feeds keep listing items for a while after we've deleted them, so the hashes of the deleted
+ * items' links are kept on the feed node (see RssDbWriter.getPrunedLinks), and the reader skips
+ * those instead of writing them again.
+ * <p>
+ * Runs on a thread of its own (see start), since a run can take a long time and Spring's
+ * scheduler has only the one thread for all the daemons. The deletes are done holding RssService's
+ * processing lock, so they never race the feed reader, but the revision GC isn't, as it only deals
+ * with what's already deleted. If feeds are being read we wait up to LOCK_WAIT_MINUTES for them,
+ * which only holds up this thread, and otherwise skip the run. The reader never waits on us.
+ */
+@Component
+public class RssCompactor {
+	private static final Logger log = LoggerFactory.getLogger(RssCompactor.class);
+
+	private static final long LOCK_WAIT_MINUTES = 30;
+
+	@Autowired
+	private AppProp appProp;
+
+	@Autowired
+	private RunAsJcrAdmin adminRunner;
+
+	@Autowired
+	private OakRepository oak;
+
+	@Autowired
+	private RssMetrics rssMetrics;
+
+	@Autowired
+	private RssDbWriter dbWriter;
+
+	private ExecutorService worker;
+
+	/* true from when a run is started until it's done, so runs never pile up */
+	private final AtomicBoolean running = new AtomicBoolean(false);
+
+	@PostConstruct
+	public void init() {
+		worker = Executors.newSingleThreadExecutor();
+	}
+
+	@PreDestroy
+	public void preDestroy() {
+		worker.shutdownNow();
+	}
+
+	/* Starts a run on the compactor's thread and returns, unless the last run is still going */
+	public void start(String feedsRootPath, Lock processingLock) {
+		if (!running.compareAndSet(false, true)) {
+			log.info("RSS compaction still running. Not starting another.");
+			return;
+		}
+
+		try {
+			worker.execute(() -> {
+				try {
+					run(feedsRootPath, processingLock);
+				}
+				finally {
+					running.set(false);
+				}
+			});
+		}
+		catch (Exception e) {
+			running.set(false);
+			throw ExUtil.newEx(e);
+		}
+	}
+
+	public RssCompactionInfo run(String feedsRootPath, Lock processingLock) {
+		RssCompactionInfo info = new RssCompactionInfo();
+		info.setStartTime(System.currentTimeMillis());
+
+		try {
+			if (!processingLock.tryLock(LOCK_WAIT_MINUTES, TimeUnit.MINUTES)) {
+				throw ExUtil.newEx("RSS feeds were still being read after " + LOCK_WAIT_MINUTES + " minutes. Skipped.");
+			}
+			try {
+				adminRunner.run(session -> {
+					compactFeeds(session, feedsRootPath, info);
+				});
+			}
+			finally {
+				processingLock.unlock();
+			}
+
+			AppServer.shutdownCheck();
+			long gcHours = appProp.getIntProp("rss.retention.gcMaxRevisionAgeHours", 24);
+			info.setRevisionGcStats(oak.runRevisionGC(gcHours * DateUtil.HOUR_MILLIS));
+		}
+		catch (Exception e) {
+			log.error("RSS compaction failed", e);
+			info.setLastError(e.getMessage());
+		}
+
+		info.setDurationMillis(System.currentTimeMillis() - info.getStartTime());
+		rssMetrics.recordCompaction(info);
+		log.info("RSS compaction deleted " + info.getDeletedItems() + " items from " + info.getFeedCount() + " feeds in "
+				+ info.getDurationMillis() + "ms. Revision GC: " + info.getRevisionGcStats());
+		return info;
+	}
+
+	private void compactFeeds(Session session, String feedsRootPath, RssCompactionInfo info) {
+		int defaultMaxItems = appProp.getIntProp("rss.retention.maxItems", 0);
+		int defaultMaxAgeDays = appProp.getIntProp("rss.retention.maxAgeDays", 0);
+		int batchSize = Math.max(1, appProp.getIntProp("rss.retention.batchSize", 500));
+
+		try {
+			QueryManager qm = session.getWorkspace().getQueryManager();
+			String qStr = "SELECT * from [" + JcrProp.TYPE_RSS_FEED + "] AS t WHERE ISDESCENDANTNODE([" + feedsRootPath + "])";
+			NodeIterator feeds = qm.createQuery(qStr, Query.JCR_SQL2).execute().getNodes();
+
+			while (feeds.hasNext()) {
+				AppServer.shutdownCheck();
+				Node feedNode = feeds.nextNode();
+				info.setFeedCount(info.getFeedCount() + 1);
+
+				long maxItems = JcrUtil.safeGetLongProp(feedNode, JcrProp.RSS_FEED_MAX_ITEMS, defaultMaxItems);
+				long maxAgeDays = JcrUtil.safeGetLongProp(feedNode, JcrProp.RSS_FEED_MAX_AGE_DAYS, defaultMaxAgeDays);
+				if (maxItems <= 0 && maxAgeDays <= 0) continue;
+
+				List<String> paths = findExpiredItems(qm, feedNode, maxItems, maxAgeDays);
+				if (paths.isEmpty()) continue;
+
+				int deleted = deleteItems(session, feedNode, paths, batchSize);
+				info.setDeletedItems(info.getDeletedItems() + deleted);
+				log.debug("Deleted " + deleted + " expired items from feed " + feedNode.getPath());
+			}
+		}
+		catch (Exception ex) {
+			throw ExUtil.newEx(ex);
+		}
+	}
+
+	/*
+	 * Returns the paths of the items past retention, newest first. We only collect paths here and
+	 * delete afterwards, rather than removing nodes out from under the query's iterator.
+	 */
+	private List<String> findExpiredItems(QueryManager qm, Node feedNode, long maxItems, long maxAgeDays) throws Exception {
+		long cutoff = maxAgeDays > 0 ? System.currentTimeMillis() - maxAgeDays * 24 * DateUtil.HOUR_MILLIS : 0;
+
+		StringBuilder queryStr = new StringBuilder();
+		queryStr.append("SELECT * from [" + JcrProp.TYPE_RSS_ITEM + "] AS t WHERE ISCHILDNODE([");
+		queryStr.append(feedNode.getPath());
+		queryStr.append("]) ORDER BY t.[" + JcrProp.CREATED + "] DESC");
+
+		List<String> paths = new LinkedList<String>();
+		NodeIterator items = qm.createQuery(queryStr.toString(), Query.JCR_SQL2).execute().getNodes();
+		long idx = 0;
+		while (items.hasNext()) {
+			Node item = items.nextNode();
+			idx++;
+
+			boolean tooMany = maxItems > 0 && idx > maxItems;
+			boolean tooOld = cutoff > 0 && item.hasProperty(JcrProp.CREATED)
+					&& item.getProperty(JcrProp.CREATED).getDate().getTimeInMillis() < cutoff;
+			if (tooMany || tooOld) {
+				paths.add(item.getPath());
+			}
+		}
+		return paths;
+	}
+
+	/* The pruned links go into each save along with the deletes, so the two always agree */
+	private int deleteItems(Session session, Node feedNode, List<String> paths, int batchSize) throws Exception {
+		HashSet<String> prunedLinks = dbWriter.getPrunedLinks(feedNode);
+		int deleted = 0;
+		for (String path : paths) {
+			if (!session.nodeExists(path)) continue;
+			Node item = session.getNode(path);
+			String linkHash = RssDbWriter.linkHash(JcrUtil.safeGetStringProp(item, JcrProp.RSS_ITEM_LINK));
+			if (linkHash != null) {
+				prunedLinks.add(linkHash);
+			}
+			item.remove();
+			deleted++;
+
+			if (deleted % batchSize == 0) {
+				dbWriter.setPrunedLinks(feedNode, prunedLinks);
+				JcrUtil.save(session);
+				AppServer.shutdownCheck();
+			}
+		}
+		dbWriter.setPrunedLinks(feedNode, prunedLinks);
+		JcrUtil.save(session);
+		return deleted;
+	}
+}
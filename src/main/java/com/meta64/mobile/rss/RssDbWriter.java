@@ -1,8 +1,14 @@
 package com.meta64.mobile.rss;
 
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+
 import javax.jcr.Node;
 import javax.jcr.Session;
+import javax.jcr.Value;
 
+import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -11,10 +17,10 @@ import org.springframework.stereotype.Component;
 
 import com.meta64.mobile.config.JcrProp;
 import com.meta64.mobile.rss.model.FeedNodeInfo;
-import com.meta64.mobile.service.NodeMoveService;
 import com.meta64.mobile.user.RunAsJcrAdmin;
 import com.meta64.mobile.util.ExUtil;
 import com.meta64.mobile.util.JcrUtil;
+import com.meta64.mobile.util.MerkleUtil;
 import com.sun.syndication.feed.synd.SyndEnclosureImpl;
 import com.sun.syndication.feed.synd.SyndEntry;
 import com.sun.syndication.feed.synd.SyndFeed;
@@ -36,20 +42,88 @@ public class RssDbWriter {
 	private static final Logger log = LoggerFactory.getLogger(RssDbWriter.class);
 
 	@Autowired
-	private NodeMoveService nodeMoveService;
+	private RunAsJcrAdmin adminRunner;
 
 	@Autowired
-	private RunAsJcrAdmin adminRunner;
+	private EnclosureCache enclosureCache;
 
 	//
 	// private static ImageInfoSorter sorter = new ImageInfoSorter();
 	//
 	/*
-	 * Write SyndFeed
-	 * 
-	 * returns the Node of the new feed node created
+	 * Write SyndFeed properties onto the feed node, touching only the ones that changed. Doesn't
+	 * save. Returns true if anything was changed.
+	 */
+	public boolean updateFeedNode(Node feedNode, SyndFeed feed) {
+		try {
+			boolean changed = false;
+			changed |= setIfChanged(feedNode, JcrProp.RSS_FEED_TITLE, feed.getTitle());
+			changed |= setIfChanged(feedNode, JcrProp.RSS_FEED_DESC, feed.getDescription());
+			changed |= setIfChanged(feedNode, JcrProp.RSS_FEED_URI, feed.getUri());
+			changed |= setIfChanged(feedNode, JcrProp.RSS_FEED_LINK, feed.getLink());
+
+			SyndImage image = feed.getImage();
+			if (image != null) {
+				if (image.getUrl() != null) {
+					changed |= setIfChanged(feedNode, JcrProp.RSS_FEED_IMAGE_URL, image.getUrl());
+				}
+			}
+			return changed;
+		}
+		catch (Exception e) {
+			throw ExUtil.newEx(e);
+		}
+	}
+
+	private boolean setIfChanged(Node node, String propName, String val) throws Exception {
+		if (StringUtils.equals(JcrUtil.safeGetStringProp(node, propName), val)) {
+			return false;
+		}
+		node.setProperty(propName, val);
+		return true;
+	}
+
+	/*
+	 * Hash of an item's link, as kept in the feed node's pruned links. Links can be long and a feed
+	 * can have a lot of them, so we don't keep the links themselves. Null for a null link.
+	 */
+	public static String linkHash(String link) {
+		if (link == null) return null;
+		return Hex.encodeHexString(MerkleUtil.newDigester().digest(link.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	/*
+	 * Returns the hashes of the links of the items RssCompactor has deleted from this feed while the
+	 * feed still listed them. Without these a deleted item would look new the next time the feed is
+	 * read, and be written (and its enclosure cached) all over again.
 	 */
-	public void updateFeedNode(SyndFeed feed, FeedNodeInfo feedNodeInfo) {
+	public HashSet<String> getPrunedLinks(Node feedNode) {
+		HashSet<String> hashes = new HashSet<String>();
+		try {
+			if (feedNode.hasProperty(JcrProp.RSS_FEED_PRUNED_LINKS)) {
+				for (Value val : feedNode.getProperty(JcrProp.RSS_FEED_PRUNED_LINKS).getValues()) {
+					hashes.add(val.getString());
+				}
+			}
+			return hashes;
+		}
+		catch (Exception e) {
+			throw ExUtil.newEx(e);
+		}
+	}
+
+	/* Doesn't save. An empty set removes the property */
+	public void setPrunedLinks(Node feedNode, Set<String> hashes) {
+		try {
+			feedNode.setProperty(JcrProp.RSS_FEED_PRUNED_LINKS, hashes.isEmpty() ? null : hashes.toArray(new String[hashes.size()]));
+		}
+		catch (Exception e) {
+			throw ExUtil.newEx(e);
+		}
+	}
+
+	/* Saves the conditional GET validators and the schedule for the next fetch onto the feed node */
+	public void updateFeedState(FeedNodeInfo feedNodeInfo) {
 
 		adminRunner.run(session -> {
 
@@ -58,21 +132,13 @@ public class RssDbWriter {
 				throw ExUtil.newEx("unable to find feed node id: " + feedNodeInfo.getNodeId());
 			}
 
-			// todo-1: need to check these and see if they are changed before we expend the cycles
-			// to do an update/save. For now we just always resave.
 			try {
-				feedNode.setProperty(JcrProp.RSS_FEED_TITLE, feed.getTitle());
-				feedNode.setProperty(JcrProp.RSS_FEED_DESC, feed.getDescription());
-				feedNode.setProperty(JcrProp.RSS_FEED_URI, feed.getUri());
-				feedNode.setProperty(JcrProp.RSS_FEED_LINK, feed.getLink());
-
-				SyndImage image = feed.getImage();
-				if (image != null) {
-					if (image.getUrl() != null) {
-						feedNode.setProperty(JcrProp.RSS_FEED_IMAGE_URL, image.getUrl());
-					}
-				}
-
+				/* setting null removes the property, for servers that stopped sending it */
+				feedNode.setProperty(JcrProp.RSS_FEED_ETAG, feedNodeInfo.getEtag());
+				feedNode.setProperty(JcrProp.RSS_FEED_LAST_MODIFIED, feedNodeInfo.getLastModified());
+				feedNode.setProperty(JcrProp.RSS_FEED_NEXT_CHECK, feedNodeInfo.getNextCheckTime());
+				feedNode.setProperty(JcrProp.RSS_FEED_INTERVAL, feedNodeInfo.getInterval());
+				feedNode.setProperty(JcrProp.RSS_FEED_FAILURES, feedNodeInfo.getFailureCount());
 				JcrUtil.save(session);
 			}
 			catch (Exception e) {
@@ -83,16 +149,17 @@ public class RssDbWriter {
 
 	/*
 	 * Write a specific SyndEntry
+	 * 
+	 * Feed nodes don't keep their children in order, so this is just an add. Moving every new item
+	 * to the top made each insert scan and reorder the whole feed. The newest first order is done
+	 * by NodeRenderService instead, from the items' created time.
 	 */
 	public void write(Session session, Node feedNode, final FeedNodeInfo feedNodeInfo, final SyndEntry entry) {
 
 		try {
 			String name = JcrUtil.getGUID();
 
-			/* NT_UNSTRUCTURED IS ORDERABLE */
 			Node newNode = feedNode.addNode(name, JcrProp.TYPE_RSS_ITEM);
-
-			nodeMoveService.moveNodeToTop(session, newNode, false, false, true);
 			JcrUtil.timestampNewNode(session, newNode);
 
 			if (StringUtils.isEmpty(entry.getTitle())) {
@@ -123,6 +190,7 @@ public class RssDbWriter {
 					newNode.setProperty(JcrProp.RSS_ITEM_ENC_TYPE, enc.getType());
 					newNode.setProperty(JcrProp.RSS_ITEM_ENC_LENGTH, enc.getLength());
 					newNode.setProperty(JcrProp.RSS_ITEM_ENC_URL, enc.getUrl());
+					enclosureCache.enqueue(enc.getUrl());
 
 					/*
 					 * todo-1: for now we just support the first enclosure which will work for for
@@ -0,0 +1,121 @@
+package com.meta64.mobile.rss;
+
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.springframework.stereotype.Component;
+
+import com.meta64.mobile.model.HistogramInfo;
+import com.meta64.mobile.model.RssCompactionInfo;
+import com.meta64.mobile.model.RssFeedStats;
+import com.meta64.mobile.rss.model.FeedNodeInfo;
+
+/**
+ * Keeps the stats of the last run of each feed, and histograms of fetch, parse and write times
+ * over all runs since the server started, for the getRssStatus endpoint. Only the RSS writer
+ * thread records, and the stats of a feed are replaced as a whole, so readers always see a
+ * consistent set for each feed. The result of the last compaction run is kept here too.
+ */
+@Component
+public class RssMetrics {
+
+	private static final long[] BUCKET_LIMITS = { 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000 };
+
+	/* by feed node id */
+	private final Map<String, RssFeedStats> statsByNodeId = new ConcurrentHashMap<String, RssFeedStats>();
+
+	private final Histogram fetchHistogram = new Histogram("fetch");
+	private final Histogram parseHistogram = new Histogram("parse");
+	private final Histogram writeHistogram = new Histogram("write");
+
+	private volatile RssCompactionInfo lastCompaction;
+
+	private static class Histogram {
+		private final String name;
+		private final long[] counts = new long[BUCKET_LIMITS.length + 1];
+		private long count;
+		private long totalMillis;
+		private long maxMillis;
+
+		Histogram(String name) {
+			this.name = name;
+		}
+
+		synchronized void record(long millis) {
+			int idx = Arrays.binarySearch(BUCKET_LIMITS, millis);
+			counts[idx >= 0 ? idx : -idx - 1]++;
+			count++;
+			totalMillis += millis;
+			maxMillis = Math.max(maxMillis, millis);
+		}
+
+		synchronized HistogramInfo getInfo() {
+			HistogramInfo info = new HistogramInfo();
+			info.setName(name);
+			info.setBucketLimits(BUCKET_LIMITS.clone());
+			info.setCounts(counts.clone());
+			info.setCount(count);
+			info.setTotalMillis(totalMillis);
+			info.setMaxMillis(maxMillis);
+			return info;
+		}
+	}
+
+	/* Call once a feed is completely done for this run, including scheduling its next check */
+	public void record(FeedNodeInfo feedNodeInfo) {
+		RssFeedStats stats = new RssFeedStats();
+		stats.setUrl(feedNodeInfo.getUrl());
+		stats.setNodeId(feedNodeInfo.getNodeId());
+		stats.setLastRunTime(System.currentTimeMillis());
+		stats.setFetchMillis(feedNodeInfo.getFetchMillis());
+		stats.setBytes(feedNodeInfo.getBytes());
+		stats.setParseMillis(feedNodeInfo.getParseMillis());
+		stats.setNotModified(feedNodeInfo.isNotModified());
+		stats.setNewItems(feedNodeInfo.getNewEntryCount());
+		stats.setDuplicateItems(feedNodeInfo.getDuplicateEntryCount());
+		stats.setWriteMillis(feedNodeInfo.getWriteMillis());
+		stats.setLastError(feedNodeInfo.getLastError());
+		stats.setFailureCount(feedNodeInfo.getFailureCount());
+		stats.setNextCheckTime(feedNodeInfo.getNextCheckTime());
+		stats.setInterval(feedNodeInfo.getInterval());
+		statsByNodeId.put(feedNodeInfo.getNodeId(), stats);
+
+		/* fetches that didn't get as far as a response would skew the histograms */
+		if (feedNodeInfo.getFetchMillis() > 0) {
+			fetchHistogram.record(feedNodeInfo.getFetchMillis());
+		}
+		if (feedNodeInfo.getBytes() > 0) {
+			parseHistogram.record(feedNodeInfo.getParseMillis());
+		}
+		if (feedNodeInfo.getNewEntryCount() > 0) {
+			writeHistogram.record(feedNodeInfo.getWriteMillis());
+		}
+	}
+
+	public void recordCompaction(RssCompactionInfo info) {
+		lastCompaction = info;
+	}
+
+	/* null if no compaction has run since the server started */
+	public RssCompactionInfo getLastCompaction() {
+		return lastCompaction;
+	}
+
+	/* Slowest feeds first, by fetch plus parse time */
+	public List<RssFeedStats> getFeedStats() {
+		List<RssFeedStats> list = new LinkedList<RssFeedStats>(statsByNodeId.values());
+		list.sort((a, b) -> Long.compare(b.getFetchMillis() + b.getParseMillis(), a.getFetchMillis() + a.getParseMillis()));
+		return list;
+	}
+
+	public List<HistogramInfo> getHistograms() {
+		List<HistogramInfo> list = new LinkedList<HistogramInfo>();
+		list.add(fetchHistogram.getInfo());
+		list.add(parseHistogram.getInfo());
+		list.add(writeHistogram.getInfo());
+		return list;
+	}
+}
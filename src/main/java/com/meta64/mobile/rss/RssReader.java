@@ -4,15 +4,33 @@ import java.io.BufferedReader;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.HttpURLConnection;
+import java.net.URI;
 import java.net.URL;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 import javax.jcr.Node;
 
+import org.apache.commons.io.input.CloseShieldInputStream;
+import org.apache.commons.io.input.CountingInputStream;
+import org.apache.http.Header;
 import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.HttpClientBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -20,12 +38,14 @@ import org.springframework.context.annotation.Scope;
 import org.springframework.stereotype.Component;
 
 import com.meta64.mobile.AppServer;
+import com.meta64.mobile.config.AppProp;
 import com.meta64.mobile.rss.model.FeedNodeInfo;
 import com.meta64.mobile.rss.model.RssEntryWrapper;
 import com.meta64.mobile.rss.model.RssFeedWrapper;
+import com.meta64.mobile.service.HttpClientService;
 import com.meta64.mobile.service.RssService;
-import com.meta64.mobile.service.SystemService;
 import com.meta64.mobile.user.RunAsJcrAdmin;
+import com.meta64.mobile.util.DateUtil;
 import com.meta64.mobile.util.ExUtil;
 import com.meta64.mobile.util.JcrUtil;
 import com.meta64.mobile.util.LimitedInputStreamEx;
@@ -38,6 +58,19 @@ import com.sun.syndication.io.XmlReader;
 /**
  * Handles reading of RSS feed info from online sources.
  * <p>
+ * Feeds are downloaded and parsed concurrently by a pool of rss.fetchThreads threads, with at most
+ * rss.maxFeedsPerHost of them talking to any one host at a time, and each fetch is aborted if it
+ * takes longer than rss.fetchTimeoutSeconds in total. The parsed feeds are then written to the
+ * repository one at a time, as they arrive, by the thread that called run, so all the JCR work
+ * stays on one session and one thread. That way a cycle takes about as long as the slowest feed,
+ * rather than the sum of all of them.
+ * <p>
+ * Each feed node remembers the ETag and Last-Modified its server last sent, and we send them back
+ * so an unchanged feed costs a 304 and no parsing. Each feed also has its own polling interval,
+ * halved when a fetch finds new entries and grown by half when it doesn't (between
+ * rss.minIntervalMinutes and rss.maxIntervalMinutes), and doubled for every failure in a row.
+ * RssService only hands us the feeds that are due.
+ * <p>
  * WARNING: To anyone who downloads meta64, beware the RSS stuff is a work in progress that I
  * started, and anything related to RSS is untested code and the commented code you see comes from
  * the older version of the software and is in the process of being converted. Bottom line, don't
@@ -62,28 +95,181 @@ public class RssReader {
 	@Autowired
 	private RunAsJcrAdmin adminRunner;
 
+	@Autowired
+	private HttpClientService httpClientService;
+
+	@Autowired
+	private AppProp appProp;
+
+	@Autowired
+	private RssMetrics rssMetrics;
+
+	/* aborts fetches that run past the timeout. Only set while run is running */
+	private ScheduledExecutorService abortTimer;
+	private int fetchTimeoutSeconds;
+
+	/* what a fetch thread hands to the writer. wFeed is null if the fetch failed or got a 304 */
+	private static class FetchedFeed {
+		FeedNodeInfo feedNodeInfo;
+		RssFeedWrapper wFeed;
+	}
+
 	public RssReader() {
 	}
 
 	public void run(List<FeedNodeInfo> feedNodeInfos) {
+		long startTime = System.currentTimeMillis();
+		int maxPerHost = appProp.getIntProp("rss.maxFeedsPerHost", 2);
+		fetchTimeoutSeconds = appProp.getIntProp("rss.fetchTimeoutSeconds", 120);
 
-		int counter = 0;
-		for (FeedNodeInfo feedNodeInfo : feedNodeInfos) {
-			AppServer.shutdownCheck();
-			RssFeedWrapper wFeed = readFeed(feedNodeInfo.getUrl());
-			if (wFeed != null) {
+		ExecutorService fetchers = Executors.newFixedThreadPool(appProp.getIntProp("rss.fetchThreads", 8));
+		abortTimer = Executors.newSingleThreadScheduledExecutor();
+		CompletionService<FetchedFeed> fetched = new ExecutorCompletionService<FetchedFeed>(fetchers);
+		Map<String, Semaphore> hostPermits = new HashMap<String, Semaphore>();
+
+		try {
+			/*
+			 * Submit one feed per host in turn, so a pool thread waiting for a busy host's permit
+			 * is rare, and the other hosts' feeds aren't stuck behind it in the queue.
+			 */
+			int submitted = 0;
+			for (FeedNodeInfo feedNodeInfo : interleaveByHost(feedNodeInfos)) {
+				Semaphore permits = hostPermits.computeIfAbsent(getHost(feedNodeInfo.getUrl()), k -> new Semaphore(maxPerHost));
+				fetched.submit(() -> fetchFeed(feedNodeInfo, permits));
+				submitted++;
+			}
+
+			/* the single writer */
+			while (submitted > 0) {
+				AppServer.shutdownCheck();
+				Future<FetchedFeed> future = fetched.poll(1, TimeUnit.SECONDS);
+				if (future == null) continue;
+				submitted--;
+
+				FetchedFeed result = future.get();
+				boolean success = result.feedNodeInfo.isNotModified();
+				if (result.wFeed != null) {
+					try {
+						result.feedNodeInfo.setInProgress(true);
+						if (writeFeedToDb(result.wFeed, result.feedNodeInfo)) {
+							/* only now, so that if any entry failed the next fetch isn't a 304 */
+							result.feedNodeInfo.setEtag(result.wFeed.getEtag());
+							result.feedNodeInfo.setLastModified(result.wFeed.getLastModified());
+						}
+						else {
+							result.feedNodeInfo.setLastError("some entries failed to write");
+						}
+						success = true;
+					}
+					catch (Exception e) {
+						log.error("Failed to process feed: " + result.wFeed.getFeed().getTitle(), e);
+						result.feedNodeInfo.setLastError("write failed: " + e.getMessage());
+					}
+					finally {
+						result.feedNodeInfo.setInProgress(false);
+					}
+				}
+
+				scheduleNextCheck(result.feedNodeInfo, success);
 				try {
-					feedNodeInfo.setInProgress(true);
-					writeFeedToDb(wFeed, feedNodeInfo);
+					dbWriter.updateFeedState(result.feedNodeInfo);
 				}
 				catch (Exception e) {
-					log.error("Failed to process feed: " + wFeed.getFeed().getTitle(), e);
+					log.error("Failed to save state of feed: " + result.feedNodeInfo.getUrl(), e);
 				}
-				finally {
-					feedNodeInfo.setInProgress(false);
+				rssMetrics.record(result.feedNodeInfo);
+			}
+			log.info("Processed " + feedNodeInfos.size() + " feeds in " + (System.currentTimeMillis() - startTime) + "ms");
+		}
+		catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw ExUtil.newEx(ex);
+		}
+		catch (Exception ex) {
+			throw ExUtil.newEx(ex);
+		}
+		finally {
+			fetchers.shutdownNow();
+			abortTimer.shutdownNow();
+			abortTimer = null;
+		}
+	}
+
+	/* Runs on a fetch thread. Never throws, since readFeed doesn't */
+	private FetchedFeed fetchFeed(FeedNodeInfo feedNodeInfo, Semaphore permits) throws InterruptedException {
+		FetchedFeed result = new FetchedFeed();
+		result.feedNodeInfo = feedNodeInfo;
+		permits.acquire();
+		try {
+			result.wFeed = readFeed(feedNodeInfo);
+		}
+		finally {
+			permits.release();
+		}
+		return result;
+	}
+
+	/*
+	 * Sets the time of the next fetch. New entries mean the feed is busier than we thought, so we
+	 * check sooner next time, and no new entries (or a 304) means we check later. Failures back off
+	 * exponentially from the normal interval, without changing it.
+	 */
+	private void scheduleNextCheck(FeedNodeInfo feedNodeInfo, boolean success) {
+		long minInterval = appProp.getIntProp("rss.minIntervalMinutes", 30) * (long) DateUtil.MINUTE_MILLIS;
+		long maxInterval = appProp.getIntProp("rss.maxIntervalMinutes", 24 * 60) * (long) DateUtil.MINUTE_MILLIS;
+		long interval = feedNodeInfo.getInterval();
+		if (interval <= 0) {
+			interval = appProp.getIntProp("rss.defaultIntervalMinutes", 6 * 60) * (long) DateUtil.MINUTE_MILLIS;
+		}
+
+		long delay;
+		if (success) {
+			feedNodeInfo.setFailureCount(0);
+			interval = feedNodeInfo.getNewEntryCount() > 0 ? interval / 2 : interval * 3 / 2;
+			interval = Math.max(minInterval, Math.min(maxInterval, interval));
+			delay = interval;
+		}
+		else {
+			int failures = feedNodeInfo.getFailureCount() + 1;
+			feedNodeInfo.setFailureCount(failures);
+			delay = Math.min(maxInterval, interval << Math.min(failures, 10));
+		}
+
+		feedNodeInfo.setInterval(interval);
+		feedNodeInfo.setNextCheckTime(System.currentTimeMillis() + delay);
+		log.debug("Next check of " + feedNodeInfo.getUrl() + " in " + (delay / DateUtil.MINUTE_MILLIS) + " minutes");
+	}
+
+	/* Reorders the feeds so that consecutive ones are on different hosts where possible */
+	private List<FeedNodeInfo> interleaveByHost(List<FeedNodeInfo> feedNodeInfos) {
+		Map<String, LinkedList<FeedNodeInfo>> byHost = new LinkedHashMap<String, LinkedList<FeedNodeInfo>>();
+		for (FeedNodeInfo feedNodeInfo : feedNodeInfos) {
+			byHost.computeIfAbsent(getHost(feedNodeInfo.getUrl()), k -> new LinkedList<FeedNodeInfo>()).add(feedNodeInfo);
+		}
+
+		List<FeedNodeInfo> ret = new LinkedList<FeedNodeInfo>();
+		while (!byHost.isEmpty()) {
+			Iterator<LinkedList<FeedNodeInfo>> iter = byHost.values().iterator();
+			while (iter.hasNext()) {
+				LinkedList<FeedNodeInfo> hostFeeds = iter.next();
+				ret.add(hostFeeds.removeFirst());
+				if (hostFeeds.isEmpty()) {
+					iter.remove();
 				}
 			}
 		}
+		return ret;
+	}
+
+	/* feeds with urls we can't parse all share the "" host, which is fine since they'll just fail */
+	private static String getHost(String url) {
+		try {
+			String host = new URI(url).getHost();
+			return host != null ? host.toLowerCase() : "";
+		}
+		catch (Exception e) {
+			return "";
+		}
 	}
 
 	/*
@@ -92,15 +278,13 @@ public class RssReader {
 	 */
 	public void readUrl__unused(String url) {
 		if (true) throw ExUtil.newEx("don't call this until you fix missing finally block memory leak.");
-		// HttpClient client = HttpClientBuilder.create().build();
 		HttpGet request = new HttpGet(url);
 
 		// add request header
 		request.addHeader("User-Agent", FAKE_USER_AGENT);
-		HttpClient client = HttpClientBuilder.create().build();
 
 		try {
-			HttpResponse response = client.execute(request);
+			HttpResponse response = httpClientService.getClient().execute(request);
 
 			log.debug("RawRead of " + url + " -> Response Code : " + response.getStatusLine().getStatusCode());
 
@@ -118,37 +302,88 @@ public class RssReader {
 		}
 	}
 
-	public RssFeedWrapper readFeed(String feedUrl) {
+	/*
+	 * Returns null if the fetch failed, or if the server says the feed hasn't changed since the
+	 * validators in feedNodeInfo, in which case feedNodeInfo.notModified is set. Validators of a
+	 * successful fetch are returned on the wrapper, for run to keep once the feed is written.
+	 */
+	public RssFeedWrapper readFeed(FeedNodeInfo feedNodeInfo) {
+		String feedUrl = feedNodeInfo.getUrl();
 		log.debug("processing RSS url: " + feedUrl);
+		feedNodeInfo.setNotModified(false);
+		feedNodeInfo.setNewEntryCount(0);
+		feedNodeInfo.setDuplicateEntryCount(0);
+		feedNodeInfo.setFetchMillis(0);
+		feedNodeInfo.setBytes(0);
+		feedNodeInfo.setParseMillis(0);
+		feedNodeInfo.setWriteMillis(0);
+		feedNodeInfo.setLastError(null);
 
-		XmlReader reader = null;
 		RssFeedWrapper wFeed = null;
-		InputStream is = null;
+		CountingInputStream is = null;
+		CloseableHttpResponse response = null;
+		HttpGet request = null;
+
+		/* true once the body has been read to the end, so the connection can be reused */
+		boolean bodyDone = false;
 
 		long startTime = System.currentTimeMillis();
+		ScheduledFuture<?> timeout = null;
 		try {
-			HttpClient client = HttpClientBuilder.create().build();
-			HttpGet request = new HttpGet(feedUrl);
+			request = new HttpGet(feedUrl);
 			request.addHeader("User-Agent", FAKE_USER_AGENT);
-			HttpResponse response = client.execute(request);
-
-			log.debug("Response Code: " + response.getStatusLine().getStatusCode() + " reason=" + response.getStatusLine().getReasonPhrase());
-
-			is = response.getEntity().getContent();
-			reader = new XmlReader(is);
-
-			SyndFeed feed = new SyndFeedInput().build(reader);
-			wFeed = new RssFeedWrapper(feed, feedUrl);
-			int entryCounter = 0;
+			if (feedNodeInfo.getEtag() != null) {
+				request.addHeader("If-None-Match", feedNodeInfo.getEtag());
+			}
+			if (feedNodeInfo.getLastModified() != null) {
+				request.addHeader("If-Modified-Since", feedNodeInfo.getLastModified());
+			}
 
-			for (Object e : feed.getEntries()) {
-				SyndEntry entry = (SyndEntry) e;
+			/*
+			 * The client's socket timeout only limits each wait for data, so a server trickling
+			 * the feed out could hold a fetch thread indefinitely. Aborting the request makes
+			 * whatever is blocked on it throw.
+			 */
+			ScheduledExecutorService timer = abortTimer;
+			if (timer != null) {
+				timeout = timer.schedule(request::abort, fetchTimeoutSeconds, TimeUnit.SECONDS);
+			}
+			response = httpClientService.getClient().execute(request);
+			feedNodeInfo.setFetchMillis(System.currentTimeMillis() - startTime);
 
-				log.debug("RSS Entry in Feed: " + entry.getLink());
-				wFeed.getEntryList().add(new RssEntryWrapper(entry));
+			log.debug("Response Code: " + response.getStatusLine().getStatusCode() + " reason=" + response.getStatusLine().getReasonPhrase());
+			if (response.getStatusLine().getStatusCode() == 304) {
+				log.debug("Feed not modified: " + feedUrl);
+				feedNodeInfo.setNotModified(true);
+				return null;
+			}
+			if (response.getStatusLine().getStatusCode() != 200) {
+				throw ExUtil.newEx("HTTP " + response.getStatusLine().getStatusCode());
+			}
 
-				if (++entryCounter >= MAX_RSS_ENTRIES) break;
+			/*
+			 * The parser closes the stream it's given, and closing an HttpClient content stream
+			 * reads the rest of the body (however big) to reuse the connection. So the parser
+			 * gets a close shield, and if it stops early or fails we abort the request below
+			 * rather than read the rest.
+			 */
+			long parseStartTime = System.currentTimeMillis();
+			is = new CountingInputStream(response.getEntity().getContent());
+			try {
+				RssStreamParser parser = new RssStreamParser(MAX_RSS_ENTRIES, maxFileSize);
+				wFeed = parser.parse(new CloseShieldInputStream(is), feedUrl);
+				bodyDone = !parser.isStoppedEarly();
+			}
+			finally {
+				feedNodeInfo.setBytes(is.getByteCount());
+				feedNodeInfo.setParseMillis(System.currentTimeMillis() - parseStartTime);
 			}
+			log.debug("RSS entries read: " + wFeed.getEntryList().size());
+
+			Header etag = response.getFirstHeader("ETag");
+			Header lastModified = response.getFirstHeader("Last-Modified");
+			wFeed.setEtag(etag != null ? etag.getValue() : null);
+			wFeed.setLastModified(lastModified != null ? lastModified.getValue() : null);
 		}
 
 		/*
@@ -162,6 +397,7 @@ public class RssReader {
 		 */
 		catch (Exception e) {
 			log.error("*** ERROR reading feed: " + feedUrl, e);
+			feedNodeInfo.setLastError(e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName());
 			// log.debug("Calling readUrl to double check streamability.");
 			// readUrl(feedUrl);
 
@@ -172,7 +408,13 @@ public class RssReader {
 			return null;
 		}
 		finally {
-			StreamUtil.close(reader, is);
+			if (timeout != null) {
+				timeout.cancel(false);
+			}
+			if (is != null && !bodyDone) {
+				request.abort();
+			}
+			StreamUtil.close(is, response);
 			log.info("Stream read took: " + (System.currentTimeMillis() - startTime) + "ms");
 		}
 		return wFeed;
@@ -249,12 +491,18 @@ public class RssReader {
 		}
 	}
 
-	/* Writes all the entries in the specific RssFeedWrapper to the db */
-	private void writeFeedToDb(RssFeedWrapper wFeed, FeedNodeInfo feedNodeInfo) {
+	/*
+	 * Writes all the entries in the specific RssFeedWrapper to the db, saving every rss.batchSize
+	 * new entries, and not at all if nothing changed. Returns false if any entry failed to write
+	 * (the others are still written).
+	 */
+	private boolean writeFeedToDb(RssFeedWrapper wFeed, FeedNodeInfo feedNodeInfo) {
 		SyndFeed feed = wFeed.getFeed();
+		int batchSize = Math.max(1, appProp.getIntProp("rss.batchSize", 100));
+		long startTime = System.currentTimeMillis();
+		boolean[] allWritten = { true };
 
 		log.debug("writing feed: " + feed.getTitle());
-		dbWriter.updateFeedNode(feed, feedNodeInfo);
 
 		adminRunner.run(session -> {
 
@@ -262,11 +510,18 @@ public class RssReader {
 			if (feedNode == null) {
 				throw ExUtil.newEx("unable to find feed node id: " + feedNodeInfo.getNodeId());
 			}
+			int unsaved = dbWriter.updateFeedNode(feedNode, feed) ? 1 : 0;
+
 			/*
 			 * now we have the Feed node in place so we can write all RSS entries to the db
 			 */
 			List<RssEntryWrapper> entries = wFeed.getEntryList();
 			feedNodeInfo.setEntryCount(entries.size());
+			feedNodeInfo.setNewEntryCount(0);
+
+			/* items the compactor deleted, and which of those the feed still lists */
+			HashSet<String> prunedLinks = dbWriter.getPrunedLinks(feedNode);
+			HashSet<String> prunedStillListed = new HashSet<String>();
 
 			int entryCounter = 0;
 			for (RssEntryWrapper wEntry : entries) {
@@ -274,38 +529,58 @@ public class RssReader {
 				SyndEntry entry = (SyndEntry) wEntry.getEntry();
 
 				try {
+					String linkHash = RssDbWriter.linkHash(entry.getLink());
+					if (prunedLinks.contains(linkHash)) {
+						log.debug("entry was pruned." + entry.getTitle());
+						prunedStillListed.add(linkHash);
+						feedNodeInfo.setDuplicateEntryCount(feedNodeInfo.getDuplicateEntryCount() + 1);
+					}
 					/* if this entry doesn't already exist in our DB */
-					if (!rssService.linkExists(entry.getLink())) {
+					else if (!rssService.linkExists(session, entry.getLink())) {
 						log.debug("writing new entry." + entry.getTitle());
 						dbWriter.write(session, feedNode, feedNodeInfo, entry);
+						rssService.linkAdded(entry.getLink());
+						feedNodeInfo.setNewEntryCount(feedNodeInfo.getNewEntryCount() + 1);
+
+						if (++unsaved >= batchSize) {
+							JcrUtil.save(session);
+							unsaved = 0;
+						}
 					}
 					else {
 						log.debug("entry already existed." + entry.getTitle());
+						feedNodeInfo.setDuplicateEntryCount(feedNodeInfo.getDuplicateEntryCount() + 1);
 					}
 				}
 				catch (Exception e) {
 					log.error("Failed writing entry. Continuing to next entry...", e);
+					allWritten[0] = false;
 				}
 				finally {
 					entryCounter++;
 					feedNodeInfo.setEntriesComplete(entryCounter);
-
-					/*
-					 * I'm seeing up to 1GB appear to be used by VisualVM monitor, and to see if
-					 * that's real, for now, I want to agressively cleanup garbage after every 10
-					 * row inserts, and make sure JCR isn't truely eating that much memory, up but
-					 * just in reality releasing it all.
-					 */
-					if (entryCounter % 10 == 0) {
-						System.gc();
-					}
 				}
 			}
 
-			JcrUtil.save(session);
-			SystemService.logMemory();
+			/*
+			 * Once the feed stops listing a pruned item it can't come back, so we only keep the
+			 * hashes of the ones still listed. An empty feed is more likely a glitch on the server
+			 * than the end of the feed, so we keep them all in that case.
+			 */
+			if (!entries.isEmpty() && prunedStillListed.size() < prunedLinks.size()) {
+				dbWriter.setPrunedLinks(feedNode, prunedStillListed);
+				unsaved++;
+			}
+
+			if (unsaved > 0) {
+				JcrUtil.save(session);
+			}
 		});
 
-		System.gc();
+		long millis = System.currentTimeMillis() - startTime;
+		feedNodeInfo.setWriteMillis(millis);
+		log.info("Wrote " + feedNodeInfo.getNewEntryCount() + " new of " + feedNodeInfo.getEntryCount() + " entries for " + feedNodeInfo.getUrl() + " in " + millis + "ms ("
+				+ (feedNodeInfo.getNewEntryCount() * 1000L / Math.max(1, millis)) + " entries/sec)");
+		return allWritten[0];
 	}
 }
@@ -0,0 +1,400 @@
+package com.meta64.mobile.rss;
+
+import java.io.InputStream;
+import java.util.LinkedList;
+import java.util.List;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.commons.lang3.StringUtils;
+
+import com.meta64.mobile.rss.model.RssEntryWrapper;
+import com.meta64.mobile.rss.model.RssFeedWrapper;
+import com.meta64.mobile.util.ExUtil;
+import com.meta64.mobile.util.LimitedInputStreamEx;
+import com.meta64.mobile.util.StreamUtil;
+import com.sun.syndication.feed.synd.SyndContentImpl;
+import com.sun.syndication.feed.synd.SyndEnclosure;
+import com.sun.syndication.feed.synd.SyndEnclosureImpl;
+import com.sun.syndication.feed.synd.SyndEntry;
+import com.sun.syndication.feed.synd.SyndEntryImpl;
+import com.sun.syndication.feed.synd.SyndFeedImpl;
+import com.sun.syndication.feed.synd.SyndImageImpl;
+import com.sun.syndication.io.XmlReader;
+
+/**
+ * Reads RSS (0.9x, 1.0 and 2.0) and Atom feeds with a StAX reader, stopping after maxEntries
+ * entries and failing if the stream is bigger than maxBytes. Only the fields RssDbWriter stores
+ * are kept, but they go into the same ROME objects SyndFeedInput would have built, so the rest of
+ * the RSS code doesn't know the difference. Building the whole ROME document first meant a huge
+ * podcast feed was entirely parsed and held in memory only to have all but 50 entries thrown away.
+ * <p>
+ * Elements are matched by namespace and local name, so it doesn't matter which prefix a feed uses,
+ * and extension elements (itunes:title, atom:link in an RSS feed and so on) never take the place of
+ * the core ones. Where a core element can appear more than once, the first one wins, and of Atom
+ * links only the 'alternate' one is the link (self, edit and the like are skipped).
+ */
+public class RssStreamParser {
+
+	private static final String ATOM_NS = "http://www.w3.org/2005/Atom";
+	private static final String RSS10_NS = "http://purl.org/rss/1.0/";
+	private static final String RSS090_NS = "http://my.netscape.com/rdf/simple/0.9/";
+	private static final String RDF_NS = "http://www.w3.org/1999/02/22-rdf-syntax-ns#";
+	private static final String CONTENT_NS = "http://purl.org/rss/1.0/modules/content/";
+	private static final String DC_NS = "http://purl.org/dc/elements/1.1/";
+
+	private static final XMLInputFactory factory = XMLInputFactory.newInstance();
+
+	static {
+		/* feeds come from anywhere, so no DTDs or external entities */
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+		factory.setProperty(XMLInputFactory.IS_REPLACING_ENTITY_REFERENCES, false);
+		factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+	}
+
+	private final int maxEntries;
+	private final long maxBytes;
+
+	/* set when parse stops at maxEntries, without reading the rest of the stream */
+	private boolean stoppedEarly;
+
+	/* true for an Atom feed, where the Atom namespace is the core one rather than an extension */
+	private boolean atom;
+
+	public RssStreamParser(int maxEntries, long maxBytes) {
+		this.maxEntries = maxEntries;
+		this.maxBytes = maxBytes;
+	}
+
+	/* Closes 'is' when done */
+	public RssFeedWrapper parse(InputStream is, String feedUrl) {
+		XmlReader reader = null;
+		XMLStreamReader xml = null;
+		try {
+			/* XmlReader does the encoding detection the way ROME always did it for us */
+			reader = new XmlReader(new LimitedInputStreamEx(is, maxBytes));
+			xml = factory.createXMLStreamReader(reader);
+
+			SyndFeedImpl feed = new SyndFeedImpl();
+			RssFeedWrapper wFeed = new RssFeedWrapper(feed, feedUrl);
+			List<SyndEntry> entries = new LinkedList<SyndEntry>();
+
+			/* names of the elements we are inside of, not counting the ones readText() consumes */
+			LinkedList<String> stack = new LinkedList<String>();
+			SyndEntryImpl entry = null;
+
+			while (xml.hasNext()) {
+				int event = xml.next();
+
+				if (event == XMLStreamConstants.END_ELEMENT) {
+					stack.pop();
+					if (entry != null && isEntry(xml, xml.getLocalName())) {
+						entries.add(entry);
+						wFeed.getEntryList().add(new RssEntryWrapper(entry));
+						entry = null;
+					}
+					continue;
+				}
+
+				if (event != XMLStreamConstants.START_ELEMENT) {
+					continue;
+				}
+
+				String name = xml.getLocalName();
+				String parent = stack.peek();
+
+				if (isEntry(xml, name)) {
+					if (entries.size() >= maxEntries) {
+						stoppedEarly = true;
+						break;
+					}
+					entry = new SyndEntryImpl();
+					stack.push(name);
+				}
+				else if (entry != null) {
+					readEntryElement(xml, name, parent, entry, stack);
+				}
+				else {
+					readFeedElement(xml, name, parent, feed, stack);
+				}
+			}
+
+			feed.setEntries(entries);
+			return wFeed;
+		}
+		catch (Exception e) {
+			throw ExUtil.newEx(e);
+		}
+		finally {
+			if (xml != null) {
+				try {
+					xml.close();
+				}
+				catch (Exception e) {
+					// ignore
+				}
+			}
+			StreamUtil.close(reader);
+		}
+	}
+
+	public boolean isStoppedEarly() {
+		return stoppedEarly;
+	}
+
+	private boolean isEntry(XMLStreamReader xml, String name) {
+		return (name.equals("item") || name.equals("entry")) && isCore(xml);
+	}
+
+	/*
+	 * True if the current element is in the namespace of the feed format itself, rather than in
+	 * an extension. RSS 0.9x and 2.0 have no namespace at all.
+	 */
+	private boolean isCore(XMLStreamReader xml) {
+		String ns = xml.getNamespaceURI();
+		if (atom) {
+			return ATOM_NS.equals(ns);
+		}
+		return ns == null || ns.isEmpty() || RSS10_NS.equals(ns) || RSS090_NS.equals(ns);
+	}
+
+	/* Atom links without a rel, or rel 'alternate', are the link to the page itself */
+	private boolean isAlternateLink(XMLStreamReader xml) {
+		String rel = xml.getAttributeValue(null, "rel");
+		return rel == null || rel.equals("alternate");
+	}
+
+	private void readFeedElement(XMLStreamReader xml, String name, String parent, SyndFeedImpl feed, LinkedList<String> stack) throws Exception {
+		String ns = xml.getNamespaceURI();
+
+		/* containers we need to look inside of */
+		if (name.equals("feed") && ATOM_NS.equals(ns)) {
+			atom = true;
+			stack.push(name);
+			return;
+		}
+		if ((name.equals("rss") && (ns == null || ns.isEmpty())) || (name.equals("RDF") && RDF_NS.equals(ns))) {
+			stack.push(name);
+			return;
+		}
+
+		if (!isCore(xml)) {
+			readText(xml);
+			return;
+		}
+
+		switch (name) {
+		case "channel":
+		case "image":
+			stack.push(name);
+			return;
+
+		case "url":
+			if ("image".equals(parent)) {
+				setImageUrl(feed, readText(xml));
+				return;
+			}
+			break;
+
+		case "logo":
+		case "icon":
+			if (feed.getImage() == null) {
+				setImageUrl(feed, readText(xml));
+				return;
+			}
+			break;
+
+		case "title":
+			if (!"image".equals(parent) && feed.getTitle() == null) {
+				feed.setTitle(readText(xml));
+				return;
+			}
+			break;
+
+		case "link":
+			if (!"image".equals(parent) && feed.getLink() == null && isAlternateLink(xml)) {
+				feed.setLink(readLink(xml));
+				return;
+			}
+			break;
+
+		case "description":
+		case "subtitle":
+			if (!"image".equals(parent) && feed.getDescription() == null) {
+				feed.setDescription(readText(xml));
+				return;
+			}
+			break;
+
+		case "id":
+			if (feed.getUri() == null) {
+				feed.setUri(readText(xml));
+				return;
+			}
+			break;
+
+		default:
+			break;
+		}
+		readText(xml);
+	}
+
+	private void readEntryElement(XMLStreamReader xml, String name, String parent, SyndEntryImpl entry, LinkedList<String> stack) throws Exception {
+		String ns = xml.getNamespaceURI();
+
+		/* the only extensions we use: content:encoded for the description, and dc:creator */
+		if (name.equals("encoded") && CONTENT_NS.equals(ns)) {
+			String content = readText(xml);
+			if (entry.getDescription() == null) {
+				setDescription(entry, content);
+			}
+			return;
+		}
+		if (name.equals("creator") && DC_NS.equals(ns)) {
+			String creator = readText(xml);
+			if (entry.getAuthor() == null) {
+				entry.setAuthor(creator);
+			}
+			return;
+		}
+
+		if (!isCore(xml)) {
+			readText(xml);
+			return;
+		}
+
+		switch (name) {
+		case "title":
+			if (entry.getTitle() == null) {
+				entry.setTitle(readText(xml));
+				return;
+			}
+			break;
+
+		case "link":
+			if ("enclosure".equals(xml.getAttributeValue(null, "rel"))) {
+				addEnclosure(entry, xml.getAttributeValue(null, "href"), xml.getAttributeValue(null, "type"), xml.getAttributeValue(null, "length"));
+			}
+			else if (entry.getLink() == null && isAlternateLink(xml)) {
+				entry.setLink(readLink(xml));
+				return;
+			}
+			break;
+
+		/*
+		 * A plain description (or Atom summary) replaces content:encoded or Atom content, which
+		 * are only used when there's no plain description
+		 */
+		case "description":
+		case "summary":
+			setDescription(entry, readText(xml));
+			return;
+
+		case "content":
+			String content = readText(xml);
+			if (entry.getDescription() == null) {
+				setDescription(entry, content);
+			}
+			return;
+
+		case "guid":
+		case "id":
+			if (entry.getUri() == null) {
+				entry.setUri(readText(xml));
+				return;
+			}
+			break;
+
+		case "author":
+			/* Atom authors have name and email elements, RSS authors are just text */
+			if (atom) {
+				stack.push(name);
+			}
+			else {
+				entry.setAuthor(readText(xml));
+			}
+			return;
+
+		case "name":
+			if ("author".equals(parent)) {
+				entry.setAuthor(readText(xml));
+				return;
+			}
+			break;
+
+		case "enclosure":
+			addEnclosure(entry, xml.getAttributeValue(null, "url"), xml.getAttributeValue(null, "type"), xml.getAttributeValue(null, "length"));
+			break;
+
+		default:
+			break;
+		}
+		readText(xml);
+	}
+
+	private void setImageUrl(SyndFeedImpl feed, String url) {
+		SyndImageImpl image = new SyndImageImpl();
+		image.setUrl(url);
+		feed.setImage(image);
+	}
+
+	private void setDescription(SyndEntryImpl entry, String desc) {
+		if (desc == null) return;
+		SyndContentImpl content = new SyndContentImpl();
+		content.setValue(desc);
+		entry.setDescription(content);
+	}
+
+	@SuppressWarnings("unchecked")
+	private void addEnclosure(SyndEntryImpl entry, String url, String type, String length) {
+		if (StringUtils.isEmpty(url)) return;
+		SyndEnclosure enc = new SyndEnclosureImpl();
+		enc.setUrl(url);
+		enc.setType(type);
+		try {
+			enc.setLength(StringUtils.isEmpty(length) ? 0 : Long.parseLong(length.trim()));
+		}
+		catch (NumberFormatException e) {
+			// leave length as zero
+		}
+		entry.getEnclosures().add(enc);
+	}
+
+	/* Atom links are in the href attribute, RSS links are the element text */
+	private String readLink(XMLStreamReader xml) throws Exception {
+		String href = xml.getAttributeValue(null, "href");
+		String text = readText(xml);
+		return href != null ? href : text;
+	}
+
+	/*
+	 * Returns all the text inside the current element (including any child elements), and leaves
+	 * the reader on its end tag. Returns null if there's no text.
+	 */
+	private String readText(XMLStreamReader xml) throws Exception {
+		StringBuilder sb = new StringBuilder();
+		int depth = 1;
+		while (depth > 0) {
+			switch (xml.next()) {
+			case XMLStreamConstants.START_ELEMENT:
+				depth++;
+				break;
+			case XMLStreamConstants.END_ELEMENT:
+				depth--;
+				break;
+			case XMLStreamConstants.CHARACTERS:
+			case XMLStreamConstants.CDATA:
+			case XMLStreamConstants.SPACE:
+				sb.append(xml.getText());
+				break;
+			default:
+				break;
+			}
+		}
+		String text = sb.toString().trim();
+		return text.length() > 0 ? text : null;
+	}
+}
@@ -7,6 +7,23 @@ public class FeedNodeInfo {
 	private int entryCount;
 	private int entriesComplete;
 
+	/* conditional GET and scheduling state, loaded from and saved back to the feed node */
+	private String etag;
+	private String lastModified;
+	private long nextCheckTime;
+	private long interval;
+	private int failureCount;
+
+	/* results of this cycle's fetch, also kept by RssMetrics */
+	private boolean notModified;
+	private int newEntryCount;
+	private int duplicateEntryCount;
+	private long fetchMillis;
+	private long bytes;
+	private long parseMillis;
+	private long writeMillis;
+	private String lastError;
+
 	public int getEntriesComplete() {
 		return entriesComplete;
 	}
@@ -47,6 +64,110 @@ public class FeedNodeInfo {
 		this.inProgress = inProgress;
 	}
 
+	public String getEtag() {
+		return etag;
+	}
+
+	public void setEtag(String etag) {
+		this.etag = etag;
+	}
+
+	public String getLastModified() {
+		return lastModified;
+	}
+
+	public void setLastModified(String lastModified) {
+		this.lastModified = lastModified;
+	}
+
+	public long getNextCheckTime() {
+		return nextCheckTime;
+	}
+
+	public void setNextCheckTime(long nextCheckTime) {
+		this.nextCheckTime = nextCheckTime;
+	}
+
+	public long getInterval() {
+		return interval;
+	}
+
+	public void setInterval(long interval) {
+		this.interval = interval;
+	}
+
+	public int getFailureCount() {
+		return failureCount;
+	}
+
+	public void setFailureCount(int failureCount) {
+		this.failureCount = failureCount;
+	}
+
+	public boolean isNotModified() {
+		return notModified;
+	}
+
+	public void setNotModified(boolean notModified) {
+		this.notModified = notModified;
+	}
+
+	public int getNewEntryCount() {
+		return newEntryCount;
+	}
+
+	public void setNewEntryCount(int newEntryCount) {
+		this.newEntryCount = newEntryCount;
+	}
+
+	public long getFetchMillis() {
+		return fetchMillis;
+	}
+
+	public void setFetchMillis(long fetchMillis) {
+		this.fetchMillis = fetchMillis;
+	}
+
+	public long getBytes() {
+		return bytes;
+	}
+
+	public void setBytes(long bytes) {
+		this.bytes = bytes;
+	}
+
+	public long getParseMillis() {
+		return parseMillis;
+	}
+
+	public void setParseMillis(long parseMillis) {
+		this.parseMillis = parseMillis;
+	}
+
+	public long getWriteMillis() {
+		return writeMillis;
+	}
+
+	public void setWriteMillis(long writeMillis) {
+		this.writeMillis = writeMillis;
+	}
+
+	public int getDuplicateEntryCount() {
+		return duplicateEntryCount;
+	}
+
+	public void setDuplicateEntryCount(int duplicateEntryCount) {
+		this.duplicateEntryCount = duplicateEntryCount;
+	}
+
+	public String getLastError() {
+		return lastError;
+	}
+
+	public void setLastError(String lastError) {
+		this.lastError = lastError;
+	}
+
 	public String getStatus() {
 		return ("URL: " + url + " nodeId=" + nodeId + " inProgress=" + inProgress + " entryCount=" + entryCount + " entriesComplete=" + entriesComplete);
 	}
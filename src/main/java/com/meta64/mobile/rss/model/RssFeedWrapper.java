@@ -13,6 +13,13 @@ public class RssFeedWrapper {
 	private SyndFeed feed;
 	private final List<RssEntryWrapper> entryList = new LinkedList<RssEntryWrapper>();
 
+	/*
+	 * ETag and Last-Modified the server sent with this copy of the feed. They only go onto the feed
+	 * node once all its entries are written, or a failed write would never be retried.
+	 */
+	private String etag;
+	private String lastModified;
+
 	/*
 	 * for any given feed, we want to avoid showing the same sampled image twice which can happen
 	 * sometimes, and doesn't look right, so we have this map to be sure not to do this
@@ -53,4 +60,20 @@ public class RssFeedWrapper {
 	public void setUrl(String url) {
 		this.url = url;
 	}
+
+	public String getEtag() {
+		return etag;
+	}
+
+	public void setEtag(String etag) {
+		this.etag = etag;
+	}
+
+	public String getLastModified() {
+		return lastModified;
+	}
+
+	public void setLastModified(String lastModified) {
+		this.lastModified = lastModified;
+	}
 }
@@ -1,8 +1,8 @@
 package com.meta64.mobile.service;
 
-import java.awt.image.BufferedImage;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.InputStream;
 import java.net.URL;
 import java.net.URLConnection;
@@ -18,10 +18,6 @@ import javax.jcr.Session;
 
 import org.apache.commons.io.input.AutoCloseInputStream;
 import org.apache.commons.lang3.StringUtils;
-import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.jackrabbit.JcrConstants;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -35,17 +31,20 @@ import org.springframework.web.multipart.MultipartFile;
 
 import com.google.common.net.HttpHeaders;
 import com.meta64.mobile.config.JcrProp;
+import com.meta64.mobile.config.SessionContext;
 import com.meta64.mobile.config.SpringContextUtil;
 import com.meta64.mobile.image.ImageUtil;
+import com.meta64.mobile.job.JobManager;
+import com.meta64.mobile.job.UploadFromUrlJob;
 import com.meta64.mobile.request.DeleteAttachmentRequest;
 import com.meta64.mobile.request.UploadFromUrlRequest;
 import com.meta64.mobile.response.DeleteAttachmentResponse;
 import com.meta64.mobile.response.UploadFromUrlResponse;
+import com.meta64.mobile.util.BinaryMeta;
 import com.meta64.mobile.util.Convert;
 import com.meta64.mobile.util.ExUtil;
 import com.meta64.mobile.util.ImageSize;
 import com.meta64.mobile.util.JcrUtil;
-import com.meta64.mobile.util.LimitedInputStreamEx;
 import com.meta64.mobile.util.StreamUtil;
 import com.meta64.mobile.util.ThreadLocals;
 
@@ -64,6 +63,15 @@ public class AttachmentService {
 	@Autowired
 	private JcrUtil jcrUtil;
 
+	@Autowired
+	private HttpClientService httpClientService;
+
+	@Autowired
+	private JobManager jobManager;
+
+	@Autowired
+	private SessionContext sessionContext;
+
 	/*
 	 * Upload from User's computer. Standard HTML form-based uploading of a file from user machine
 	 */
@@ -168,6 +176,13 @@ public class AttachmentService {
 		}
 
 		if (explodeZips && "application/zip".equalsIgnoreCase(mimeType)) {
+			/*
+			 * The import saves the session as it goes, and rolls it back on failure, so anything
+			 * unsaved (like the node just added for this file) must be saved first, or it would be
+			 * committed half done or thrown away.
+			 */
+			JcrUtil.save(session);
+
 			/* This is a prototype bean, with state for processing one import at a time */
 			ImportZipService importZipStreamService = (ImportZipService) SpringContextUtil.getBean(ImportZipService.class);
 
@@ -214,6 +229,13 @@ public class AttachmentService {
 				node.setProperty(JcrProp.IMG_WIDTH, String.valueOf(width));
 				node.setProperty(JcrProp.IMG_HEIGHT, String.valueOf(height));
 			}
+			else {
+				/* in case the previous attachment was an image */
+				JcrUtil.safeDeleteProperty(node, JcrProp.IMG_WIDTH);
+				JcrUtil.safeDeleteProperty(node, JcrProp.IMG_HEIGHT);
+				width = 0;
+				height = 0;
+			}
 
 			node.setProperty(JcrProp.BIN_DATA, binary);
 			node.setProperty(JcrProp.BIN_MIME, mimeType);
@@ -221,6 +243,7 @@ public class AttachmentService {
 				node.setProperty(JcrProp.BIN_FILENAME, fileName);
 			}
 			node.setProperty(JcrProp.BIN_VER, version + 1);
+			new BinaryMeta(version + 1, width, height, mimeType).write(node);
 		}
 		catch (Exception ex) {
 			throw ExUtil.newEx(ex);
@@ -252,6 +275,7 @@ public class AttachmentService {
 		JcrUtil.safeDeleteProperty(node, JcrProp.BIN_MIME);
 		JcrUtil.safeDeleteProperty(node, JcrProp.BIN_VER);
 		JcrUtil.safeDeleteProperty(node, JcrProp.BIN_FILENAME);
+		JcrUtil.safeDeleteProperty(node, JcrProp.BIN_META);
 	}
 
 	/*
@@ -300,6 +324,10 @@ public class AttachmentService {
 	/*
 	 * Uploads an image attachment not from the user's machine but from some arbitrary internet URL
 	 * they have provided, that could be pointing to an image or any other kind of content actually.
+	 * 
+	 * The download can take a long time, so all we do here is check the request is valid and then
+	 * submit an UploadFromUrlJob to do the actual work in the background. The client polls
+	 * 'getJobStatus' using the job id we return.
 	 */
 	public void uploadFromUrl(Session session, UploadFromUrlRequest req, UploadFromUrlResponse res) {
 		if (session == null) {
@@ -307,85 +335,99 @@ public class AttachmentService {
 		}
 		String nodeId = req.getNodeId();
 		String sourceUrl = req.getSourceUrl();
-		String FAKE_USER_AGENT = "Mozilla/5.0";
 
+		try {
+			String protocol = new URL(sourceUrl).getProtocol();
+			if (!"http".equalsIgnoreCase(protocol) && !"https".equalsIgnoreCase(protocol)) {
+				throw ExUtil.newEx("Only http and https urls are supported.");
+			}
+
+			/* check this now, so the user gets the error right away rather than from the job */
+			Node node = JcrUtil.findNode(session, nodeId);
+			JcrUtil.checkWriteAuthorized(node, session.getUserID());
+
+			/* This is a prototype bean, with state for processing one upload */
+			UploadFromUrlJob job = (UploadFromUrlJob) SpringContextUtil.getBean(UploadFromUrlJob.class);
+			job.init(session.getUserID(), sessionContext.getPassword(), nodeId, sourceUrl);
+			res.setJobId(jobManager.submit(job));
+			res.setSuccess(true);
+		}
+		catch (Exception ex) {
+			throw ExUtil.newEx(ex);
+		}
+	}
+
+	/*
+	 * Does the actual work of uploading from a URL. Runs on a background thread (see
+	 * UploadFromUrlJob).
+	 * 
+	 * The content is read from the remote server only one time, into a temp file, and then if we
+	 * can't tell it's an image from the file extension in the url we detect that from the temp file
+	 * (which only needs the image header) instead of going back to the server for it.
+	 */
+	public void attachFromUrl(Session session, String nodeId, String sourceUrl) {
 		/*
 		 * todo-0: This value exists in properties file, and also in TypeScript variable. Need to
 		 * have better way to define this ONLY in properties file.
 		 */
 		int maxFileSize = 20 * 1024 * 1024;
+		File tempFile = null;
 
 		try {
-			URL url = new URL(sourceUrl);
-			InputStream uis = null;
+			tempFile = File.createTempFile("uploadFromUrl-", ".tmp");
+			String contentType = httpClientService.downloadToFile(sourceUrl, tempFile, maxFileSize);
 
-			try {
-				String mimeType = URLConnection.guessContentTypeFromName(sourceUrl);
-
-				/*
-				 * if this is an image extension, handle it in a special way, mainly to extract the
-				 * width, height from it
-				 */
-				if (ImageUtil.isImageMime(mimeType)) {
-
-					/*
-					 * DO NOT DELETE
-					 * 
-					 * Basic version without masquerading as a web browser can cause a 403 error
-					 * because some sites don't want just any old stream reading from them. Leave
-					 * this note here as a warning and explanation
-					 */
-					HttpClient client = HttpClientBuilder.create().build();
-					HttpGet request = new HttpGet(sourceUrl);
-					request.addHeader("User-Agent", FAKE_USER_AGENT);
-					HttpResponse response = client.execute(request);
-					log.debug("Response Code: " + response.getStatusLine().getStatusCode() + " reason=" + response.getStatusLine().getReasonPhrase());
-					InputStream is = response.getEntity().getContent();
-
-					uis = new AutoCloseInputStream(new LimitedInputStreamEx(is, maxFileSize));
-					attachBinaryFromStream(session, null, nodeId, sourceUrl, uis, mimeType, -1, -1, false, false);
+			String mimeType = URLConnection.guessContentTypeFromName(sourceUrl);
+			int width = -1;
+			int height = -1;
+
+			/*
+			 * if this is not an image extension, try to detect if it's an image anyway, mainly to
+			 * extract the width, height from it
+			 */
+			if (!ImageUtil.isImageMime(mimeType)) {
+				ImageSize size = new ImageSize();
+				String imageMime = detectImage(tempFile, size);
+				if (imageMime != null) {
+					mimeType = imageMime;
+					width = size.width;
+					height = size.height;
 				}
-				/*
-				 * if not an image extension, we can just stream directly into the database, but we
-				 * want to try to get the mime type first, from calling detectImage so that if we do
-				 * detect its an image we can handle it as one.
-				 */
-				else {
-					if (!detectAndSaveImage(session, nodeId, sourceUrl, url)) {
-						HttpClient client = HttpClientBuilder.create().build();
-						HttpGet request = new HttpGet(sourceUrl);
-						request.addHeader("User-Agent", FAKE_USER_AGENT);
-						HttpResponse response = client.execute(request);
-						log.debug("Response Code: " + response.getStatusLine().getStatusCode() + " reason=" + response.getStatusLine().getReasonPhrase());
-						InputStream is = response.getEntity().getContent();
-						uis = new AutoCloseInputStream(new LimitedInputStreamEx(is, maxFileSize));
-						attachBinaryFromStream(session, null, nodeId, sourceUrl, is, "", -1, -1, false, false);
-					}
+				/* otherwise go with whatever the server said it is */
+				else if (mimeType == null) {
+					mimeType = contentType;
 				}
 			}
-			/* finally block just for extra safety */
-			finally {
-				StreamUtil.close(uis);
-			}
+
+			/* NOTE: the stream is closed inside 'createBinary' */
+			InputStream is = new BufferedInputStream(new FileInputStream(tempFile));
+			attachBinaryFromStream(session, null, nodeId, sourceUrl, is, mimeType, width, height, false, false);
 			JcrUtil.save(session);
-			res.setSuccess(true);
 		}
 		catch (Exception ex) {
 			throw ExUtil.newEx(ex);
 		}
+		finally {
+			if (tempFile != null && !tempFile.delete()) {
+				log.warn("Unable to delete temp file: " + tempFile.getAbsolutePath());
+			}
+		}
 	}
 
 	// FYI: Warning: this way of getting content type doesn't work.
 	// String mimeType = URLConnection.guessContentTypeFromStream(inputStream);
 	//
-	/* returns true if it was detected AND saved as an image */
-	private boolean detectAndSaveImage(Session session, String nodeId, String fileName, URL url) {
+	/*
+	 * Returns the mime type if the file is an image (and sets its width and height into 'size'), or
+	 * else null. Only the image header is read, not the full image.
+	 */
+	private String detectImage(File file, ImageSize size) {
 		ImageInputStream is = null;
-		InputStream is2 = null;
 		ImageReader reader = null;
 
 		try {
-			is = ImageIO.createImageInputStream(url.openStream());
+			is = ImageIO.createImageInputStream(file);
+			if (is == null) return null;
 			Iterator<ImageReader> readers = ImageIO.getImageReaders(is);
 
 			if (readers.hasNext()) {
@@ -394,28 +436,20 @@ public class AttachmentService {
 
 				if (formatName != null) {
 					formatName = formatName.toLowerCase();
-					// log.debug("determined format name of image url: " +
-					// formatName);
-					reader.setInput(is, true, false);
-					BufferedImage bufImg = reader.read(0);
-					String mimeType = "image/" + formatName;
-
-					ByteArrayOutputStream os = new ByteArrayOutputStream();
-					ImageIO.write(bufImg, formatName, os);
-					is2 = new ByteArrayInputStream(os.toByteArray());
-
-					attachBinaryFromStream(session, null, nodeId, fileName, is2, mimeType, bufImg.getWidth(null), bufImg.getHeight(null), false, false);
-					return true;
+					reader.setInput(is, true, true);
+					size.width = reader.getWidth(0);
+					size.height = reader.getHeight(0);
+					return "image/" + formatName;
 				}
 			}
 		}
 		catch (Exception ex) {
-			throw ExUtil.newEx(ex);
+			log.debug("Not detected as an image: " + ex.getMessage());
 		}
 		finally {
-			StreamUtil.close(is, is2, reader);
+			StreamUtil.close(reader, is);
 		}
 
-		return false;
+		return null;
 	}
 }
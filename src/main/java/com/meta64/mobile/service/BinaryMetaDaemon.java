@@ -0,0 +1,125 @@
+package com.meta64.mobile.service;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.jcr.Node;
+import javax.jcr.Session;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import com.meta64.mobile.AppServer;
+import com.meta64.mobile.config.JcrProp;
+import com.meta64.mobile.image.ImageUtil;
+import com.meta64.mobile.repo.OakRepository;
+import com.meta64.mobile.user.RunAsJcrAdmin;
+import com.meta64.mobile.util.BinaryMeta;
+import com.meta64.mobile.util.DateUtil;
+import com.meta64.mobile.util.ImageSize;
+import com.meta64.mobile.util.JcrUtil;
+
+/**
+ * Backfills the BinaryMeta descriptor (and any missing image width/height) on nodes whose
+ * attachments were saved before we had descriptors. Nodes get queued here lazily as they are
+ * rendered (see Convert), so we only ever do this work for nodes people actually look at, and do
+ * it off of the request thread.
+ */
+@Component
+public class BinaryMetaDaemon {
+	private static final Logger log = LoggerFactory.getLogger(BinaryMetaDaemon.class);
+
+	/* bound on the queue, to keep memory in check. Anything dropped will get queued on next render */
+	private static final int MAX_QUEUED = 10000;
+	private static final int BATCH_SIZE = 100;
+
+	@Autowired
+	private RunAsJcrAdmin adminRunner;
+
+	@Autowired
+	private JcrUtil jcrUtil;
+
+	private final Set<String> queuedNodeIds = ConcurrentHashMap.newKeySet();
+
+	public void queue(String nodeId) {
+		if (queuedNodeIds.size() < MAX_QUEUED) {
+			queuedNodeIds.add(nodeId);
+		}
+	}
+
+	@Scheduled(fixedDelay = 30 * DateUtil.SECOND_MILLIS)
+	public void run() {
+		if (AppServer.isShuttingDown() || !AppServer.isEnableScheduling() || !OakRepository.fullInit) return;
+
+		while (!queuedNodeIds.isEmpty() && !AppServer.isShuttingDown()) {
+			List<String> batch = takeBatch();
+			try {
+				adminRunner.run(session -> {
+					backfill(session, batch);
+				});
+			}
+			catch (Exception e) {
+				log.error("Failed backfilling binary meta.", e);
+				return;
+			}
+		}
+	}
+
+	private List<String> takeBatch() {
+		List<String> batch = new LinkedList<String>();
+		Iterator<String> iter = queuedNodeIds.iterator();
+		while (iter.hasNext() && batch.size() < BATCH_SIZE) {
+			batch.add(iter.next());
+			iter.remove();
+		}
+		return batch;
+	}
+
+	private void backfill(Session session, List<String> nodeIds) {
+		int count = 0;
+		for (String nodeId : nodeIds) {
+			try {
+				Node node = session.getNodeByIdentifier(nodeId);
+				if (node.hasProperty(JcrProp.BIN_META) || !node.hasProperty(JcrProp.BIN_VER)) continue;
+
+				long version = node.getProperty(JcrProp.BIN_VER).getLong();
+				String mimeType = node.hasProperty(JcrProp.BIN_MIME) ? node.getProperty(JcrProp.BIN_MIME).getString() : null;
+				int width = 0;
+				int height = 0;
+
+				if (ImageUtil.isImageMime(mimeType)) {
+					if (node.hasProperty(JcrProp.IMG_WIDTH) && node.hasProperty(JcrProp.IMG_HEIGHT)) {
+						width = (int) node.getProperty(JcrProp.IMG_WIDTH).getLong();
+						height = (int) node.getProperty(JcrProp.IMG_HEIGHT).getLong();
+					}
+
+					if ((width <= 0 || height <= 0) && node.hasProperty(JcrProp.BIN_DATA)) {
+						ImageSize size = jcrUtil.getImageSizeFromBinary(node.getProperty(JcrProp.BIN_DATA).getBinary());
+						width = size.width;
+						height = size.height;
+						node.setProperty(JcrProp.IMG_WIDTH, String.valueOf(width));
+						node.setProperty(JcrProp.IMG_HEIGHT, String.valueOf(height));
+					}
+				}
+
+				new BinaryMeta(version, width, height, mimeType).write(node);
+				count++;
+			}
+			catch (Exception e) {
+				/* a bad node shouldn't stop the rest of the batch */
+				log.debug("Unable to backfill binary meta for node " + nodeId + ": " + e.getMessage());
+			}
+		}
+
+		if (count > 0) {
+			JcrUtil.save(session);
+			log.debug("Backfilled binary meta on " + count + " nodes.");
+		}
+	}
+}
@@ -1,9 +1,10 @@
 package com.meta64.mobile.service;
 
+import java.util.ArrayList;
 import java.util.List;
-import java.util.NoSuchElementException;
 import java.util.stream.Collectors;
 
+import javax.jcr.Binary;
 import javax.jcr.Node;
 import javax.jcr.NodeIterator;
 import javax.jcr.Property;
@@ -13,28 +14,57 @@ import javax.jcr.Value;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Scope;
 import org.springframework.stereotype.Component;
 
+import com.meta64.mobile.config.AppProp;
 import com.meta64.mobile.config.JcrProp;
+import com.meta64.mobile.model.CompareDiffInfo;
 import com.meta64.mobile.request.CompareSubGraphRequest;
 import com.meta64.mobile.response.CompareSubGraphResponse;
-import com.meta64.mobile.util.CompareFailedException;
 import com.meta64.mobile.util.ExUtil;
 import com.meta64.mobile.util.JcrUtil;
+import com.meta64.mobile.util.MerkleUtil;
 import com.meta64.mobile.util.RuntimeEx;
 import com.meta64.mobile.util.StreamUtil;
 import com.meta64.mobile.util.ThreadLocals;
 
 /**
  * Recurses into two separate tree subgraphs to see if the two trees are identical or not, possibly
- * ignoring certain things like timestamp, etc.
+ * ignoring certain things like timestamp, etc. Children are matched up by position, not name, since
+ * imported nodes get new names.
+ * <p>
+ * Every difference found is collected (see CompareDiffInfo) and sent back a page at a time. The
+ * traversal order is always the same, so the client pages by sending the offset again, and we stop
+ * walking as soon as we have enough for the page asked for.
+ * <p>
+ * With merkleHashing.enabled every node's stored Merkle hash is current (see
+ * MerkleHashEditorProvider), and the hash leaves out the same properties this compare ignores. So
+ * two nodes with the same stored hash have identical subtrees and we skip them without reading
+ * anything more, and only descend into the branches that actually differ. The child hashes are also
+ * used to line up the children when one side has some inserted or removed.
  */
 @Component
 @Scope("prototype")
 public class CompareSubGraphService {
 	private static final Logger log = LoggerFactory.getLogger(CompareSubGraphService.class);
 
+	private static final int DIFFS_PER_PAGE = 100;
+	private static final int MAX_VALUE_LENGTH = 200;
+
+	@Autowired
+	private AppProp appProp;
+
+	private boolean useStoredHashes;
+	private String rootPathA;
+	private String rootPathB;
+
+	/* one more than the page needs, so we know if there are more after it */
+	private int maxDiffs;
+	private final List<CompareDiffInfo> diffs = new ArrayList<CompareDiffInfo>();
+	private int identicalSubtreeCount = 0;
+
 	public void compare(Session session, CompareSubGraphRequest req, CompareSubGraphResponse res) {
 		if (session == null) {
 			session = ThreadLocals.getJcrSession();
@@ -61,67 +91,108 @@ public class CompareSubGraphService {
 		 * sure user doesn't have a case where A is a SubGraph of B or vice versa
 		 */
 
-		boolean success = false;
+		int offset = Math.max(0, req.getOffset());
+		maxDiffs = offset + DIFFS_PER_PAGE + 1;
+		useStoredHashes = appProp.getBooleanProp("merkleHashing.enabled");
+
 		try {
 			Node nodeA = JcrUtil.findNode(session, nodeIdA);
 			Node nodeB = JcrUtil.findNode(session, nodeIdB);
+			rootPathA = nodeA.getPath();
+			rootPathB = nodeB.getPath();
+
 			recurseNode(nodeA, nodeB);
-			res.setCompareInfo("Nodes are identical.");
-			success = true;
-		}
-		/*
-		 * This exception is how we detect that the SubGraphs are not equal and report back to the
-		 * user. This is more of a normal flow than an error condition.
-		 */
-		catch (CompareFailedException ex) {
-			String compareInfo = "Compare Failed: " + ex.getMessage();
-			log.debug("Compare Failed", ex);
-			res.setCompareInfo(compareInfo);
-			success = true;
 		}
 		catch (Exception ex) {
 			throw ExUtil.newEx(ex);
 		}
 
+		int pageEnd = Math.min(diffs.size(), offset + DIFFS_PER_PAGE);
+		res.setDiffs(new ArrayList<CompareDiffInfo>(diffs.subList(Math.min(offset, pageEnd), pageEnd)));
+		res.setEndReached(diffs.size() <= offset + DIFFS_PER_PAGE);
+
+		if (diffs.isEmpty()) {
+			res.setCompareInfo("Nodes are identical.");
+		}
+		else if (res.isEndReached()) {
+			res.setCompareInfo("Compare Failed: " + diffs.size() + " differences found.");
+		}
+		else {
+			res.setCompareInfo("Compare Failed: more than " + (offset + DIFFS_PER_PAGE) + " differences found.");
+		}
+		log.debug("Compare done. diffs=" + diffs.size() + " identicalSubtrees skipped=" + identicalSubtreeCount);
+
 		/*
 		 * Success here indicates nothing failed about how the compare was done, and is not the same
 		 * as saying the nodes are identical or not.
 		 */
-		res.setSuccess(success);
+		res.setSuccess(true);
+	}
+
+	private boolean enoughDiffs() {
+		return diffs.size() >= maxDiffs;
+	}
+
+	private void addDiff(String diffType, Node nodeA, Node nodeB, String propName, String valueA, String valueB) {
+		if (enoughDiffs()) return;
+		diffs.add(new CompareDiffInfo(diffType, relativePath(rootPathA, nodeA), relativePath(rootPathB, nodeB), //
+				propName, valueA, valueB));
+	}
+
+	private String relativePath(String rootPath, Node node) {
+		if (node == null) return null;
+		try {
+			String path = node.getPath();
+			if (rootPath.equals("/")) return path;
+			return path.length() == rootPath.length() ? "/" : path.substring(rootPath.length());
+		}
+		catch (Exception ex) {
+			throw ExUtil.newEx(ex);
+		}
 	}
 
 	private void recurseNode(Node nodeA, Node nodeB) {
-		if (nodeA == null || nodeB == null) return;
+		if (nodeA == null || nodeB == null || enoughDiffs()) return;
 
 		try {
+			/* identical hash means identical subtree, so there's nothing to look at in here */
+			if (useStoredHashes) {
+				String hashA = getStoredHash(nodeA);
+				if (hashA != null && hashA.equals(getStoredHash(nodeB))) {
+					identicalSubtreeCount++;
+					return;
+				}
+			}
+
 			/* process the current node */
 			processNode(nodeA, nodeB);
 
 			/* then recursively process all children of the current node */
-			NodeIterator nodeIterA, nodeIterB;
-			try {
-				nodeIterA = JcrUtil.getNodes(nodeA);
-				nodeIterB = JcrUtil.getNodes(nodeB);
-			}
-			catch (Exception ex) {
-				throw ExUtil.newEx(ex);
-			}
+			List<Node> childrenA = getChildren(nodeA);
+			List<Node> childrenB = getChildren(nodeB);
 
-			int oddEven = 0;
-			try {
-				while (true) {
-					Node nA = nodeIterA.nextNode();
-					oddEven++;
-					Node nB = nodeIterB.nextNode();
-					oddEven++;
-					recurseNode(nA, nB);
+			int a = 0, b = 0;
+			while ((a < childrenA.size() || b < childrenB.size()) && !enoughDiffs()) {
+				if (a >= childrenA.size()) {
+					addDiff(CompareDiffInfo.NODE_ADDED, null, childrenB.get(b++), null, null, null);
 				}
-			}
-			catch (NoSuchElementException ex) {
-				// not an error. Normal iterator end condition.
-				// but we check oddEven to verify child counts were identical.
-				if (oddEven % 2 != 0) {
-					throw new CompareFailedException("child nodes are not same count");
+				else if (b >= childrenB.size()) {
+					addDiff(CompareDiffInfo.NODE_REMOVED, childrenA.get(a++), null, null, null, null);
+				}
+				/*
+				 * When the two at this position don't match but one of them matches the next one on
+				 * the other side, that's an insert or remove, and we stay lined up with the rest
+				 */
+				else if (useStoredHashes && !sameHash(childrenA.get(a), childrenB.get(b)) && b + 1 < childrenB.size()
+						&& sameHash(childrenA.get(a), childrenB.get(b + 1))) {
+					addDiff(CompareDiffInfo.NODE_ADDED, null, childrenB.get(b++), null, null, null);
+				}
+				else if (useStoredHashes && !sameHash(childrenA.get(a), childrenB.get(b)) && a + 1 < childrenA.size()
+						&& sameHash(childrenA.get(a + 1), childrenB.get(b))) {
+					addDiff(CompareDiffInfo.NODE_REMOVED, childrenA.get(a++), null, null, null, null);
+				}
+				else {
+					recurseNode(childrenA.get(a++), childrenB.get(b++));
 				}
 			}
 		}
@@ -130,6 +201,24 @@ public class CompareSubGraphService {
 		}
 	}
 
+	private List<Node> getChildren(Node node) {
+		List<Node> children = new ArrayList<Node>();
+		NodeIterator nodeIter = JcrUtil.getNodes(node);
+		while (nodeIter.hasNext()) {
+			children.add(nodeIter.nextNode());
+		}
+		return children;
+	}
+
+	private String getStoredHash(Node node) {
+		return JcrUtil.safeGetStringProp(node, JcrProp.MERKLE_HASH);
+	}
+
+	private boolean sameHash(Node nodeA, Node nodeB) {
+		String hashA = getStoredHash(nodeA);
+		return hashA != null && hashA.equals(getStoredHash(nodeB));
+	}
+
 	private void processNode(Node nodeA, Node nodeB) {
 		try {
 			// log.debug("Processing NodeA: " + nodeA.getPath() + " ident: " +
@@ -137,40 +226,47 @@ public class CompareSubGraphService {
 			// log.debug("Processing NodeB: " + nodeB.getPath() + " ident: " +
 			// nodeB.getIdentifier());
 
-			/* Get ordered set of property names. Ordering is significant for SHA256 obviously */
-			List<String> propNamesA = JcrUtil.getPropertyNames(nodeA, true);
-			List<String> propNamesB = JcrUtil.getPropertyNames(nodeB, true);
+			/*
+			 * Check primary node types identical. todo-0: we can add mix-ins, to be more strict
+			 * about the definition of truely identical types
+			 */
+			String typeA = nodeA.getPrimaryNodeType().getName();
+			String typeB = nodeB.getPrimaryNodeType().getName();
+
+			boolean typeChanged = !typeA.equals(typeB);
+			if (typeChanged) {
+				addDiff(CompareDiffInfo.TYPE_CHANGED, nodeA, nodeB, null, typeA, typeB);
+			}
+
+			/* Get ordered set of property names */
+			List<String> propNamesA = removeIgnoredProps(JcrUtil.getPropertyNames(nodeA, true));
+			List<String> propNamesB = removeIgnoredProps(JcrUtil.getPropertyNames(nodeB, true));
 
-			propNamesA = removeIgnoredProps(propNamesA);
-			propNamesB = removeIgnoredProps(propNamesB);
+			/* already reported as TYPE_CHANGED, so don't report it again as a property change */
+			if (typeChanged) {
+				propNamesA.remove(JcrProp.PRIMARY_TYPE);
+				propNamesB.remove(JcrProp.PRIMARY_TYPE);
+			}
 
 			// jcr:uuid is a fly in ointment here when you have done an IMPORT of a node that was
 			// "renamed" and thus is referencable
 			// and has jcr:uuid on it.
 
-			// verify propNames lists identical
-			if (!propNamesA.equals(propNamesB)) {
-				throw new CompareFailedException("Property count difference detected.");
-			}
-
 			for (String propName : propNamesA) {
-				/* get this property value on both nodes */
 				Property propA = nodeA.getProperty(propName);
-				Property propB = nodeB.getProperty(propName);
-
+				if (!propNamesB.contains(propName)) {
+					addDiff(CompareDiffInfo.PROP_REMOVED, nodeA, nodeB, propName, displayValue(propA), null);
+				}
 				/* verify property data is identical */
-				compareProperties(propName, propA, propB);
+				else if (!propertiesIdentical(nodeA, nodeB, propA, nodeB.getProperty(propName))) {
+					addDiff(CompareDiffInfo.PROP_CHANGED, nodeA, nodeB, propName, displayValue(propA), displayValue(nodeB.getProperty(propName)));
+				}
 			}
 
-			/*
-			 * Check primary node types identical. todo-0: we can add mix-ins, to be more strict
-			 * about the definition of truely identical types
-			 */
-			String typeA = nodeA.getPrimaryNodeType().getName();
-			String typeB = nodeB.getPrimaryNodeType().getName();
-
-			if (!typeA.equals(typeB)) {
-				throw new CompareFailedException("types mismatched.");
+			for (String propName : propNamesB) {
+				if (!propNamesA.contains(propName)) {
+					addDiff(CompareDiffInfo.PROP_ADDED, nodeA, nodeB, propName, null, displayValue(nodeB.getProperty(propName)));
+				}
 			}
 		}
 		catch (Exception ex) {
@@ -178,48 +274,30 @@ public class CompareSubGraphService {
 		}
 	}
 
+	/* We ignore the same properties the Merkle hash does, so hash matches mean compare matches */
 	private List<String> removeIgnoredProps(List<String> list) {
-		return list.stream().filter(item -> !ignoreProperty(item)).collect(Collectors.toList());
-	}
-
-	/*
-	 * todo-1: For verification of import/export we need to ignore these, but for DB replication in
-	 * P2P we wouldn't
-	 */
-	private boolean ignoreProperty(String propName) {
-		return JcrProp.CREATED.equals(propName) || //
-				JcrProp.LAST_MODIFIED.equals(propName) || //
-				JcrProp.CREATED_BY.equals(propName) || //
-				JcrProp.UUID.equals(propName) || //
-				JcrProp.BIN_VER.equals(propName);
+		return list.stream().filter(item -> !MerkleUtil.isIgnoredProperty(item)).collect(Collectors.toList());
 	}
 
-	private void compareProperties(String propName, Property propA, Property propB) {
+	private boolean propertiesIdentical(Node nodeA, Node nodeB, Property propA, Property propB) {
 		try {
-			if (!propA.getName().equals(propB.getName())) {
-				throw new RuntimeEx("bug in compare code. Property names different.");
-			}
-
 			/* multi-value */
 			if (propA.isMultiple()) {
 				if (!propB.isMultiple()) {
-					throw new CompareFailedException("multiplicity difference: " + propName);
+					return false;
 				}
-
-				Value[] vA = propA.getValues();
-				Value[] vB = propB.getValues();
-				compareValArrays(propName, vA, vB);
+				return valArraysIdentical(propA.getValues(), propB.getValues());
 			}
 			/* single valued property */
 			else {
-				if (propName.equals(JcrProp.BIN_DATA)) {
-					if (!StreamUtil.streamsIdentical(propA.getValue().getBinary().getStream(), propB.getValue().getBinary().getStream())) {
-						throw new CompareFailedException("binary data did not match.");
-					}
+				if (propB.isMultiple()) {
+					return false;
 				}
-				else {
-					compareVals(propName, propA.getValue(), propB.getValue());
+
+				if (propA.getName().equals(JcrProp.BIN_DATA)) {
+					return binariesIdentical(nodeA, nodeB, propA, propB);
 				}
+				return propA.getValue().getString().equals(propB.getValue().getString());
 			}
 		}
 		catch (Exception ex) {
@@ -227,21 +305,67 @@ public class CompareSubGraphService {
 		}
 	}
 
-	private void compareValArrays(String propName, Value[] vA, Value[] vB) {
+	/*
+	 * Cheapest check first: different sizes can't match, and with merkleHashing.enabled, if both
+	 * nodes have the content hash stored (BIN_HASH) that settles it without reading either binary.
+	 * A BIN_HASH left from a time when hashing was on may be stale, so it's not trusted otherwise.
+	 * When we can't go by the hash we read both, a chunk at a time, so even large videos take
+	 * constant memory.
+	 */
+	private boolean binariesIdentical(Node nodeA, Node nodeB, Property propA, Property propB) throws Exception {
+		if (propA.getLength() != propB.getLength()) {
+			return false;
+		}
+
+		if (useStoredHashes) {
+			String binHashA = JcrUtil.safeGetStringProp(nodeA, JcrProp.BIN_HASH);
+			String binHashB = JcrUtil.safeGetStringProp(nodeB, JcrProp.BIN_HASH);
+			if (binHashA != null && binHashB != null) {
+				return binHashA.equals(binHashB);
+			}
+		}
+
+		Binary binA = propA.getBinary();
+		Binary binB = propB.getBinary();
+		try {
+			return StreamUtil.streamsIdentical(binA.getStream(), binB.getStream());
+		}
+		finally {
+			binA.dispose();
+			binB.dispose();
+		}
+	}
+
+	private boolean valArraysIdentical(Value[] vA, Value[] vB) throws Exception {
 		if (vA.length != vB.length) {
-			throw new CompareFailedException("multi value count mismatch: propName=" + propName);
+			return false;
 		}
 
 		for (int i = 0; i < vA.length; i++) {
-			compareVals(propName, vA[i], vB[i]);
+			if (!vA[i].getString().equals(vB[i].getString())) {
+				return false;
+			}
 		}
+		return true;
 	}
 
-	private void compareVals(String propName, Value valueA, Value valueB) {
+	private String displayValue(Property prop) {
 		try {
-			if (!valueA.getString().equals(valueB.getString())) {
-				throw new CompareFailedException("values compare failed: propName=" + propName + "\n  A=" + valueA.getString() + "\n  B=" + valueB.getString());
+			String val;
+			if (prop.isMultiple()) {
+				List<String> vals = new ArrayList<String>();
+				for (Value v : prop.getValues()) {
+					vals.add(v.getString());
+				}
+				val = "[" + StringUtils.join(vals, ", ") + "]";
+			}
+			else if (prop.getName().equals(JcrProp.BIN_DATA)) {
+				val = "(binary, " + prop.getLength() + " bytes)";
+			}
+			else {
+				val = prop.getValue().getString();
 			}
+			return StringUtils.abbreviate(val, MAX_VALUE_LENGTH);
 		}
 		catch (Exception ex) {
 			throw ExUtil.newEx(ex);
@@ -3,6 +3,7 @@ package com.meta64.mobile.service;
 import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.OutputStream;
 import java.text.SimpleDateFormat;
 
 import javax.jcr.Node;
@@ -15,6 +16,11 @@ import org.springframework.stereotype.Component;
 
 import com.meta64.mobile.config.AppProp;
 import com.meta64.mobile.config.SessionContext;
+import com.meta64.mobile.config.SpringContextUtil;
+import com.meta64.mobile.job.AsyncJob;
+import com.meta64.mobile.job.ExportJob;
+import com.meta64.mobile.job.JobManager;
+import com.meta64.mobile.job.ProgressOutputStream;
 import com.meta64.mobile.model.UserPreferences;
 import com.meta64.mobile.request.ExportRequest;
 import com.meta64.mobile.response.ExportResponse;
@@ -43,9 +49,12 @@ public class ExportXmlService {
 	@Autowired
 	private SessionContext sessionContext;
 
+	@Autowired
+	private JobManager jobManager;
+
 	/*
-	 * Exports the node specified in the req. If the node specified is "/", or the repository root,
-	 * then we don't expect a filename, because we will generate a timestamped one.
+	 * Exports the node specified in the req. This only checks the request and submits an ExportJob
+	 * to do the export in the background, and the client polls with the job id we return.
 	 */
 	public void export(Session session, ExportRequest req, ExportResponse res) {
 		if (session == null) {
@@ -68,32 +77,26 @@ public class ExportXmlService {
 		if (nodeId.equals("/")) {
 			throw ExUtil.newEx("Backing up entire repository is not supported.");
 		}
-		else {
-			String fileName = req.getTargetFileName();
-
-			// Date date = new Date();
-			// String dirName = dateFormat.format(date);
-			// dirName = FileTools.ensureValidFileNameChars(dirName);
-
-			/*
-			 * For now, out of an abundance of caution for backups do all for combinations of SYSTEM
-			 * v.s. DOCUMENT export both with and without binaries.
-			 */
 
-			log.info("Exporting System View.");
-			exportNodeToXMLFile(session, nodeId, fileName, ExportXMLViewType.SYSTEM, true);
-			// exportNodeToXMLFile(session, nodeId, fileName, ExportXMLViewType.SYSTEM, false);
-
-			// log.info("Exporting Document View.");
-			// exportNodeToXMLFile(session, nodeId, fileName, ExportXMLViewType.DOCUMENT, true);
-			// exportNodeToXMLFile(session, nodeId, fileName, ExportXMLViewType.DOCUMENT, false);
+		/*
+		 * We only do a SYSTEM view with binaries. It's the one that can be reimported, and out of
+		 * an abundance of caution for backups we don't leave the binaries out.
+		 */
+		File targetFile = new File(getExportFileName(req.getTargetFileName(), ExportXMLViewType.SYSTEM, true));
+		if (targetFile.exists()) {
+			throw ExUtil.newEx("File already exists.");
 		}
 
+		/* check this now, so the user gets the error right away rather than from the job */
+		JcrUtil.findNode(session, nodeId);
+
+		ExportJob job = (ExportJob) SpringContextUtil.getBean(ExportJob.class);
+		job.init(session.getUserID(), sessionContext.getPassword(), nodeId, targetFile, ExportJob.FORMAT_XML, sessionContext);
+		res.setJobId(jobManager.submit(job));
 		res.setSuccess(true);
 	}
 
-	private void exportNodeToXMLFile(Session session, String nodeId, String fileName, ExportXMLViewType formatType, boolean includeBinaries) {
-
+	private String getExportFileName(String fileName, ExportXMLViewType formatType, boolean includeBinaries) {
 		String fileNameSuffix = null;
 		switch (formatType) {
 		case SYSTEM:
@@ -106,25 +109,30 @@ public class ExportXmlService {
 			throw ExUtil.newEx("Invalid format type");
 		}
 
-		if (!FileTools.dirExists(appProp.getAdminDataFolder())) {
-			throw ExUtil.newEx("adminDataFolder does not exist.");
-		}
-
 		fileName = fileName.replace(".", "_");
 		fileName = fileName.replace(File.separator, "_");
 
-		String fullFileName = appProp.getAdminDataFolder() + File.separator + fileName + "-" + fileNameSuffix + ".xml";
+		return appProp.getAdminDataFolder() + File.separator + fileName + "-" + fileNameSuffix + ".xml";
+	}
 
-		if (FileTools.fileExists(fullFileName)) {
-			throw ExUtil.newEx("File already exists.");
-		}
+	/*
+	 * Does the actual export as a SYSTEM view with binaries, on the job thread (see ExportJob). The
+	 * partial file is deleted if the export fails or the job is cancelled.
+	 */
+	public void exportToFile(Session session, String nodeId, File targetFile, AsyncJob job) {
+		exportNodeToXMLFile(session, nodeId, targetFile, ExportXMLViewType.SYSTEM, true, job);
+	}
 
+	private void exportNodeToXMLFile(Session session, String nodeId, File targetFile, ExportXMLViewType formatType, boolean includeBinaries, AsyncJob job) {
 		Node exportNode = JcrUtil.findNode(session, nodeId);
 
-		BufferedOutputStream output = null;
+		OutputStream output = null;
+		boolean success = false;
 		try {
-			log.debug("Export Node: " + exportNode.getPath() + " to file " + fullFileName);
-			output = new BufferedOutputStream(new FileOutputStream(fullFileName));
+			log.debug("Export Node: " + exportNode.getPath() + " to file " + targetFile);
+
+			/* the progress stream goes under the buffer, so it only sees the full size writes */
+			output = new BufferedOutputStream(new ProgressOutputStream(new FileOutputStream(targetFile), job));
 			String exportPath = exportNode.getPath();
 
 			/*
@@ -146,13 +154,16 @@ public class ExportXmlService {
 				throw ExUtil.newEx("Invalid format type");
 			}
 			output.flush();
+			success = true;
 		}
 		catch (Exception ex) {
 			throw ExUtil.newEx(ex);
 		}
 		finally {
 			StreamUtil.close(output);
+			if (!success) {
+				FileTools.deleteFile(targetFile.getPath());
+			}
 		}
-
 	}
 }
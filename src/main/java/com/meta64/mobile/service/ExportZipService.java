@@ -1,15 +1,14 @@
 package com.meta64.mobile.service;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.NoSuchElementException;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
+import java.util.Set;
 
+import javax.jcr.Binary;
 import javax.jcr.Node;
 import javax.jcr.NodeIterator;
 import javax.jcr.Property;
@@ -33,6 +32,10 @@ import com.fasterxml.jackson.databind.ObjectWriter;
 import com.meta64.mobile.config.AppProp;
 import com.meta64.mobile.config.JcrProp;
 import com.meta64.mobile.config.SessionContext;
+import com.meta64.mobile.config.SpringContextUtil;
+import com.meta64.mobile.job.AsyncJob;
+import com.meta64.mobile.job.ExportJob;
+import com.meta64.mobile.job.JobManager;
 import com.meta64.mobile.model.ExportNodeInfo;
 import com.meta64.mobile.model.ExportPropertyInfo;
 import com.meta64.mobile.model.UserPreferences;
@@ -41,6 +44,8 @@ import com.meta64.mobile.response.ExportResponse;
 import com.meta64.mobile.util.ExUtil;
 import com.meta64.mobile.util.FileTools;
 import com.meta64.mobile.util.JcrUtil;
+import com.meta64.mobile.util.MimeUtil;
+import com.meta64.mobile.util.ParallelZipWriter;
 import com.meta64.mobile.util.StreamUtil;
 import com.meta64.mobile.util.ThreadLocals;
 import com.meta64.mobile.util.ValContainer;
@@ -49,6 +54,13 @@ import com.meta64.mobile.util.XString;
 /**
  * Export to Zip file format
  * <p>
+ * This thread only walks the tree. The JSON, text and small binaries are serialized and compressed
+ * on a pool of threads (export.threads, defaulting to one per core), and written to the file in
+ * order by a single writer, see ParallelZipWriter. Binaries larger than MAX_IN_MEMORY_BINARY are
+ * streamed straight from the repository into the file instead, and files that are already
+ * compressed (images, audio, video...) are STORED rather than deflated again. So memory use doesn't
+ * depend on the size of the export or of any binary in it.
+ * <p>
  * todo-0: need to alphabetically sort the properties in the output JSON text file
  */
 @Component
@@ -56,20 +68,26 @@ import com.meta64.mobile.util.XString;
 public class ExportZipService {
 	private static final Logger log = LoggerFactory.getLogger(ExportZipService.class);
 
-	private ZipOutputStream zos;
+	/* larger binaries are streamed by the writer, rather than read into memory and compressed in parallel */
+	private static final long MAX_IN_MEMORY_BINARY = 1024 * 1024;
+
+	private ParallelZipWriter zipWriter;
+
+	private AsyncJob job;
+	private long nodesDone;
+
+	/* user's timezone settings, for formatting dates (see ExportJob) */
+	private SessionContext timeContext;
 
-	/* This object IS Threadsafe so this is the correct usage 'static final' */
+	/*
+	 * This object IS Threadsafe so this is the correct usage 'static final'. Compact output, since
+	 * it's only read by import.
+	 */
 	private static final ObjectMapper objectMapper = new ObjectMapper();
 	static {
 		objectMapper.setSerializationInclusion(Include.NON_NULL);
 	}
-	private static final ObjectWriter jsonWriter = objectMapper.writerWithDefaultPrettyPrinter();
-
-	/*
-	 * It's possible that nodes recursively contained under a given node can have same name, so we
-	 * have to detect that and number them, so we use this hashset to detect existing filenames.
-	 */
-	private HashSet<String> fileNameSet = new HashSet<String>();
+	private static final ObjectWriter jsonWriter = objectMapper.writer();
 
 	@Autowired
 	private AppProp appProp;
@@ -77,8 +95,16 @@ public class ExportZipService {
 	@Autowired
 	private SessionContext sessionContext;
 
+	@Autowired
+	private MimeUtil mimeUtil;
+
+	@Autowired
+	private JobManager jobManager;
+
 	/**
-	 * Exports the node specified in 'req' into a zip file.
+	 * Exports the node specified in 'req' into a zip file. This only checks the request and submits
+	 * an ExportJob to do the export in the background, and the client polls with the job id we
+	 * return.
 	 * 
 	 * @param session
 	 * @param req
@@ -105,51 +131,97 @@ public class ExportZipService {
 		if (nodeId.equals("/")) {
 			throw ExUtil.newEx("Backing up entire repository is not supported.");
 		}
-		else {
-			String fileName = req.getTargetFileName();
-			String fullZipName = appProp.getAdminDataFolder() + File.separator + fileName;
 
-			// append zip extension if not provided
-			if (!fullZipName.toLowerCase().endsWith(".zip")) {
-				fullZipName += ".zip";
-			}
+		String fileName = req.getTargetFileName();
+		String fullZipName = appProp.getAdminDataFolder() + File.separator + fileName;
 
-			/*
-			 * We don't support overwriting existing files, since exported files are so important,
-			 * so we always require a filename that does not already exist.
-			 */
-			if (FileTools.fileExists(fullZipName)) {
-				throw ExUtil.newEx("File already exists: " + fullZipName);
-			}
+		// append zip extension if not provided
+		if (!fullZipName.toLowerCase().endsWith(".zip")) {
+			fullZipName += ".zip";
+		}
 
-			boolean success = false;
-			try {
-				zos = new ZipOutputStream(new FileOutputStream(fullZipName));
+		/*
+		 * We don't support overwriting existing files, since exported files are so important, so we
+		 * always require a filename that does not already exist.
+		 */
+		if (FileTools.fileExists(fullZipName)) {
+			throw ExUtil.newEx("File already exists: " + fullZipName);
+		}
 
-				Node node = JcrUtil.findNode(session, nodeId);
-				recurseNode("", node, 0);
-				success = true;
-			}
-			catch (Exception ex) {
-				throw ExUtil.newEx(ex);
-			}
-			finally {
-				StreamUtil.close(zos);
+		/* check this now, so the user gets the error right away rather than from the job */
+		JcrUtil.findNode(session, nodeId);
+
+		ExportJob job = (ExportJob) SpringContextUtil.getBean(ExportJob.class);
+		job.init(session.getUserID(), sessionContext.getPassword(), nodeId, new File(fullZipName), ExportJob.FORMAT_ZIP, sessionContext);
+		res.setJobId(jobManager.submit(job));
+		res.setSuccess(true);
+	}
+
+	/*
+	 * Does the actual export, on the job thread (see ExportJob). The nodes get counted first, which
+	 * is quick compared to the export itself and is what lets the job give an ETA. If anything
+	 * fails or the job is cancelled the partial zip file is deleted.
+	 */
+	public void exportToFile(Session session, String nodeId, File zipFile, SessionContext timeContext, AsyncJob job) {
+		this.timeContext = timeContext;
+		this.job = job;
+
+		int threads = appProp.getIntProp("export.threads", 0);
+		if (threads <= 0) {
+			threads = Runtime.getRuntime().availableProcessors();
+		}
 
-				if (!success) {
-					FileTools.deleteFile(fullZipName);
+		boolean success = false;
+		try {
+			Node node = JcrUtil.findNode(session, nodeId);
+			job.setNodesTotal(countNodes(node));
+
+			zipWriter = new ParallelZipWriter(zipFile, threads);
+			recurseNode("", new HashSet<String>(), node, 0);
+			zipWriter.close();
+			job.setBytesDone(zipFile.length());
+			success = true;
+		}
+		catch (Exception ex) {
+			throw ExUtil.newEx(ex);
+		}
+		finally {
+			if (!success) {
+				if (zipWriter != null) {
+					zipWriter.abort();
 				}
+				FileTools.deleteFile(zipFile.getPath());
 			}
 		}
+	}
 
-		res.setSuccess(true);
+	private long countNodes(Node node) {
+		job.checkCancelled();
+		long count = 1;
+		NodeIterator nodeIter = JcrUtil.getNodes(node);
+		while (nodeIter.hasNext()) {
+			count += countNodes(nodeIter.nextNode());
+		}
+		return count;
 	}
 
-	private void recurseNode(String parentFolder, Node node, int level) {
+	/*
+	 * It's possible that nodes recursively contained under a given node can have same name, so we
+	 * have to detect that and number them. Names only have to be unique within their folder, so
+	 * 'parentNames' holds the names used so far in the parent's folder, and there's only ever one
+	 * of these sets per level of the recursion.
+	 */
+	private void recurseNode(String parentFolder, Set<String> parentNames, Node node, int level) {
 		if (node == null) return;
+		job.checkCancelled();
+
+		String folder = parentFolder + "/" + uniqueName(parentNames, generateFileNameFromNode(node));
+		Set<String> names = new HashSet<String>();
 
 		/* process the current node */
-		String folder = processNodeExport(parentFolder, node);
+		processNodeExport(folder, names, node);
+		job.setNodesDone(++nodesDone);
+		job.setBytesDone(zipWriter.getBytesWritten());
 
 		/* then recursively process all children of the current node */
 		NodeIterator nodeIter;
@@ -160,14 +232,9 @@ public class ExportZipService {
 			throw ExUtil.newEx(ex);
 		}
 
-		try {
-			while (true) {
-				Node n = nodeIter.nextNode();
-				recurseNode(parentFolder + "/" + folder, n, level + 1);
-			}
-		}
-		catch (NoSuchElementException ex) {
-			// not an error. Normal iterator end condition.
+		while (nodeIter.hasNext()) {
+			Node n = nodeIter.nextNode();
+			recurseNode(folder, names, n, level + 1);
 		}
 	}
 
@@ -176,13 +243,13 @@ public class ExportZipService {
 	 * let exceptions bubble all the way up to abort and even cause the zip file itself (to be
 	 * deleted) since it was unable to be written to.
 	 */
-	private String processNodeExport(String parentFolder, Node node) {
+	private void processNodeExport(String folder, Set<String> names, Node node) {
 		try {
 			PropertyIterator propsIter = node.getProperties();
 
 			log.debug("Processing Node: " + node.getPath());
 
-			String fileName = generateFileNameFromNode(node);
+			String fileName = XString.parseAfterLast(folder, "/");
 
 			/*
 			 * the processProperty calls in the while loop below loads into these variables, in
@@ -203,9 +270,7 @@ public class ExportZipService {
 			expInfo.setId(node.getIdentifier());
 			expInfo.setType(node.getPrimaryNodeType().getName());
 			expInfo.setProps(allProps);
-			String json = jsonWriter.writeValueAsString(expInfo);
-
-			addFileEntry(parentFolder + "/" + fileName + "/" + fileName + ".json", json.getBytes());
+			zipWriter.addEntry(entryName(folder, names, fileName + ".json"), true, () -> jsonWriter.writeValueAsBytes(expInfo));
 
 			/* If content property was found write it into separate file */
 			if (contentText.getVal() != null) {
@@ -214,7 +279,8 @@ public class ExportZipService {
 				 * write the content text file because it would be redundant.
 				 */
 				if (!fileName.trim().equals(contentText.getVal().trim())) {
-					addFileEntry(parentFolder + "/" + fileName + "/" + fileName + ".txt", contentText.getVal().getBytes());
+					String text = contentText.getVal();
+					zipWriter.addEntry(entryName(folder, names, fileName + ".txt"), true, () -> text.getBytes(StandardCharsets.UTF_8));
 				}
 			}
 
@@ -225,17 +291,33 @@ public class ExportZipService {
 			if (binDataProp.getVal() != null) {
 				String binFileNameStr = binFileName.getVal() == null ? "binary" : binFileName.getVal();
 
-				InputStream is = null;
-				try {
-					is = binDataProp.getVal().getBinary().getStream();
-					addFileEntry(parentFolder + "/" + fileName + "/" + binFileNameStr, IOUtils.toByteArray(is));
+				String binEntryName = entryName(folder, names, binFileNameStr);
+				boolean compress = !mimeUtil.isCompressedFileName(binFileNameStr);
+
+				/* Oak binaries are immutable values, so reading them on the other threads is fine */
+				Binary binary = binDataProp.getVal().getBinary();
+				if (binary.getSize() <= MAX_IN_MEMORY_BINARY) {
+					zipWriter.addEntry(binEntryName, compress, () -> {
+						InputStream is = binary.getStream();
+						try {
+							return IOUtils.toByteArray(is);
+						}
+						finally {
+							StreamUtil.close(is);
+						}
+					});
 				}
-				finally {
-					StreamUtil.close(is);
+				else {
+					zipWriter.addStreamedEntry(binEntryName, compress, () -> {
+						try {
+							return binary.getStream();
+						}
+						catch (Exception ex) {
+							throw ExUtil.newEx(ex);
+						}
+					});
 				}
 			}
-
-			return fileName;
 		}
 		catch (Exception ex) {
 			throw ExUtil.newEx(ex);
@@ -259,29 +341,32 @@ public class ExportZipService {
 		return fileName;
 	}
 
-	private void addFileEntry(String fileName, byte[] bytes) {
-		/* If we have duplicated a filename, number it sequentially to create a unique file */
-		if (fileNameSet.contains(fileName)) {
+	/*
+	 * If we have duplicated a name within the folder, number it sequentially to create a unique one.
+	 * The number goes ahead of any extension, so the file type is still recognized on import.
+	 */
+	private String uniqueName(Set<String> names, String name) {
+		if (names.contains(name)) {
+			int dotIdx = name.lastIndexOf(".");
+			String base = dotIdx > 0 ? name.substring(0, dotIdx) : name;
+			String ext = dotIdx > 0 ? name.substring(dotIdx) : "";
+
 			int idx = 1;
-			String numberedFileName = fileName + String.valueOf(idx);
-			while (fileNameSet.contains(numberedFileName)) {
-				numberedFileName = fileName + String.valueOf(++idx);
+			String numberedName = base + String.valueOf(idx) + ext;
+			while (names.contains(numberedName)) {
+				numberedName = base + String.valueOf(++idx) + ext;
 			}
-			fileName = numberedFileName;
+			name = numberedName;
 		}
 
-		fileNameSet.add(fileName);
+		names.add(name);
+		return name;
+	}
 
+	private String entryName(String folder, Set<String> names, String fileName) {
+		fileName = folder + "/" + uniqueName(names, fileName);
 		log.debug("ZIPENTRY: " + fileName);
-		ZipEntry zi = new ZipEntry(fileName);
-		try {
-			zos.putNextEntry(zi);
-			zos.write(bytes);
-			zos.closeEntry();
-		}
-		catch (Exception ex) {
-			throw ExUtil.newEx(ex);
-		}
+		return fileName;
 	}
 
 	private String generateFileNameFromNode(Node node) {
@@ -344,7 +429,7 @@ public class ExportZipService {
 
 				// int valIdx = 0;
 				for (Value v : prop.getValues()) {
-					String strVal = formatValue(sessionContext, v);
+					String strVal = formatValue(timeContext, v);
 					// log.trace(String.format(" val[%d]=%s", valIdx, strVal));
 					propInfo.getVals().add(strVal);
 					// valIdx++;
@@ -353,17 +438,17 @@ public class ExportZipService {
 			/* else single value */
 			else {
 				if (prop.getName().equals(JcrProp.CONTENT)) {
-					contentText.setVal(formatValue(sessionContext, prop.getValue()));
+					contentText.setVal(formatValue(timeContext, prop.getValue()));
 				}
 				else if (prop.getName().equals(JcrProp.BIN_DATA)) {
 					// log.trace(String.format("prop[%s] isBinary", prop.getName()));
 					binDataProp.setVal(prop);
 				}
 				else if (prop.getName().equals(JcrProp.BIN_FILENAME)) {
-					binFileName.setVal(formatValue(sessionContext, prop.getValue()));
+					binFileName.setVal(formatValue(timeContext, prop.getValue()));
 				}
 				else {
-					propInfo.setVal(formatValue(sessionContext, prop.getValue()));
+					propInfo.setVal(formatValue(timeContext, prop.getValue()));
 					/* log.trace(String.format("prop[%s]=%s", prop.getName(), value)); */
 				}
 			}
@@ -0,0 +1,244 @@
+package com.meta64.mobile.service;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.meta64.mobile.config.AppProp;
+import com.meta64.mobile.util.ExUtil;
+import com.meta64.mobile.util.LimitedInputStreamEx;
+import com.meta64.mobile.util.StreamUtil;
+
+/**
+ * Holds the one HttpClient the server uses for all outbound HTTP requests. The client is backed by
+ * a pooling connection manager and is thread safe, so callers must NOT close it, and should simply
+ * close the responses they get back from it.
+ * <p>
+ * Creating a new HttpClient per request (which is what we used to do) throws away the connection
+ * pool every time, and also leaves us with no timeouts at all, meaning a slow remote server can tie
+ * up a thread forever.
+ * <p>
+ * We also keep some simple metrics (request count and latency per host, plus the pool stats) which
+ * show up in the admin Server Info.
+ */
+@Component
+public class HttpClientService {
+	private static final Logger log = LoggerFactory.getLogger(HttpClientService.class);
+
+	/*
+	 * Basic version without masquerading as a web browser can cause a 403 error because some sites
+	 * don't want just any old stream reading from them.
+	 */
+	public static final String FAKE_USER_AGENT = "Mozilla/5.0";
+
+	@Autowired
+	private AppProp appProp;
+
+	/* HttpContext attribute holding the time the request was sent */
+	private static final String START_TIME_ATTR = "meta64.startTime";
+
+	private PoolingHttpClientConnectionManager connMgr;
+	private CloseableHttpClient client;
+
+	private final Map<String, HostStats> hostStatsMap = new ConcurrentHashMap<String, HostStats>();
+
+	/* latency is time until response headers arrive, not including reading the content */
+	public static class HostStats {
+		private final AtomicLong requestCount = new AtomicLong();
+		private final AtomicLong totalMillis = new AtomicLong();
+		private final AtomicLong maxMillis = new AtomicLong();
+
+		public void record(long millis) {
+			requestCount.incrementAndGet();
+			totalMillis.addAndGet(millis);
+			long max;
+			while (millis > (max = maxMillis.get()) && !maxMillis.compareAndSet(max, millis)) {
+				// retry
+			}
+		}
+
+		public long getRequestCount() {
+			return requestCount.get();
+		}
+
+		public long getAvgMillis() {
+			long count = requestCount.get();
+			return count == 0 ? 0 : totalMillis.get() / count;
+		}
+
+		public long getMaxMillis() {
+			return maxMillis.get();
+		}
+	}
+
+	@PostConstruct
+	public void init() {
+		connMgr = new PoolingHttpClientConnectionManager();
+		connMgr.setMaxTotal(appProp.getIntProp("httpClient.maxConnections", 50));
+		connMgr.setDefaultMaxPerRoute(appProp.getIntProp("httpClient.maxConnectionsPerHost", 5));
+		setHostLimits(appProp.getProp("httpClient.hostLimits"));
+
+		RequestConfig requestConfig = RequestConfig.custom() //
+				.setConnectTimeout(appProp.getIntProp("httpClient.connectTimeout", 10000)) //
+				.setSocketTimeout(appProp.getIntProp("httpClient.socketTimeout", 30000)) //
+				.setConnectionRequestTimeout(appProp.getIntProp("httpClient.connectionRequestTimeout", 30000)) //
+				.build();
+
+		/*
+		 * Note: HttpClientBuilder sends 'Accept-Encoding: gzip,deflate' and transparently
+		 * decompresses responses by default, so gzip needs no setup here (just don't call
+		 * disableContentCompression)
+		 */
+		client = HttpClientBuilder.create() //
+				.setConnectionManager(connMgr) //
+				.setDefaultRequestConfig(requestConfig) //
+				.setUserAgent(FAKE_USER_AGENT) //
+				.evictExpiredConnections() //
+				.evictIdleConnections(appProp.getIntProp("httpClient.maxIdleSeconds", 60), TimeUnit.SECONDS) //
+				.addInterceptorFirst((HttpRequest request, HttpContext context) -> {
+					context.setAttribute(START_TIME_ATTR, System.currentTimeMillis());
+				}) //
+				.addInterceptorLast((HttpResponse response, HttpContext context) -> {
+					recordLatency(context);
+				}) //
+				.build();
+	}
+
+	/*
+	 * Parses a list like "feeds.example.com=2, other.com=10" and sets the max connections for each
+	 * of those hosts (http and https) overriding the default per host limit
+	 */
+	private void setHostLimits(String hostLimits) {
+		if (StringUtils.isBlank(hostLimits)) return;
+
+		for (String hostLimit : hostLimits.split(",")) {
+			String[] parts = hostLimit.trim().split("=");
+			if (parts.length != 2) {
+				log.warn("Ignoring bad httpClient.hostLimits entry: " + hostLimit);
+				continue;
+			}
+			String host = parts[0].trim();
+			int limit = Integer.parseInt(parts[1].trim());
+			connMgr.setMaxPerRoute(new HttpRoute(new HttpHost(host, 80, "http")), limit);
+			connMgr.setMaxPerRoute(new HttpRoute(new HttpHost(host, 443, "https"), null, true), limit);
+		}
+	}
+
+	private void recordLatency(HttpContext context) {
+		Object startTime = context.getAttribute(START_TIME_ATTR);
+		HttpHost host = HttpClientContext.adapt(context).getTargetHost();
+		if (!(startTime instanceof Long) || host == null) return;
+
+		HostStats stats = hostStatsMap.computeIfAbsent(host.getHostName(), k -> new HostStats());
+		stats.record(System.currentTimeMillis() - (Long) startTime);
+	}
+
+	public Map<String, HostStats> getHostStats() {
+		return hostStatsMap;
+	}
+
+	public PoolStats getPoolStats() {
+		return connMgr.getTotalStats();
+	}
+
+	/* Returns HTML, for display in the admin Server Info */
+	public String getStatusText() {
+		StringBuilder sb = new StringBuilder();
+		PoolStats poolStats = getPoolStats();
+		sb.append(String.format("HTTP Connections: active=%d idle=%d pending=%d max=%d<br>", //
+				poolStats.getLeased(), poolStats.getAvailable(), poolStats.getPending(), poolStats.getMax()));
+
+		for (Map.Entry<String, HostStats> entry : new TreeMap<String, HostStats>(hostStatsMap).entrySet()) {
+			HostStats stats = entry.getValue();
+			sb.append(String.format("%s: requests=%d avg=%dms max=%dms<br>", //
+					entry.getKey(), stats.getRequestCount(), stats.getAvgMillis(), stats.getMaxMillis()));
+		}
+		return sb.toString();
+	}
+
+	@PreDestroy
+	public void preDestroy() {
+		log.debug("Closing HttpClient");
+		StreamUtil.close(client);
+	}
+
+	public CloseableHttpClient getClient() {
+		return client;
+	}
+
+	/*
+	 * Downloads 'url' into 'file', reading the remote stream exactly one time, and returns the
+	 * Content-Type the server reported (or null if it didn't send one). Throws if the server
+	 * doesn't return 200 or if the content exceeds maxSize bytes.
+	 */
+	public String downloadToFile(String url, File file, long maxSize) {
+		return downloadToFile(client, url, file, maxSize);
+	}
+
+	public static String downloadToFile(CloseableHttpClient client, String url, File file, long maxSize) {
+		CloseableHttpResponse response = null;
+		InputStream is = null;
+		OutputStream os = null;
+		try {
+			HttpGet request = new HttpGet(url);
+			response = client.execute(request);
+			int statusCode = response.getStatusLine().getStatusCode();
+			log.debug("Response Code: " + statusCode + " reason=" + response.getStatusLine().getReasonPhrase());
+			if (statusCode != 200) {
+				throw ExUtil.newEx("Unable to download " + url + " (HTTP " + statusCode + ")");
+			}
+
+			HttpEntity entity = response.getEntity();
+			if (entity == null) {
+				throw ExUtil.newEx("No content returned from " + url);
+			}
+
+			if (entity.getContentLength() > maxSize) {
+				throw ExUtil.newEx("File too large: " + entity.getContentLength() + " bytes. Max allowed is " + maxSize);
+			}
+
+			ContentType contentType = ContentType.get(entity);
+			is = new LimitedInputStreamEx(entity.getContent(), maxSize);
+			os = new FileOutputStream(file);
+			IOUtils.copy(is, os);
+			return contentType != null ? contentType.getMimeType() : null;
+		}
+		catch (Exception ex) {
+			throw ExUtil.newEx(ex);
+		}
+		finally {
+			StreamUtil.close(os, is, response);
+		}
+	}
+}
@@ -4,7 +4,6 @@ import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 
-import javax.jcr.ImportUUIDBehavior;
 import javax.jcr.Node;
 import javax.jcr.Session;
 
@@ -18,7 +17,13 @@ import com.meta64.mobile.config.AppProp;
 import com.meta64.mobile.config.JcrPrincipal;
 import com.meta64.mobile.config.JcrProp;
 import com.meta64.mobile.config.SessionContext;
+import com.meta64.mobile.config.SpringContextUtil;
+import com.meta64.mobile.job.AsyncJob;
+import com.meta64.mobile.job.ImportJob;
+import com.meta64.mobile.job.JobManager;
+import com.meta64.mobile.job.ProgressInputStream;
 import com.meta64.mobile.model.UserPreferences;
+import com.meta64.mobile.repo.SysViewImporter;
 import com.meta64.mobile.request.ImportRequest;
 import com.meta64.mobile.response.ImportResponse;
 import com.meta64.mobile.util.ExUtil;
@@ -41,7 +46,8 @@ import com.meta64.mobile.util.ThreadLocals;
  * writing the above, upon further testing I see now that IMPORT_UUID_CREATE_NEW doe seem to work
  * properly although I had originally wondered if it was going to be able to maintain ordering of
  * nodes, but despite my original conclusion CREATE_NEW seems to work fine, and that is the setting
- * i'm leaving this at now.
+ * i'm leaving this at now. It's still the default, but the request can pick any of the
+ * ImportUUIDBehavior modes (see SysViewImporter.parseUuidBehavior).
  * <p>
  * NOTE: This does not import arbitrary XML but only xml that was exported from
  * ExportXmlService.java in SubNode.
@@ -56,6 +62,9 @@ public class ImportXmlService {
 	@Autowired
 	private AppProp appProp;
 
+	@Autowired
+	private JobManager jobManager;
+
 	public void importFromXml(Session session, ImportRequest req, ImportResponse res) {
 		if (session == null) {
 			session = ThreadLocals.getJcrSession();
@@ -97,25 +106,36 @@ public class ImportXmlService {
 				throw ExUtil.newEx("You cannot import onto a node you do not own.");
 			}
 
-			importFromFileToNode(session, sourceFileName, targetNode);
+			sourceFileName = sourceFileName.replace(File.separator, "_");
+			File sourceFile = new File(appProp.getAdminDataFolder() + File.separator + sourceFileName);
+
+			if (!sourceFile.isFile()) {
+				throw ExUtil.newEx("Import file not found.");
+			}
+
+			/* parsed here so a bad value fails the request, not the job */
+			int uuidBehavior = SysViewImporter.parseUuidBehavior(req.getUuidBehavior());
+
+			ImportJob job = (ImportJob) SpringContextUtil.getBean(ImportJob.class);
+			job.init(session.getUserID(), sessionContext.getPassword(), nodeId, sourceFile, ImportJob.FORMAT_XML);
+			job.setUuidBehavior(uuidBehavior);
+			res.setJobId(jobManager.submit(job));
 		}
 
 		res.setSuccess(true);
 	}
 
-	private void importFromFileToNode(Session session, String sourceFileName, Node targetNode) {
-		sourceFileName = sourceFileName.replace(File.separator, "_");
-
-		String fullFileName = appProp.getAdminDataFolder() + File.separator + sourceFileName;
-
-		if (!FileTools.fileExists(fullFileName)) {
-			throw ExUtil.newEx("Import file not found.");
-		}
+	/*
+	 * Does the actual import, on the job thread (see ImportJob). SysViewImporter saves every
+	 * import.xmlBatchNodes nodes, and removes what it imported if the job fails or is cancelled.
+	 */
+	public void importFromFile(Session session, String nodeId, File sourceFile, int uuidBehavior, AsyncJob job) {
+		Node targetNode = JcrUtil.findNode(session, nodeId);
 
 		BufferedInputStream in = null;
 		try {
 			log.debug("Import to Node: " + targetNode.getPath());
-			in = new BufferedInputStream(new AutoCloseInputStream(new FileInputStream(fullFileName)));
+			in = new BufferedInputStream(new AutoCloseInputStream(new ProgressInputStream(new FileInputStream(sourceFile), job)));
 
 			/*
 			 * TIP: Search this codebase for "SecurityProvider" and "PARAM_IMPORT_BEHAVIOR" if you
@@ -123,16 +143,14 @@ public class ImportXmlService {
 			 * authorizations.
 			 */
 
-			session.getWorkspace().importXML(targetNode.getPath(), in, //
-					// ImportUUIDBehavior.IMPORT_UUID_COLLISION_THROW//
-					ImportUUIDBehavior.IMPORT_UUID_CREATE_NEW //
-			);
+			int batchNodes = appProp.getIntProp("import.xmlBatchNodes", 1000);
+			new SysViewImporter(session, batchNodes, uuidBehavior, job).importXml(targetNode.getPath(), in);
 		}
 		catch (Exception ex) {
 			throw ExUtil.newEx(ex);
 		}
 		finally {
-			/* The importXML should have already closed, but we add here just to be sure */
+			/* The parser should have already closed it, but we add here just to be sure */
 			StreamUtil.close(in);
 		}
 	}
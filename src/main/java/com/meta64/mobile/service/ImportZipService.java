@@ -1,19 +1,28 @@
 package com.meta64.mobile.service;
 
 import java.io.BufferedInputStream;
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.InputStream;
 import java.net.URLConnection;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
 import javax.jcr.Node;
+import javax.jcr.NodeIterator;
 import javax.jcr.Session;
+import javax.jcr.query.Query;
 
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CloseShieldInputStream;
+import org.apache.commons.io.input.CountingInputStream;
 import org.apache.jackrabbit.JcrConstants;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -24,6 +33,11 @@ import org.springframework.stereotype.Component;
 import com.meta64.mobile.config.AppProp;
 import com.meta64.mobile.config.JcrProp;
 import com.meta64.mobile.config.SessionContext;
+import com.meta64.mobile.config.SpringContextUtil;
+import com.meta64.mobile.job.AsyncJob;
+import com.meta64.mobile.job.ImportJob;
+import com.meta64.mobile.job.JobManager;
+import com.meta64.mobile.job.ProgressInputStream;
 import com.meta64.mobile.model.UserPreferences;
 import com.meta64.mobile.request.ImportRequest;
 import com.meta64.mobile.response.ImportResponse;
@@ -58,49 +72,205 @@ public class ImportZipService {
 	@Autowired
 	private SessionContext sessionContext;
 
+	@Autowired
+	private JobManager jobManager;
+
 	private String targetPath;
 
 	private ZipInputStream zis = null;
 	private Session session;
 
+	/* only set when running as an ImportJob */
+	private AsyncJob job;
+	private long entriesDone;
+
+	/* ids of the imports running in this server, so a marker left by a crash can be told apart */
+	private static final Set<String> liveImports = Collections.synchronizedSet(new HashSet<String>());
+
 	/*
-	 * for performance we create a map of folders (relative names, directly from the zip file, as
-	 * the key)
+	 * For performance we keep a map of folders (relative names, directly from the zip file, as the
+	 * key), but only of the most recently used ones so it doesn't grow with the size of the zip.
+	 * Anything that falls out of it is just looked up again by path.
 	 */
-	private HashMap<String, Node> folderMap = new HashMap<String, Node>();
+	private Map<String, Folder> folderMap;
 
-	public void inputZipFileFromStream(Session session, InputStream is, Node node) {
+	private static class Folder {
+		Node node;
+
+		/* true if the folder was there before the import, so files put in it are tagged */
+		boolean existing;
+	}
 
+	/* unsaved work since the last save, see saveBatchIfFull */
+	private int batchNodes;
+	private long batchBytes;
+	private int maxBatchNodes;
+	private long maxBatchBytes;
+
+	/*
+	 * Every node this import creates whose parent was already there is tagged with IMPORT_ID. Those
+	 * are what gets removed if the import fails. Usually that's just the top level folders, but
+	 * importing into folders that already exist makes every new node in them one of these, so
+	 * they're found again with a query (on the importId index) rather than kept in memory.
+	 */
+	private String importId;
+
+	/*
+	 * Imports the zip under 'node', saving every import.batchNodes nodes or import.batchMegabytes of
+	 * content so the unsaved tree never gets large. Because of those intermediate saves a failure
+	 * can't just discard the session, so 'node' holds the id of the import in IMPORT_PENDING until
+	 * the end, and completing the import is just clearing that one property. On failure we remove
+	 * the nodes tagged with the id. If the server dies mid-import the marker is left, so partial
+	 * imports can always be told apart from finished ones, and the next import into the same node
+	 * removes what's left of it.
+	 * <p>
+	 * The intermediate saves (and the rollback) apply to everything in the session, so the session
+	 * must have no other unsaved changes when this is called.
+	 */
+	public void inputZipFileFromStream(Session session, InputStream is, Node node) {
 		try {
 			targetPath = node.getPath();
 			this.session = session;
 
+			if (session.hasPendingChanges()) {
+				throw ExUtil.newEx("Session must be saved before a zip import.");
+			}
+
+			final int folderCacheSize = appProp.getIntProp("import.folderCacheSize", 1000);
+			folderMap = new LinkedHashMap<String, Folder>(16, 0.75f, true) {
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, Folder> eldest) {
+					return size() > folderCacheSize;
+				}
+			};
+			maxBatchNodes = appProp.getIntProp("import.batchNodes", 500);
+			maxBatchBytes = appProp.getIntProp("import.batchMegabytes", 32) * 1024L * 1024L;
+
+			String staleId = JcrUtil.safeGetStringProp(node, JcrProp.IMPORT_PENDING);
+			if (staleId != null) {
+				if (liveImports.contains(staleId)) {
+					throw ExUtil.newEx("Another import into this node is still running.");
+				}
+				log.warn("Removing what's left of unfinished import " + staleId + " to " + targetPath);
+				removeImported(staleId);
+			}
+
+			importId = JcrUtil.getGUID();
+			liveImports.add(importId);
+			node.setProperty(JcrProp.IMPORT_PENDING, importId);
+		}
+		catch (Exception ex) {
+			throw ExUtil.newEx(ex);
+		}
+
+		boolean success = false;
+		try {
 			zis = new ZipInputStream(is);
 			ZipEntry entry;
 			while ((entry = zis.getNextEntry()) != null) {
+				if (job != null) {
+					job.checkCancelled();
+				}
+
+				/* counts the content, and keeps readers from closing the zip stream */
+				CountingInputStream entryStream = new CountingInputStream(new CloseShieldInputStream(zis));
 				if (entry.isDirectory()) {
 					processDirectory(entry);
 				}
 				else {
-					processFile(entry);
+					processFile(entry, entryStream);
 				}
 				zis.closeEntry();
+
+				if (job != null) {
+					job.setNodesDone(++entriesDone);
+				}
+
+				batchNodes++;
+				batchBytes += entryStream.getByteCount();
+				saveBatchIfFull();
 			}
 			zis.close();
+
+			if (job != null) {
+				job.checkCancelled();
+			}
+
+			/* the last save is what makes the import complete, so the marker goes in it */
+			node.setProperty(JcrProp.IMPORT_PENDING, (String) null);
+			JcrUtil.save(session);
+			success = true;
 		}
 		catch (Exception ex) {
 			throw ExUtil.newEx(ex);
 		}
+		finally {
+			if (!success) {
+				rollback(node);
+			}
+			liveImports.remove(importId);
+		}
+	}
+
+	private void saveBatchIfFull() {
+		if (batchNodes >= maxBatchNodes || batchBytes >= maxBatchBytes) {
+			log.debug("Saving import batch: " + batchNodes + " entries, " + batchBytes + " bytes");
+			JcrUtil.save(session);
+			batchNodes = 0;
+			batchBytes = 0;
+		}
+	}
+
+	/* Throws away what isn't saved yet, and removes the nodes the import created */
+	private void rollback(Node node) {
+		try {
+			session.refresh(false);
+			removeImported(importId);
+			node.setProperty(JcrProp.IMPORT_PENDING, (String) null);
+			session.save();
+			log.debug("Rolled back import to " + targetPath);
+		}
+		catch (Exception ex) {
+			/* don't hide the exception that got us here. The markers show what's left behind */
+			ExUtil.error(log, "Failed to roll back import to " + targetPath, ex);
+		}
+	}
+
+	/*
+	 * Removes the nodes tagged with this import id, a batch at a time. The importId index is a
+	 * synchronous one, so each query sees the removals saved by the one before.
+	 */
+	private void removeImported(String id) throws Exception {
+		String qStr = "SELECT * from [nt:base] AS t WHERE t.[" + JcrProp.IMPORT_ID + "]=$id";
+		while (true) {
+			Query q = session.getWorkspace().getQueryManager().createQuery(qStr, Query.JCR_SQL2);
+			q.bindValue("id", session.getValueFactory().createValue(id));
+			q.setLimit(maxBatchNodes);
+
+			List<String> paths = new LinkedList<String>();
+			NodeIterator nodes = q.execute().getNodes();
+			while (nodes.hasNext()) {
+				paths.add(nodes.nextNode().getPath());
+			}
+			if (paths.isEmpty()) break;
+
+			for (String path : paths) {
+				Node node = JcrUtil.getNodeByPath(session, path);
+				if (node != null) {
+					node.remove();
+				}
+			}
+			session.save();
+		}
 	}
 
 	private void processDirectory(ZipEntry entry) {
 		String name = entry.getName();
 		String nameNoSlash = XString.truncateAfterLast(name, "/");
 		String lastPart = XString.parseAfterLast(nameNoSlash, "/");
-		log.info("DIR: " + name);
+		log.debug("DIR: " + name);
 
-		Node node = JcrUtil.ensureNodeExists(session, targetPath, name, null, "meta64:folder", false);
-		if (node == null) throw ExUtil.newEx("Failed to create directory node");
+		Node node = ensureFolder(name).node;
 
 		try {
 			node.setProperty(JcrProp.NAME, lastPart);
@@ -109,29 +279,77 @@ public class ImportZipService {
 			throw ExUtil.newEx(ex);
 		}
 		JcrUtil.timestampNewNode(session, node);
+	}
 
-		/* Note: these entries end with "/" because they are all folders */
-		folderMap.put(entry.getName(), node);
+	/*
+	 * Gets the node for the zip folder (ending with "/"), creating it (and its parents) if needed.
+	 * Zips don't have to have entries for their folders, so files can be the first we hear of one.
+	 */
+	private Folder ensureFolder(String folder) {
+		Folder f = folderMap.get(folder);
+		if (f != null) return f;
+
+		try {
+			/*
+			 * Walk down the folder path to see where it leaves what's already there. The first
+			 * folder that doesn't exist yet is the one to tag, unless we're inside a folder this
+			 * import already created (and so tagged).
+			 */
+			String path = targetPath;
+			String newPath = null;
+			boolean insideCreated = false;
+			for (String token : XString.tokenize(folder, "/", true)) {
+				path = JcrUtil.fixPath(path + "/" + token);
+				if (!session.nodeExists(path)) {
+					newPath = path;
+					break;
+				}
+				if (importId.equals(JcrUtil.safeGetStringProp(session.getNode(path), JcrProp.IMPORT_ID))) {
+					insideCreated = true;
+					break;
+				}
+			}
+
+			f = new Folder();
+			f.node = JcrUtil.ensureNodeExists(session, targetPath, folder, null, "meta64:folder", false);
+			if (f.node == null) throw ExUtil.newEx("Failed to create directory node");
+
+			if (newPath != null) {
+				markCreated(session.getNode(newPath));
+			}
+			f.existing = newPath == null && !insideCreated;
+		}
+		catch (Exception ex) {
+			throw ExUtil.newEx(ex);
+		}
+
+		folderMap.put(folder, f);
+		return f;
+	}
+
+	private void markCreated(Node node) throws Exception {
+		node.setProperty(JcrProp.IMPORT_ID, importId);
 	}
 
-	private void processFile(ZipEntry entry) {
+	private void processFile(ZipEntry entry, InputStream entryStream) {
 		String name = entry.getName();
-		log.info("FILE: " + entry.getName());
+		log.debug("FILE: " + entry.getName());
 		String fileName = name.substring(name.lastIndexOf("/") + 1);
+		if (!name.contains("/")) throw ExUtil.newEx("file is not in a folder: " + name);
 		String folderNoSlash = XString.truncateAfterLast(name, "/");
-		Node folderNode = folderMap.get(folderNoSlash + "/");
-		if (folderNode == null) throw ExUtil.newEx("unable to find folder node: " + folderNoSlash + "/");
+		Folder folder = ensureFolder(folderNoSlash + "/");
+		Node folderNode = folder.node;
 
 		Node newNode = null;
 
 		try {
 			if (mimeUtil.isJsonFileType(fileName)) {
-				String json = IOUtils.toString(zis, "UTF-8");
+				String json = IOUtils.toString(entryStream, "UTF-8");
 				newNode = jsonToJcrService.importJsonFile(json, folderNode);
 			}
 			else if (mimeUtil.isTextTypeFileName(fileName)) {
 				newNode = folderNode.addNode(JcrUtil.getGUID(), JcrConstants.NT_UNSTRUCTURED);
-				String text = IOUtils.toString(zis, "UTF-8");
+				String text = IOUtils.toString(entryStream, "UTF-8");
 				newNode.setProperty(JcrProp.CONTENT, fileName + "\n\n" + text);
 			}
 			else {
@@ -141,70 +359,79 @@ public class ImportZipService {
 				String mimeType = URLConnection.guessContentTypeFromName(fileName);
 
 				/*
-				 * the JCR api force closes the stream so for now we just pass a stream that it's ok
-				 * to close. Better solution is probably to create an InputStream wrapper that has
-				 * an overridden close() method that does nothing, because we cannot close the zip
-				 * stream we are reading from!
+				 * Streamed straight from the zip into the repository. The JCR api closes the
+				 * stream, which the close shield on entryStream turns into a no-op.
 				 */
-				byte[] bytes = IOUtils.toByteArray(zis);
-				ByteArrayInputStream bais = new ByteArrayInputStream(bytes);
-
-				/* Note: bais stream IS closed inside this method, so we don't close it here */
-				attachmentService.saveBinaryStreamToNode(session, bais, mimeType, fileName, -1, -1, newNode);
+				attachmentService.saveBinaryStreamToNode(session, entryStream, mimeType, fileName, -1, -1, newNode);
 			}
 
 			newNode.setProperty(JcrProp.FILENAME, fileName);
 			JcrUtil.timestampNewNode(session, newNode);
+
+			if (folder.existing) {
+				markCreated(newNode);
+			}
 		}
 		catch (Exception ex) {
 			throw ExUtil.newEx(ex);
 		}
 	}
 
+	/*
+	 * Checks the request and submits an ImportJob to do the import in the background. The client
+	 * polls with the job id we return.
+	 */
 	public void importFromLocalZipFile(Session session, ImportRequest req, ImportResponse res) {
-		try {
-			if (session == null) {
-				session = ThreadLocals.getJcrSession();
-			}
+		if (session == null) {
+			session = ThreadLocals.getJcrSession();
+		}
 
-			UserPreferences userPreferences = sessionContext.getUserPreferences();
-			boolean importAllowed = userPreferences != null ? userPreferences.isImportAllowed() : false;
+		UserPreferences userPreferences = sessionContext.getUserPreferences();
+		boolean importAllowed = userPreferences != null ? userPreferences.isImportAllowed() : false;
 
-			if (!importAllowed && !sessionContext.isAdmin()) {
-				throw ExUtil.newEx("import is an admin-only feature.");
-			}
+		if (!importAllowed && !sessionContext.isAdmin()) {
+			throw ExUtil.newEx("import is an admin-only feature.");
+		}
 
-			String nodeId = req.getNodeId();
-			Node importNode = JcrUtil.findNode(session, nodeId);
-			log.debug("Import to Node: " + importNode.getPath());
+		String nodeId = req.getNodeId();
+		/* check this now, so the user gets the error right away rather than from the job */
+		JcrUtil.findNode(session, nodeId);
 
-			if (!FileTools.dirExists(appProp.getAdminDataFolder())) {
-				throw ExUtil.newEx("adminDataFolder does not exist");
-			}
+		if (!FileTools.dirExists(appProp.getAdminDataFolder())) {
+			throw ExUtil.newEx("adminDataFolder does not exist");
+		}
 
-			String fileName = req.getSourceFileName();
-			fileName = fileName.replace(".", "_");
-			fileName = fileName.replace(File.separator, "_");
-			String fullFileName = appProp.getAdminDataFolder() + File.separator + req.getSourceFileName();
+		File sourceFile = new File(appProp.getAdminDataFolder() + File.separator + req.getSourceFileName());
+		if (!sourceFile.isFile()) {
+			throw ExUtil.newEx("Import file not found.");
+		}
 
-			if (!FileTools.fileExists(fullFileName)) {
-				throw ExUtil.newEx("Import file not found.");
-			}
+		ImportJob job = (ImportJob) SpringContextUtil.getBean(ImportJob.class);
+		job.init(session.getUserID(), sessionContext.getPassword(), nodeId, sourceFile, ImportJob.FORMAT_ZIP);
+		res.setJobId(jobManager.submit(job));
+		res.setSuccess(true);
+	}
 
-			BufferedInputStream bis = null;
-			try {
-				bis = new BufferedInputStream(new FileInputStream(fullFileName));
-				inputZipFileFromStream(session, bis, importNode);
-			}
-			finally {
-				StreamUtil.close(zis);
-			}
+	/*
+	 * Does the actual import, on the job thread (see ImportJob). A failed or cancelled import is
+	 * rolled back (see inputZipFileFromStream).
+	 */
+	public void importFromFile(Session session, String nodeId, File sourceFile, AsyncJob job) {
+		this.job = job;
+		BufferedInputStream bis = null;
+		try {
+			Node importNode = JcrUtil.findNode(session, nodeId);
+			log.debug("Import to Node: " + importNode.getPath());
 
-			res.setSuccess(true);
+			bis = new BufferedInputStream(new ProgressInputStream(new FileInputStream(sourceFile), job));
+			inputZipFileFromStream(session, bis, importNode);
 		}
 		catch (Exception ex) {
 			throw ExUtil.newEx(ex);
 		}
+		finally {
+			StreamUtil.close(zis);
+			StreamUtil.close(bis);
+		}
 	}
-
 }
@@ -0,0 +1,291 @@
+package com.meta64.mobile.service;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import javax.jcr.Node;
+import javax.jcr.Session;
+
+import org.apache.commons.codec.binary.Hex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.meta64.mobile.config.JcrProp;
+import com.meta64.mobile.util.ExUtil;
+import com.meta64.mobile.util.FileTools;
+import com.meta64.mobile.util.JcrUtil;
+import com.meta64.mobile.util.StreamUtil;
+
+/**
+ * Writes the Merkle hashes Sha256Service computes back onto the nodes, on a thread and session of
+ * its own, while the hashing is still going on. Hashes are saved every 'batchSize' nodes, so
+ * memory doesn't grow with the size of the tree and a crash only loses the current batch.
+ * <p>
+ * If the hashing gets ahead of the writing, once 'spillThreshold' entries are waiting they get
+ * spilled to a file in the work folder and read back in order later, so memory stays bounded no
+ * matter how far behind the writer falls.
+ * <p>
+ * Sha256Service also queues a checkpoint after each finished subtree. Since everything queued before
+ * it is saved first, once a checkpoint is written to the checkpoint file that whole subtree is
+ * safely on disk, and a later run on the same node can reuse the stored hash instead of rehashing
+ * it. The checkpoint file is deleted when a run finishes, and kept if it fails.
+ */
+public class MerkleHashWriter implements Runnable {
+	private static final Logger log = LoggerFactory.getLogger(MerkleHashWriter.class);
+
+	/* queued entries are lines of text, so they can go to a spill file as is */
+	private static final String HASH_PREFIX = "H ";
+	private static final String CHECKPOINT_PREFIX = "C ";
+
+	private final Session session;
+	private final int batchSize;
+	private final int spillThreshold;
+	private final File workFolder;
+	private final File checkpointFile;
+
+	private List<String> pending = new ArrayList<String>();
+	private final LinkedList<File> spillFiles = new LinkedList<File>();
+	private int spillFileCount = 0;
+
+	/* checkpoints reached but not yet covered by a save */
+	private final List<String> unsavedCheckpoints = new ArrayList<String>();
+
+	private boolean closed;
+	private volatile boolean aborted;
+	private RuntimeException failure;
+	private Thread thread;
+
+	private int curBatchSize = 0;
+	private int batchNumber = 0;
+	private int identicalCount = 0;
+	private int changeCount = 0;
+
+	/**
+	 * The writer takes ownership of the session, and logs it out when done. The checkpoint file
+	 * has to be in workFolder.
+	 */
+	public MerkleHashWriter(Session session, int batchSize, int spillThreshold, File workFolder, File checkpointFile) {
+		this.session = session;
+		this.batchSize = batchSize;
+		this.spillThreshold = spillThreshold;
+		this.workFolder = workFolder;
+		this.checkpointFile = checkpointFile;
+	}
+
+	/* Returns the subtree paths checkpointed by an earlier run that didn't finish, if any */
+	public static List<String> readCheckpoints(File checkpointFile) {
+		if (!checkpointFile.isFile()) {
+			return new ArrayList<String>();
+		}
+
+		try {
+			return Files.readAllLines(checkpointFile.toPath(), StandardCharsets.UTF_8);
+		}
+		catch (Exception ex) {
+			throw ExUtil.newEx(ex);
+		}
+	}
+
+	public void start() {
+		FileTools.createDirectory(workFolder.getPath());
+		thread = new Thread(this, "MerkleHashWriter");
+		thread.start();
+	}
+
+	public void add(String nodeId, byte[] hash) {
+		enqueue(HASH_PREFIX + Hex.encodeHexString(hash) + " " + nodeId);
+	}
+
+	/* Called once all the hashes of the subtree at 'path' have been added */
+	public void checkpoint(String path) {
+		enqueue(CHECKPOINT_PREFIX + path);
+	}
+
+	private synchronized void enqueue(String line) {
+		if (failure != null) {
+			throw failure;
+		}
+
+		pending.add(line);
+		if (pending.size() >= spillThreshold) {
+			spill();
+		}
+		notifyAll();
+	}
+
+	private void spill() {
+		File spillFile = new File(workFolder, checkpointFile.getName() + ".spill" + (++spillFileCount));
+		writeLines(spillFile, pending, false);
+		spillFiles.add(spillFile);
+		log.debug("Spilled " + pending.size() + " merkle hashes to " + spillFile.getPath());
+		pending = new ArrayList<String>();
+	}
+
+	/*
+	 * Returns the next chunk of lines to write, oldest first: spill files are always older than
+	 * anything still pending. Returns null once closed and everything has been taken.
+	 */
+	private List<String> takeNext() throws Exception {
+		File spillFile;
+		synchronized (this) {
+			while (spillFiles.isEmpty() && pending.isEmpty() && !closed) {
+				wait();
+			}
+
+			if (aborted) {
+				return null;
+			}
+
+			if (spillFiles.isEmpty()) {
+				if (pending.isEmpty()) {
+					return null;
+				}
+				List<String> ret = pending;
+				pending = new ArrayList<String>();
+				return ret;
+			}
+			spillFile = spillFiles.removeFirst();
+		}
+
+		List<String> lines = Files.readAllLines(spillFile.toPath(), StandardCharsets.UTF_8);
+		FileTools.deleteFile(spillFile.getPath());
+		return lines;
+	}
+
+	@Override
+	public void run() {
+		try {
+			List<String> lines;
+			while ((lines = takeNext()) != null) {
+				for (String line : lines) {
+					if (line.startsWith(HASH_PREFIX)) {
+						String[] parts = line.split(" ", 3);
+						writeHash(parts[2], parts[1]);
+					}
+					else {
+						unsavedCheckpoints.add(line.substring(CHECKPOINT_PREFIX.length()));
+					}
+				}
+			}
+
+			if (!aborted) {
+				saveBatch();
+				log.info("All Merkle Hashes successfully written.\n" + //
+						"Change count=" + String.valueOf(changeCount) + "\n" + //
+						"Identical count=" + String.valueOf(identicalCount));
+			}
+		}
+		catch (Exception ex) {
+			synchronized (this) {
+				failure = ExUtil.newEx(ex);
+			}
+			ExUtil.error(log, "Writing merkle hashes failed.", ex);
+		}
+		finally {
+			session.logout();
+		}
+	}
+
+	/*
+	 * Only writes the merkle hash if it's changed, so a rerun on an unchanged tree doesn't write
+	 * anything. Identical ones still count towards the batch, so checkpoints keep moving forward.
+	 */
+	private void writeHash(String nodeId, String merkleHash) throws Exception {
+		Node node = JcrUtil.findNode(session, nodeId);
+		String prevMerkleHash = JcrUtil.safeGetStringProp(node, JcrProp.MERKLE_HASH);
+
+		/* only attemp to set merkle if node is not repository-controlled */
+		if (!merkleHash.equals(prevMerkleHash) && !JcrUtil.isProtectedNode(node)) {
+			changeCount++;
+			node.setProperty(JcrProp.MERKLE_HASH, merkleHash);
+		}
+		else {
+			identicalCount++;
+		}
+
+		if (++curBatchSize >= batchSize) {
+			saveBatch();
+		}
+	}
+
+	private void saveBatch() throws Exception {
+		if (curBatchSize > 0) {
+			log.debug("Saving Batch " + String.valueOf(++batchNumber));
+			session.save();
+			curBatchSize = 0;
+		}
+
+		/* everything queued before these is now saved */
+		if (unsavedCheckpoints.size() > 0) {
+			writeLines(checkpointFile, unsavedCheckpoints, true);
+			unsavedCheckpoints.clear();
+		}
+	}
+
+	private static void writeLines(File file, List<String> lines, boolean append) {
+		BufferedWriter out = null;
+		try {
+			out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, append), StandardCharsets.UTF_8));
+			for (String line : lines) {
+				out.write(line);
+				out.write("\n");
+			}
+			out.flush();
+		}
+		catch (Exception ex) {
+			throw ExUtil.newEx(ex);
+		}
+		finally {
+			StreamUtil.close(out);
+		}
+	}
+
+	/*
+	 * Waits for everything queued to be written, and removes the checkpoint file since the run is
+	 * complete. Throws if the writing failed.
+	 */
+	public void finish() {
+		stop(false);
+		if (failure != null) {
+			throw failure;
+		}
+		FileTools.deleteFile(checkpointFile.getPath());
+	}
+
+	/*
+	 * Stops without writing what's still queued. The checkpoint file is kept, so the next run
+	 * resumes from the last saved batch.
+	 */
+	public void abort() {
+		stop(true);
+	}
+
+	private void stop(boolean abort) {
+		synchronized (this) {
+			if (closed) return;
+			closed = true;
+			aborted = abort;
+			notifyAll();
+		}
+
+		try {
+			thread.join();
+		}
+		catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw ExUtil.newEx(ex);
+		}
+
+		for (File spillFile : spillFiles) {
+			FileTools.deleteFile(spillFile.getPath());
+		}
+		spillFiles.clear();
+	}
+}
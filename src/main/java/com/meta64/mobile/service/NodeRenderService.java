@@ -8,6 +8,8 @@ import javax.jcr.Node;
 import javax.jcr.NodeIterator;
 import javax.jcr.Session;
 import javax.jcr.nodetype.NodeType;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryManager;
 
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
@@ -138,124 +140,137 @@ public class NodeRenderService {
 			 */
 			int offset = scanToNode ? 0 : req.getOffset();
 
-			NodeIterator nodeIter = JcrUtil.getNodes(node);
+			NodeIterator nodeIter = getChildNodes(session, node, type);
 			int idx = 0, count = 0, idxOfNodeFound = -1;
 			boolean endReached = false;
-			try {
-				if (req.isGoToLastPage()) {
-					offset = (int) nodeIter.getSize() - ROWS_PER_PAGE;
-					if (offset < 0) {
-						offset = 0;
-					}
-					res.setOffsetOfNodeFound(offset);
+			if (req.isGoToLastPage()) {
+				long size = nodeIter.getSize();
+
+				/* query results (the items of an RSS feed) don't know their size, so we count them */
+				if (size == -1) {
+					size = countNodes(getChildNodes(session, node, type));
 				}
+				offset = (int) size - ROWS_PER_PAGE;
+				if (offset < 0) {
+					offset = 0;
+				}
+				res.setOffsetOfNodeFound(offset);
+			}
 
-				/*
-				 * Calling 'skip' here technically violates the fact that nodeVisibleInSimpleMode()
-				 * can return false for some nodes, but because of the performance boost it offers
-				 * i'm doing it anyway. I don't think skipping to far or too little by one or two
-				 * will ever be a noticeable issue in the paginating so this should be fine, because
-				 * there will be a very small number of nodes that are not visible to the user, so I
-				 * can't think of a pathological case here.
-				 */
-				if (!scanToNode && offset > 0) {
+			/*
+			 * Calling 'skip' here technically violates the fact that nodeVisibleInSimpleMode()
+			 * can return false for some nodes, but because of the performance boost it offers
+			 * i'm doing it anyway. I don't think skipping to far or too little by one or two
+			 * will ever be a noticeable issue in the paginating so this should be fine, because
+			 * there will be a very small number of nodes that are not visible to the user, so I
+			 * can't think of a pathological case here.
+			 */
+			if (!scanToNode && offset > 0) {
+				/* skip() throws if we go past the end, so avoid that when we know the size */
+				long size = nodeIter.getSize();
+				if (size != -1 && offset > size) {
+					offset = (int) size;
+				}
+				try {
 					nodeIter.skip(offset);
-					idx = offset;
 				}
+				catch (NoSuchElementException ex) {
+					// size was unknown, and offset went beyond the end. hasNext() will be false below.
+				}
+				idx = offset;
+			}
+
+			List<Node> slidingWindow = null;
 
-				List<Node> slidingWindow = null;
-
-				/*
-				 * If we are scanning for a specific node, and starting at zero offset, then we need
-				 * to be capturing all the nodes as we go, in a sliding window, so that in case we
-				 * find this node on the first page then we can use the slidingWindow nodes to build
-				 * the entire first page, because we will need to send back these nodes starting
-				 * from the first one.
-				 */
-				if (offset == 0 && scanToNode) {
-					slidingWindow = new LinkedList<Node>();
+			/*
+			 * If we are scanning for a specific node, and starting at zero offset, then we need
+			 * to be capturing all the nodes as we go, in a sliding window, so that in case we
+			 * find this node on the first page then we can use the slidingWindow nodes to build
+			 * the entire first page, because we will need to send back these nodes starting
+			 * from the first one.
+			 */
+			if (offset == 0 && scanToNode) {
+				slidingWindow = new LinkedList<Node>();
+			}
+
+			while (true) {
+				if (!nodeIter.hasNext()) {
+					endReached = true;
+					break;
 				}
+				Node n = nodeIter.nextNode();
 
-				while (true) {
-					Node n = nodeIter.nextNode();
+				if (advancedMode || JcrUtil.nodeVisibleInSimpleMode(node)) {
+					idx++;
 
-					if (advancedMode || JcrUtil.nodeVisibleInSimpleMode(node)) {
-						idx++;
+					if (idx > offset) {
 
-						if (idx > offset) {
+						if (scanToNode) {
+							String testPath = n.getPath();
 
-							if (scanToNode) {
-								String testPath = n.getPath();
+							/*
+							 * If this is the node we are scanning for turn off scan mode, but
+							 * record its index position
+							 */
+							if (testPath.equals(path)) {
+								scanToNode = false;
 
 								/*
-								 * If this is the node we are scanning for turn off scan mode, but
-								 * record its index position
+								 * If we found our target node, and it's on the first page, then
+								 * we don't need to set idxOfNodeFound, but just leave it unset,
+								 * and we need to load in the nodes we had collected so far,
+								 * before continuing
 								 */
-								if (testPath.equals(path)) {
-									scanToNode = false;
-
-									/*
-									 * If we found our target node, and it's on the first page, then
-									 * we don't need to set idxOfNodeFound, but just leave it unset,
-									 * and we need to load in the nodes we had collected so far,
-									 * before continuing
-									 */
-									if (idx <= ROWS_PER_PAGE && slidingWindow != null) {
-
-										/* loop over all our precached nodes */
-										for (Node sn : slidingWindow) {
-											count++;
-											children.add(convert.convertToNodeInfo(sessionContext, session, sn, true, true, false));
-										}
-									}
-									else {
-										idxOfNodeFound = idx;
+								if (idx <= ROWS_PER_PAGE && slidingWindow != null) {
+
+									/* loop over all our precached nodes */
+									for (Node sn : slidingWindow) {
+										count++;
+										children.add(convert.convertToNodeInfo(sessionContext, session, sn, true, true, false));
 									}
 								}
-								/*
-								 * else, we can continue while loop after we incremented 'idx'.
-								 * Nothing else to do on this iteration/node
-								 */
 								else {
-									/* Are we still within the bounds of the first page ? */
-									if (idx <= ROWS_PER_PAGE && slidingWindow != null) {
-										slidingWindow.add(n);
-									}
-
-									continue;
+									idxOfNodeFound = idx;
 								}
 							}
+							/*
+							 * else, we can continue while loop after we incremented 'idx'.
+							 * Nothing else to do on this iteration/node
+							 */
+							else {
+								/* Are we still within the bounds of the first page ? */
+								if (idx <= ROWS_PER_PAGE && slidingWindow != null) {
+									slidingWindow.add(n);
+								}
 
-							count++;
-							children.add(convert.convertToNodeInfo(sessionContext, session, n, true, true, false));
+								continue;
+							}
+						}
 
-							if (count >= ROWS_PER_PAGE) {
-								try {
-									Node finalNode = nodeIter.nextNode();
-									if (!advancedMode && !JcrUtil.nodeVisibleInSimpleMode(finalNode)) {
-										endReached = true;
-									}
-								}
-								catch (Exception e) {
+						count++;
+						children.add(convert.convertToNodeInfo(sessionContext, session, n, true, true, false));
+
+						if (count >= ROWS_PER_PAGE) {
+							if (!nodeIter.hasNext()) {
+								endReached = true;
+							}
+							else {
+								Node finalNode = nodeIter.nextNode();
+								if (!advancedMode && !JcrUtil.nodeVisibleInSimpleMode(finalNode)) {
 									endReached = true;
-									// we don't rethrow or log this exception. It's normal flow
 								}
-
-								/* break out of while loop, we have enough children to send back */
-								break;
 							}
-						}
 
-						// log.trace(" node[" + nodeCount + "] path: " + n.getPath());
-					}
-					else {
-						log.trace("    MODE-REJECT node[" + idx + "] path: " + n.getPath());
+							/* break out of while loop, we have enough children to send back */
+							break;
+						}
 					}
+
+					// log.trace(" node[" + nodeCount + "] path: " + n.getPath());
+				}
+				else {
+					log.trace("    MODE-REJECT node[" + idx + "] path: " + n.getPath());
 				}
-			}
-			catch (NoSuchElementException ex) {
-				endReached = true;
-				// not an error. Normal iterator end condition.
 			}
 
 			if (idx == 0) {
@@ -272,6 +287,42 @@ public class NodeRenderService {
 		}
 	}
 
+	/*
+	 * The items under an RSS feed node aren't kept in any order (so that adding one doesn't have to
+	 * reorder the whole feed), so for those we get the children newest first from the
+	 * 'rssItemCreatedIndex' index (see IndexUtil). The query has to be on the item type for that
+	 * index to be used.
+	 */
+	private NodeIterator getChildNodes(Session session, Node node, NodeType type) {
+		if (type == null || !JcrProp.TYPE_RSS_FEED.equals(type.getName())) {
+			return JcrUtil.getNodes(node);
+		}
+
+		try {
+			QueryManager qm = session.getWorkspace().getQueryManager();
+
+			StringBuilder queryStr = new StringBuilder();
+			queryStr.append("SELECT * from [" + JcrProp.TYPE_RSS_ITEM + "] AS t WHERE ISCHILDNODE([");
+			queryStr.append(node.getPath());
+			queryStr.append("]) ORDER BY t.[" + JcrProp.CREATED + "] DESC");
+
+			Query q = qm.createQuery(queryStr.toString(), Query.JCR_SQL2);
+			return q.execute().getNodes();
+		}
+		catch (Exception ex) {
+			throw ExUtil.newEx(ex);
+		}
+	}
+
+	private long countNodes(NodeIterator nodeIter) {
+		long count = 0;
+		while (nodeIter.hasNext()) {
+			nodeIter.nextNode();
+			count++;
+		}
+		return count;
+	}
+
 	public void initNodeEdit(Session session, InitNodeEditRequest req, InitNodeEditResponse res) {
 
 		if (session == null) {
@@ -1,21 +1,24 @@
 package com.meta64.mobile.service;
 
-import java.util.HashMap;
+import java.net.URI;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
-import java.util.NoSuchElementException;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.jcr.Node;
 import javax.jcr.NodeIterator;
 import javax.jcr.Session;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryManager;
+import javax.jcr.query.QueryResult;
 
-import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.Resource;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 
@@ -27,8 +30,14 @@ import com.meta64.mobile.config.SessionContext;
 import com.meta64.mobile.config.SpringContextUtil;
 import com.meta64.mobile.repo.OakRepository;
 import com.meta64.mobile.request.GetPlayerInfoRequest;
+import com.meta64.mobile.request.GetRssStatusRequest;
 import com.meta64.mobile.request.SetPlayerInfoRequest;
 import com.meta64.mobile.response.GetPlayerInfoResponse;
+import com.meta64.mobile.response.GetRssStatusResponse;
+import com.meta64.mobile.rss.EnclosureCache;
+import com.meta64.mobile.rss.PlayerInfoStore;
+import com.meta64.mobile.rss.RssCompactor;
+import com.meta64.mobile.rss.RssMetrics;
 import com.meta64.mobile.rss.RssReader;
 import com.meta64.mobile.rss.model.FeedNodeInfo;
 import com.meta64.mobile.rss.model.PlayerInfo;
@@ -37,6 +46,7 @@ import com.meta64.mobile.user.RunAsJcrAdmin;
 import com.meta64.mobile.util.DateUtil;
 import com.meta64.mobile.util.ExUtil;
 import com.meta64.mobile.util.JcrUtil;
+import com.meta64.mobile.util.ThreadLocals;
 
 /**
  * RSS Feed Processing
@@ -51,8 +61,14 @@ public class RssService {
 	private static final Logger log = LoggerFactory.getLogger(RssService.class);
 
 	/* State when feeds are currently being processed */
-	private boolean processing = false;
-	private Object processingLock = new Object();
+	private volatile boolean processing = false;
+
+	/*
+	 * Held while feeds are read, and while RssCompactor deletes items. Feed reads only ever
+	 * tryLock it, since they run on Spring's one scheduler thread, and waiting there would hold up
+	 * every other daemon. A read that finds it busy just waits for the next cycle.
+	 */
+	private final ReentrantLock processingLock = new ReentrantLock();
 
 	@Autowired
 	private AppProp appProp;
@@ -73,51 +89,93 @@ public class RssService {
 	private final List<FeedNodeInfo> feedNodeInfos = new LinkedList<FeedNodeInfo>();
 
 	/*
-	 * todo-1: If we wanted to be super efficient we could store a checksum/hash of the String,
-	 * because that would be sufficient
+	 * Links of the items written during the current run. Items already in the db are found with an
+	 * indexed query on their link (see linkExists), but queries don't see unsaved nodes, so this
+	 * covers the items we just wrote. It only ever holds one run's worth of new items.
 	 */
-	private final HashSet<String> feedItemsByLink = new HashSet<String>();
+	private final HashSet<String> linksAddedThisRun = new HashSet<String>();
 
 	/*
-	 * We cache all the PlayerInfo in memory, so that the API calls from the client have zero lag,
-	 * but we will have a deamon thread that goes thru this map and persists all of it
-	 * intermittently. If we didn't do it this way the only other alternative would be to perform a
-	 * DB write EVERY TIME any user clicks Pause in a media player, and we want to be much more
-	 * scalable than that.
+	 * Podcast positions are kept in memory and persisted intermittently by the store, so that we
+	 * don't do a DB write EVERY TIME any user clicks Pause in a media player.
 	 */
-	private HashMap<String, PlayerInfo> playerInfoMap = new HashMap<String, PlayerInfo>();
+	@Autowired
+	private PlayerInfoStore playerInfoStore;
 
-	@Scheduled(fixedDelay = 6 * DateUtil.HOUR_MILLIS)
+	@Autowired
+	private RssMetrics rssMetrics;
+
+	@Autowired
+	private EnclosureCache enclosureCache;
+
+	@Autowired
+	private RssCompactor rssCompactor;
+
+	@Autowired
+	private OakRepository oak;
+
+	/*
+	 * Feed nodes created back when their type was orderable still have a child order list, which
+	 * Oak keeps adding every new item to. The first run after startup removes those.
+	 */
+	private boolean childOrderRemoved = false;
+
+	/*
+	 * Each feed has its own polling interval (see RssReader), so this just wakes up often enough
+	 * to pick up the feeds that have come due.
+	 */
+	@Scheduled(fixedDelay = 15 * DateUtil.MINUTE_MILLIS)
 	public void readFeeds() {
 		if (!OakRepository.fullInit || AppServer.isShuttingDown()) return;
 		if (!appProp.isEnableRssDaemon()) return;
-		readFeedsNow();
+		processFeeds(true);
 	}
 
+	/* Reads all feeds, whether they are due or not (they still get conditional GETs) */
 	public void readFeedsNow() {
-		if (processing) return;
+		processFeeds(false);
+	}
 
-		synchronized (processingLock) {
-			try {
-				processing = true;
+	/*
+	 * Deletes the items that are past their feed's retention (see RssCompactor). That runs on the
+	 * compactor's own thread, and takes the processing lock for the deletes, so they never run at
+	 * the same time as a feed read. Any waiting for the lock happens on that thread too.
+	 */
+	@Scheduled(initialDelay = DateUtil.HOUR_MILLIS, fixedDelay = 24 * DateUtil.HOUR_MILLIS)
+	public void compactFeeds() {
+		if (!OakRepository.fullInit || AppServer.isShuttingDown()) return;
+		if (!appProp.isEnableRssDaemon()) return;
 
-				adminRunner.run(session -> {
-					init(session);
-				});
-				AppServer.shutdownCheck();
+		rssCompactor.start("/" + JcrName.RSS + "/" + JcrName.RSS_FEEDS, processingLock);
+	}
 
-				RssReader reader = (RssReader) SpringContextUtil.getBean(RssReader.class);
-				reader.run(feedNodeInfos);
-				log.info("All RSS processing complete.");
-			}
-			catch (Exception e) {
-				log.error("Failed processing RSS feeds", e);
-			}
-			finally {
-				feedNodeInfos.clear();
-				feedItemsByLink.clear();
-				processing = false;
-			}
+	private void processFeeds(boolean dueOnly) {
+		if (!processingLock.tryLock()) {
+			log.info("RSS feeds or compaction already running. Skipping this cycle.");
+			return;
+		}
+
+		try {
+			processing = true;
+
+			adminRunner.run(session -> {
+				init(session, dueOnly);
+			});
+			AppServer.shutdownCheck();
+			if (feedNodeInfos.isEmpty()) return;
+
+			RssReader reader = (RssReader) SpringContextUtil.getBean(RssReader.class);
+			reader.run(feedNodeInfos);
+			log.info("All RSS processing complete.");
+		}
+		catch (Exception e) {
+			log.error("Failed processing RSS feeds", e);
+		}
+		finally {
+			feedNodeInfos.clear();
+			linksAddedThisRun.clear();
+			processing = false;
+			processingLock.unlock();
 		}
 	}
 
@@ -125,24 +183,14 @@ public class RssService {
 		if (sessionContext.isAnonUser()) {
 			return;
 		}
-		String currentUser = sessionContext.getUserName();
-		String key = currentUser + ":" + req.getUrl();
-		PlayerInfo info = new PlayerInfo();
-		info.setTimeOffset(req.getTimeOffset());
-		// info.setNodePath(req.getNodePath());
-		// log.debug("SetPlayer info: offset="+req.getTimeOffset());
-		synchronized (playerInfoMap) {
-			playerInfoMap.put(key, info);
-		}
+		playerInfoStore.set(sessionContext.getUserName(), req.getUrl(), req.getTimeOffset());
 	}
 
 	public void getPlayerInfo(GetPlayerInfoRequest req, GetPlayerInfoResponse res) {
-		String currentUser = sessionContext.getUserName();
-		String key = currentUser + ":" + req.getUrl();
-		PlayerInfo info = null;
-		synchronized (playerInfoMap) {
-			info = playerInfoMap.get(key);
+		if (sessionContext.isAnonUser()) {
+			return;
 		}
+		PlayerInfo info = playerInfoStore.get(sessionContext.getUserName(), req.getUrl());
 		if (info != null) {
 			res.setTimeOffset(info.getTimeOffset());
 		}
@@ -166,17 +214,76 @@ public class RssService {
 		return sb.toString();
 	}
 
+	/* Stats of the last run of every feed, and fetch/parse/write time histograms */
+	public void getStatus(GetRssStatusRequest req, GetRssStatusResponse res) {
+		res.setProcessing(processing);
+		res.setFeeds(rssMetrics.getFeedStats());
+		res.setHistograms(rssMetrics.getHistograms());
+		res.setLastCompaction(rssMetrics.getLastCompaction());
+	}
+
 	public Node getFeedsRootNode() {
 		return feedsRootNode;
 	}
 
-	public boolean linkExists(String link) {
-		boolean found = feedItemsByLink.contains(link);
+	/*
+	 * Checks whether an RSS item with this link is already stored, using the synchronous
+	 * rssItemLinkSyncIndex rather than loading all the items of all the feeds.
+	 */
+	public boolean linkExists(Session session, String link) {
+		if (linksAddedThisRun.contains(link)) {
+			log.debug("Looked up link[" + link + "] found=true (this run)");
+			return true;
+		}
+
+		boolean found = itemExists(session, JcrProp.RSS_ITEM_LINK, link);
 		log.debug("Looked up link[" + link + "] found=" + found);
 		return found;
 	}
 
-	private void init(Session session) {
+	/* Checks whether there's an RSS item with propName equal to val, using the index on propName */
+	private boolean itemExists(Session session, String propName, String val) {
+		try {
+			QueryManager qm = session.getWorkspace().getQueryManager();
+			String qStr = "SELECT * from [" + JcrProp.TYPE_RSS_ITEM + "] AS t WHERE t.[" + propName + "]=$val";
+			Query q = qm.createQuery(qStr, Query.JCR_SQL2);
+			q.bindValue("val", session.getValueFactory().createValue(val));
+			q.setLimit(1);
+			QueryResult r = q.execute();
+			return r.getNodes().hasNext();
+		}
+		catch (Exception ex) {
+			throw ExUtil.newEx(ex);
+		}
+	}
+
+	/*
+	 * Serves an enclosure from the EnclosureCache, or redirects the client to where it really is
+	 * if it's not cached (yet). Only urls that are the enclosure of some RSS item we have are
+	 * allowed, so this can't be used to fetch or redirect to anything else.
+	 */
+	public ResponseEntity<Resource> getEnclosure(Session session, String url) {
+		if (session == null) {
+			session = ThreadLocals.getJcrSession();
+		}
+
+		if (url == null || !itemExists(session, JcrProp.RSS_ITEM_ENC_URL, url)) {
+			return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+		}
+
+		ResponseEntity<Resource> res = enclosureCache.getEnclosure(url);
+		if (res != null) {
+			return res;
+		}
+		return ResponseEntity.status(HttpStatus.FOUND).location(URI.create(url)).build();
+	}
+
+	/* Call after writing a new item, so linkExists finds it before it's saved and indexed */
+	public void linkAdded(String link) {
+		linksAddedThisRun.add(link);
+	}
+
+	private void init(Session session, boolean dueOnly) {
 		rssRoot = JcrUtil.ensureNodeExists(session, "/", JcrName.RSS, "RSS");
 		feedsRootNode = JcrUtil.ensureNodeExists(session, "/" + JcrName.RSS + "/", JcrName.RSS_FEEDS, "# RSS Feeds");
 		AccessControlUtil.makeNodePublic(session, feedsRootNode);
@@ -186,95 +293,64 @@ public class RssService {
 			feedsRootNode.setProperty(JcrProp.DISABLE_INSERT, "y");
 
 			feedNodeInfos.clear();
-			feedItemsByLink.clear();
-			scanForFeedNodes(session, feedsRootNode);
+			linksAddedThisRun.clear();
+			findFeedNodes(session, dueOnly ? System.currentTimeMillis() : Long.MAX_VALUE);
 
 			JcrUtil.save(session);
 		}
 		catch (Exception ex) {
 			throw ExUtil.newEx(ex);
 		}
-		log.info("RSS init complete.");
+		log.info("RSS init complete. " + feedNodeInfos.size() + " feeds to read.");
 	}
 
 	/*
-	 * NOTE: We use a simple recursion algorithm here, but it would be more efficient to actually do
-	 * a query for the rssfeed type itself, and just process the results of the query. Leaving that
-	 * as a future enhancement (todo-1)
+	 * Queries for the feed nodes by type, so that we never walk the item nodes under them.
+	 * <p>
+	 * Feeds not due to be checked until after 'dueTime' are skipped.
 	 */
-	private void scanForFeedNodes(Session session, Node node) {
+	private void findFeedNodes(Session session, long dueTime) {
 		try {
-			if (node.getPrimaryNodeType().getName().equals("meta64:rssfeed")) {
+			QueryManager qm = session.getWorkspace().getQueryManager();
+
+			StringBuilder queryStr = new StringBuilder();
+			queryStr.append("SELECT * from [meta64:rssfeed] AS t WHERE ISDESCENDANTNODE([");
+			queryStr.append(feedsRootNode.getPath());
+			queryStr.append("])");
+
+			Query q = qm.createQuery(queryStr.toString(), Query.JCR_SQL2);
+			QueryResult r = q.execute();
+			NodeIterator nodes = r.getNodes();
+			while (nodes.hasNext()) {
+				Node node = nodes.nextNode();
+				if (!childOrderRemoved && oak.removeChildOrder(node.getPath())) {
+					log.info("Removed child order of feed " + node.getPath());
+				}
+
+				long nextCheckTime = JcrUtil.safeGetLongProp(node, JcrProp.RSS_FEED_NEXT_CHECK, 0);
+				if (nextCheckTime > dueTime) {
+					continue;
+				}
+
 				String nodeId = node.getIdentifier();
 				String url = JcrUtil.getRequiredStringProp(node, JcrProp.RSS_FEED_SRC);
 				FeedNodeInfo feedNodeInfo = new FeedNodeInfo();
 				feedNodeInfo.setUrl(url);
 				feedNodeInfo.setNodeId(nodeId);
+				feedNodeInfo.setEtag(JcrUtil.safeGetStringProp(node, JcrProp.RSS_FEED_ETAG));
+				feedNodeInfo.setLastModified(JcrUtil.safeGetStringProp(node, JcrProp.RSS_FEED_LAST_MODIFIED));
+				feedNodeInfo.setNextCheckTime(nextCheckTime);
+				feedNodeInfo.setInterval(JcrUtil.safeGetLongProp(node, JcrProp.RSS_FEED_INTERVAL, 0));
+				feedNodeInfo.setFailureCount((int) JcrUtil.safeGetLongProp(node, JcrProp.RSS_FEED_FAILURES, 0));
 				feedNodeInfos.add(feedNodeInfo);
-				cacheFeedItems(node);
-				return;
-			}
-
-			NodeIterator nodeIter = JcrUtil.getNodes(node);
-			try {
-				while (true) {
-					Node nextNode = nodeIter.nextNode();
-					scanForFeedNodes(session, nextNode);
-				}
-			}
-			catch (NoSuchElementException ex) {
-				// not an error. Normal iterator end condition.
 			}
+			childOrderRemoved = true;
 		}
 		catch (Exception ex) {
 			throw ExUtil.newEx(ex);
 		}
 	}
 
-	private void cacheFeedItems(Node feedNode) {
-		try {
-			NodeIterator nodeIter = JcrUtil.getNodes(feedNode);
-			try {
-				while (true) {
-					Node itemNode = nodeIter.nextNode();
-					String linkProp = JcrUtil.safeGetStringProp(itemNode, JcrProp.RSS_ITEM_LINK);
-					if (!StringUtils.isEmpty(linkProp)) {
-						log.debug("CACHING ENTRY: link=" + linkProp);
-						feedItemsByLink.add(linkProp);
-					}
-				}
-			}
-			catch (NoSuchElementException ex) {
-				// not an error. Normal iterator end condition.
-			}
-		}
-		catch (Exception ex) {
-			throw ExUtil.newEx(ex);
-		}
-	}
-
-	// Work in progress -- this is not yet complete.
-	// uncomment annotation to activate this code.
-	// @Scheduled(fixedDelay = 10 * 1000)
-	//
-	// NOTE: By not having this complete all it means is that when we restart the server all
-	// information is lost
-	// that would allow a user to resume listening to a podcast right where they left off.
-	public void run() {
-		if (AppServer.isShuttingDown() || !AppServer.isEnableScheduling()) return;
-
-		try {
-			adminRunner.run(session -> {
-				if (persistPlayerInfo(session)) {
-					JcrUtil.save(session);
-				}
-			});
-		}
-		catch (Exception e) {
-			log.debug("Failed processing mail.", e);
-		}
-	}
-
 	public void parseTest__unused(String url) {
 		try {
 			RssReader rssReader = (RssReader) SpringContextUtil.getBean(RssReader.class);
@@ -285,39 +361,4 @@ public class RssService {
 			e.printStackTrace();
 		}
 	}
-
-	/*
-	 * This code is not complete. Work in progress...
-	 * 
-	 * I'm stopping work on it for now. What it WILL do once COMPLETED is read all the cached
-	 * PlayerInfo paris from the hashmap and persist them permanently into the db so that even after
-	 * a server restart the time offsets where each person's podcast was left off will still be
-	 * available after reboot. For now a server restart/redeploy wipes out everyone's info regarding
-	 * where the were last listening to any given podcast.
-	 */
-	private boolean persistPlayerInfo(Session session) {
-		boolean workDone = false;
-		Iterator it = playerInfoMap.entrySet().iterator();
-
-		while (it.hasNext()) {
-			Map.Entry pair = (Map.Entry) it.next();
-			System.out.println(pair.getKey() + " = " + pair.getValue());
-			String key = (String) pair.getKey();
-			PlayerInfo info = (PlayerInfo) pair.getValue();
-			int urlStart = key.indexOf(":");
-			if (urlStart != -1) {
-				String url = key.substring(urlStart);
-				// String path = info.getNodePath();
-				// log.debug("URL CACHED=" + url + " path=" + info.getNodePath());
-				// Node node = JcrUtil.findNode(session, path);
-
-				//////////////////
-				// Node prefsNode = getPrefsNodeForSessionUser(session, userName);
-				// prefsNode.setProperty(JcrProp.*, advancedMode);
-				// workDone = true;
-				//////////////////
-			}
-		}
-		return workDone;
-	}
 }
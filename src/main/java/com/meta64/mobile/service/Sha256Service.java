@@ -1,39 +1,42 @@
 package com.meta64.mobile.service;
 
-import java.io.BufferedInputStream;
-import java.io.IOException;
-import java.io.InputStream;
+import java.io.File;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
-import java.util.LinkedHashMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
-import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
+import javax.jcr.Binary;
 import javax.jcr.Node;
 import javax.jcr.NodeIterator;
 import javax.jcr.Property;
 import javax.jcr.Session;
+import javax.jcr.SimpleCredentials;
 import javax.jcr.Value;
 
 import org.apache.commons.codec.binary.Hex;
-import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Scope;
 import org.springframework.stereotype.Component;
 
+import com.meta64.mobile.config.AppProp;
 import com.meta64.mobile.config.JcrProp;
 import com.meta64.mobile.request.GenerateNodeHashRequest;
 import com.meta64.mobile.response.GenerateNodeHashResponse;
-import com.meta64.mobile.user.RunAsJcrAdmin;
 import com.meta64.mobile.util.ExUtil;
 import com.meta64.mobile.util.HashVerifyFailedException;
 import com.meta64.mobile.util.JcrUtil;
+import com.meta64.mobile.util.MerkleUtil;
 import com.meta64.mobile.util.RuntimeEx;
-import com.meta64.mobile.util.StreamUtil;
 import com.meta64.mobile.util.ThreadLocals;
 
 /**
@@ -46,17 +49,21 @@ import com.meta64.mobile.util.ThreadLocals;
  * node on the tree which represents a unique GUID that will change any time that node properties
  * changes or any of the children (recursively deep) have any properties changed.
  * <p>
- * Warning/Caveat: <br>
- * Current implementation stores nodeID+hash in a java HashMap (nodeHashes) in memory list before
- * writing them all out onto each node as a final step which will be done in some kind of delayed
- * writing thread, that saves in batches of 10 or 100 writes at a time likely. This in-memory hash
- * will have to change for large data sets (millions of nodes)
+ * The hashes are written back onto the nodes by a MerkleHashWriter as they're computed, in batches,
+ * so memory use doesn't depend on the size of the tree. If a run on a big tree dies part way, the
+ * next run on the same node picks up the subtrees that were already saved (see checkpoints in
+ * MerkleHashWriter) and only hashes the rest.
+ * <p>
+ * Sibling subtrees are hashed in parallel on a ForkJoinPool, each worker thread reading through its
+ * own session, so a full verify of a big tree scales with the number of cores.
+ * <p>
+ * With merkleHashing.enabled, MerkleHashEditorProvider keeps the stored hashes current on every
+ * commit, so this full scan is then only needed to fill in hashes on older data, or to verify.
  */
 @Component
 @Scope("prototype")
 public class Sha256Service {
 	private static final Logger log = LoggerFactory.getLogger(Sha256Service.class);
-	private static final String SHA_ALGO = "SHA-256";
 
 	/*
 	 * If 'verify' is true we don't actually WRITE any merkle properties but just perform a
@@ -65,23 +72,40 @@ public class Sha256Service {
 	private boolean verify;
 
 	@Autowired
-	private RunAsJcrAdmin adminRunner;
+	private AppProp appProp;
 
 	private final boolean trace = false;
-	private final StringBuilder traceReport = new StringBuilder();
-
-	private long nodeCount = 0;
-	private long binaryCount = 0;
-	private long binarySize = 0;
-	private long nonBinaryCount = 0;
-	private long nonBinarySize = 0;
-
-	/**
-	 * For performance, we we use "Linked" hash map to be able to iterate in order, because it
-	 * should be true that at the Merkle-write stage these in order will cause more cache-hits
-	 * (therefore better performance) when they are written back out to the tree
+
+	/* StringBuffer because worker threads append to it concurrently */
+	private final StringBuffer traceReport = new StringBuffer();
+
+	/*
+	 * Subtrees above this depth (relative to the node being hashed) are forked as their own tasks,
+	 * and everything below runs inline in the task that reached it. Deep enough to split up any
+	 * realistic tree across all the cores, without paying task overhead on every small subtree.
 	 */
-	private LinkedHashMap<String, byte[]> nodeIdToHashMap = new LinkedHashMap<String, byte[]>();
+	private static final int MAX_FORK_DEPTH = 6;
+
+	private final AtomicLong nodeCount = new AtomicLong();
+	private final AtomicLong binaryCount = new AtomicLong();
+	private final AtomicLong binarySize = new AtomicLong();
+	private final AtomicLong nonBinaryCount = new AtomicLong();
+	private final AtomicLong nonBinarySize = new AtomicLong();
+
+	/* null when only verifying */
+	private MerkleHashWriter writer;
+
+	/* Subtrees a previous, unfinished run on the same node already saved the hashes for */
+	private final Set<String> checkpointedPaths = new HashSet<String>();
+
+	/*
+	 * JCR sessions are not thread safe, so each worker thread of the pool reads through its own
+	 * session, opened on first use by impersonating the session the hash was requested on (so it
+	 * sees exactly the same content), and all logged out when the run is done.
+	 */
+	private Session requestSession;
+	private final ThreadLocal<Session> workerSession = new ThreadLocal<Session>();
+	private final List<Session> workerSessions = Collections.synchronizedList(new ArrayList<Session>());
 
 	/*
 	 * This is the 'full-scan' digester only used when doing a full tree scan in one single shot,
@@ -101,23 +125,40 @@ public class Sha256Service {
 		try {
 			// globalDigester = MessageDigest.getInstance(SHA_ALGO);
 			Node node = JcrUtil.findNode(session, nodeId);
-			byte[] rootHash = recurseNode(node);
+
+			/*
+			 * When MerkleHashEditorProvider is maintaining hashes on every commit, any hash that's
+			 * there is current, so we can just return it.
+			 */
+			if (!verify && appProp.getBooleanProp("merkleHashing.enabled") && node.hasProperty(JcrProp.MERKLE_HASH)) {
+				res.setHashInfo(node.getProperty(JcrProp.MERKLE_HASH).getString());
+				res.setSuccess(true);
+				return;
+			}
+
+			requestSession = session;
+			if (!verify) {
+				startWriter(node);
+			}
+
+			byte[] rootHash = hashInParallel(node.getPath());
 			if (rootHash == null) {
 				throw new RuntimeEx("no root hash data was able to be generated. Is this entier node protected?");
 			}
 
 			session.logout();
 
-			writeAllMerkleHashes();
-
 			/*
-			 * Note: rootHash will be correct even before any nodeIdToHashMap values are written out
-			 * onto the tree
+			 * Note: rootHash is correct even before the writer has caught up writing out all the
+			 * hashes onto the tree
 			 */
+			if (writer != null) {
+				writer.finish();
+			}
 
 			// byte[] hashBytes = globalDigester.digest();
 			String hash = Hex.encodeHexString(rootHash);
-			log.debug("Hash=" + hash + "\n   nodeCount=" + nodeCount + "\n   dataPointCount=" + (nonBinaryCount + binaryCount));
+			log.debug("Hash=" + hash + "\n   nodeCount=" + nodeCount + "\n   dataPointCount=" + (nonBinaryCount.get() + binaryCount.get()));
 			res.setHashInfo(hash);
 			success = true;
 		}
@@ -130,6 +171,11 @@ public class Sha256Service {
 			throw ExUtil.newEx(ex);
 		}
 		finally {
+			/* no-op if it finished, otherwise leaves the checkpoint for the next run */
+			if (writer != null) {
+				writer.abort();
+			}
+
 			if (trace) {
 				log.debug("TRACE: " + traceReport.toString());
 			}
@@ -138,21 +184,123 @@ public class Sha256Service {
 		res.setSuccess(success);
 	}
 
+	/*
+	 * The checkpoint file is named after the node being hashed, so only a rerun on that same node
+	 * resumes from it.
+	 */
+	private void startWriter(Node node) throws Exception {
+		File workFolder = new File(appProp.getAdminDataFolder(), "merkle");
+		String checkpointName = Hex.encodeHexString(MerkleUtil.newDigester().digest(node.getIdentifier().getBytes(StandardCharsets.UTF_8)));
+		File checkpointFile = new File(workFolder, checkpointName + ".checkpoint");
+
+		checkpointedPaths.addAll(MerkleHashWriter.readCheckpoints(checkpointFile));
+		if (checkpointedPaths.size() > 0) {
+			log.info("Resuming hash of " + node.getPath() + ", skipping " + checkpointedPaths.size() + " finished subtrees");
+		}
+
+		writer = new MerkleHashWriter(newWorkerSession(), //
+				appProp.getIntProp("merkleHashing.batchSize", 100), //
+				appProp.getIntProp("merkleHashing.spillThreshold", 50000), //
+				workFolder, checkpointFile);
+		writer.start();
+	}
+
+	/*
+	 * Runs the whole recursion in a pool of its own, sized by merkleHashing.threads (defaulting to
+	 * the number of cores), so a long verify can't starve the common pool other code may be using.
+	 */
+	private byte[] hashInParallel(String path) {
+		int threads = appProp.getIntProp("merkleHashing.threads", 0);
+		if (threads <= 0) {
+			threads = Runtime.getRuntime().availableProcessors();
+		}
+
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			return pool.invoke(new HashTask(path, 0));
+		}
+		finally {
+			pool.shutdownNow();
+			synchronized (workerSessions) {
+				for (Session session : workerSessions) {
+					session.logout();
+				}
+				workerSessions.clear();
+			}
+		}
+	}
+
+	private Session getWorkerSession() {
+		Session session = workerSession.get();
+		if (session == null) {
+			session = newWorkerSession();
+			workerSession.set(session);
+			workerSessions.add(session);
+		}
+		return session;
+	}
+
+	private Session newWorkerSession() {
+		try {
+			return requestSession.impersonate(new SimpleCredentials(requestSession.getUserID(), new char[0]));
+		}
+		catch (Exception ex) {
+			throw ExUtil.newEx(ex);
+		}
+	}
+
+	/*
+	 * Hashes one subtree, looking its root up by path in the session of whichever worker thread
+	 * runs it. Node objects never cross threads, only paths and hashes do.
+	 */
+	private class HashTask extends RecursiveTask<byte[]> {
+		private static final long serialVersionUID = 1L;
+
+		private final String path;
+		private final int depth;
+
+		HashTask(String path, int depth) {
+			this.path = path;
+			this.depth = depth;
+		}
+
+		@Override
+		protected byte[] compute() {
+			try {
+				byte[] hash = recurseNode(getWorkerSession().getNode(path), depth);
+
+				/* recurseNode has added the hashes of the entire subtree by now */
+				if (writer != null) {
+					writer.checkpoint(path);
+				}
+				return hash;
+			}
+			catch (Exception ex) {
+				throw ExUtil.newEx(ex);
+			}
+		}
+	}
+
 	/*
 	 * This is a depth-first recursion, so we hash all the children before we can has the node
 	 * itself. Basic Merkle-type algorithm, with the exception that Merkle doesn't normally include
 	 * node data in each hash, but we do here. Each recursion returns the hash of the 'node'.
+	 * <p>
+	 * Children that have children of their own (down to MAX_FORK_DEPTH) are forked so sibling
+	 * subtrees get hashed in parallel, and leaves are hashed inline. Either way the results are
+	 * collected in a list in child order and only digested after that, so the hash is the same no
+	 * matter which subtree finished first.
 	 */
-	private byte[] recurseNode(Node node) {
+	private byte[] recurseNode(Node node, int depth) {
 		if (node == null) return null;
-		nodeCount++;
+		nodeCount.incrementAndGet();
 
 		if (JcrUtil.isProtectedNode(node)) {
 			return null;
 		}
 
 		try {
-			MessageDigest digester = MessageDigest.getInstance(SHA_ALGO);
+			MessageDigest digester = MerkleUtil.newDigester();
 
 			/* then recursively process all children of the current node */
 			NodeIterator nodeIter;
@@ -163,30 +311,47 @@ public class Sha256Service {
 				throw ExUtil.newEx(ex);
 			}
 
-			try {
-				while (true) {
-					Node n = nodeIter.nextNode();
-					byte[] hashBytes = recurseNode(n);
+			/* each entry is either a forked HashTask, or the hash of a child done inline */
+			List<Object> childResults = new ArrayList<Object>();
+
+			while (nodeIter.hasNext()) {
+				Node n = nodeIter.nextNode();
+				if (MerkleUtil.isExcludedNode(n.getName(), n.getPrimaryNodeType().getName())) {
+					continue;
+				}
+
+				/* already hashed and saved by a previous run that didn't finish */
+				if (checkpointedPaths.contains(n.getPath()) && n.hasProperty(JcrProp.MERKLE_HASH)) {
+					childResults.add(Hex.decodeHex(n.getProperty(JcrProp.MERKLE_HASH).getString().toCharArray()));
+					continue;
+				}
+
+				if (depth < MAX_FORK_DEPTH && n.hasNodes()) {
+					childResults.add(new HashTask(n.getPath(), depth + 1).fork());
+				}
+				else {
+					childResults.add(recurseNode(n, depth + 1));
+				}
+			}
+
+			for (Object childResult : childResults) {
+				byte[] hashBytes = childResult instanceof HashTask ? ((HashTask) childResult).join() : (byte[]) childResult;
 
+				/*
+				 * If hashBytes is null it can mean the node was protected (repository managed
+				 * node) so we ignore this one
+				 */
+				if (hashBytes != null) {
 					/*
-					 * If hashBytes is null it can mean the node was protected (repository managed
-					 * node) so we ignore this one
+					 * Currently since each node doesn't internally store the hashes of all its
+					 * children, our live-updating (realtime-updating) of any node will be slow,
+					 * to the extent that when a node is rehashed at least its immediate
+					 * children will need to be collected and all their hash properties pulled.
+					 * But i'm leaving that for later as it is essentially an optimization step.
 					 */
-					if (hashBytes != null) {
-						/*
-						 * Currently since each node doesn't internally store the hashes of all its
-						 * children, our live-updating (realtime-updating) of any node will be slow,
-						 * to the extent that when a node is rehashed at least its immediate
-						 * children will need to be collected and all their hash properties pulled.
-						 * But i'm leaving that for later as it is essentially an optimization step.
-						 */
-						digester.update(hashBytes);
-					}
+					digester.update(hashBytes);
 				}
 			}
-			catch (NoSuchElementException ex) {
-				// not an error. Normal iterator end condition.
-			}
 
 			/* process the current node */
 			processNode(digester, node);
@@ -209,16 +374,11 @@ public class Sha256Service {
 			}
 			else {
 				/*
-				 * We check hash map return value from 'put' to make sure this ID is unique. JCR
-				 * should never allow non-unique but we still check.
-				 * 
 				 * todo-0: For mix:referencable nodes this getIdentifier is still a GUID right? Even
 				 * with the jcr:uuid value being a standard property value ? I'm 95% sure this is
 				 * correct, but I need to run tests to verify.
 				 */
-				if (nodeIdToHashMap.put(node.getIdentifier(), hashBytes) != null) {
-					throw new RuntimeEx("unexpected duplicate identifier encountered: " + node.getIdentifier());
-				}
+				writer.add(node.getIdentifier(), hashBytes);
 			}
 			return hashBytes;
 		}
@@ -251,20 +411,7 @@ public class Sha256Service {
 	}
 
 	private List<String> removeIgnoredProps(List<String> list) {
-		return list.stream().filter(item -> !ignoreProperty(item)).collect(Collectors.toList());
-	}
-
-	/*
-	 * todo-1: For verification of import/export we need to ignore these, but for DB replication in
-	 * P2P we wouldn't. todo-1: need to store these values in a HASH for fast lookup
-	 */
-	private boolean ignoreProperty(String propName) {
-		return JcrProp.CREATED.equals(propName) || //
-				JcrProp.LAST_MODIFIED.equals(propName) || //
-				JcrProp.CREATED_BY.equals(propName) || //
-				JcrProp.UUID.equals(propName) || //
-				JcrProp.MERKLE_HASH.equals(propName) || //
-				JcrProp.BIN_VER.equals(propName);
+		return list.stream().filter(item -> !MerkleUtil.isIgnoredProperty(item)).collect(Collectors.toList());
 	}
 
 	private void digestProperty(MessageDigest digester, Property prop) {
@@ -278,8 +425,8 @@ public class Sha256Service {
 			if (prop.isMultiple()) {
 
 				for (Value v : prop.getValues()) {
-					nonBinaryCount++;
-					nonBinarySize += updateDigest(digester, v);
+					nonBinaryCount.incrementAndGet();
+					nonBinarySize.addAndGet(updateDigest(digester, v));
 					if (trace) {
 						traceReport.append(" multiVal=" + v.getString() + "\n");
 					}
@@ -293,16 +440,19 @@ public class Sha256Service {
 				 * with arbitrary binary nodes.
 				 */
 				if (prop.getName().equals(JcrProp.BIN_DATA)) {
-					binaryCount++;
-					long thisBinarySize = updateDigest(digester, prop.getValue().getBinary().getStream());
-					binarySize += thisBinarySize;
+					binaryCount.incrementAndGet();
+					/* binary contributes the hash of its content (see MerkleUtil) */
+					Binary binary = prop.getValue().getBinary();
+					long thisBinarySize = binary.getSize();
+					updateDigest(digester, MerkleUtil.digestStream(binary.getStream()));
+					binarySize.addAndGet(thisBinarySize);
 					if (trace) {
 						traceReport.append(" binarySize=" + thisBinarySize + "\n");
 					}
 				}
 				else {
-					nonBinaryCount++;
-					nonBinarySize += updateDigest(digester, prop.getValue());
+					nonBinaryCount.incrementAndGet();
+					nonBinarySize.addAndGet(updateDigest(digester, prop.getValue()));
 					if (trace) {
 						traceReport.append(" Val=" + prop.getValue().getString() + "\n");
 					}
@@ -327,28 +477,6 @@ public class Sha256Service {
 		}
 	}
 
-	/* digest entire stream AND close the stream. */
-	private long updateDigest(MessageDigest digester, InputStream inputStream) {
-		long dataLen = 0;
-		BufferedInputStream bis = null;
-
-		try {
-			/* Wrap stream if it's not alrady a buffered one */
-			bis = (inputStream instanceof BufferedInputStream) ? (BufferedInputStream) inputStream : new BufferedInputStream(inputStream);
-			byte[] bytes = IOUtils.toByteArray(inputStream);
-			dataLen = bytes.length;
-			updateDigest(digester, bytes);
-		}
-		catch (IOException ex) {
-			throw ExUtil.newEx(ex);
-		}
-		finally {
-			StreamUtil.close(bis);
-		}
-
-		return dataLen;
-	}
-
 	private long updateDigest(MessageDigest digester, Value v) {
 		byte[] bytes = valueToBytes(v);
 		updateDigest(digester, bytes);
@@ -369,84 +497,4 @@ public class Sha256Service {
 		// globalDigester.update(bytes);
 		digester.update(bytes);
 	}
-
-	/**
-	 * This method will write out all the merkle values calculated for each node ONTO the node. If
-	 * this happens to be the first time the Sha256 is run on this node, it will write all the
-	 * merkle values, but upon successive processing of the same tree nodes repeatedly, this writes
-	 * only the values it needs to write, and for example if the subgraph has not changed at all
-	 * then it will not do any writing at all. All Merkle values will end up being the same.
-	 * <p>
-	 * So interestingly if we wanted to this algorithm is doing a full node-by-node (change
-	 * detection since last run) on the tree merely as a nice side-effect. So we can leverage this
-	 * in many powerful ways going forward, including things like efficient synchronization of
-	 * remote repository subgraphs, etc.
-	 */
-	private void writeAllMerkleHashes() {
-		/*
-		 * If we are only doing a verify of the tree, then we don't update the merkle property
-		 */
-		if (verify) return;
-
-		// todo-0: Once a bit more testing is done, i can boost this batch size to a more reasonable
-		// number like 100 or several hundered (1000s?).
-		int maxBatchSize = 10;
-
-		adminRunner.run((Session session) -> {
-			try {
-				int curBatchSize = 0;
-				int batchNumber = 0;
-				int identicalCount = 0;
-				int changeCount = 0;
-
-				for (Map.Entry<String, byte[]> entry : nodeIdToHashMap.entrySet()) {
-					String nodeId = entry.getKey();
-					Node node = JcrUtil.findNode(session, nodeId);
-					String merkleHash = Hex.encodeHexString(entry.getValue());
-
-					/* get existing merkle hash from node */
-					String prevMerkleHash = JcrUtil.safeGetStringProp(node, JcrProp.MERKLE_HASH);
-
-					/*
-					 * only write the merkle hash if it's changed (otherwise would have no effect)
-					 */
-					if (!merkleHash.equals(prevMerkleHash)) {
-
-						/* only attemp to set merkle if node is not repository-controlled */
-						if (!JcrUtil.isProtectedNode(node)) {
-							changeCount++;
-							log.debug("Writing merkle to: " + node.getPath() + " type=" + node.getPrimaryNodeType().getName());
-							node.setProperty(JcrProp.MERKLE_HASH, merkleHash);
-
-							if (++curBatchSize >= maxBatchSize) {
-								curBatchSize = 0;
-								log.debug("Saving Batch " + String.valueOf(++batchNumber));
-								session.save();
-							}
-						}
-						else {
-							identicalCount++;
-						}
-					}
-					else {
-						identicalCount++;
-					}
-				}
-
-				/* write remainder of last batch */
-				if (curBatchSize > 0) {
-					curBatchSize = 0;
-					log.debug("Saving Batch " + String.valueOf(++batchNumber));
-					session.save();
-				}
-
-				log.info("All Merkle Hashes successfully written.\n" + //
-				"Change count=" + String.valueOf(changeCount) + "\n" + //
-				"Identical count=" + String.valueOf(identicalCount));
-			}
-			catch (Exception ex) {
-				throw ExUtil.newEx(ex);
-			}
-		});
-	}
 }
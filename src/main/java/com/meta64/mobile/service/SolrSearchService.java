@@ -3,6 +3,7 @@ package com.meta64.mobile.service;
 import java.util.LinkedList;
 import java.util.List;
 
+import javax.annotation.PreDestroy;
 import javax.jcr.Node;
 import javax.jcr.Session;
 
@@ -31,6 +32,7 @@ import com.meta64.mobile.response.FileSearchResponse;
 import com.meta64.mobile.user.UserManagerUtil;
 import com.meta64.mobile.util.ExUtil;
 import com.meta64.mobile.util.JcrUtil;
+import com.meta64.mobile.util.StreamUtil;
 import com.meta64.mobile.util.ThreadLocals;
 
 /**
@@ -49,6 +51,25 @@ public class SolrSearchService {
 	@Autowired
 	private AppProp appProp;
 
+	@Autowired
+	private HttpClientService httpClientService;
+
+	/* lazily created, and shares the connection pool of the HttpClientService */
+	private SolrClient solrClient;
+
+	private synchronized SolrClient getSolrClient() {
+		if (solrClient == null) {
+			solrClient = new HttpSolrClient.Builder(appProp.getSolrSearchHost()).withHttpClient(httpClientService.getClient()).build();
+		}
+		return solrClient;
+	}
+
+	@PreDestroy
+	public void preDestroy() {
+		/* Note: closing the SolrClient doesn't close the HttpClient we gave it */
+		StreamUtil.close(solrClient);
+	}
+
 	public void search(Session session, FileSearchRequest req, FileSearchResponse res) {
 		try {
 			if (session == null) {
@@ -59,7 +80,7 @@ public class SolrSearchService {
 				throw ExUtil.newEx("File system search is not enabled on the server.");
 			}
 
-			SolrClient solr = new HttpSolrClient.Builder(appProp.getSolrSearchHost()).build();
+			SolrClient solr = getSolrClient();
 
 			SolrQuery query = new SolrQuery();
 			query.setQuery(req.getSearchText());
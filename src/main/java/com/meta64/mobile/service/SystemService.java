@@ -22,6 +22,9 @@ public class SystemService {
 	@Autowired
 	private RssService rssService;
 
+	@Autowired
+	private HttpClientService httpClientService;
+
 	/*
 	 * We are using VisualVM to monitor memory usage on the server and so for now I want to be able
 	 * to have GC called regularly (despite that being completely unnecessary from a functional
@@ -61,6 +64,8 @@ public class SystemService {
 		sb.append("<hr>");
 		sb.append(rssService.getStatusText());
 		sb.append("<hr>");
+		sb.append(httpClientService.getStatusText());
+		sb.append("<hr>");
 		sb.append(getIpReport());
 		return sb.toString();
 	}
@@ -0,0 +1,102 @@
+package com.meta64.mobile.util;
+
+import javax.jcr.Node;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.meta64.mobile.config.JcrProp;
+import com.meta64.mobile.image.ImageUtil;
+
+/**
+ * Compact descriptor of a node's binary attachment (version, width, height, mime type) stored as a
+ * single string property (JcrProp.BIN_META), so that rendering a node can get all of it in one
+ * property read rather than four.
+ * <p>
+ * The encoded form is "version|width|height|mimeType". The mime type goes last, because it's the
+ * only part that's free text. Width and height are zero for non-images.
+ * <p>
+ * The separate BIN_VER, BIN_MIME, IMG_WIDTH, IMG_HEIGHT properties are still written too, because
+ * the client and other code still use them.
+ */
+public class BinaryMeta {
+	private static final Logger log = LoggerFactory.getLogger(BinaryMeta.class);
+
+	private long version;
+	private int width;
+	private int height;
+	private String mimeType;
+
+	public BinaryMeta(long version, int width, int height, String mimeType) {
+		this.version = version;
+		this.width = width;
+		this.height = height;
+		this.mimeType = mimeType;
+	}
+
+	/*
+	 * Returns the descriptor stored on the node or null if there isn't one (no binary, or a legacy
+	 * binary written before we had descriptors)
+	 */
+	public static BinaryMeta read(Node node) {
+		try {
+			if (!node.hasProperty(JcrProp.BIN_META)) {
+				return null;
+			}
+			return parse(node.getProperty(JcrProp.BIN_META).getString());
+		}
+		catch (Exception ex) {
+			throw ExUtil.newEx(ex);
+		}
+	}
+
+	public void write(Node node) {
+		try {
+			node.setProperty(JcrProp.BIN_META, encode());
+		}
+		catch (Exception ex) {
+			throw ExUtil.newEx(ex);
+		}
+	}
+
+	/* returns null if 'val' is not a valid descriptor */
+	public static BinaryMeta parse(String val) {
+		if (val == null) return null;
+		String[] parts = val.split("\\|", 4);
+		if (parts.length != 4) {
+			log.debug("Bad binary meta: " + val);
+			return null;
+		}
+		try {
+			return new BinaryMeta(Long.parseLong(parts[0]), Integer.parseInt(parts[1]), Integer.parseInt(parts[2]), parts[3]);
+		}
+		catch (NumberFormatException e) {
+			log.debug("Bad binary meta: " + val);
+			return null;
+		}
+	}
+
+	public String encode() {
+		return version + "|" + width + "|" + height + "|" + (mimeType != null ? mimeType : "");
+	}
+
+	public boolean isImage() {
+		return ImageUtil.isImageMime(mimeType);
+	}
+
+	public long getVersion() {
+		return version;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public String getMimeType() {
+		return mimeType;
+	}
+}
@@ -1,8 +0,0 @@
-package com.meta64.mobile.util;
-
-public class CompareFailedException extends RuntimeEx {
-
-	public CompareFailedException(String msg) {
-		super(msg);
-	}
-}
@@ -16,6 +16,7 @@ import javax.jcr.security.Privilege;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
@@ -30,6 +31,7 @@ import com.meta64.mobile.model.NodeInfo;
 import com.meta64.mobile.model.PrivilegeInfo;
 import com.meta64.mobile.model.PropertyInfo;
 import com.meta64.mobile.model.UserPreferences;
+import com.meta64.mobile.service.BinaryMetaDaemon;
 
 /**
  * Converting objects from one type to another, and formatting.
@@ -44,6 +46,9 @@ public class Convert {
 	@org.springframework.beans.factory.annotation.Value("${donateButton}")
 	private String donateButton;
 
+	@Autowired
+	private BinaryMetaDaemon binaryMetaDaemon;
+
 	public static final PropertyInfoComparator propertyInfoComparator = new PropertyInfoComparator();
 
 	private static final Logger log = LoggerFactory.getLogger(Convert.class);
@@ -94,16 +99,18 @@ public class Convert {
 	public NodeInfo convertToNodeInfo(SessionContext sessionContext, Session session, Node node, boolean htmlOnly, boolean allowAbbreviated, boolean initNodeEdit) {
 		boolean hasBinary = false;
 		boolean binaryIsImage = false;
-		ImageSize imageSize = null;
+		long binVer = 0;
+		int width = 0;
+		int height = 0;
 
-		long binVer = getBinaryVersion(node);
-		if (binVer > 0) {
-			/* if we didn't get an exception, we know we have a binary */
+		BinaryMeta binMeta = getBinaryMeta(node);
+		if (binMeta != null) {
 			hasBinary = true;
-			binaryIsImage = isImageAttached(node);
-
+			binVer = binMeta.getVersion();
+			binaryIsImage = binMeta.isImage();
 			if (binaryIsImage) {
-				imageSize = getImageSize(node);
+				width = binMeta.getWidth();
+				height = binMeta.getHeight();
 			}
 		}
 
@@ -123,9 +130,7 @@ public class Convert {
 
 		try {
 			NodeInfo nodeInfo = new NodeInfo(node.getIdentifier(), node.getPath(), node.getName(), propList, hasNodes, false, hasBinary, binaryIsImage, binVer, //
-					imageSize != null ? imageSize.getWidth() : 0, //
-					imageSize != null ? imageSize.getHeight() : 0, //
-					primaryTypeName);
+					width, height, primaryTypeName);
 			return nodeInfo;
 		}
 		catch (Exception ex) {
@@ -133,16 +138,45 @@ public class Convert {
 		}
 	}
 
+	/*
+	 * Gets the binary info from the BIN_META descriptor in one property read. For legacy nodes
+	 * which don't have the descriptor yet we read the individual properties, and queue the node
+	 * for the BinaryMetaDaemon to write the descriptor, so next time it's fast. Returns null if
+	 * there's no binary on this node.
+	 */
+	public BinaryMeta getBinaryMeta(Node node) {
+		try {
+			BinaryMeta binMeta = BinaryMeta.read(node);
+			if (binMeta != null || !node.hasProperty(JcrProp.BIN_VER)) {
+				return binMeta;
+			}
+
+			String mimeType = node.hasProperty(JcrProp.BIN_MIME) ? node.getProperty(JcrProp.BIN_MIME).getString() : null;
+			int width = 0;
+			int height = 0;
+			if (ImageUtil.isImageMime(mimeType)) {
+				ImageSize imageSize = getImageSize(node);
+				width = imageSize.getWidth();
+				height = imageSize.getHeight();
+			}
+
+			binaryMetaDaemon.queue(node.getIdentifier());
+			return new BinaryMeta(node.getProperty(JcrProp.BIN_VER).getLong(), width, height, mimeType);
+		}
+		catch (Exception ex) {
+			throw ExUtil.newEx(ex);
+		}
+	}
+
+	/* Returns zero if node has no binary attachment */
 	public static long getBinaryVersion(Node node) {
 		try {
-			Property versionProperty = node.getProperty(JcrProp.BIN_VER);
-			if (versionProperty != null) {
-				return versionProperty.getValue().getLong();
+			if (node.hasProperty(JcrProp.BIN_VER)) {
+				return node.getProperty(JcrProp.BIN_VER).getValue().getLong();
 			}
 		}
 		catch (Exception e) {
-			// if we catch this exception here it's perfectly normal and just means this node has no
-			// binary attachment.
+			log.debug("Unable to read binary version: " + e.getMessage());
 		}
 		return 0;
 	}
@@ -151,14 +185,12 @@ public class Convert {
 		try {
 			ImageSize imageSize = new ImageSize();
 
-			Property widthProperty = node.getProperty(JcrProp.IMG_WIDTH);
-			if (widthProperty != null) {
-				imageSize.setWidth((int) widthProperty.getValue().getLong());
+			if (node.hasProperty(JcrProp.IMG_WIDTH)) {
+				imageSize.setWidth((int) node.getProperty(JcrProp.IMG_WIDTH).getValue().getLong());
 			}
 
-			Property heightProperty = node.getProperty(JcrProp.IMG_HEIGHT);
-			if (heightProperty != null) {
-				imageSize.setHeight((int) heightProperty.getValue().getLong());
+			if (node.hasProperty(JcrProp.IMG_HEIGHT)) {
+				imageSize.setHeight((int) node.getProperty(JcrProp.IMG_HEIGHT).getValue().getLong());
 			}
 			return imageSize;
 		}
@@ -169,6 +201,9 @@ public class Convert {
 
 	public static boolean isImageAttached(Node node) {
 		try {
+			if (!node.hasProperty(JcrProp.BIN_MIME)) {
+				return false;
+			}
 			Property mimeTypeProp = node.getProperty(JcrProp.BIN_MIME);
 			return (mimeTypeProp != null && //
 					mimeTypeProp.getValue() != null && //
@@ -1,15 +1,16 @@
 package com.meta64.mobile.util;
 
-import java.awt.image.BufferedImage;
 import java.io.InputStream;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.NoSuchElementException;
 import java.util.UUID;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 import javax.jcr.Binary;
 import javax.jcr.Node;
 import javax.jcr.NodeIterator;
@@ -71,6 +72,9 @@ public class JcrUtil {
 		nonSavableProperties.add(JcrProp.BIN_MIME);
 		nonSavableProperties.add(JcrProp.IMG_HEIGHT);
 		nonSavableProperties.add(JcrProp.IMG_WIDTH);
+		nonSavableProperties.add(JcrProp.BIN_META);
+		nonSavableProperties.add(JcrProp.BIN_HASH);
+		nonSavableProperties.add(JcrProp.MERKLE_HASH);
 	}
 
 	// todo-1: could I be using the same instance everywhere here (like singleton pattern?)
@@ -99,19 +103,31 @@ public class JcrUtil {
 		}
 	}
 
+	/*
+	 * Gets the size from just the image header, so we don't decode the entire image only to find
+	 * out how big it is.
+	 */
 	public ImageSize getImageSizeFromBinary(Binary binary) {
 		try {
 			InputStream is = null;
+			ImageInputStream iis = null;
+			ImageReader reader = null;
 			try {
 				is = binary.getStream();
-				BufferedImage image = ImageIO.read(is);
+				iis = ImageIO.createImageInputStream(is);
+				Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+				if (!readers.hasNext()) {
+					throw ExUtil.newEx("Unable to read image.");
+				}
+				reader = readers.next();
+				reader.setInput(iis, true, true);
 				ImageSize ret = new ImageSize();
-				ret.width = image.getWidth();
-				ret.height = image.getHeight();
+				ret.width = reader.getWidth(0);
+				ret.height = reader.getHeight(0);
 				return ret;
 			}
 			finally {
-				StreamUtil.close(is);
+				StreamUtil.close(reader, iis, is);
 			}
 		}
 		catch (Exception ex) {
@@ -166,6 +182,13 @@ public class JcrUtil {
 	 */
 	public static Node safeFindNode(Session session, String id) {
 		try {
+			/*
+			 * Check existence first for paths so a missing node doesn't cost us an exception. There's
+			 * no equivalent check for identifiers, so those still rely on the catch below
+			 */
+			if (id.startsWith("/") && !session.nodeExists(id)) {
+				return null;
+			}
 			return findNode(session, id);
 		}
 		catch (Exception e) {
@@ -186,23 +209,18 @@ public class JcrUtil {
 		try {
 			NodeIterator nodeIter = getNodes(parentNode);
 			Node node = null;
-			try {
-				while (true) {
-					Node n = nodeIter.nextNode();
-
-					if (!includeSystemNodes) {
-						NodeType nodeType = n.getPrimaryNodeType();
-						if (nodeType.getName().startsWith("rep:")) {
-							continue;
-						}
-					}
+			while (nodeIter.hasNext()) {
+				Node n = nodeIter.nextNode();
 
-					node = n;
-					break;
+				if (!includeSystemNodes) {
+					NodeType nodeType = n.getPrimaryNodeType();
+					if (nodeType.getName().startsWith("rep:")) {
+						continue;
+					}
 				}
-			}
-			catch (NoSuchElementException ex) {
-				// not an error. Normal iterator end condition.
+
+				node = n;
+				break;
 			}
 
 			return node;
@@ -251,21 +269,16 @@ public class JcrUtil {
 			NodeIterator nodeIter = getNodes(parentNode);
 			boolean foundNode = false;
 
-			try {
-				while (true) {
-					Node n = nodeIter.nextNode();
-					// log.debug(" NAME: " + n.getName());
-					if (foundNode) {
-						ret = n;
-						break;
-					}
-					if (n.getName().equals(nodeName)) {
-						foundNode = true;
-					}
+			while (nodeIter.hasNext()) {
+				Node n = nodeIter.nextNode();
+				// log.debug(" NAME: " + n.getName());
+				if (foundNode) {
+					ret = n;
+					break;
+				}
+				if (n.getName().equals(nodeName)) {
+					foundNode = true;
 				}
-			}
-			catch (NoSuchElementException ex) {
-				// not an error. Normal iterator end condition.
 			}
 			if (ret == null) {
 				log.debug("didn't find a node below: " + nodeName);
@@ -295,19 +308,14 @@ public class JcrUtil {
 			NodeIterator nodeIter = getNodes(parentNode);
 			Node lastNode = null;
 
-			try {
-				while (true) {
-					Node n = nodeIter.nextNode();
-					// log.debug(" NAME: " + n.getName());
-					if (n.getName().equals(nodeName)) {
-						ret = lastNode;
-						break;
-					}
-					lastNode = n;
+			while (nodeIter.hasNext()) {
+				Node n = nodeIter.nextNode();
+				// log.debug(" NAME: " + n.getName());
+				if (n.getName().equals(nodeName)) {
+					ret = lastNode;
+					break;
 				}
-			}
-			catch (NoSuchElementException ex) {
-				// not an error. Normal iterator end condition.
+				lastNode = n;
 			}
 
 			if (ret == null) {
@@ -403,16 +411,11 @@ public class JcrUtil {
 			}
 
 			NodeIterator nodeIter = getNodes(node);
-			try {
-				while (true) {
-					if (nodeVisibleInSimpleMode(nodeIter.nextNode())) {
-						return true;
-					}
+			while (nodeIter.hasNext()) {
+				if (nodeVisibleInSimpleMode(nodeIter.nextNode())) {
+					return true;
 				}
 			}
-			catch (NoSuchElementException ex) {
-				// not an error. Normal iterator end condition.
-			}
 			return false;
 		}
 		catch (Exception ex) {
@@ -528,7 +531,7 @@ public class JcrUtil {
 
 	public static Node getNodeByPath(Session session, String path) {
 		try {
-			return session.getNode(path);
+			return session.nodeExists(path) ? session.getNode(path) : null;
 		}
 		catch (Exception e) {
 			// do nothing. Not error condition. Means allUsersRoot is not found,
@@ -566,12 +569,13 @@ public class JcrUtil {
 	}
 
 	/*
-	 * Gets property or returns null of no propery by that name can be retrieved
+	 * Deletes property if it exists, and does nothing otherwise
 	 */
 	public static void safeDeleteProperty(Node node, String propName) {
 		try {
-			Property prop = node.getProperty(propName);
-			prop.remove();
+			if (node.hasProperty(propName)) {
+				node.getProperty(propName).remove();
+			}
 		}
 		catch (Exception e) {
 			// do nothing. property wasn't found.
@@ -583,7 +587,7 @@ public class JcrUtil {
 	 */
 	public static Property getProperty(Node node, String propName) {
 		try {
-			return node.getProperty(propName);
+			return node.hasProperty(propName) ? node.getProperty(propName) : null;
 		}
 		catch (Exception e) {
 			return null;
@@ -602,9 +606,18 @@ public class JcrUtil {
 		}
 	}
 
+	/*
+	 * Returns null if property doesn't exist. We check hasProperty first rather than letting
+	 * getProperty throw, because this gets called for every node rendered and exceptions are far too
+	 * expensive to use for what is a normal condition. The catch is still needed for other failures
+	 * (multi-valued property etc).
+	 */
 	public static String safeGetStringProp(Node node, String propName) {
 		try {
-			return getRequiredStringProp(node, propName);
+			if (!node.hasProperty(propName)) {
+				return null;
+			}
+			return node.getProperty(propName).getValue().getString();
 		}
 		catch (Exception e) {
 			return null;
@@ -622,13 +635,29 @@ public class JcrUtil {
 
 	public static boolean safeGetBooleanProp(Node node, String propName) {
 		try {
-			return getRequiredBooleanProp(node, propName);
+			if (!node.hasProperty(propName)) {
+				return false;
+			}
+			return node.getProperty(propName).getValue().getBoolean();
 		}
 		catch (Exception e) {
 			return false;
 		}
 	}
 
+	/* Returns defaultVal if the property doesn't exist or isn't a long */
+	public static long safeGetLongProp(Node node, String propName, long defaultVal) {
+		try {
+			if (!node.hasProperty(propName)) {
+				return defaultVal;
+			}
+			return node.getProperty(propName).getValue().getLong();
+		}
+		catch (Exception e) {
+			return defaultVal;
+		}
+	}
+
 	/* Returns list of property names or null of there are none */
 	public static List<String> getPropertyNames(Node node, boolean ordered) throws RepositoryException {
 		List<String> names = null;
@@ -0,0 +1,91 @@
+package com.meta64.mobile.util;
+
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.HashSet;
+import java.util.Set;
+
+import com.meta64.mobile.config.JcrProp;
+
+/**
+ * The parts of the Merkle hash definition that have to be identical between Sha256Service (full
+ * recursive scan using JCR) and MerkleHashEditorProvider (incremental, inside Oak commits), so that
+ * either one can verify hashes written by the other.
+ * <p>
+ * A node's hash is the SHA-256 of: the hashes of its (non excluded) children in child order, then for
+ * each (non ignored) property sorted by name the name and value(s) as UTF-8 strings, and finally
+ * "type" and the primary type name. A binary (BIN_DATA) contributes the SHA-256 of its content
+ * rather than the content itself, which is stored on the node as BIN_HASH so it's only ever computed
+ * once per upload.
+ */
+public class MerkleUtil {
+	public static final String SHA_ALGO = "SHA-256";
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/* digestStream runs on many threads at once when Sha256Service hashes in parallel */
+	private static final ThreadLocal<byte[]> buffers = ThreadLocal.withInitial(() -> new byte[BUFFER_SIZE]);
+
+	private static final Set<String> ignoredProps = new HashSet<String>();
+
+	static {
+		/*
+		 * todo-1: For verification of import/export we need to ignore these, but for DB replication
+		 * in P2P we wouldn't.
+		 */
+		ignoredProps.add(JcrProp.CREATED);
+		ignoredProps.add(JcrProp.LAST_MODIFIED);
+		ignoredProps.add(JcrProp.CREATED_BY);
+		ignoredProps.add(JcrProp.UUID);
+		ignoredProps.add(JcrProp.MERKLE_HASH);
+		ignoredProps.add(JcrProp.BIN_HASH);
+		ignoredProps.add(JcrProp.BIN_META);
+		ignoredProps.add(JcrProp.BIN_VER);
+	}
+
+	public static boolean isIgnoredProperty(String propName) {
+		return ignoredProps.contains(propName);
+	}
+
+	/*
+	 * Nodes that are never hashed and don't contribute to their parent's hash: repository managed
+	 * (rep:*) nodes like ACLs, and the index and system trees, which change constantly on their own.
+	 */
+	public static boolean isExcludedNode(String name, String primaryType) {
+		return (primaryType != null && primaryType.startsWith("rep:")) || //
+				name.startsWith(":") || //
+				name.equals("oak:index") || //
+				name.equals("jcr:system");
+	}
+
+	public static MessageDigest newDigester() {
+		try {
+			return MessageDigest.getInstance(SHA_ALGO);
+		}
+		catch (Exception ex) {
+			throw ExUtil.newEx(ex);
+		}
+	}
+
+	/*
+	 * Returns SHA-256 of the entire stream, and closes the stream. The content is never held in
+	 * memory, only one buffer at a time, and the buffer is reused per thread.
+	 */
+	public static byte[] digestStream(InputStream is) {
+		try {
+			MessageDigest digester = newDigester();
+			byte[] buffer = buffers.get();
+			int count;
+			while ((count = is.read(buffer)) != -1) {
+				digester.update(buffer, 0, count);
+			}
+			return digester.digest();
+		}
+		catch (Exception ex) {
+			throw ExUtil.newEx(ex);
+		}
+		finally {
+			StreamUtil.close(is);
+		}
+	}
+}
@@ -21,6 +21,39 @@ public class MimeUtil {
 		return false;
 	}
 
+	/*
+	 * True for file types whose content is already compressed, so compressing them again (like
+	 * putting them in a zip) wouldn't make them any smaller
+	 */
+	public boolean isCompressedFileName(String fileName) {
+		if (!fileName.contains(".")) return false;
+
+		String ext = XString.parseAfterLast(fileName, ".").toLowerCase();
+		switch (ext) {
+		case "jpg":
+		case "jpeg":
+		case "png":
+		case "gif":
+		case "webp":
+		case "mp3":
+		case "m4a":
+		case "ogg":
+		case "mp4":
+		case "m4v":
+		case "webm":
+		case "mov":
+		case "zip":
+		case "gz":
+		case "bz2":
+		case "7z":
+		case "xz":
+		case "pdf":
+			return true;
+		default:
+			return false;
+		}
+	}
+
 	public boolean isJsonFileType(String fileName) {
 		if (!fileName.contains(".")) return false;
 		if (fileName.toLowerCase().endsWith(".json.txt")) return true;
@@ -0,0 +1,239 @@
+package com.meta64.mobile.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.parallel.InputStreamSupplier;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes a zip file with the compression spread over several threads. Whoever is adding entries
+ * (the reader) only has to produce them, a pool of workers builds and deflates each small entry
+ * into memory in parallel, and a single writer thread appends the finished entries to the file as
+ * raw (already compressed) data, in the same order they were added.
+ * <p>
+ * Entries are handed from the reader to the writer through a bounded queue, so the reader waits if
+ * it gets too far ahead and memory stays bounded. Large entries are not held in memory at all: the
+ * writer streams them into the file itself when their turn comes.
+ * <p>
+ * Entries added with compress=false are STORED, which is what we want for content that's already
+ * compressed (images, audio, video, archives) since deflating it again only burns CPU.
+ */
+public class ParallelZipWriter {
+	private static final Logger log = LoggerFactory.getLogger(ParallelZipWriter.class);
+
+	private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+	/* marks the end of the queue */
+	private static final Future<Entry> END = CompletableFuture.completedFuture(null);
+
+	private final ZipArchiveOutputStream zos;
+	private final ExecutorService workers;
+	private final BlockingQueue<Future<Entry>> queue;
+	private final Thread writerThread;
+
+	/* reused for every entry the writer streams */
+	private final byte[] copyBuffer = new byte[COPY_BUFFER_SIZE];
+
+	private volatile Exception failure;
+
+	/* size of the entries written to the file so far, for progress reporting */
+	private volatile long bytesWritten;
+
+	private static class Entry {
+		String name;
+		boolean compress;
+
+		/* set for entries built by a worker */
+		byte[] rawData;
+		long size;
+		long crc;
+
+		/* set for entries streamed by the writer */
+		InputStreamSupplier stream;
+	}
+
+	public ParallelZipWriter(File zipFile, int threads) {
+		try {
+			/* writing to a File (not a stream) lets STORED entries go out without knowing the CRC up front */
+			zos = new ZipArchiveOutputStream(zipFile);
+		}
+		catch (Exception ex) {
+			throw ExUtil.newEx(ex);
+		}
+
+		workers = Executors.newFixedThreadPool(threads);
+		queue = new ArrayBlockingQueue<Future<Entry>>(threads * 4);
+		writerThread = new Thread(this::writeEntries, "ParallelZipWriter");
+		writerThread.start();
+	}
+
+	/*
+	 * Adds an entry whose content is produced (by 'content') and compressed on one of the worker
+	 * threads. Only for content small enough to hold in memory.
+	 */
+	public void addEntry(String name, boolean compress, Callable<byte[]> content) {
+		enqueue(workers.submit(() -> buildEntry(name, compress, content.call())));
+	}
+
+	/* Adds an entry the writer thread will stream into the file, for content too large for memory */
+	public void addStreamedEntry(String name, boolean compress, InputStreamSupplier stream) {
+		Entry entry = new Entry();
+		entry.name = name;
+		entry.compress = compress;
+		entry.stream = stream;
+		enqueue(CompletableFuture.completedFuture(entry));
+	}
+
+	private void enqueue(Future<Entry> future) {
+		try {
+			while (!queue.offer(future, 1, TimeUnit.SECONDS)) {
+				checkFailure();
+			}
+			checkFailure();
+		}
+		catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw ExUtil.newEx(ex);
+		}
+	}
+
+	private void checkFailure() {
+		if (failure != null) {
+			throw ExUtil.newEx(failure);
+		}
+	}
+
+	private Entry buildEntry(String name, boolean compress, byte[] data) {
+		Entry entry = new Entry();
+		entry.name = name;
+		entry.compress = compress;
+		entry.size = data.length;
+
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		entry.crc = crc.getValue();
+
+		if (!compress) {
+			entry.rawData = data;
+			return entry;
+		}
+
+		/* 'nowrap' gives the raw deflate data that goes into a zip entry */
+		Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		try {
+			deflater.setInput(data);
+			deflater.finish();
+
+			ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, data.length / 2));
+			byte[] buf = new byte[8192];
+			while (!deflater.finished()) {
+				int count = deflater.deflate(buf);
+				out.write(buf, 0, count);
+			}
+			entry.rawData = out.toByteArray();
+		}
+		finally {
+			deflater.end();
+		}
+		return entry;
+	}
+
+	private void writeEntries() {
+		try {
+			while (true) {
+				Future<Entry> future = queue.take();
+				if (future == END) break;
+				writeEntry(future.get());
+			}
+		}
+		catch (Exception ex) {
+			failure = ex;
+			ExUtil.error(log, "Writing zip failed.", ex);
+
+			/* let the reader finish whatever it's putting in */
+			queue.clear();
+		}
+	}
+
+	private void writeEntry(Entry entry) throws Exception {
+		ZipArchiveEntry zipEntry = new ZipArchiveEntry(entry.name);
+		zipEntry.setMethod(entry.compress ? ZipEntry.DEFLATED : ZipEntry.STORED);
+
+		if (entry.stream != null) {
+			InputStream is = null;
+			try {
+				is = entry.stream.get();
+				zos.putArchiveEntry(zipEntry);
+				IOUtils.copyLarge(is, zos, copyBuffer);
+				zos.closeArchiveEntry();
+				bytesWritten += zipEntry.getCompressedSize();
+			}
+			finally {
+				StreamUtil.close(is);
+			}
+		}
+		else {
+			zipEntry.setSize(entry.size);
+			zipEntry.setCompressedSize(entry.rawData.length);
+			zipEntry.setCrc(entry.crc);
+			zos.addRawArchiveEntry(zipEntry, new ByteArrayInputStream(entry.rawData));
+			bytesWritten += entry.rawData.length;
+		}
+	}
+
+	public long getBytesWritten() {
+		return bytesWritten;
+	}
+
+	/* Waits for everything added to be written, and closes the file. Throws if anything failed */
+	public void close() {
+		try {
+			enqueue(END);
+			writerThread.join();
+			checkFailure();
+			zos.finish();
+		}
+		catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw ExUtil.newEx(ex);
+		}
+		catch (Exception ex) {
+			throw ExUtil.newEx(ex);
+		}
+		finally {
+			workers.shutdownNow();
+			StreamUtil.close(zos);
+		}
+	}
+
+	/* Stops without finishing the file, which the caller should then delete */
+	public void abort() {
+		workers.shutdownNow();
+		writerThread.interrupt();
+		try {
+			writerThread.join();
+		}
+		catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		StreamUtil.close(zos);
+	}
+}
@@ -1,11 +1,11 @@
 package com.meta64.mobile.util;
 
-import java.io.BufferedInputStream;
 import java.io.Closeable;
 import java.io.InputStream;
 
 import javax.imageio.ImageReader;
 
+import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -17,9 +17,16 @@ import org.slf4j.LoggerFactory;
 public class StreamUtil {
 	private static final Logger log = LoggerFactory.getLogger(StreamUtil.class);
 
+	private static final int COMPARE_BUFFER_SIZE = 64 * 1024;
+
+	private static final ThreadLocal<byte[][]> compareBuffers = ThreadLocal.withInitial(() -> new byte[][] { new byte[COMPARE_BUFFER_SIZE], new byte[COMPARE_BUFFER_SIZE] });
+
 	public static void close(Object... objects) {
 		for (Object obj : objects) {
-			if (obj instanceof Closeable) {
+			if (obj == null) {
+				continue;
+			}
+			else if (obj instanceof Closeable) {
 				try {
 					((Closeable) obj).close();
 				}
@@ -41,46 +48,44 @@ public class StreamUtil {
 		}
 	}
 
+	/*
+	 * Compares the two streams a chunk at a time, using two buffers that are reused per thread, so
+	 * comparing large binaries takes the same small amount of memory as small ones. Closes both
+	 * streams.
+	 */
 	public static boolean streamsIdentical(InputStream a, InputStream b) {
-
-		/* wrap in Buffered streams only if not currently buffered */
-		BufferedInputStream aBuffered = (a instanceof BufferedInputStream) ? (BufferedInputStream) a : new BufferedInputStream(a);
-		BufferedInputStream bBuffered = (b instanceof BufferedInputStream) ? (BufferedInputStream) b : new BufferedInputStream(b);
+		byte[][] buffers = compareBuffers.get();
+		byte[] aBuf = buffers[0];
+		byte[] bBuf = buffers[1];
 
 		try {
-			int aByte, bByte;
+			while (true) {
+				/* IOUtils.read fills the whole buffer unless the stream ends */
+				int aCount = IOUtils.read(a, aBuf);
+				int bCount = IOUtils.read(b, bBuf);
 
-			/* read a byte from 'a' */
-			while ((aByte = aBuffered.read()) != -1) {
-
-				/*
-				 * if got an 'a' but can't get a 'b' then streams are not same length, and this is
-				 * the case where stream 'a' was longer
-				 */
-				if ((bByte = bBuffered.read()) == -1) {
+				/* streams are not the same length */
+				if (aCount != bCount) {
 					return false;
 				}
 
-				/* if we got both bytes, compare them */
-				if (aByte != bByte) {
-					return false;
+				for (int i = 0; i < aCount; i++) {
+					if (aBuf[i] != bBuf[i]) {
+						return false;
+					}
 				}
-			}
 
-			/*
-			 * once we ran to end of stream 'a' make sure stream 'b' is also ended (checking that
-			 * 'b' isn't longer than 'a')
-			 */
-			if (bBuffered.read() != -1) {
-				return false;
+				/* both ended at the same place */
+				if (aCount < aBuf.length) {
+					return true;
+				}
 			}
 		}
 		catch (Exception ex) {
 			throw ExUtil.newEx(ex);
 		}
 		finally {
-			close(aBuffered, bBuffered);
+			close(a, b);
 		}
-		return true;
 	}
 }
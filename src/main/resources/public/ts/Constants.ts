@@ -64,5 +64,8 @@ class JCRConstants {
 
     IMG_WIDTH: string = "imgWidth";
     IMG_HEIGHT: string = "imgHeight";
+    BIN_META: string = "binMeta";
+    BIN_HASH: string = "meta64:binHash";
+    MERKLE_HASH: string = "meta64:merkle";
 }
 export let jcrCnst: JCRConstants = new JCRConstants();
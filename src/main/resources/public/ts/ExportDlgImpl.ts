@@ -16,12 +16,21 @@ import { Button } from "./widget/Button";
 import { TextField } from "./widget/TextField";
 import { RadioButton } from "./widget/RadioButton";
 import { RadioButtonGroup } from "./widget/RadioButtonGroup";
+import { TextContent } from "./widget/TextContent";
+
+declare var postTargetUrl;
 
 export default class ExportDlgImpl extends DialogBaseImpl implements ExportDlg {
 
     exportToFileNameTextField: TextField;
     zipRadioButton: RadioButton;
     xmlRadioButton: RadioButton;
+    statusText: TextContent;
+    cancelJobButton: Button;
+    downloadButton: Button;
+
+    /* the export runs as a background job on the server */
+    jobId: string;
 
     constructor() {
         super();
@@ -36,8 +45,11 @@ export default class ExportDlgImpl extends DialogBaseImpl implements ExportDlg {
                 this.xmlRadioButton = new RadioButton("Output to XML", true),
                 this.zipRadioButton = new RadioButton("Output to ZIP", false),
             ]),
+            this.statusText = new TextContent(""),
             new ButtonBar([
-                new Button("Export", this.exportNodes, null, true, this),
+                new Button("Export", this.exportNodes),
+                this.cancelJobButton = new Button("Cancel Export", this.cancelJob, null, false, null, false),
+                this.downloadButton = new Button("Download", this.download, null, false, null, false),
                 new Button("Close", null, null, true, this)
             ])
         ]);
@@ -63,13 +75,46 @@ export default class ExportDlgImpl extends DialogBaseImpl implements ExportDlg {
         }
     }
 
+    /* The dialog stays open while the export runs, showing its progress until it's done */
     exportResponse = (res: I.ExportResponse): void => {
         if (util.checkSuccess("Export", res)) {
-            Factory.createDefault("MessageDlgImpl", (dlg: MessageDlg) => {
-                dlg.open();
-            }, { "message": "Export successful." });
-            meta64.selectTab("mainTabName");
-            view.scrollToSelectedNode();
+            this.jobId = res.jobId;
+            this.showButton(this.cancelJobButton, true);
+            this.showButton(this.downloadButton, false);
+            util.pollJob(res.jobId, this.jobStatus);
         }
     }
+
+    jobStatus = (jobInfo: I.JobInfo): void => {
+        if (!jobInfo.done) {
+            this.statusText.setInnerHTML("Exporting: " + util.formatJobProgress(jobInfo));
+            return;
+        }
+
+        this.showButton(this.cancelJobButton, false);
+        if (jobInfo.state == "COMPLETED") {
+            this.statusText.setInnerHTML("Export successful. " + util.formatJobProgress(jobInfo));
+            this.showButton(this.downloadButton, jobInfo.hasResult);
+        }
+        else {
+            this.statusText.setInnerHTML("Export " + jobInfo.state.toLowerCase() + ": " + util.escapeHtml(jobInfo.message));
+        }
+    }
+
+    cancelJob = (): void => {
+        util.ajax<I.CancelJobRequest, I.CancelJobResponse>("cancelJob", {
+            "jobId": this.jobId
+        }, (res: I.CancelJobResponse) => {
+            util.checkSuccess("Cancel export", res);
+        });
+    }
+
+    download = (): void => {
+        window.location.href = postTargetUrl + "downloadJobResult?jobId=" + encodeURIComponent(this.jobId);
+    }
+
+    showButton = (button: Button, visible: boolean): void => {
+        button.visible = visible;
+        button.setVisible(visible);
+    }
 }
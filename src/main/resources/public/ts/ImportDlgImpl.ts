@@ -14,10 +14,16 @@ import { Help } from "./widget/Help";
 import { ButtonBar } from "./widget/ButtonBar";
 import { Button } from "./widget/Button";
 import { TextField } from "./widget/TextField";
+import { TextContent } from "./widget/TextContent";
 
 export default class ImportDlgImpl extends DialogBaseImpl implements ImportDlg {
 
   importFromFileNameTextField: TextField;
+    statusText: TextContent;
+    cancelJobButton: Button;
+
+    /* the import runs as a background job on the server */
+    jobId: string;
 
     constructor() {
         super();
@@ -28,8 +34,10 @@ export default class ImportDlgImpl extends DialogBaseImpl implements ImportDlg {
         this.setChildren([
             new Header("Import From XML"),
             this.importFromFileNameTextField = new TextField("File Name to import"),
+            this.statusText = new TextContent(""),
             new ButtonBar([
-                new Button("Import", this.importNodes, null, true, this),
+                new Button("Import", this.importNodes),
+                this.cancelJobButton = new Button("Cancel Import", this.cancelJob, null, false, null, false),
                 new Button("Close", null, null, true, this)
             ])
         ]);
@@ -70,14 +78,41 @@ export default class ImportDlgImpl extends DialogBaseImpl implements ImportDlg {
         }
     }
 
+    /* The dialog stays open while the import runs, showing its progress until it's done */
     importResponse = (res: I.ImportResponse): void => {
         if (util.checkSuccess("Import", res)) {
-            Factory.createDefault("MessageDlgImpl", (dlg: MessageDlg) => {
-                dlg.open();
-            }, { "message": "Import Successful" });
+            this.jobId = res.jobId;
+            this.cancelJobButton.visible = true;
+            this.cancelJobButton.setVisible(true);
+            util.pollJob(res.jobId, this.jobStatus);
+        }
+    }
+
+    jobStatus = (jobInfo: I.JobInfo): void => {
+        if (!jobInfo.done) {
+            this.statusText.setInnerHTML("Importing: " + util.formatJobProgress(jobInfo));
+            return;
+        }
+
+        this.cancelJobButton.visible = false;
+        this.cancelJobButton.setVisible(false);
+        if (jobInfo.state == "COMPLETED") {
+            this.cancel();
+            util.showMessage("Import Successful");
             view.refreshTree(null, false);
             meta64.selectTab("mainTabName");
             view.scrollToSelectedNode();
         }
+        else {
+            this.statusText.setInnerHTML("Import " + jobInfo.state.toLowerCase() + ": " + util.escapeHtml(jobInfo.message));
+        }
+    }
+
+    cancelJob = (): void => {
+        util.ajax<I.CancelJobRequest, I.CancelJobResponse>("cancelJob", {
+            "jobId": this.jobId
+        }, (res: I.CancelJobResponse) => {
+            util.checkSuccess("Cancel import", res);
+        });
     }
 }
@@ -64,6 +64,69 @@ export interface NodeInfo {
     owner: string;
 }
 
+export interface RssFeedStats {
+    url: string;
+    nodeId: string;
+    lastRunTime: number;
+    fetchMillis: number;
+    bytes: number;
+    parseMillis: number;
+    notModified: boolean;
+    newItems: number;
+    duplicateItems: number;
+    writeMillis: number;
+    lastError: string;
+    failureCount: number;
+    nextCheckTime: number;
+    interval: number;
+}
+
+export interface HistogramInfo {
+    name: string;
+    bucketLimits: number[];
+    counts: number[];
+    count: number;
+    totalMillis: number;
+    maxMillis: number;
+}
+
+export interface RssCompactionInfo {
+    startTime: number;
+    durationMillis: number;
+    feedCount: number;
+    deletedItems: number;
+    revisionGcStats: string;
+    lastError: string;
+}
+
+export interface JobInfo {
+    id: string;
+    type: string;
+    state: string;
+    done: boolean;
+    message: string;
+    createTime: number;
+    startTime: number;
+    endTime: number;
+    nodesDone: number;
+    bytesDone: number;
+    nodesTotal: number;
+    bytesTotal: number;
+    nodesPerSecond: number;
+    bytesPerSecond: number;
+    etaMillis: number;
+    hasResult: boolean;
+}
+
+export interface CompareDiffInfo {
+    diffType: string;
+    pathA: string;
+    pathB: string;
+    propName: string;
+    valueA: string;
+    valueB: string;
+}
+
 export interface PrivilegeInfo {
     privilegeName: string;
 }
@@ -161,6 +224,9 @@ export interface GetNodePrivilegesRequest {
 export interface GetServerInfoRequest {
 }
 
+export interface GetRssStatusRequest {
+}
+
 export interface GenerateNodeHashRequest {
     nodeId: string;
     verify: boolean;
@@ -169,6 +235,7 @@ export interface GenerateNodeHashRequest {
 export interface CompareSubGraphRequest {
     nodeIdA: string;
     nodeIdB: string;
+    offset: number;
 }
 
 export interface GetSharedNodesRequest {
@@ -178,6 +245,7 @@ export interface GetSharedNodesRequest {
 export interface ImportRequest {
     nodeId: string;
     sourceFileName: string;
+    uuidBehavior?: string;
 }
 
 export interface InitNodeEditRequest {
@@ -295,6 +363,14 @@ export interface UploadFromUrlRequest {
     sourceUrl: string;
 }
 
+export interface GetJobStatusRequest {
+    jobId: string;
+}
+
+export interface CancelJobRequest {
+    jobId: string;
+}
+
 export interface BrowseFolderRequest {
     nodeId: string;
 }
@@ -342,6 +418,7 @@ export interface ExpandAbbreviatedNodeResponse extends OakResponseBase {
 }
 
 export interface ExportResponse extends OakResponseBase {
+    jobId: string;
 }
 
 export interface GetNodePrivilegesResponse extends OakResponseBase {
@@ -354,12 +431,21 @@ export interface GetServerInfoResponse extends OakResponseBase {
     serverInfo: string;
 }
 
+export interface GetRssStatusResponse extends OakResponseBase {
+    processing: boolean;
+    feeds: RssFeedStats[];
+    histograms: HistogramInfo[];
+    lastCompaction: RssCompactionInfo;
+}
+
 export interface GenerateNodeHashResponse extends OakResponseBase {
     hashInfo: string;
 }
 
 export interface CompareSubGraphResponse extends OakResponseBase {
     compareInfo: string;
+    diffs: CompareDiffInfo[];
+    endReached: boolean;
 }
 
 export interface GetSharedNodesResponse extends OakResponseBase {
@@ -367,6 +453,7 @@ export interface GetSharedNodesResponse extends OakResponseBase {
 }
 
 export interface ImportResponse extends OakResponseBase {
+    jobId: string;
 }
 
 export interface InitNodeEditResponse extends OakResponseBase {
@@ -449,6 +536,14 @@ export interface SplitNodeResponse extends OakResponseBase {
 }
 
 export interface UploadFromUrlResponse extends OakResponseBase {
+    jobId: string;
+}
+
+export interface GetJobStatusResponse extends OakResponseBase {
+    jobInfo: JobInfo;
+}
+
+export interface CancelJobResponse extends OakResponseBase {
 }
 
 export interface BrowseFolderResponse extends OakResponseBase {
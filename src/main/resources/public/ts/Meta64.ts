@@ -669,6 +669,9 @@ class Meta64 {
             jcrCnst.BIN_VER, //
             jcrCnst.BIN_DATA, //
             jcrCnst.BIN_MIME, //
+            jcrCnst.BIN_META, //
+            jcrCnst.BIN_HASH, //
+            jcrCnst.MERKLE_HASH, //
             jcrCnst.COMMENT_BY, //
             jcrCnst.PUBLIC_APPEND]);
 
@@ -685,6 +688,9 @@ class Meta64 {
             jcrCnst.BIN_VER, //
             jcrCnst.BIN_DATA, //
             jcrCnst.BIN_MIME, //
+            jcrCnst.BIN_META, //
+            jcrCnst.BIN_HASH, //
+            jcrCnst.MERKLE_HASH, //
             jcrCnst.COMMENT_BY, //
             jcrCnst.PUBLIC_APPEND]);
 
@@ -7,6 +7,8 @@ import { Factory } from "./Factory";
 import * as I from "./Interfaces";
 import { tag } from "./Tag";
 
+declare var postTargetUrl;
+
 /*
 NOTE: The AudioPlayerDlg AND this singleton-ish class both share some state and cooperate
 
@@ -18,6 +20,10 @@ class Podcast {
 
     private uid: string = null;
     private node: I.NodeInfo = null;
+
+    /* url of the media as it is in the feed, which is what the player info is saved under */
+    private mediaUrl: string = null;
+
     private adSegments: I.AdSegment[] = null;
 
     private pushTimer: any = null;
@@ -54,6 +60,15 @@ class Podcast {
         return null;
     }
 
+    /* Enclosures are played through the server, which serves them from its cache if it has one */
+    getPlaybackUrl(node: I.NodeInfo, mediaUrl: string): string {
+        let encUrl: I.PropertyInfo = props.getNodeProperty("meta64:rssItemEncUrl", node);
+        if (encUrl && encUrl.value == mediaUrl) {
+            return postTargetUrl + "enclosure?url=" + encodeURIComponent(mediaUrl);
+        }
+        return mediaUrl;
+    }
+
     openPlayerDialog(_uid: string) {
         podcast.uid = _uid;
         podcast.node = meta64.uidToNodeMap[podcast.uid];
@@ -61,6 +76,7 @@ class Podcast {
         if (podcast.node) {
             let mp3Url = podcast.getMediaPlayerUrlFromNode(podcast.node);
             if (mp3Url) {
+                podcast.mediaUrl = mp3Url;
                 util.ajax<I.GetPlayerInfoRequest, I.GetPlayerInfoResponse>("getPlayerInfo", {
                     "url": mp3Url
                 }, (res: I.GetPlayerInfoResponse) => {
@@ -68,7 +84,7 @@ class Podcast {
 
                     Factory.createDefault("AudioPlayerDlgImpl", (dlg: AudioPlayerDlg) => {
                         dlg.open();
-                    }, { "sourceUrl": mp3Url, "nodeUid": podcast.uid, "startTimePending": res.timeOffset });
+                    }, { "sourceUrl": podcast.getPlaybackUrl(podcast.node, mp3Url), "nodeUid": podcast.uid, "startTimePending": res.timeOffset });
                 });
             }
         }
@@ -188,7 +204,7 @@ class Podcast {
                 podcast.player.pause();
             }
             //console.log("Autosave player info.");
-            podcast.savePlayerInfo(podcast.player.src, podcast.player.currentTime);
+            podcast.savePlayerInfo(podcast.mediaUrl, podcast.player.currentTime);
         }
     }
 
@@ -196,7 +212,7 @@ class Podcast {
     pause(): void {
         if (podcast.player) {
             podcast.player.pause();
-            podcast.savePlayerInfo(podcast.player.src, podcast.player.currentTime);
+            podcast.savePlayerInfo(podcast.mediaUrl, podcast.player.currentTime);
         }
     }
 
@@ -207,7 +223,7 @@ class Podcast {
 
             setTimeout(() => {
                 console.log("savePlayerInfo");
-                podcast.savePlayerInfo(podcast.player.src, podcast.player.currentTime);
+                podcast.savePlayerInfo(podcast.mediaUrl, podcast.player.currentTime);
 
                 //let localPlayer = podcast.player;
                 podcast.player = null;
@@ -47,10 +47,33 @@ export default class UploadFromUrlDlgImpl extends DialogBaseImpl implements Uplo
         }
     }
 
+    /* The upload runs as a background job on the server, so we poll for its status until it's done */
     uploadFromUrlResponse = (res: I.UploadFromUrlResponse): void => {
         if (util.checkSuccess("Upload from URL", res)) {
-            this.cancel();
-            meta64.refresh();
+            this.pollJobStatus(res.jobId);
         }
     }
+
+    pollJobStatus = (jobId: string): void => {
+        setTimeout(() => {
+            util.ajax<I.GetJobStatusRequest, I.GetJobStatusResponse>("getJobStatus", {
+                "jobId": jobId
+            }, (res: I.GetJobStatusResponse) => {
+                if (!util.checkSuccess("Upload from URL", res)) {
+                    return;
+                }
+
+                if (!res.jobInfo.done) {
+                    this.pollJobStatus(jobId);
+                }
+                else if (res.jobInfo.state == "COMPLETED") {
+                    this.cancel();
+                    meta64.refresh();
+                }
+                else {
+                    util.showMessage("Upload from URL failed: " + res.jobInfo.message);
+                }
+            });
+        }, 1000);
+    }
 }
@@ -30,6 +30,11 @@ class Util {
         return util.replaceAll(_, "\"", "&quot;");
     }
 
+    /* For putting text from the server (like exception messages) into innerHTML. Null gives "" */
+    escapeHtml(_: string): string {
+        return _ == null ? "" : util.replaceAll(util.replaceAll(_, "&", "&amp;"), "<", "&lt;");
+    }
+
     unencodeHtml(_) {
         if (!util.contains(_, "&"))
             return _;
@@ -396,6 +401,47 @@ class Util {
         }, { "message": message });
     }
 
+    /* Polls a background job (see JobManager on the server) once a second, passing each status to 'callback', until it's done */
+    pollJob(jobId: string, callback: (jobInfo: I.JobInfo) => void): void {
+        setTimeout(() => {
+            util.ajax<I.GetJobStatusRequest, I.GetJobStatusResponse>("getJobStatus", {
+                "jobId": jobId
+            }, (res: I.GetJobStatusResponse) => {
+                if (!util.checkSuccess("Job status", res)) {
+                    return;
+                }
+
+                callback(res.jobInfo);
+                if (!res.jobInfo.done) {
+                    util.pollJob(jobId, callback);
+                }
+            });
+        }, 1000);
+    }
+
+    /* One line summary of how far along a job is, with the rate and time left when we have them */
+    formatJobProgress(jobInfo: I.JobInfo): string {
+        let ret = jobInfo.nodesDone + (jobInfo.nodesTotal > 0 ? " of " + jobInfo.nodesTotal : "") + " nodes, " + //
+            util.formatByteCount(jobInfo.bytesDone) + (jobInfo.bytesTotal > 0 ? " of " + util.formatByteCount(jobInfo.bytesTotal) : "");
+
+        if (jobInfo.bytesPerSecond > 0) {
+            ret += " (" + util.formatByteCount(jobInfo.bytesPerSecond) + "/s)";
+        }
+
+        if (jobInfo.etaMillis >= 0) {
+            let secs = Math.round(jobInfo.etaMillis / 1000);
+            ret += ", " + (secs >= 60 ? Math.floor(secs / 60) + "m " : "") + (secs % 60) + "s left";
+        }
+        return ret;
+    }
+
+    formatByteCount(bytes: number): string {
+        if (bytes < 1024) return bytes + " B";
+        if (bytes < 1024 * 1024) return (bytes / 1024).toFixed(1) + " KB";
+        if (bytes < 1024 * 1024 * 1024) return (bytes / (1024 * 1024)).toFixed(1) + " MB";
+        return (bytes / (1024 * 1024 * 1024)).toFixed(2) + " GB";
+    }
+
     /* adds all array objects to obj as a set */
     addAll(obj, a): void {
         for (let i = 0; i < a.length; i++) {
@@ -207,19 +207,42 @@ class View {
     }
 
     compareAsBtoA() {
-        debugger;
         let nodeB = meta64.getHighlightedNode();
         if (nodeB) {
             if (view.compareNodeA.id && nodeB.id) {
                 util.ajax<I.CompareSubGraphRequest, I.CompareSubGraphResponse>("compareSubGraphs", //
-                    { "nodeIdA": view.compareNodeA.id, "nodeIdB": nodeB.id }, //
+                    { "nodeIdA": view.compareNodeA.id, "nodeIdB": nodeB.id, "offset": 0 }, //
                     function(res: I.CompareSubGraphResponse) {
-                        util.showMessage(res.compareInfo);
+                        let message = res.compareInfo;
+                        if (res.diffs) {
+                            for (let diff of res.diffs) {
+                                message += "<br>" + view.formatCompareDiff(diff);
+                            }
+                        }
+                        if (!res.endReached) {
+                            message += "<br>(only the first " + res.diffs.length + " are shown)";
+                        }
+                        util.showMessage(message);
                     });
             }
         }
     }
 
+    formatCompareDiff(diff: I.CompareDiffInfo): string {
+        let escape = function(val: string): string {
+            return val == null ? "" : util.replaceAll(util.replaceAll(val, "&", "&amp;"), "<", "&lt;");
+        };
+
+        let ret = diff.diffType + ": " + escape(diff.pathA || diff.pathB);
+        if (diff.propName) {
+            ret += " " + escape(diff.propName);
+        }
+        if (diff.valueA != null || diff.valueB != null) {
+            ret += " (A=" + escape(diff.valueA) + ", B=" + escape(diff.valueB) + ")";
+        }
+        return ret;
+    }
+
     processNodeHashes(verify: boolean) {
         let node = meta64.getHighlightedNode();
         if (node) {
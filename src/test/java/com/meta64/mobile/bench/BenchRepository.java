@@ -0,0 +1,335 @@
+package com.meta64.mobile.bench;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.Calendar;
+
+import javax.imageio.ImageIO;
+import javax.jcr.Binary;
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Repository;
+import javax.jcr.Session;
+import javax.jcr.SimpleCredentials;
+import javax.jcr.query.Query;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.jackrabbit.api.JackrabbitRepository;
+import org.apache.jackrabbit.commons.cnd.CndImporter;
+import org.apache.jackrabbit.oak.Oak;
+import org.apache.jackrabbit.oak.jcr.Jcr;
+import org.apache.jackrabbit.oak.plugins.index.lucene.LuceneIndexConstants;
+import org.apache.jackrabbit.oak.plugins.index.lucene.LuceneIndexEditorProvider;
+import org.apache.jackrabbit.oak.plugins.index.lucene.LuceneIndexProvider;
+import org.apache.jackrabbit.oak.spi.commit.Observer;
+import org.apache.jackrabbit.oak.spi.query.QueryIndexProvider;
+import org.slf4j.LoggerFactory;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.meta64.mobile.config.JcrProp;
+import com.meta64.mobile.config.SessionContext;
+import com.meta64.mobile.model.UserPreferences;
+import com.meta64.mobile.service.BinaryMetaDaemon;
+import com.meta64.mobile.service.NodeRenderService;
+import com.meta64.mobile.service.NodeSearchService;
+import com.meta64.mobile.user.UserSettingsDaemon;
+import com.meta64.mobile.util.BinaryMeta;
+import com.meta64.mobile.util.Convert;
+import com.meta64.mobile.util.JcrConst;
+
+/**
+ * In-memory Oak repository (MemoryNodeStore) loaded with synthetic trees, plus the services under
+ * test wired up by hand, for the benchmarks in this package. Nothing here touches Spring, Mongo or
+ * the file system.
+ * <p>
+ * Trees created under /bench:
+ * <ul>
+ * <li>wide: one folder with WIDE_COUNT children, every 10th of which has a few children of its own
+ * <li>deep: a chain DEEP_COUNT levels deep
+ * <li>text: TEXT_COUNT nodes each holding TEXT_SIZE chars of War and Peace
+ * <li>images: IMAGE_COUNT nodes with a small PNG attachment
+ * <li>rss: FEED_COUNT feed nodes of FEED_ITEMS items each (only if searchable, since listing a
+ * feed needs its index)
+ * </ul>
+ */
+public class BenchRepository {
+
+	public static final String ROOT = "/bench";
+	public static final String WIDE = ROOT + "/wide";
+	public static final String DEEP = ROOT + "/deep";
+	public static final String TEXT = ROOT + "/text";
+	public static final String IMAGES = ROOT + "/images";
+	public static final String RSS = ROOT + "/rss";
+
+	public static final int WIDE_COUNT = 2000;
+	public static final int DEEP_COUNT = 100;
+	public static final int TEXT_COUNT = 200;
+	public static final int TEXT_SIZE = 16 * 1024;
+	public static final int IMAGE_COUNT = 100;
+	public static final int FEED_COUNT = 20;
+	public static final int FEED_ITEMS = 500;
+
+	private Repository repository;
+	private Session session;
+
+	private Convert convert;
+	private NodeRenderService nodeRenderService;
+	private NodeSearchService nodeSearchService;
+	private SessionContext sessionContext;
+
+	/*
+	 * If 'searchable' is true the repository gets the same Lucene fulltext and RSS item indexes the
+	 * server uses, and this doesn't return until the async indexer has caught up with the loaded
+	 * trees.
+	 */
+	public static BenchRepository create(boolean searchable) throws Exception {
+		BenchRepository repo = new BenchRepository();
+		repo.init(searchable);
+		return repo;
+	}
+
+	private void init(boolean searchable) throws Exception {
+		quietLogging();
+
+		Jcr jcr = new Jcr(new Oak());
+		if (searchable) {
+			LuceneIndexProvider indexProvider = new LuceneIndexProvider();
+			jcr = jcr.withAsyncIndexing("async", 1);
+			jcr = jcr.with(new LuceneIndexEditorProvider());
+			jcr = jcr.with((QueryIndexProvider) indexProvider);
+			jcr = jcr.with((Observer) indexProvider);
+		}
+		repository = jcr.createRepository();
+		session = repository.login(new SimpleCredentials("admin", "admin".toCharArray()));
+
+		if (searchable) {
+			createFulltextIndex();
+			createRssItemIndex();
+
+			/* before the other trees, so it's indexed by the time the text is (see waitForIndex) */
+			loadRssFeeds();
+		}
+		loadTrees();
+
+		if (searchable) {
+			waitForIndex();
+		}
+		wireServices();
+	}
+
+	/*
+	 * Outside of Spring Boot the root logger defaults to DEBUG, and at DEBUG Oak creates an
+	 * Exception (for a lock holder trace) on every session operation, which would swamp what we are
+	 * trying to measure. The server runs at INFO.
+	 */
+	static void quietLogging() {
+		org.slf4j.Logger rootLogger = LoggerFactory.getLogger(org.slf4j.Logger.ROOT_LOGGER_NAME);
+		if (rootLogger instanceof ch.qos.logback.classic.Logger) {
+			((ch.qos.logback.classic.Logger) rootLogger).setLevel(ch.qos.logback.classic.Level.INFO);
+		}
+	}
+
+	/* Same definition IndexUtil creates for 'fullText', but stored in the repository not on disk */
+	private void createFulltextIndex() throws Exception {
+		Node indexDefNode = session.getNode(JcrConst.PATH_INDEX).addNode("fullText", "oak:QueryIndexDefinition");
+		indexDefNode.setProperty("compatVersion", 2);
+		indexDefNode.setProperty("type", "lucene");
+		indexDefNode.setProperty("async", "async");
+		indexDefNode.setProperty("reindex", true);
+		indexDefNode.setProperty(LuceneIndexConstants.EVALUATE_PATH_RESTRICTION, true);
+
+		Node propNode = indexDefNode.addNode("indexRules", "nt:unstructured") //
+				.addNode("nt:base") //
+				.addNode("properties", "nt:unstructured") //
+				.addNode("fullText");
+		propNode.setProperty(LuceneIndexConstants.PROP_NODE_SCOPE_INDEX, true);
+		propNode.setProperty(LuceneIndexConstants.PROP_NAME, LuceneIndexConstants.REGEX_ALL_PROPS);
+		propNode.setProperty(LuceneIndexConstants.PROP_IS_REGEX, true);
+		session.save();
+	}
+
+	/*
+	 * Same definition IndexUtil creates for 'rssItemCreatedIndex', but stored in the repository,
+	 * and async only, since the near real time part needs the hybrid indexing setup OakRepository
+	 * has. It's the ordering and path restriction that matter for rendering a feed.
+	 */
+	private void createRssItemIndex() throws Exception {
+		try (InputStream is = BenchRepository.class.getResourceAsStream("/jcr-types.txt")) {
+			CndImporter.registerNodeTypes(new InputStreamReader(is, "UTF-8"), session, true);
+		}
+
+		Node indexDefNode = session.getNode(JcrConst.PATH_INDEX).addNode("rssItemCreatedIndex", "oak:QueryIndexDefinition");
+		indexDefNode.setProperty("compatVersion", 2);
+		indexDefNode.setProperty("type", "lucene");
+		indexDefNode.setProperty("async", "async");
+		indexDefNode.setProperty("reindex", true);
+		indexDefNode.setProperty(LuceneIndexConstants.EVALUATE_PATH_RESTRICTION, true);
+
+		Node propNode = indexDefNode.addNode("indexRules", "nt:unstructured") //
+				.addNode(JcrProp.TYPE_RSS_ITEM) //
+				.addNode("properties", "nt:unstructured") //
+				.addNode("rssItemCreatedIndex");
+		propNode.setProperty("name", JcrProp.CREATED);
+		propNode.setProperty("propertyIndex", true);
+		propNode.setProperty("ordered", true);
+		propNode.setProperty("type", "Date");
+		session.save();
+	}
+
+	/* Items are a minute apart, with the newest ones having the highest numbers like a real feed */
+	private void loadRssFeeds() throws Exception {
+		Node rss = session.getRootNode().addNode(ROOT.substring(1)).addNode("rss");
+		long start = System.currentTimeMillis() - FEED_ITEMS * 60000L;
+		for (int f = 0; f < FEED_COUNT; f++) {
+			Node feed = rss.addNode("feed" + f, JcrProp.TYPE_RSS_FEED);
+			for (int i = 0; i < FEED_ITEMS; i++) {
+				Calendar created = Calendar.getInstance();
+				created.setTimeInMillis(start + i * 60000L);
+				Node item = feed.addNode("item" + i, JcrProp.TYPE_RSS_ITEM);
+				item.setProperty(JcrProp.RSS_ITEM_TITLE, "Item " + i + " of feed " + f);
+				item.setProperty(JcrProp.RSS_ITEM_DESC, "A line or two of description, like most feeds have, for item " + i + ".");
+				item.setProperty(JcrProp.RSS_ITEM_LINK, "http://example.com/feed" + f + "/item" + i);
+				item.setProperty(JcrProp.CREATED, created);
+				item.setProperty(JcrProp.LAST_MODIFIED, created);
+				item.setProperty(JcrProp.CREATED_BY, "admin");
+			}
+			session.save();
+		}
+	}
+
+	private void waitForIndex() throws Exception {
+		String query = "SELECT * from [nt:base] AS t WHERE ISDESCENDANTNODE([" + TEXT + "]) AND contains(t.[*], 'pierre')";
+		long timeout = System.currentTimeMillis() + 60000;
+		while (System.currentTimeMillis() < timeout) {
+			session.refresh(false);
+			NodeIterator nodes = session.getWorkspace().getQueryManager().createQuery(query, Query.JCR_SQL2).execute().getNodes();
+			if (nodes.hasNext()) {
+				return;
+			}
+			Thread.sleep(500);
+		}
+		throw new RuntimeException("Timed out waiting for fulltext index.");
+	}
+
+	private void loadTrees() throws Exception {
+		Node root = session.nodeExists(ROOT) ? session.getNode(ROOT) : session.getRootNode().addNode(ROOT.substring(1));
+
+		Node wide = addNode(root, "wide", "Wide folder");
+		for (int i = 0; i < WIDE_COUNT; i++) {
+			Node child = addNode(wide, "node" + i, "Child node number " + i + " of the wide folder, with a line or two of ordinary content.");
+			if (i % 10 == 0) {
+				for (int j = 0; j < 3; j++) {
+					addNode(child, "sub" + j, "Grandchild " + j);
+				}
+			}
+		}
+		session.save();
+
+		Node node = addNode(root, "deep", "Deep chain");
+		for (int i = 0; i < DEEP_COUNT; i++) {
+			node = addNode(node, "level" + i, "Level " + i);
+		}
+		session.save();
+
+		String book = readBook();
+		Node text = addNode(root, "text", "Text heavy nodes");
+		for (int i = 0; i < TEXT_COUNT; i++) {
+			int start = (i * TEXT_SIZE) % (book.length() - TEXT_SIZE);
+			addNode(text, "text" + i, book.substring(start, start + TEXT_SIZE));
+		}
+		session.save();
+
+		byte[] png = createPng(64, 48);
+		Node images = addNode(root, "images", "Image nodes");
+		for (int i = 0; i < IMAGE_COUNT; i++) {
+			Node imgNode = addNode(images, "image" + i, "Image " + i);
+			Binary binary = session.getValueFactory().createBinary(new ByteArrayInputStream(png));
+			imgNode.setProperty(JcrProp.BIN_DATA, binary);
+			imgNode.setProperty(JcrProp.BIN_MIME, "image/png");
+			imgNode.setProperty(JcrProp.BIN_VER, 1L);
+			imgNode.setProperty(JcrProp.IMG_WIDTH, "64");
+			imgNode.setProperty(JcrProp.IMG_HEIGHT, "48");
+			new BinaryMeta(1, 64, 48, "image/png").write(imgNode);
+		}
+		session.save();
+	}
+
+	private Node addNode(Node parent, String name, String content) throws Exception {
+		Calendar now = Calendar.getInstance();
+		Node node = parent.addNode(name, "nt:unstructured");
+		node.setProperty(JcrProp.CONTENT, content);
+		node.setProperty(JcrProp.CREATED, now);
+		node.setProperty(JcrProp.LAST_MODIFIED, now);
+		node.setProperty(JcrProp.CREATED_BY, "admin");
+		return node;
+	}
+
+	private static String readBook() throws Exception {
+		try (InputStream is = BenchRepository.class.getResourceAsStream("/war-and-peace.txt")) {
+			return IOUtils.toString(is, "UTF-8");
+		}
+	}
+
+	private static byte[] createPng(int width, int height) throws Exception {
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		for (int x = 0; x < width; x++) {
+			for (int y = 0; y < height; y++) {
+				image.setRGB(x, y, (x * 4) << 16 | (y * 4) << 8);
+			}
+		}
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		ImageIO.write(image, "png", baos);
+		return baos.toByteArray();
+	}
+
+	/* Wires the services the same way Spring would, with a simple mode admin session */
+	private void wireServices() {
+		sessionContext = new SessionContext();
+		sessionContext.setUserName("admin");
+		sessionContext.setTimezone("UTC");
+		sessionContext.setTimeZoneAbbrev("UTC");
+		sessionContext.setUserPreferences(new UserPreferences());
+
+		convert = new Convert();
+		ReflectionTestUtils.setField(convert, "binaryMetaDaemon", new BinaryMetaDaemon());
+
+		nodeRenderService = new NodeRenderService();
+		ReflectionTestUtils.setField(nodeRenderService, "convert", convert);
+		ReflectionTestUtils.setField(nodeRenderService, "userSettingsDaemon", new UserSettingsDaemon());
+		ReflectionTestUtils.setField(nodeRenderService, "sessionContext", sessionContext);
+
+		nodeSearchService = new NodeSearchService();
+		ReflectionTestUtils.setField(nodeSearchService, "convert", convert);
+		ReflectionTestUtils.setField(nodeSearchService, "sessionContext", sessionContext);
+	}
+
+	public void shutdown() {
+		session.logout();
+		if (repository instanceof JackrabbitRepository) {
+			((JackrabbitRepository) repository).shutdown();
+		}
+	}
+
+	public Session getSession() {
+		return session;
+	}
+
+	public SessionContext getSessionContext() {
+		return sessionContext;
+	}
+
+	public Convert getConvert() {
+		return convert;
+	}
+
+	public NodeRenderService getNodeRenderService() {
+		return nodeRenderService;
+	}
+
+	public NodeSearchService getNodeSearchService() {
+		return nodeSearchService;
+	}
+}
@@ -0,0 +1,92 @@
+package com.meta64.mobile.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Session;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.meta64.mobile.config.SessionContext;
+import com.meta64.mobile.util.Convert;
+import com.meta64.mobile.util.JcrUtil;
+
+/**
+ * Per node cost of Convert.convertToNodeInfo and JcrUtil.hasDisplayableNodes, which are the two
+ * things renderNode does for every node on a page. Each op is one node, taken from the first
+ * NODE_COUNT children of the selected tree.
+ * <p>
+ * Run with: mvn -Pbench test-compile exec:exec -Dbench.include=NodeConversion
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NodeConversionBenchmark {
+
+	private static final int NODE_COUNT = 100;
+
+	@Param({ "wide", "text", "images" })
+	private String tree;
+
+	private BenchRepository repo;
+	private Session session;
+	private SessionContext sessionContext;
+	private Convert convert;
+	private Node[] nodes;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		repo = BenchRepository.create(false);
+		session = repo.getSession();
+		sessionContext = repo.getSessionContext();
+		convert = repo.getConvert();
+
+		List<Node> list = new ArrayList<Node>();
+		NodeIterator nodeIter = session.getNode(BenchRepository.ROOT + "/" + tree).getNodes();
+		while (nodeIter.hasNext() && list.size() < NODE_COUNT) {
+			list.add(nodeIter.nextNode());
+		}
+		nodes = list.toArray(new Node[list.size()]);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		repo.shutdown();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(NODE_COUNT)
+	public void convertToNodeInfo(Blackhole bh) {
+		for (Node node : nodes) {
+			bh.consume(convert.convertToNodeInfo(sessionContext, session, node, true, true, false));
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(NODE_COUNT)
+	public void hasDisplayableNodes(Blackhole bh) {
+		for (Node node : nodes) {
+			bh.consume(JcrUtil.hasDisplayableNodes(false, node));
+		}
+	}
+}
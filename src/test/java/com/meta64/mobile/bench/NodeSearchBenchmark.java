@@ -0,0 +1,69 @@
+package com.meta64.mobile.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.jcr.Session;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.meta64.mobile.request.NodeSearchRequest;
+import com.meta64.mobile.response.NodeSearchResponse;
+import com.meta64.mobile.service.NodeSearchService;
+
+/**
+ * NodeSearchService.search against the Lucene fulltext index, one search per op. 'pierre' matches
+ * most of the text tree, and 'nonexistentword' matches nothing, so we see both the cost of
+ * converting a full page of results and the fixed cost of the query itself.
+ * <p>
+ * Run with: mvn -Pbench test-compile exec:exec -Dbench.include=NodeSearch
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NodeSearchBenchmark {
+
+	@Param({ "pierre", "nonexistentword" })
+	private String searchText;
+
+	private BenchRepository repo;
+	private Session session;
+	private NodeSearchService nodeSearchService;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		repo = BenchRepository.create(true);
+		session = repo.getSession();
+		nodeSearchService = repo.getNodeSearchService();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		repo.shutdown();
+	}
+
+	@Benchmark
+	public NodeSearchResponse search() {
+		NodeSearchRequest req = new NodeSearchRequest();
+		req.setNodeId(BenchRepository.ROOT);
+		req.setSearchText(searchText);
+
+		NodeSearchResponse res = new NodeSearchResponse();
+		nodeSearchService.search(session, req, res);
+		return res;
+	}
+}
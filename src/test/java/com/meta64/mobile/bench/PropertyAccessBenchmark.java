@@ -0,0 +1,156 @@
+package com.meta64.mobile.bench;
+
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Property;
+import javax.jcr.Session;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.meta64.mobile.config.JcrProp;
+import com.meta64.mobile.util.Convert;
+import com.meta64.mobile.util.JcrUtil;
+
+/**
+ * Compares the cost per node of the old exception based property access and iteration (catching
+ * PathNotFoundException and NoSuchElementException) against the hasProperty/hasNext versions now in
+ * JcrUtil and Convert. Runs against the in-memory BenchRepository, with half of the nodes having a
+ * binary attachment, which is about what a typical page of nodes looks like.
+ * <p>
+ * The cost of an exception is mostly filling in its stack trace, so it depends on how deep the
+ * stack is when it's thrown. A renderNode call in the running server sits well over a hundred frames
+ * deep (Tomcat, Spring, our AOP), so 'stackDepth' lets us run the same work at a realistic depth
+ * rather than only at the shallow depth of a benchmark method.
+ * <p>
+ * Run with: mvn -Pbench test-compile exec:exec -Dbench.include=PropertyAccess
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PropertyAccessBenchmark {
+
+	private static final int NODE_COUNT = 1000;
+
+	@Param({ "0", "150" })
+	private int stackDepth;
+
+	private BenchRepository repo;
+	private Node parent;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		repo = BenchRepository.create(false);
+		Session session = repo.getSession();
+		parent = session.getRootNode().addNode("propertyAccess");
+
+		for (int i = 0; i < NODE_COUNT; i++) {
+			Node node = parent.addNode("node" + i);
+			node.setProperty(JcrProp.CONTENT, "content of node " + i);
+			if (i % 2 == 0) {
+				node.setProperty(JcrProp.BIN_VER, 1L);
+				node.setProperty(JcrProp.BIN_MIME, "image/png");
+			}
+		}
+		session.save();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		repo.shutdown();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(NODE_COUNT)
+	public void exceptionBased(Blackhole bh) throws Exception {
+		atDepth(stackDepth, () -> exceptionBasedLoop(bh));
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(NODE_COUNT)
+	public void hasPropertyBased(Blackhole bh) throws Exception {
+		atDepth(stackDepth, () -> hasPropertyBasedLoop(bh));
+	}
+
+	private void exceptionBasedLoop(Blackhole bh) throws Exception {
+		NodeIterator nodeIter = parent.getNodes();
+		try {
+			while (true) {
+				Node n = nodeIter.nextNode();
+				bh.consume(legacyGetBinaryVersion(n));
+				bh.consume(legacySafeGetStringProp(n, JcrProp.BIN_MIME));
+				bh.consume(legacySafeGetStringProp(n, JcrProp.CONTENT));
+			}
+		}
+		catch (NoSuchElementException ex) {
+			// end of iteration
+		}
+	}
+
+	private void hasPropertyBasedLoop(Blackhole bh) throws Exception {
+		NodeIterator nodeIter = parent.getNodes();
+		while (nodeIter.hasNext()) {
+			Node n = nodeIter.nextNode();
+			bh.consume(Convert.getBinaryVersion(n));
+			bh.consume(JcrUtil.safeGetStringProp(n, JcrProp.BIN_MIME));
+			bh.consume(JcrUtil.safeGetStringProp(n, JcrProp.CONTENT));
+		}
+	}
+
+	private interface Work {
+		void run() throws Exception;
+	}
+
+	/* runs 'work' with 'depth' extra frames on the stack */
+	private static void atDepth(int depth, Work work) throws Exception {
+		if (depth <= 0) {
+			work.run();
+		}
+		else {
+			atDepth(depth - 1, work);
+		}
+	}
+
+	/* The way Convert.getBinaryVersion used to be written */
+	private static long legacyGetBinaryVersion(Node node) {
+		try {
+			Property versionProperty = node.getProperty(JcrProp.BIN_VER);
+			if (versionProperty != null) {
+				return versionProperty.getValue().getLong();
+			}
+		}
+		catch (Exception e) {
+			// no binary
+		}
+		return 0;
+	}
+
+	/* The way JcrUtil.safeGetStringProp used to be written */
+	private static String legacySafeGetStringProp(Node node, String propName) {
+		try {
+			return node.getProperty(propName).getValue().getString();
+		}
+		catch (Exception e) {
+			return null;
+		}
+	}
+}
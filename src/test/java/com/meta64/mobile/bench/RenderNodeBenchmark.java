@@ -0,0 +1,116 @@
+package com.meta64.mobile.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.jcr.Session;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.meta64.mobile.request.RenderNodeRequest;
+import com.meta64.mobile.response.RenderNodeResponse;
+import com.meta64.mobile.service.NodeRenderService;
+
+/**
+ * Full NodeRenderService.renderNode calls, one page per op, for the main ways the client asks for
+ * a page:
+ * <ul>
+ * <li>firstPage: first page of the wide folder
+ * <li>lastPage: 'goToLastPage' on the wide folder
+ * <li>scanToNode: upLevel=1 from a child in the wide folder, which scans for that child
+ * <li>leaf: renderParentIfLeaf on the bottom of the deep chain
+ * <li>rssFeed: first page of one RSS feed, newest first, which is a query on the
+ * rssItemCreatedIndex rather than a walk of the children
+ * <li>rssFeedLastPage: 'goToLastPage' on that feed, which has to count the query's results
+ * </ul>
+ * <p>
+ * The repository is searchable, for the RSS index. Taking the 'evaluatePathRestriction' off that
+ * index in BenchRepository shows what it's worth, as the index then returns every feed's items
+ * for the query engine to filter.
+ * <p>
+ * Run with: mvn -Pbench test-compile exec:exec -Dbench.include=RenderNode
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RenderNodeBenchmark {
+
+	@Param({ "firstPage", "lastPage", "scanToNode", "leaf", "rssFeed", "rssFeedLastPage" })
+	private String scenario;
+
+	private BenchRepository repo;
+	private Session session;
+	private NodeRenderService nodeRenderService;
+	private String deepLeafPath;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		repo = BenchRepository.create(true);
+		session = repo.getSession();
+		nodeRenderService = repo.getNodeRenderService();
+
+		StringBuilder path = new StringBuilder(BenchRepository.DEEP);
+		for (int i = 0; i < BenchRepository.DEEP_COUNT; i++) {
+			path.append("/level").append(i);
+		}
+		deepLeafPath = path.toString();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		repo.shutdown();
+	}
+
+	/* renderNode modifies the request, so we need a new one every time */
+	private RenderNodeRequest buildRequest() {
+		RenderNodeRequest req = new RenderNodeRequest();
+		switch (scenario) {
+		case "firstPage":
+			req.setNodeId(BenchRepository.WIDE);
+			break;
+		case "lastPage":
+			req.setNodeId(BenchRepository.WIDE);
+			req.setGoToLastPage(true);
+			break;
+		case "scanToNode":
+			req.setNodeId(BenchRepository.WIDE + "/node" + (BenchRepository.WIDE_COUNT / 2));
+			req.setUpLevel(1);
+			break;
+		case "leaf":
+			req.setNodeId(deepLeafPath);
+			req.setRenderParentIfLeaf(true);
+			break;
+		case "rssFeed":
+			req.setNodeId(BenchRepository.RSS + "/feed0");
+			break;
+		case "rssFeedLastPage":
+			req.setNodeId(BenchRepository.RSS + "/feed0");
+			req.setGoToLastPage(true);
+			break;
+		default:
+			throw new IllegalArgumentException(scenario);
+		}
+		return req;
+	}
+
+	@Benchmark
+	public RenderNodeResponse renderNode() {
+		RenderNodeResponse res = new RenderNodeResponse();
+		nodeRenderService.renderNode(session, buildRequest(), res, false);
+		return res;
+	}
+}
@@ -0,0 +1,138 @@
+package com.meta64.mobile.bench;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import javax.jcr.ImportUUIDBehavior;
+import javax.jcr.Repository;
+import javax.jcr.Session;
+import javax.jcr.SimpleCredentials;
+
+import org.apache.jackrabbit.api.JackrabbitRepository;
+import org.apache.jackrabbit.oak.Oak;
+import org.apache.jackrabbit.oak.jcr.Jcr;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.meta64.mobile.repo.SysViewImporter;
+import com.meta64.mobile.util.StreamUtil;
+
+/**
+ * SysViewImporter reading a generated system view file into an empty in-memory repository, one
+ * whole import per op. The file is a folder of FOLDER_SIZE nodes per folder, each node with a
+ * couple of properties, like a typical exported tree. batchNodes of 0 is the single save at the end
+ * (which is what Workspace.importXML does), and expect that to run out of heap on the multi-million
+ * node file unless the fork is given a lot more than the default.
+ * <p>
+ * The import logs its own nodes/s. Run with: mvn -Pbench test-compile exec:exec
+ * -Dbench.include=SysViewImport
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class SysViewImportBenchmark {
+
+	private static final int FOLDER_SIZE = 1000;
+
+	@Param({ "100000", "2000000" })
+	private int nodeCount;
+
+	@Param({ "0", "1000", "10000" })
+	private int batchNodes;
+
+	private File xmlFile;
+	private Repository repository;
+	private Session session;
+
+	@Setup(Level.Trial)
+	public void generate() throws Exception {
+		BenchRepository.quietLogging();
+		xmlFile = File.createTempFile("sysview-bench", ".xml");
+		xmlFile.deleteOnExit();
+
+		Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(xmlFile), StandardCharsets.UTF_8), 64 * 1024);
+		try {
+			out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+			out.write("<sv:node xmlns:sv=\"http://www.jcp.org/jcr/sv/1.0\" xmlns:jcr=\"http://www.jcp.org/jcr/1.0\" sv:name=\"import\">");
+			writeType(out);
+
+			int folders = (nodeCount + FOLDER_SIZE - 1) / FOLDER_SIZE;
+			int written = 0;
+			for (int f = 0; f < folders; f++) {
+				out.write("<sv:node sv:name=\"f" + f + "\">");
+				writeType(out);
+				for (int i = 0; i < FOLDER_SIZE && written < nodeCount; i++, written++) {
+					out.write("<sv:node sv:name=\"n" + i + "\">");
+					writeType(out);
+					out.write("<sv:property sv:name=\"content\" sv:type=\"String\"><sv:value>node " + written + " of the benchmark import</sv:value></sv:property>");
+					out.write("<sv:property sv:name=\"index\" sv:type=\"Long\"><sv:value>" + written + "</sv:value></sv:property>");
+					out.write("</sv:node>");
+				}
+				out.write("</sv:node>");
+			}
+			out.write("</sv:node>\n");
+		}
+		finally {
+			StreamUtil.close(out);
+		}
+	}
+
+	private static void writeType(Writer out) throws Exception {
+		out.write("<sv:property sv:name=\"jcr:primaryType\" sv:type=\"Name\"><sv:value>nt:unstructured</sv:value></sv:property>");
+	}
+
+	@TearDown(Level.Trial)
+	public void deleteFile() {
+		xmlFile.delete();
+	}
+
+	@Setup(Level.Invocation)
+	public void createRepository() throws Exception {
+		repository = new Jcr(new Oak()).createRepository();
+		session = repository.login(new SimpleCredentials("admin", "admin".toCharArray()));
+
+		/* for the marker SysViewImporter puts on the top node while it saves in batches */
+		session.getWorkspace().getNamespaceRegistry().registerNamespace("meta64", "http://meta64.com/jcr/");
+	}
+
+	@TearDown(Level.Invocation)
+	public void shutdownRepository() {
+		session.logout();
+		((JackrabbitRepository) repository).shutdown();
+	}
+
+	@Benchmark
+	public long importFile() throws Exception {
+		SysViewImporter importer = new SysViewImporter(session, batchNodes, ImportUUIDBehavior.IMPORT_UUID_CREATE_NEW, null);
+		InputStream in = new BufferedInputStream(new FileInputStream(xmlFile), 64 * 1024);
+		try {
+			importer.importXml("/", in);
+		}
+		finally {
+			StreamUtil.close(in);
+		}
+		return importer.getNodeCount();
+	}
+}
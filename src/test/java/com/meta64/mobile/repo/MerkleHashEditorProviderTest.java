@@ -0,0 +1,156 @@
+package com.meta64.mobile.repo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+
+import javax.jcr.Node;
+import javax.jcr.Repository;
+import javax.jcr.Session;
+import javax.jcr.SimpleCredentials;
+
+import org.apache.jackrabbit.api.JackrabbitRepository;
+import org.apache.jackrabbit.oak.Oak;
+import org.apache.jackrabbit.oak.jcr.Jcr;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.meta64.mobile.config.AppProp;
+import com.meta64.mobile.config.JcrProp;
+import com.meta64.mobile.request.GenerateNodeHashRequest;
+import com.meta64.mobile.response.GenerateNodeHashResponse;
+import com.meta64.mobile.service.Sha256Service;
+
+/**
+ * Checks the hashes MerkleHashEditorProvider maintains on commit against a full recursive verify by
+ * Sha256Service, using an in-memory repository.
+ */
+public class MerkleHashEditorProviderTest {
+
+	private Repository repository;
+	private Session session;
+
+	@Before
+	public void setUp() throws Exception {
+		repository = new Jcr(new Oak()).with(new MerkleHashEditorProvider()).createRepository();
+		session = login();
+
+		Node top = session.getRootNode().addNode("top", "nt:unstructured");
+		for (int i = 0; i < 3; i++) {
+			Node child = top.addNode("child" + i, "nt:unstructured");
+			child.setProperty(JcrProp.CONTENT, "content " + i);
+			child.setProperty("tags", new String[] { "a", "b" });
+			for (int j = 0; j < 2; j++) {
+				child.addNode("leaf" + j, "nt:unstructured").setProperty(JcrProp.CONTENT, "leaf " + i + "." + j);
+			}
+		}
+		session.save();
+	}
+
+	@After
+	public void tearDown() {
+		session.logout();
+		((JackrabbitRepository) repository).shutdown();
+	}
+
+	private Session login() throws Exception {
+		return repository.login(new SimpleCredentials("admin", "admin".toCharArray()));
+	}
+
+	private String merkle(String path) throws Exception {
+		session.refresh(false);
+		Node node = session.getNode(path);
+		return node.hasProperty(JcrProp.MERKLE_HASH) ? node.getProperty(JcrProp.MERKLE_HASH).getString() : null;
+	}
+
+	/* Full recursive verify of the stored hashes. Returns the root hash, or the failure message */
+	private String verify(String path) throws Exception {
+		GenerateNodeHashRequest req = new GenerateNodeHashRequest();
+		req.setNodeId(path);
+		req.setVerify(true);
+		GenerateNodeHashResponse res = new GenerateNodeHashResponse();
+
+		/* several threads even on a single core box, so the parallel path is what gets tested */
+		AppProp appProp = new AppProp();
+		ReflectionTestUtils.setField(appProp, "env", new MockEnvironment().withProperty("merkleHashing.threads", "4"));
+		Sha256Service sha256Service = new Sha256Service();
+		ReflectionTestUtils.setField(sha256Service, "appProp", appProp);
+
+		sha256Service.generateNodeHash(login(), req, res);
+		return res.getHashInfo();
+	}
+
+	@Test
+	public void hashesMatchFullScan() throws Exception {
+		String topHash = merkle("/top");
+		assertNotNull(topHash);
+		assertNotNull(merkle("/top/child1/leaf0"));
+		assertEquals(topHash, verify("/top"));
+	}
+
+	@Test
+	public void changeRehashesOnlyAncestors() throws Exception {
+		String topHash = merkle("/top");
+		String child0Hash = merkle("/top/child0");
+		String child1Hash = merkle("/top/child1");
+
+		session.getNode("/top/child1/leaf1").setProperty(JcrProp.CONTENT, "changed");
+		session.save();
+
+		assertNotEquals(topHash, merkle("/top"));
+		assertNotEquals(child1Hash, merkle("/top/child1"));
+		assertEquals(child0Hash, merkle("/top/child0"));
+		assertEquals(merkle("/top"), verify("/top"));
+
+		/* putting it back gives back the original hash */
+		session.getNode("/top/child1/leaf1").setProperty(JcrProp.CONTENT, "leaf 1.1");
+		session.save();
+		assertEquals(topHash, merkle("/top"));
+	}
+
+	@Test
+	public void reorderAndRemoveChangeHash() throws Exception {
+		String topHash = merkle("/top");
+
+		session.getNode("/top").orderBefore("child2", "child0");
+		session.save();
+		String reorderedHash = merkle("/top");
+		assertNotEquals(topHash, reorderedHash);
+		assertEquals(reorderedHash, verify("/top"));
+
+		session.getNode("/top/child2").remove();
+		session.save();
+		assertNotEquals(reorderedHash, merkle("/top"));
+		assertEquals(merkle("/top"), verify("/top"));
+	}
+
+	@Test
+	public void binaryHashedByContent() throws Exception {
+		Node node = session.getNode("/top/child0");
+		node.setProperty(JcrProp.BIN_DATA, session.getValueFactory().createBinary(new ByteArrayInputStream(new byte[] { 1, 2, 3 })));
+		session.save();
+
+		session.refresh(false);
+		assertTrue(session.getNode("/top/child0").hasProperty(JcrProp.BIN_HASH));
+		String withBinary = merkle("/top");
+		assertEquals(withBinary, verify("/top"));
+
+		node = session.getNode("/top/child0");
+		node.setProperty(JcrProp.BIN_DATA, session.getValueFactory().createBinary(new ByteArrayInputStream(new byte[] { 1, 2, 4 })));
+		session.save();
+		assertNotEquals(withBinary, merkle("/top"));
+		assertEquals(merkle("/top"), verify("/top"));
+
+		session.getNode("/top/child0").getProperty(JcrProp.BIN_DATA).remove();
+		session.save();
+		session.refresh(false);
+		assertFalse(session.getNode("/top/child0").hasProperty(JcrProp.BIN_HASH));
+	}
+}
@@ -0,0 +1,166 @@
+package com.meta64.mobile.repo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+
+import javax.jcr.ImportUUIDBehavior;
+import javax.jcr.Node;
+import javax.jcr.Repository;
+import javax.jcr.Session;
+import javax.jcr.SimpleCredentials;
+
+import org.apache.jackrabbit.api.JackrabbitRepository;
+import org.apache.jackrabbit.oak.Oak;
+import org.apache.jackrabbit.oak.jcr.Jcr;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.meta64.mobile.config.JcrProp;
+import com.meta64.mobile.job.AsyncJob;
+
+/**
+ * Imports small system view documents with SysViewImporter into an in-memory repository, saving
+ * after every node or two, to check the rollback of a cancelled import and the fixing up of
+ * references between imported nodes that were saved in different batches.
+ */
+public class SysViewImporterTest {
+
+	private static final String ORIGINAL_UUID = "0b2c8a7e-0000-4000-8000-000000000001";
+
+	private Repository repository;
+	private Session session;
+
+	/* Cancels itself once it's told that 'cancelAt' nodes are done, as if the user hit cancel */
+	private static class CancelAtJob extends AsyncJob {
+		private final long cancelAt;
+
+		CancelAtJob(long cancelAt) {
+			this.cancelAt = cancelAt;
+		}
+
+		@Override
+		protected void runJob() {
+		}
+
+		@Override
+		public String getType() {
+			return "test";
+		}
+
+		@Override
+		public void setNodesDone(long nodesDone) {
+			super.setNodesDone(nodesDone);
+			if (nodesDone >= cancelAt) {
+				cancel();
+			}
+		}
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		repository = new Jcr(new Oak()).createRepository();
+		session = repository.login(new SimpleCredentials("admin", "admin".toCharArray()));
+
+		/* for the marker SysViewImporter puts on the top node while it saves in batches */
+		session.getWorkspace().getNamespaceRegistry().registerNamespace("meta64", "http://meta64.com/jcr/");
+
+		session.getRootNode().addNode("target", "nt:unstructured").addNode("existing", "nt:unstructured");
+		session.save();
+	}
+
+	@After
+	public void tearDown() {
+		session.logout();
+		((JackrabbitRepository) repository).shutdown();
+	}
+
+	@Test
+	public void cancelRemovesPartialImport() throws Exception {
+		SysViewImporter importer = new SysViewImporter(session, 2, ImportUUIDBehavior.IMPORT_UUID_CREATE_NEW, new CancelAtJob(5));
+		try {
+			importer.importXml("/target", xml(folder("import", 10)));
+			fail("expected the import to be cancelled");
+		}
+		catch (RuntimeException e) {
+			// expected
+		}
+
+		/* some batches were saved before the cancel, so this is the rollback's doing */
+		session.refresh(false);
+		assertFalse(session.nodeExists("/target/import"));
+		assertTrue(session.nodeExists("/target/existing"));
+		assertEquals(1, session.getNode("/target").getNodes().getSize());
+		assertFalse(session.hasPendingChanges());
+	}
+
+	@Test
+	public void completedImportClearsMarker() throws Exception {
+		SysViewImporter importer = new SysViewImporter(session, 2, ImportUUIDBehavior.IMPORT_UUID_CREATE_NEW, null);
+		importer.importXml("/target", xml(folder("import", 10)));
+
+		session.refresh(false);
+		Node top = session.getNode("/target/import");
+		assertEquals(10, top.getNodes().getSize());
+		assertFalse(top.hasProperty(JcrProp.IMPORT_PENDING));
+		assertEquals(11, importer.getNodeCount());
+	}
+
+	/*
+	 * The referenced node is saved in an earlier batch than the node referring to it, and gets a
+	 * new uuid (createNew), so the reference is only right once the import handler has fixed it up
+	 * at the end of the document.
+	 */
+	@Test
+	public void referenceAcrossBatchesIsFixedUp() throws Exception {
+		String body = "<sv:node sv:name=\"import\">" + type() //
+				+ "<sv:node sv:name=\"target\">" + type() //
+				+ "<sv:property sv:name=\"jcr:mixinTypes\" sv:type=\"Name\"><sv:value>mix:referenceable</sv:value></sv:property>" //
+				+ "<sv:property sv:name=\"jcr:uuid\" sv:type=\"String\"><sv:value>" + ORIGINAL_UUID + "</sv:value></sv:property>" //
+				+ "</sv:node>" //
+				+ children(5) //
+				+ "<sv:node sv:name=\"referrer\">" + type() //
+				+ "<sv:property sv:name=\"ref\" sv:type=\"Reference\"><sv:value>" + ORIGINAL_UUID + "</sv:value></sv:property>" //
+				+ "</sv:node>" //
+				+ "</sv:node>";
+
+		SysViewImporter importer = new SysViewImporter(session, 1, ImportUUIDBehavior.IMPORT_UUID_CREATE_NEW, null);
+		importer.importXml("/target", xml(body));
+
+		session.refresh(false);
+		Node target = session.getNode("/target/import/target");
+		assertNotEquals(ORIGINAL_UUID, target.getIdentifier());
+		assertEquals(target.getIdentifier(), session.getNode("/target/import/referrer").getProperty("ref").getNode().getIdentifier());
+		assertFalse(session.getNode("/target/import").hasProperty(JcrProp.IMPORT_PENDING));
+	}
+
+	private static String folder(String name, int childCount) {
+		return "<sv:node sv:name=\"" + name + "\">" + type() + children(childCount) + "</sv:node>";
+	}
+
+	private static String children(int count) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < count; i++) {
+			sb.append("<sv:node sv:name=\"n" + i + "\">" + type());
+			sb.append("<sv:property sv:name=\"content\" sv:type=\"String\"><sv:value>node " + i + "</sv:value></sv:property>");
+			sb.append("</sv:node>");
+		}
+		return sb.toString();
+	}
+
+	private static String type() {
+		return "<sv:property sv:name=\"jcr:primaryType\" sv:type=\"Name\"><sv:value>nt:unstructured</sv:value></sv:property>";
+	}
+
+	private static ByteArrayInputStream xml(String body) {
+		String doc = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>" //
+				+ body.replaceFirst("<sv:node ", "<sv:node xmlns:sv=\"http://www.jcp.org/jcr/sv/1.0\" xmlns:jcr=\"http://www.jcp.org/jcr/1.0\" ");
+		return new ByteArrayInputStream(doc.getBytes(StandardCharsets.UTF_8));
+	}
+}
@@ -0,0 +1,143 @@
+package com.meta64.mobile.rss;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+import com.meta64.mobile.rss.model.RssFeedWrapper;
+import com.sun.syndication.feed.synd.SyndEnclosure;
+import com.sun.syndication.feed.synd.SyndEntry;
+import com.sun.syndication.feed.synd.SyndFeed;
+
+/**
+ * Tests the streaming feed parser on small RSS 2.0 and Atom documents.
+ */
+public class RssStreamParserTest {
+
+	private static final String RSS = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>" //
+			+ "<rss version=\"2.0\" xmlns:dc=\"http://purl.org/dc/elements/1.1/\"><channel>" //
+			+ "<title>Feed Title</title><link>http://example.com/</link><description>Feed Desc</description>" //
+			+ "<image><url>http://example.com/logo.png</url><title>Image Title</title><link>http://example.com/img</link></image>" //
+			+ "<item><title>One</title><link>http://example.com/1</link><description><![CDATA[<b>first</b>]]></description>" //
+			+ "<guid>guid-1</guid><dc:creator>Bob</dc:creator>" //
+			+ "<enclosure url=\"http://example.com/1.mp3\" type=\"audio/mpeg\" length=\"1234\"/></item>" //
+			+ "<item><title>Two</title><link>http://example.com/2</link></item>" //
+			+ "<item><title>Three</title><link>http://example.com/3</link></item>" //
+			+ "</channel></rss>";
+
+	private static final String ATOM = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>" //
+			+ "<feed xmlns=\"http://www.w3.org/2005/Atom\"><title>Atom Feed</title><subtitle>Sub</subtitle>" //
+			+ "<link rel=\"self\" href=\"http://example.com/atom.xml\"/><link rel=\"alternate\" href=\"http://example.com/\"/><id>urn:feed</id>" //
+			+ "<entry><title>A</title><link rel=\"enclosure\" href=\"http://example.com/a.mp3\" type=\"audio/mpeg\" length=\"99\"/>" //
+			+ "<link rel=\"self\" href=\"http://example.com/a.atom\"/><link rel=\"replies\" href=\"http://example.com/a/comments\"/>" //
+			+ "<link rel=\"edit\" href=\"http://example.com/edit/a\"/>" //
+			+ "<link href=\"http://example.com/a\"/><id>urn:a</id><author><name>Ann</name><email>ann@example.com</email></author>" //
+			+ "<content type=\"xhtml\"><div xmlns=\"http://www.w3.org/1999/xhtml\">Hello <i>there</i></div></content></entry>" //
+			+ "</feed>";
+
+	/* an RSS 2.0 feed using Atom and iTunes extensions, as most podcast feeds do */
+	private static final String RSS_EXT = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>" //
+			+ "<rss version=\"2.0\" xmlns:atom=\"http://www.w3.org/2005/Atom\" xmlns:itunes=\"http://www.itunes.com/dtds/podcast-1.0.dtd\"><channel>" //
+			+ "<atom:link rel=\"self\" href=\"http://example.com/feed.xml\" type=\"application/rss+xml\"/>" //
+			+ "<title>Podcast</title><itunes:title>iTunes Podcast</itunes:title><link>http://example.com/</link>" //
+			+ "<itunes:summary>iTunes summary</itunes:summary><description>Podcast Desc</description>" //
+			+ "<itunes:image href=\"http://example.com/art.jpg\"/>" //
+			+ "<item><itunes:title>iTunes One</itunes:title><title>One</title><atom:link rel=\"self\" href=\"http://example.com/1.xml\"/>" //
+			+ "<link>http://example.com/1</link><description>first</description><itunes:summary>iTunes first</itunes:summary>" //
+			+ "<itunes:author>Someone Else</itunes:author><author>bob@example.com</author></item>" //
+			+ "</channel></rss>";
+
+	@Test
+	public void readsRss() {
+		RssFeedWrapper wFeed = parse(RSS, 10, 100000);
+		SyndFeed feed = wFeed.getFeed();
+		assertEquals("Feed Title", feed.getTitle());
+		assertEquals("http://example.com/", feed.getLink());
+		assertEquals("Feed Desc", feed.getDescription());
+		assertEquals("http://example.com/logo.png", feed.getImage().getUrl());
+		assertEquals(3, wFeed.getEntryList().size());
+
+		SyndEntry entry = (SyndEntry) wFeed.getEntryList().get(0).getEntry();
+		assertEquals("One", entry.getTitle());
+		assertEquals("http://example.com/1", entry.getLink());
+		assertEquals("<b>first</b>", entry.getDescription().getValue());
+		assertEquals("guid-1", entry.getUri());
+		assertEquals("Bob", entry.getAuthor());
+
+		SyndEnclosure enc = (SyndEnclosure) entry.getEnclosures().get(0);
+		assertEquals("http://example.com/1.mp3", enc.getUrl());
+		assertEquals("audio/mpeg", enc.getType());
+		assertEquals(1234, enc.getLength());
+
+		assertNull(((SyndEntry) wFeed.getEntryList().get(1).getEntry()).getDescription());
+	}
+
+	@Test
+	public void extensionsDontReplaceCoreFields() {
+		RssFeedWrapper wFeed = parse(RSS_EXT, 10, 100000);
+		SyndFeed feed = wFeed.getFeed();
+		assertEquals("Podcast", feed.getTitle());
+		assertEquals("http://example.com/", feed.getLink());
+		assertEquals("Podcast Desc", feed.getDescription());
+
+		SyndEntry entry = (SyndEntry) wFeed.getEntryList().get(0).getEntry();
+		assertEquals("One", entry.getTitle());
+		assertEquals("http://example.com/1", entry.getLink());
+		assertEquals("first", entry.getDescription().getValue());
+		assertEquals("bob@example.com", entry.getAuthor());
+	}
+
+	@Test
+	public void stopsAtMaxEntries() {
+		RssStreamParser parser = new RssStreamParser(2, 100000);
+		RssFeedWrapper wFeed = parser.parse(new ByteArrayInputStream(RSS.getBytes(StandardCharsets.UTF_8)), "http://example.com/feed");
+		assertEquals(2, wFeed.getEntryList().size());
+		assertEquals(2, wFeed.getFeed().getEntries().size());
+		assertTrue(parser.isStoppedEarly());
+	}
+
+	@Test
+	public void readsToEndUnderMaxEntries() {
+		RssStreamParser parser = new RssStreamParser(3, 100000);
+		parser.parse(new ByteArrayInputStream(RSS.getBytes(StandardCharsets.UTF_8)), "http://example.com/feed");
+		assertFalse(parser.isStoppedEarly());
+	}
+
+	@Test
+	public void readsAtom() {
+		RssFeedWrapper wFeed = parse(ATOM, 10, 100000);
+		assertEquals("Atom Feed", wFeed.getFeed().getTitle());
+		assertEquals("http://example.com/", wFeed.getFeed().getLink());
+		assertEquals("Sub", wFeed.getFeed().getDescription());
+		assertEquals("urn:feed", wFeed.getFeed().getUri());
+
+		SyndEntry entry = (SyndEntry) wFeed.getEntryList().get(0).getEntry();
+		assertEquals("http://example.com/a", entry.getLink());
+		assertEquals("urn:a", entry.getUri());
+		assertEquals("Ann", entry.getAuthor());
+		assertEquals("Hello there", entry.getDescription().getValue());
+		assertEquals("http://example.com/a.mp3", ((SyndEnclosure) entry.getEnclosures().get(0)).getUrl());
+	}
+
+	@Test
+	public void failsOverByteLimit() {
+		try {
+			parse(RSS, 10, 100);
+			fail("expected the byte limit to be hit");
+		}
+		catch (RuntimeException e) {
+			// expected
+		}
+	}
+
+	private RssFeedWrapper parse(String xml, int maxEntries, long maxBytes) {
+		return new RssStreamParser(maxEntries, maxBytes).parse(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)), "http://example.com/feed");
+	}
+}
@@ -0,0 +1,154 @@
+package com.meta64.mobile.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+
+import javax.jcr.Node;
+import javax.jcr.Repository;
+import javax.jcr.Session;
+import javax.jcr.SimpleCredentials;
+
+import org.apache.jackrabbit.api.JackrabbitRepository;
+import org.apache.jackrabbit.oak.Oak;
+import org.apache.jackrabbit.oak.jcr.Jcr;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.meta64.mobile.config.AppProp;
+import com.meta64.mobile.config.JcrProp;
+import com.meta64.mobile.model.CompareDiffInfo;
+import com.meta64.mobile.repo.MerkleHashEditorProvider;
+import com.meta64.mobile.request.CompareSubGraphRequest;
+import com.meta64.mobile.response.CompareSubGraphResponse;
+
+/**
+ * Compare of two copies of the same small tree, with the stored Merkle hashes kept current by
+ * MerkleHashEditorProvider, so both the hash shortcuts and the plain compare get used.
+ */
+public class CompareSubGraphServiceTest {
+
+	private Repository repository;
+	private Session session;
+
+	@Before
+	public void setUp() throws Exception {
+		repository = new Jcr(new Oak()).with(new MerkleHashEditorProvider()).createRepository();
+		session = repository.login(new SimpleCredentials("admin", "admin".toCharArray()));
+		session.getWorkspace().getNamespaceRegistry().registerNamespace("meta64", "http://meta64.com/jcr/");
+
+		/* same content under different names, the way an import would have it */
+		for (String top : new String[] { "a", "b" }) {
+			Node topNode = session.getRootNode().addNode(top, "nt:unstructured");
+			for (int i = 0; i < 5; i++) {
+				Node child = topNode.addNode(top + i, "nt:unstructured");
+				child.setProperty(JcrProp.CONTENT, "content " + i);
+				child.addNode("leaf", "nt:unstructured").setProperty(JcrProp.CONTENT, "leaf " + i);
+			}
+		}
+		session.save();
+	}
+
+	@After
+	public void tearDown() {
+		session.logout();
+		((JackrabbitRepository) repository).shutdown();
+	}
+
+	private CompareSubGraphResponse compare(int offset) {
+		CompareSubGraphRequest req = new CompareSubGraphRequest();
+		req.setNodeIdA("/a");
+		req.setNodeIdB("/b");
+		req.setOffset(offset);
+		CompareSubGraphResponse res = new CompareSubGraphResponse();
+
+		AppProp appProp = new AppProp();
+		ReflectionTestUtils.setField(appProp, "env", new MockEnvironment().withProperty("merkleHashing.enabled", "true"));
+		CompareSubGraphService service = new CompareSubGraphService();
+		ReflectionTestUtils.setField(service, "appProp", appProp);
+
+		service.compare(session, req, res);
+		return res;
+	}
+
+	@Test
+	public void identical() {
+		CompareSubGraphResponse res = compare(0);
+		assertEquals("Nodes are identical.", res.getCompareInfo());
+		assertTrue(res.getDiffs().isEmpty());
+		assertTrue(res.isEndReached());
+	}
+
+	@Test
+	public void listsEachDifference() throws Exception {
+		session.getNode("/b/b1/leaf").setProperty(JcrProp.CONTENT, "changed");
+		session.getNode("/b/b2").setProperty("extra", "x");
+		session.getNode("/a/a4").remove();
+
+		/* inserted in the middle, and the children after it still line up */
+		session.getNode("/b").addNode("inserted", "nt:unstructured");
+		session.getNode("/b").orderBefore("inserted", "b3");
+		session.save();
+
+		CompareSubGraphResponse res = compare(0);
+		assertEquals(4, res.getDiffs().size());
+
+		CompareDiffInfo changed = res.getDiffs().get(0);
+		assertEquals(CompareDiffInfo.PROP_CHANGED, changed.getDiffType());
+		assertEquals("/a1/leaf", changed.getPathA());
+		assertEquals("/b1/leaf", changed.getPathB());
+		assertEquals("leaf 1", changed.getValueA());
+		assertEquals("changed", changed.getValueB());
+
+		assertEquals(CompareDiffInfo.PROP_ADDED, res.getDiffs().get(1).getDiffType());
+		assertEquals("extra", res.getDiffs().get(1).getPropName());
+		assertEquals(CompareDiffInfo.NODE_ADDED, res.getDiffs().get(2).getDiffType());
+		assertEquals("/inserted", res.getDiffs().get(2).getPathB());
+		assertEquals(CompareDiffInfo.NODE_ADDED, res.getDiffs().get(3).getDiffType());
+		assertEquals("/b4", res.getDiffs().get(3).getPathB());
+	}
+
+	@Test
+	public void comparesBinaries() throws Exception {
+		/* same size, differing only in the last byte, past the first compare chunk */
+		byte[] content = new byte[100 * 1024];
+		session.getNode("/a/a0").setProperty(JcrProp.BIN_DATA, session.getValueFactory().createBinary(new ByteArrayInputStream(content)));
+		session.getNode("/b/b0").setProperty(JcrProp.BIN_DATA, session.getValueFactory().createBinary(new ByteArrayInputStream(content)));
+		session.save();
+		assertTrue(compare(0).getDiffs().isEmpty());
+
+		content[content.length - 1] = 1;
+		session.getNode("/b/b0").setProperty(JcrProp.BIN_DATA, session.getValueFactory().createBinary(new ByteArrayInputStream(content)));
+		session.save();
+		assertEquals(CompareDiffInfo.PROP_CHANGED, compare(0).getDiffs().get(0).getDiffType());
+
+		/* without the stored content hash it falls back to comparing the streams */
+		session.getNode("/b/b0").setProperty(JcrProp.BIN_HASH, (String) null);
+		assertEquals(JcrProp.BIN_DATA, compare(0).getDiffs().get(0).getPropName());
+		session.getNode("/b/b0").setProperty(JcrProp.BIN_DATA, session.getValueFactory().createBinary(new ByteArrayInputStream(new byte[100 * 1024])));
+		session.getNode("/b/b0").setProperty(JcrProp.BIN_HASH, (String) null);
+		assertTrue(compare(0).getDiffs().isEmpty());
+	}
+
+	@Test
+	public void pagesThroughDiffs() throws Exception {
+		Node b0 = session.getNode("/b/b0");
+		for (int i = 0; i < 150; i++) {
+			b0.setProperty("p" + i, "v");
+		}
+		session.save();
+
+		CompareSubGraphResponse res = compare(0);
+		assertEquals(100, res.getDiffs().size());
+		assertFalse(res.isEndReached());
+
+		res = compare(100);
+		assertEquals(50, res.getDiffs().size());
+		assertTrue(res.isEndReached());
+	}
+}
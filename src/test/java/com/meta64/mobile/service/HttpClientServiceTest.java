@@ -0,0 +1,95 @@
+package com.meta64.mobile.service;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Tests the download used by uploadFromUrl against a local embedded HTTP server.
+ */
+public class HttpClientServiceTest {
+
+	private HttpServer server;
+	private CloseableHttpClient client;
+	private String baseUrl;
+	private File file;
+	private final AtomicInteger hits = new AtomicInteger();
+	private final byte[] content = new byte[100 * 1024];
+
+	@Before
+	public void setUp() throws Exception {
+		for (int i = 0; i < content.length; i++) {
+			content[i] = (byte) i;
+		}
+
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/file.bin", exchange -> {
+			hits.incrementAndGet();
+			exchange.getResponseHeaders().add("Content-Type", "application/x-test; charset=UTF-8");
+			exchange.sendResponseHeaders(200, content.length);
+			try (OutputStream os = exchange.getResponseBody()) {
+				os.write(content);
+			}
+		});
+		server.createContext("/missing", exchange -> {
+			exchange.sendResponseHeaders(404, -1);
+			exchange.close();
+		});
+		server.start();
+
+		baseUrl = "http://127.0.0.1:" + server.getAddress().getPort();
+		client = HttpClients.createDefault();
+		file = File.createTempFile("HttpClientServiceTest-", ".tmp");
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		client.close();
+		server.stop(0);
+		file.delete();
+	}
+
+	@Test
+	public void downloadsInOnePass() throws Exception {
+		String contentType = HttpClientService.downloadToFile(client, baseUrl + "/file.bin", file, content.length);
+		assertEquals("application/x-test", contentType);
+		assertArrayEquals(content, Files.readAllBytes(file.toPath()));
+		assertEquals(1, hits.get());
+	}
+
+	@Test
+	public void rejectsTooLarge() throws Exception {
+		try {
+			HttpClientService.downloadToFile(client, baseUrl + "/file.bin", file, content.length - 1);
+			fail("expected size limit to be enforced");
+		}
+		catch (RuntimeException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void rejectsErrorStatus() throws Exception {
+		try {
+			HttpClientService.downloadToFile(client, baseUrl + "/missing", file, content.length);
+			fail("expected HTTP 404 to fail");
+		}
+		catch (RuntimeException e) {
+			// expected
+		}
+	}
+}
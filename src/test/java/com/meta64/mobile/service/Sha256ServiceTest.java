@@ -0,0 +1,133 @@
+package com.meta64.mobile.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import javax.jcr.Node;
+import javax.jcr.Repository;
+import javax.jcr.Session;
+import javax.jcr.SimpleCredentials;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.jackrabbit.api.JackrabbitRepository;
+import org.apache.jackrabbit.oak.Oak;
+import org.apache.jackrabbit.oak.jcr.Jcr;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.meta64.mobile.config.AppProp;
+import com.meta64.mobile.config.JcrProp;
+import com.meta64.mobile.request.GenerateNodeHashRequest;
+import com.meta64.mobile.response.GenerateNodeHashResponse;
+import com.meta64.mobile.util.MerkleUtil;
+
+/**
+ * Generate Hash writing hashes back through MerkleHashWriter, with batch and spill sizes small
+ * enough that a few dozen nodes go through several of each.
+ */
+public class Sha256ServiceTest {
+
+	@Rule
+	public TemporaryFolder tempFolder = new TemporaryFolder();
+
+	private Repository repository;
+	private Session session;
+
+	@Before
+	public void setUp() throws Exception {
+		repository = new Jcr(new Oak()).createRepository();
+		session = login();
+		session.getWorkspace().getNamespaceRegistry().registerNamespace("meta64", "http://meta64.com/jcr/");
+
+		Node top = session.getRootNode().addNode("top", "nt:unstructured");
+		for (int i = 0; i < 4; i++) {
+			Node child = top.addNode("child" + i, "nt:unstructured");
+			child.setProperty(JcrProp.CONTENT, "content " + i);
+			for (int j = 0; j < 5; j++) {
+				child.addNode("leaf" + j, "nt:unstructured").setProperty(JcrProp.CONTENT, "leaf " + i + "." + j);
+			}
+		}
+		session.save();
+	}
+
+	@After
+	public void tearDown() {
+		session.logout();
+		((JackrabbitRepository) repository).shutdown();
+	}
+
+	private Session login() throws Exception {
+		return repository.login(new SimpleCredentials("admin", "admin".toCharArray()));
+	}
+
+	private String generate(boolean verify) throws Exception {
+		GenerateNodeHashRequest req = new GenerateNodeHashRequest();
+		req.setNodeId("/top");
+		req.setVerify(verify);
+		GenerateNodeHashResponse res = new GenerateNodeHashResponse();
+
+		AppProp appProp = new AppProp();
+		ReflectionTestUtils.setField(appProp, "env", new MockEnvironment() //
+				.withProperty("adminDataFolder", tempFolder.getRoot().getPath()) //
+				.withProperty("merkleHashing.threads", "4") //
+				.withProperty("merkleHashing.batchSize", "3") //
+				.withProperty("merkleHashing.spillThreshold", "4"));
+		Sha256Service sha256Service = new Sha256Service();
+		ReflectionTestUtils.setField(sha256Service, "appProp", appProp);
+
+		sha256Service.generateNodeHash(login(), req, res);
+		return res.getHashInfo();
+	}
+
+	private File checkpointFile() throws Exception {
+		String name = Hex.encodeHexString(MerkleUtil.newDigester().digest(session.getNode("/top").getIdentifier().getBytes(StandardCharsets.UTF_8)));
+		return new File(new File(tempFolder.getRoot(), "merkle"), name + ".checkpoint");
+	}
+
+	@Test
+	public void writesAllHashes() throws Exception {
+		String hash = generate(false);
+
+		session.refresh(false);
+		assertEquals(hash, session.getNode("/top").getProperty(JcrProp.MERKLE_HASH).getString());
+		assertTrue(session.getNode("/top/child3/leaf4").hasProperty(JcrProp.MERKLE_HASH));
+		assertEquals(hash, generate(true));
+
+		/* checkpoint and spill files are gone after a complete run */
+		assertFalse(checkpointFile().exists());
+		assertEquals(0, new File(tempFolder.getRoot(), "merkle").list().length);
+	}
+
+	@Test
+	public void resumesFromCheckpoint() throws Exception {
+		String hash = generate(false);
+
+		/*
+		 * Pretend a run died after saving child1, with a hash we can tell apart, to show the
+		 * resumed run uses it rather than hashing child1 again
+		 */
+		session.refresh(false);
+		session.getNode("/top/child1").setProperty(JcrProp.MERKLE_HASH, Hex.encodeHexString(new byte[32]));
+		session.save();
+		checkpointFile().getParentFile().mkdirs();
+		Files.write(checkpointFile().toPath(), Arrays.asList("/top/child1"), StandardCharsets.UTF_8);
+
+		assertNotEquals(hash, generate(false));
+		assertFalse(checkpointFile().exists());
+
+		/* without a checkpoint it's all rehashed and back to the real hash */
+		assertEquals(hash, generate(false));
+	}
+}